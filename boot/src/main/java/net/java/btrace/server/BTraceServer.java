@@ -30,8 +30,13 @@ import net.java.btrace.api.extensions.ExtensionsRepositoryFactory;
 import net.java.btrace.api.wireio.AbstractCommand;
 import net.java.btrace.api.core.Lookup;
 import net.java.btrace.instr.ClassFilter;
+import net.java.btrace.instr.ClassHierarchy;
+import net.java.btrace.instr.ClassInfo;
 import net.java.btrace.instr.InstrumentUtils;
 import net.java.btrace.instr.Instrumentor;
+import net.java.btrace.instr.InstrumentorChain;
+import net.java.btrace.instr.MatchPlan;
+import net.java.btrace.instr.TraceHandlers;
 import net.java.btrace.org.objectweb.asm.ClassReader;
 import net.java.btrace.org.objectweb.asm.ClassWriter;
 import net.java.btrace.api.wireio.Channel;
@@ -44,9 +49,6 @@ import java.io.PrintWriter;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.Instrumentation;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
 import java.security.ProtectionDomain;
 import java.util.ArrayList;
 import java.util.List;
@@ -55,13 +57,13 @@ import java.util.Observer;
 import java.util.Queue;
 import java.util.Set;
 import java.util.StringTokenizer;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.jar.JarFile;
@@ -71,11 +73,13 @@ import net.java.btrace.api.server.Server;
 import net.java.btrace.api.server.Server.Settings;
 import net.java.btrace.api.server.Session;
 import net.java.btrace.api.wireio.ResponseHandler;
+import net.java.btrace.api.wireio.SocketMultiplexer;
 import net.java.btrace.instr.ExtensionRuntimeProcessor;
 import net.java.btrace.server.wireio.LocalChannel;
 import net.java.btrace.server.wireio.ServerChannel;
 import net.java.btrace.spi.server.ServerImpl;
 import net.java.btrace.util.BTraceThreadFactory;
+import net.java.btrace.util.SegmentedBlockingQueue;
 
 /**
  *
@@ -104,8 +108,13 @@ final public class BTraceServer implements ServerImpl {
     // sensitive classes preload
     static {
         ClassFilter.class.getClass();
+        ClassHierarchy.class.getClass();
+        ClassInfo.class.getClass();
         InstrumentUtils.class.getClass();
         Instrumentor.class.getClass();
+        InstrumentorChain.class.getClass();
+        MatchPlan.class.getClass();
+        TraceHandlers.class.getClass();
         ClassReader.class.getClass();
         ClassWriter.class.getClass();
     }
@@ -115,8 +124,16 @@ final public class BTraceServer implements ServerImpl {
     private Queue<ResponseHandler<Boolean>> stateReqQueue = new ConcurrentLinkedQueue<ResponseHandler<Boolean>>();
 
     private volatile boolean running = false;
+    private volatile SocketMultiplexer socketServer = null;
+    final private Runnable stateRequestTask = new Runnable() {
+        @Override
+        public void run() {
+            answerStateRequests();
+        }
+    };
 
     private Instrumentation instr;
+    final private ProbeTransformer probeTransformer = new ProbeTransformer();
     private ExtensionsRepository repository;
     private Server.Settings currentSettings;
 
@@ -143,6 +160,15 @@ final public class BTraceServer implements ServerImpl {
 
         ResponseHandler<Boolean> r = new ResponseHandler<Boolean>();
         stateReqQueue.add(r);
+        // answered by the socket server thread
+        SocketMultiplexer mux = socketServer;
+        if (mux != null) {
+            mux.execute(stateRequestTask);
+        }
+        if (!running) {
+            // the socket server might have stopped before seeing the request
+            answerStateRequests();
+        }
         return r.get();
     }
 
@@ -162,6 +188,8 @@ final public class BTraceServer implements ServerImpl {
     public void start(Instrumentation instr, Server.Settings settings) throws IOException {
         // need to capture the class loads of extensions
         instr.addTransformer(extensionTransformer, true);
+        // one transformer applies the probes of all the sessions
+        probeTransformer.install(instr);
 
         this.instr = instr;
         this.repository = ExtensionsRepositoryFactory.composite(
@@ -215,8 +243,8 @@ final public class BTraceServer implements ServerImpl {
                 return;
             }
 
-            final BlockingQueue<AbstractCommand> q1 = new ArrayBlockingQueue<AbstractCommand>(500);
-            final BlockingQueue<AbstractCommand> q2 = new ArrayBlockingQueue<AbstractCommand>(500);
+            final BlockingQueue<AbstractCommand> q1 = new SegmentedBlockingQueue<AbstractCommand>(500, 64);
+            final BlockingQueue<AbstractCommand> q2 = new SegmentedBlockingQueue<AbstractCommand>(500, 64);
 
             final ExtensionsRepository extRepo = ExtensionsRepositoryFactory.composite(
                 ExtensionsRepository.Location.BOTH,
@@ -320,8 +348,40 @@ final public class BTraceServer implements ServerImpl {
     }
 
     private void startSocketServer(final int port) throws IOException {
-        final ServerSocket ss = new ServerSocket(port);
-        ss.setSoTimeout(1000);
+        final SocketMultiplexer mux = SocketMultiplexer.open(port, new SocketMultiplexer.Handler() {
+            @Override
+            public void accepted(final SocketMultiplexer.Connection c) {
+                BTraceLogger.debugPrint("client accepted");
+                // the handshake is blocking; keep it off the I/O thread
+                try {
+                    SessionImpl.connectionPool.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            Channel ch = ServerChannel.open(c, getExtensionRepository(), currentSettings.flushSize, currentSettings.sharedMemorySize);
+                            if (ch == null) {
+                                BTraceLogger.debugPrint("handshake failed");
+                                return;
+                            }
+                            try {
+                                addServerSession(ch);
+                            } catch (IOException e) {
+                                BTraceLogger.debugPrint(e);
+                                ch.close();
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    BTraceLogger.debugPrint("too many pending connections; refusing the client");
+                    c.close();
+                }
+            }
+
+            @Override
+            public boolean idle() {
+                return !sessions.isEmpty();
+            }
+        });
+        socketServer = mux;
 
         final Thread shutdownThread = new Thread(new Runnable() {
             @Override
@@ -337,38 +397,13 @@ final public class BTraceServer implements ServerImpl {
             @Override
             public void run() {
                 running = true;
-                boolean wasTimeout = false;
                 System.setProperty(Server.BTRACE_PORT_KEY, String.valueOf(port));
-                while (running) {
-                    try {
-                        while (!stateReqQueue.isEmpty()) {
-                            ResponseHandler<Boolean> r = stateReqQueue.poll();
-                            if (r != null) {
-                                r.setResponse(running);
-                            }
-                        }
-                        if (!wasTimeout) {
-                            BTraceLogger.debugPrint("wating for client");
-                        }
-                        final Socket s = ss.accept();
-                        wasTimeout = false;
-                        BTraceLogger.debugPrint("client accepted");
-                        Channel ch = ServerChannel.open(s, getExtensionRepository());
-                        addServerSession(ch);
-                    } catch (SocketTimeoutException e) {
-                        wasTimeout = true;
-                        running = !sessions.isEmpty();
-                    } catch (IOException e) {
-                        running = false;
-                    }
-                }
+                BTraceLogger.debugPrint("wating for clients");
+                mux.run();
+                running = false;
+                answerStateRequests();
                 BTraceLogger.debugPrint("Leaving BTrace Socket Server");
-                try {
-                    System.getProperties().remove(Server.BTRACE_PORT_KEY);
-                    ss.close();
-                } catch (IOException e) {
-                    BTraceLogger.debugPrint(e);
-                }
+                System.getProperties().remove(Server.BTRACE_PORT_KEY);
                 try {
                     instr.removeTransformer(extensionTransformer);
                     Runtime.getRuntime().removeShutdownHook(shutdownThread);
@@ -379,6 +414,13 @@ final public class BTraceServer implements ServerImpl {
         }, "BTrace Socket Server").start();
     }
 
+    private void answerStateRequests() {
+        ResponseHandler<Boolean> r;
+        while ((r = stateReqQueue.poll()) != null) {
+            r.setResponse(running);
+        }
+    }
+
     private void startProvidedScripts(Server.Settings settings) {
         if (settings.script != null) {
             StringTokenizer tokenizer = new StringTokenizer(settings.script, ",");
@@ -469,7 +511,19 @@ final public class BTraceServer implements ServerImpl {
     }
 
     private SessionImpl addServerSession(Channel ch, final CountDownLatch initLatch) throws IOException {
-        SessionImpl session = new SessionImpl(ch, getExtensionRepository(), getInstrumentation());
+        if (ch != null) {
+            ch.setEventRingSize(currentSettings.eventRingSize);
+            ch.setOverflowPolicy(currentSettings.overflowPolicy);
+            ch.setCommandQueueCapacity(currentSettings.commandQueueCapacity);
+            ch.setFlushLinger(currentSettings.flushLinger);
+            ch.setCommandRecycling(currentSettings.recycleCommands);
+        }
+        SessionImpl session = new SessionImpl(ch, getExtensionRepository(), getInstrumentation(), probeTransformer);
+        session.setOutOfLineHandlers(currentSettings.outOfLineHandlers);
+        session.setProbeGuards(currentSettings.probeGuards);
+        session.setProbeBudget(currentSettings.probeRateLimit, currentSettings.probeCpuLimit, currentSettings.probeThrottle);
+        session.setTrackRetransforms(currentSettings.trackRetransforms);
+        session.setRetransformation(currentSettings.retransformBatchSize, currentSettings.retransformPause);
         sessions.add(session);
         session.addObserver(new Observer() {
             @Override
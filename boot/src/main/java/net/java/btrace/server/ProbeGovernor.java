@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import net.java.btrace.api.server.ProbeThrottle;
+import net.java.btrace.runtime.ProbeStats;
+
+/**
+ * Keeps the @OnMethod probes of a session within the overhead budget.
+ * <p>
+ * Run periodically, it compares the rate and the estimated CPU cost of each
+ * probe handler in the last period against the configured limits and degrades
+ * the probes going over them according to the {@linkplain ProbeThrottle}.
+ * The client is notified about each change.
+ *
+ * @author Jaroslav Bachorik
+ */
+final class ProbeGovernor implements Runnable {
+    /**
+     * The period of the budget checks in milliseconds
+     */
+    final static long PERIOD = 1000;
+    // how long a paused probe stays off
+    final private static long PAUSE_NANOS = 10000L * 1000000L;
+    final private static int MAX_SAMPLING_MEAN = 1 << 20;
+    final private static int CPUS = Runtime.getRuntime().availableProcessors();
+
+    private static final class Probe {
+        final ProbeStats stats;
+        ProbeStats.Snapshot last;
+        boolean off;
+        long offSince;
+
+        Probe(ProbeStats stats) {
+            this.stats = stats;
+            this.last = stats.snapshot();
+        }
+    }
+
+    final private SessionImpl session;
+    final private long rateLimit;
+    final private double cpuLimit;
+    final private ProbeThrottle throttle;
+    final private List<Probe> probes = new ArrayList<Probe>();
+    private long lastTick;
+
+    /**
+     * @param session The governed session
+     * @param stats The statistics of the governed probe handlers
+     * @param rateLimit The maximum handled events per second per probe; 0 means no limit
+     * @param cpuLimit The maximum percentage of the CPU time per probe; 0 means no limit
+     * @param throttle The action taken on the probes over the limits
+     */
+    ProbeGovernor(SessionImpl session, Collection<ProbeStats> stats, long rateLimit, double cpuLimit, ProbeThrottle throttle) {
+        this.session = session;
+        this.rateLimit = rateLimit;
+        this.cpuLimit = cpuLimit;
+        this.throttle = throttle != null ? throttle : ProbeThrottle.SAMPLE;
+        for (ProbeStats s : stats) {
+            probes.add(new Probe(s));
+        }
+        lastTick = System.nanoTime();
+    }
+
+    @Override
+    public void run() {
+        long now = System.nanoTime();
+        long elapsed = now - lastTick;
+        if (elapsed <= 0) {
+            return;
+        }
+        lastTick = now;
+        for (Probe p : probes) {
+            check(p, now, elapsed);
+        }
+    }
+
+    private void check(Probe p, long now, long elapsed) {
+        ProbeStats.Snapshot cur = p.stats.snapshot();
+        ProbeStats.Snapshot last = p.last;
+        p.last = cur;
+
+        long handled = cur.handled - last.handled;
+        long timed = cur.timed - last.timed;
+        double rate = handled * 1e9d / elapsed;
+        double cpu = timed > 0 ? ((double)(cur.nanos - last.nanos) * handled / timed) * 100d / ((double)elapsed * CPUS) : 0d;
+        // how many times over the budget the probe is
+        double load = 0d;
+        if (rateLimit > 0) {
+            load = rate / rateLimit;
+        }
+        if (cpuLimit > 0) {
+            load = Math.max(load, cpu / cpuLimit);
+        }
+
+        String name = p.stats.getName();
+        switch (throttle) {
+            case SAMPLE: {
+                int mean = p.stats.getSamplingMean();
+                int newMean = mean;
+                if (load > 1d) {
+                    newMean = (int)Math.min(MAX_SAMPLING_MEAN, Math.ceil(mean * load));
+                } else if (load < 0.5d && mean > 1) {
+                    newMean = Math.max(1, mean / 2);
+                }
+                if (newMean != mean) {
+                    p.stats.setSamplingMean(newMean);
+                    session.reportThrottle(name, newMean > mean ? "sample" : "relax", newMean, rate, cpu);
+                }
+                break;
+            }
+            case PAUSE: {
+                if (p.off) {
+                    if (now - p.offSince >= PAUSE_NANOS) {
+                        p.off = false;
+                        // a probe turned off by the client in the meantime stays off
+                        session.setProbeThrottled(name, false);
+                        session.reportThrottle(name, "resume", p.stats.getSamplingMean(), rate, cpu);
+                    }
+                } else if (load > 1d) {
+                    p.off = true;
+                    p.offSince = now;
+                    session.setProbeThrottled(name, true);
+                    session.reportThrottle(name, "pause", p.stats.getSamplingMean(), rate, cpu);
+                }
+                break;
+            }
+            case DISABLE: {
+                if (!p.off && load > 1d) {
+                    p.off = true;
+                    session.setProbeThrottled(name, true);
+                    session.reportThrottle(name, "disable", p.stats.getSamplingMean(), rate, cpu);
+                }
+                break;
+            }
+        }
+    }
+}
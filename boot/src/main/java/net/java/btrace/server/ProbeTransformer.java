@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.server;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import net.java.btrace.api.core.BTraceLogger;
+import net.java.btrace.instr.ClassHierarchy;
+import net.java.btrace.instr.InstrumentorChain;
+import net.java.btrace.runtime.BTraceRuntime;
+
+/**
+ * The {@linkplain ClassFileTransformer} shared by all the sessions of a {@linkplain BTraceServer}.
+ * <p>
+ * Each loaded or retransformed class is parsed only once and checked against the class filters
+ * of all the registered sessions. The matching sessions' probes are then applied in one pass
+ * via {@linkplain InstrumentorChain} so the class load overhead does not grow with the number
+ * of attached scripts.
+ * <p>
+ * The transformer is called concurrently by the parallel capable class loaders.
+ * All the state shared by the transformations is either immutable (the compiled probes)
+ * or held in concurrent collections; no lock is taken on the class loading path.
+ *
+ * @author Jaroslav Bachorik
+ */
+final class ProbeTransformer implements ClassFileTransformer {
+    // the registration order is the order the probes are applied in
+    final private List<SessionImpl> sessions = new CopyOnWriteArrayList<SessionImpl>();
+
+    /**
+     * The supertypes of the loaded classes; maintained only while any session has
+     * supertype probes so the freshly loaded classes can be matched against them
+     */
+    final private ClassHierarchy hierarchy = new ClassHierarchy();
+    // @GuardedBy this
+    private int hierarchyUsers = 0;
+    private volatile boolean hierarchyActive = false;
+    private volatile Instrumentation instr;
+
+    void install(Instrumentation instr) {
+        this.instr = instr;
+        instr.addTransformer(this, true);
+    }
+
+    void uninstall(Instrumentation instr) {
+        instr.removeTransformer(this);
+    }
+
+    /**
+     * Starts applying the session probes to the loaded and retransformed classes
+     * @param session The session; its trace class must be already loaded
+     */
+    synchronized void register(SessionImpl session) {
+        if (session.hasSubclassChecks() && ++hierarchyUsers == 1) {
+            // the classes loaded from now on are recorded by the transformer
+            hierarchyActive = true;
+            for (Class c : instr.getAllLoadedClasses()) {
+                hierarchy.add(c);
+            }
+        }
+        sessions.add(session);
+    }
+
+    synchronized void unregister(SessionImpl session) {
+        if (sessions.remove(session) && session.hasSubclassChecks() && --hierarchyUsers == 0) {
+            hierarchyActive = false;
+            hierarchy.clear();
+        }
+    }
+
+    /**
+     * @return The known class hierarchy or <b>null</b> if no session needs it
+     */
+    ClassHierarchy getClassHierarchy() {
+        return hierarchyActive ? hierarchy : null;
+    }
+
+    @Override
+    public byte[] transform(
+            ClassLoader loader,
+            final String cname,
+            Class<?> classBeingRedefined,
+            ProtectionDomain protectionDomain,
+            byte[] classfileBuffer)
+            throws IllegalClassFormatException {
+        if (sessions.isEmpty()) {
+            return null;
+        }
+        boolean entered = BTraceRuntime.enter();
+        try {
+            if (isBTraceClass(cname) || isSensitiveClass(cname)) {
+                BTraceLogger.debugPrint("skipping transform for BTrace class " + cname); // NOI18N
+                return null;
+            }
+
+            ClassHierarchy h = getClassHierarchy();
+            InstrumentorChain chain = null;
+            if (h != null && classBeingRedefined == null) {
+                chain = new InstrumentorChain(null, classfileBuffer, loader, h);
+                h.add(loader, chain.getClassInfo());
+            }
+            List<SessionImpl> matching = null;
+            for (SessionImpl s : sessions) {
+                boolean candidate;
+                if (classBeingRedefined != null) {
+                    // class already defined; retransforming
+                    candidate = !s.skipsRetransforms() && s.getFilter().isCandidate(classBeingRedefined);
+                } else {
+                    // class not yet defined
+                    // most of the classes are rejected by their name, before the class file is parsed
+                    candidate = s.getFilter().isCandidateName(cname);
+                    if (candidate) {
+                        if (chain == null) {
+                            chain = new InstrumentorChain(null, classfileBuffer);
+                        }
+                        candidate = s.getFilter().isCandidate(chain.getClassInfo());
+                    }
+                }
+                if (!candidate) {
+                    if (BTraceLogger.isDebug()) {
+                        BTraceLogger.debugPrint("client " + s.getTraceClassName() + ": skipping transform for " + cname); // NOI18N
+                    }
+                    continue;
+                }
+                if (chain == null) {
+                    chain = new InstrumentorChain(classBeingRedefined, classfileBuffer, loader, h);
+                }
+                if (matching == null) {
+                    matching = new ArrayList<SessionImpl>(sessions.size());
+                }
+                s.transforming(cname);
+                s.addTo(chain);
+                matching.add(s);
+            }
+
+            if (matching == null) {
+                return null; // ignore
+            }
+            byte[] instrumentedCode;
+            try {
+                instrumentedCode = chain.instrument();
+                for (int i = 0; i < matching.size(); i++) {
+                    matching.get(i).instrumented(cname, chain.hasMatch(i));
+                }
+            } catch (Throwable th) {
+                BTraceLogger.debugPrint(th);
+                // do not let one failing script break the others
+                instrumentedCode = instrumentOneByOne(classBeingRedefined, loader, h, cname, classfileBuffer, matching);
+            }
+            if (instrumentedCode != null) {
+                BTraceLogger.dumpClass(cname, instrumentedCode);
+            }
+            return instrumentedCode;
+        } catch (Exception e) {
+            e.printStackTrace();
+            if (e instanceof IllegalClassFormatException) {
+                throw (IllegalClassFormatException) e;
+            }
+            return null;
+        } finally {
+            if (entered) {
+                BTraceRuntime.leave();
+            }
+        }
+    }
+
+    private static byte[] instrumentOneByOne(Class<?> clazz, ClassLoader loader, ClassHierarchy h, String cname, byte[] target, List<SessionImpl> matching) {
+        byte[] code = target;
+        for (SessionImpl s : matching) {
+            try {
+                InstrumentorChain chain = new InstrumentorChain(clazz, code, loader, h);
+                s.addTo(chain);
+                byte[] instrumentedCode = chain.instrument();
+                s.instrumented(cname, chain.hasMatch(0));
+                if (instrumentedCode != null) {
+                    code = instrumentedCode;
+                }
+            } catch (Throwable th) {
+                BTraceLogger.debugPrint(th);
+            }
+        }
+        return code != target ? code : null;
+    }
+
+    private static boolean isBTraceClass(String name) {
+        return name != null ? name.startsWith("net/java/btrace") : false; // NOI18N
+    }
+
+    /*
+     * Certain classes like java.lang.ThreadLocal and it's
+     * inner classes, java.lang.Object cannot be safely
+     * instrumented with BTrace. This is because BTrace uses
+     * ThreadLocal class to check recursive entries due to
+     * BTrace's own functions. But this leads to infinite recursions
+     * if BTrace instruments java.lang.ThreadLocal for example.
+     * For now, we avoid such classes till we find a solution.
+     */
+    private static boolean isSensitiveClass(String name) {
+        return name == null ||
+                name.equals("java/lang/Object") || // NOI18N
+                name.startsWith("java/lang/ThreadLocal") || // NOI18N
+                name.startsWith("sun/reflect") || // NOI18N
+                name.equals("sun/misc/Unsafe") || // NOI18N
+                name.startsWith("sun/security/") || // NOI18N
+                name.equals("java/lang/VerifyError"); // NOI18N
+    }
+}
@@ -24,8 +24,10 @@
  */
 package net.java.btrace.server;
 
+import net.java.btrace.api.server.ProbeThrottle;
 import net.java.btrace.api.server.Session;
 import net.java.btrace.runtime.BTraceRuntime;
+import net.java.btrace.runtime.ProbeStats;
 import net.java.btrace.api.core.BTraceLogger;
 import net.java.btrace.api.extensions.BTraceExtension;
 import net.java.btrace.api.wireio.AbstractCommand;
@@ -33,13 +35,16 @@ import net.java.btrace.api.core.Lookup;
 import net.java.btrace.api.wireio.Response;
 import net.java.btrace.instr.ClassFilter;
 import net.java.btrace.instr.ClassRenamer;
-import net.java.btrace.instr.ClinitInjector;
+import net.java.btrace.instr.Constants;
+import net.java.btrace.instr.HandlerExporter;
 import net.java.btrace.instr.InstrumentUtils;
-import net.java.btrace.instr.Instrumentor;
+import net.java.btrace.instr.InstrumentorChain;
+import net.java.btrace.instr.MatchPlan;
 import net.java.btrace.instr.MethodRemover;
 import net.java.btrace.instr.OnMethod;
 import net.java.btrace.instr.OnProbe;
 import net.java.btrace.instr.Preprocessor;
+import net.java.btrace.instr.TraceHandlers;
 import net.java.btrace.instr.Verifier;
 import net.java.btrace.org.objectweb.asm.ClassReader;
 import net.java.btrace.org.objectweb.asm.ClassVisitor;
@@ -49,27 +54,44 @@ import net.java.btrace.api.wireio.Channel;
 import net.java.btrace.api.server.Session.State;
 import net.java.btrace.wireio.commands.ErrorCommand;
 import net.java.btrace.wireio.commands.ExitCommand;
+import net.java.btrace.wireio.commands.MessageCommand;
+import net.java.btrace.wireio.commands.OverflowNotification;
+import net.java.btrace.wireio.commands.ProbeThrottleNotification;
 import net.java.btrace.wireio.commands.RetransformClassNotification;
+import net.java.btrace.wireio.commands.RetransformationStartNotification;
 import java.io.EOFException;
 import java.io.IOException;
-import java.lang.instrument.ClassFileTransformer;
-import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Field;
 import java.lang.instrument.UnmodifiableClassException;
-import java.security.ProtectionDomain;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Observer;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import net.java.btrace.api.extensions.ExtensionsRepository;
 import net.java.btrace.api.server.ShutdownHandler;
 import net.java.btrace.instr.ProbeDescriptor;
+import net.java.btrace.server.wireio.ServerChannel;
 import net.java.btrace.util.BTraceThreadFactory;
 
 /**
@@ -79,7 +101,77 @@ import net.java.btrace.util.BTraceThreadFactory;
 final public class SessionImpl extends Session implements ShutdownHandler {
 
     final private static ExecutorService handlerPool = Executors.newCachedThreadPool(new BTraceThreadFactory());
+    final private static int COMMAND_THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    /**
+     * Executes the commands of the multiplexed sessions.
+     * The multiplexed sessions are not occupying any thread while waiting for a command so a few threads are enough.
+     * Nothing blocking on the network may run here - a slow peer would stall all the other sessions.
+     */
+    final static ExecutorService commandPool;
+    final private static int CONNECTION_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+    // the handshakes and the reads waiting for a connection thread; any more are rejected
+    final private static int CONNECTION_BACKLOG = 1024;
+    /**
+     * Runs the parts of the multiplexed connections which may block on the peer -
+     * the handshakes and reading the commands whose frames are not received completely yet.
+     * The threads are released as soon as there is nothing left to read; a peer stalling
+     * in the middle of a command is disconnected after the {@linkplain ServerChannel} read timeout.
+     * The tasks not fitting in the backlog are rejected with {@linkplain RejectedExecutionException}
+     * and their connections are closed.
+     */
+    final static ExecutorService connectionPool;
+
+    static {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(COMMAND_THREADS, COMMAND_THREADS, 60, TimeUnit.SECONDS,
+                                                         new LinkedBlockingQueue<Runnable>(),
+                                                         new BTraceThreadFactory("BTrace Command Executor"));
+        pool.allowCoreThreadTimeOut(true);
+        commandPool = pool;
+
+        pool = new ThreadPoolExecutor(CONNECTION_THREADS, CONNECTION_THREADS, 60, TimeUnit.SECONDS,
+                                      new ArrayBlockingQueue<Runnable>(CONNECTION_BACKLOG),
+                                      new BTraceThreadFactory("BTrace Connection Reader"),
+                                      new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        connectionPool = pool;
+    }
+    final private static int FILTER_THREADS = Runtime.getRuntime().availableProcessors();
+    // the number of the loaded classes filtered by one task
+    final private static int FILTER_CHUNK = 4096;
+    /**
+     * Filters the loaded classes to retransform when a session starts.
+     * A large set of the loaded classes is split into chunks filtered in parallel.
+     */
+    final private static ExecutorService filterPool;
+
+    static {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(FILTER_THREADS, FILTER_THREADS, 60, TimeUnit.SECONDS,
+                                                         new LinkedBlockingQueue<Runnable>(),
+                                                         new BTraceThreadFactory("BTrace Class Filter"));
+        pool.allowCoreThreadTimeOut(true);
+        filterPool = pool;
+    }
+    final private static ScheduledExecutorService overflowReporter = Executors.newSingleThreadScheduledExecutor(new BTraceThreadFactory("BTrace Overflow Reporter"));
+    /**
+     * Retransforms the batches following the first one when pausing between the batches.
+     * The pauses are scheduled so no thread is kept waiting.
+     */
+    final private static ScheduledExecutorService retransformer = Executors.newSingleThreadScheduledExecutor(new BTraceThreadFactory("BTrace Retransformer"));
+    final private static long OVERFLOW_REPORT_PERIOD = 1000; // ms
     private Future<?> cmdHandler;
+    private CommandReader cmdReader;
+    private Future<?> overflowReport;
+    private Future<?> probeGovernor;
+    // the next scheduled batch of the paced retransformation
+    private volatile Future<?> retransformTask;
+    // @GuardedBy this
+    private long reportedDrops = 0;
+    // the probes turned off by the client and by the probe governor; a probe runs only when in neither
+    final private Object probeStateLock = new Object();
+    // @GuardedBy probeStateLock
+    final private Set<String> probesDisabled = new HashSet<String>();
+    // @GuardedBy probeStateLock
+    final private Set<String> probesThrottled = new HashSet<String>();
 
     private AtomicReference<State> state = new AtomicReference<State>(State.DISCONNECTED);
     private Lookup lookup = new Lookup();
@@ -88,88 +180,22 @@ final public class SessionImpl extends Session implements ShutdownHandler {
     private volatile List<OnMethod> onMethods;
     private volatile List<OnProbe> onProbes;
     private volatile boolean hasSubclassChecks;
+    private volatile MatchPlan matchPlan;
     private volatile ClassFilter filter;
     private volatile boolean skipRetransforms;
     private volatile boolean trackRetransforms;
-    private volatile byte[] btraceCode;
+    private volatile TraceHandlers traceHandlers;
+    private volatile boolean outOfLineHandlers;
+    private volatile boolean probeGuards = true;
+    private volatile int retransformBatchSize;
+    private volatile long retransformPause;
+    private volatile long probeRateLimit;
+    private volatile double probeCpuLimit;
+    private volatile ProbeThrottle probeThrottle = ProbeThrottle.SAMPLE;
     private BTraceRuntime runtime;
-    private Class btraceClazz;
-    final private Set<String> instrumentedClasses = new HashSet<String>();
-    final private ClassFileTransformer clInitTransformer = new ClassFileTransformer() {
-
-        @Override
-        public byte[] transform(ClassLoader loader, final String cname, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
-            if (!hasSubclassChecks || classBeingRedefined != null || isBTraceClass(cname) || isSensitiveClass(cname)) {
-                return null;
-            }
-
-            if (!skipRetransforms) {
-                BTraceLogger.debugPrint("injecting <clinit> for " + cname); // NOI18N
-                ClassReader cr = new ClassReader(classfileBuffer);
-                ClassWriter cw = new ClassWriter(cr, ClassWriter.COMPUTE_FRAMES);
-                ClinitInjector injector = new ClinitInjector(cw, className, cname);
-                InstrumentUtils.accept(cr, injector);
-                if (injector.isTransformed()) {
-                    byte[] instrumentedCode = cw.toByteArray();
-                    BTraceLogger.dumpClass(cname + "_clinit", instrumentedCode); // NOI18N
-                    return instrumentedCode;
-                }
-            } else {
-                BTraceLogger.debugPrint("client " + className + ": skipping transform for " + cname); // NOI18N
-            }
-            return null;
-        }
-    };
-    final private ClassFileTransformer traceTransformer = new ClassFileTransformer() {
-
-        @Override
-        public byte[] transform(
-                ClassLoader loader,
-                final String cname,
-                Class<?> classBeingRedefined,
-                ProtectionDomain protectionDomain,
-                byte[] classfileBuffer)
-                throws IllegalClassFormatException {
-            boolean entered = BTraceRuntime.enter();
-            try {
-                if (isBTraceClass(cname) || isSensitiveClass(cname)) {
-                    BTraceLogger.debugPrint("skipping transform for BTrace class " + cname); // NOI18N
-                    return null;
-                }
-
-                if (classBeingRedefined != null) {
-                    // class already defined; retransforming
-                    if (!skipRetransforms && filter.isCandidate(classBeingRedefined)) {
-                        return doTransform(classBeingRedefined, cname, classfileBuffer);
-                    } else {
-                        BTraceLogger.debugPrint("client " + className + ": skipping transform for " + cname); // NOi18N
-                    }
-                } else {
-                    // class not yet defined
-                    if (!hasSubclassChecks) {
-                        if (filter.isCandidate(classfileBuffer)) {
-                            return doTransform(classBeingRedefined, cname, classfileBuffer);
-                        } else {
-                            BTraceLogger.debugPrint("client " + className + ": skipping transform for " + cname); // NOI18N
-                        }
-                    }
-                }
-
-                return null; // ignore
-            } catch (Exception e) {
-                e.printStackTrace();
-                if (e instanceof IllegalClassFormatException) {
-                    throw (IllegalClassFormatException) e;
-                }
-                return null;
-            } finally {
-                if (entered) {
-                    BTraceRuntime.leave();
-                }
-            }
-        }
-    };
-
+    private volatile Class btraceClazz;
+    // updated by the concurrently running transformations
+    final private Set<String> instrumentedClasses = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
     SessionImpl(Object... ctx) throws IOException {
         lookup.add(this);
         lookup.add(ctx);
@@ -189,6 +215,63 @@ final public class SessionImpl extends Session implements ShutdownHandler {
         runtime.handleEvent(name);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Turning a probe on also lifts its {@linkplain #setProbeThrottled(java.lang.String, boolean) throttling}.
+     */
+    @Override
+    public boolean setProbeEnabled(String name, boolean enabled) {
+        return updateProbeState(name, enabled, true);
+    }
+
+    /**
+     * Turns a probe off or back on on behalf of the {@linkplain ProbeGovernor}.
+     * A probe turned off by the client stays off when the throttling ends.
+     * @param name The probe handler name
+     * @param throttled The new throttling state
+     * @return Returns false if the session has no such probe
+     */
+    boolean setProbeThrottled(String name, boolean throttled) {
+        return updateProbeState(name, !throttled, false);
+    }
+
+    private boolean updateProbeState(String name, boolean enabled, boolean byClient) {
+        Class clz = btraceClazz;
+        if (clz == null) {
+            return false;
+        }
+        // the flags are checked by the handlers and the guarded probe sites; nothing needs retransforming
+        boolean found = false;
+        synchronized(probeStateLock) {
+            for (Field f : clz.getDeclaredFields()) {
+                String fName = f.getName();
+                if (fName.startsWith(Constants.BTRACE_PROBE_DISABLED_PREFIX) &&
+                    (name.length() == 0 || fName.equals(Constants.BTRACE_PROBE_DISABLED_PREFIX + name))) {
+                    String probe = fName.substring(Constants.BTRACE_PROBE_DISABLED_PREFIX.length());
+                    if (enabled) {
+                        probesThrottled.remove(probe);
+                        if (byClient) {
+                            probesDisabled.remove(probe);
+                        }
+                    } else {
+                        (byClient ? probesDisabled : probesThrottled).add(probe);
+                    }
+                    try {
+                        f.setBoolean(null, probesDisabled.contains(probe) || probesThrottled.contains(probe));
+                        found = true;
+                    } catch (IllegalAccessException e) {
+                        BTraceLogger.debugPrint(e);
+                    }
+                }
+            }
+        }
+        if (found) {
+            BTraceLogger.debugPrint("client " + className + ": probe " + (name.length() == 0 ? "*" : name) + (byClient ? " turned " : " throttled ") + (enabled ? "on" : "off")); // NOI18N
+        }
+        return found;
+    }
+
     @Override
     public boolean loadTraceClass(byte[] traceCode, String[] args) {
         Throwable capturedError = null;
@@ -199,11 +282,13 @@ final public class SessionImpl extends Session implements ShutdownHandler {
                 capturedError = th;
                 return false;
             }
-            SessionImpl.this.filter = new ClassFilter(onMethods);
+            // the probes are compiled once for the filter and all the instrumented classes
+            SessionImpl.this.matchPlan = new MatchPlan(onMethods);
+            SessionImpl.this.filter = new ClassFilter(matchPlan);
             BTraceLogger.debugPrint("created class filter"); // NOI18N
             ClassWriter writer = InstrumentUtils.newClassWriter(traceCode);
             ClassReader reader = new ClassReader(traceCode);
-            ClassVisitor visitor = new Preprocessor(writer);
+            ClassVisitor visitor = new Preprocessor(writer, isGoverned());
             String traceName = BTraceRuntime.getValidTraceClassName(className);
             BTraceLogger.dumpClass(traceName + "_orig", traceCode); // NOI18N
             if (!traceName.equals(className)) {
@@ -226,14 +311,25 @@ final public class SessionImpl extends Session implements ShutdownHandler {
             Instrumentation instr = getInstrumentation();
 
             BTraceLogger.dumpClass(className + "_proc", traceCode); // NOI18N
-            SessionImpl.this.btraceCode = traceCode;
+            if (!outOfLineHandlers) {
+                // the handlers are parsed once and replayed into each instrumented class
+                SessionImpl.this.traceHandlers = new TraceHandlers(traceCode);
+            }
             BTraceLogger.debugPrint("creating BTraceRuntime instance for " + className); // NOI18N
             SessionImpl.this.runtime = new BTraceRuntime(this, className, args, getChannel(), instr, lookup.lookup(ExtensionsRepository.class));
             BTraceLogger.debugPrint("created BTraceRuntime instance for " + className); // NOI18N
-            BTraceLogger.debugPrint("removing @OnMethod, @OnProbe methods"); // NOI18N
-            byte[] codeBuf = removeMethods(traceCode);
-            BTraceLogger.dumpClass(traceName, codeBuf);
-            BTraceLogger.debugPrint("removed @OnMethod, @OnProbe methods"); // NOI18N
+            byte[] codeBuf;
+            if (outOfLineHandlers) {
+                BTraceLogger.debugPrint("exporting @OnMethod, @OnProbe methods"); // NOI18N
+                codeBuf = exportHandlers(traceCode, onMethods);
+                BTraceLogger.dumpClass(traceName, codeBuf);
+                BTraceLogger.debugPrint("exported @OnMethod, @OnProbe methods"); // NOI18N
+            } else {
+                BTraceLogger.debugPrint("removing @OnMethod, @OnProbe methods"); // NOI18N
+                codeBuf = removeMethods(traceCode);
+                BTraceLogger.dumpClass(traceName, codeBuf);
+                BTraceLogger.debugPrint("removed @OnMethod, @OnProbe methods"); // NOI18N
+            }
             // This extra BTraceRuntime.enter is needed to
             // check whether we have already entered before.
             boolean enteredHere = BTraceRuntime.enter();
@@ -260,19 +356,11 @@ final public class SessionImpl extends Session implements ShutdownHandler {
                 }
             }
             if (btraceClazz != null) {
+                startProbeGovernor();
                 if (shouldAddTransformer()) {
-                    instr.addTransformer(traceTransformer, true);
-                    instr.addTransformer(clInitTransformer, false);
-                }
-                List<Class> clzs = new ArrayList<Class>();
-                for (Class clz : instr.getAllLoadedClasses()) {
-                    if (instr.isModifiableClass(clz)) {
-                        if (clz.getAnnotation(BTraceExtension.class) != null || filter.isCandidate(clz)) {
-                            clzs.add(clz);
-                        }
-                    }
+                    getTransformer().register(this);
                 }
-                instr.retransformClasses(clzs.toArray(new Class[clzs.size()]));
+                retransform(instr, findCandidates(instr, instr.getAllLoadedClasses()), true);
             }
         } catch (UnmodifiableClassException e) {
             capturedError = e;
@@ -297,6 +385,9 @@ final public class SessionImpl extends Session implements ShutdownHandler {
     public void shutdown(final int exitCode) {
         if (setState(State.CONNECTED, State.DISCONNECTING)) {
             try {
+                overflowReport.cancel(false);
+                reportOverflows();
+                reportEventRingOverflows();
                 Response<Void> r = getChannel().sendCommand(ExitCommand.class, new AbstractCommand.Initializer<ExitCommand>() {
 
                     @Override
@@ -336,11 +427,19 @@ final public class SessionImpl extends Session implements ShutdownHandler {
     }
 
     private void cleanup() {
-        if (cmdHandler.cancel(true)) {
+        overflowReport.cancel(false);
+        Future<?> pendingRetransform = retransformTask;
+        if (pendingRetransform != null) {
+            // the classes not retransformed yet do not carry the session probes
+            pendingRetransform.cancel(false);
+        }
+        if (probeGovernor != null) {
+            probeGovernor.cancel(false);
+        }
+        if (stopCommandHandler()) {
             Instrumentation instr = getInstrumentation();
             if (shouldAddTransformer()) {
-                instr.removeTransformer(traceTransformer);
-                instr.removeTransformer(clInitTransformer);
+                getTransformer().unregister(this);
             }
             try {
                 List<Class> toRetransform = new ArrayList<Class>();
@@ -349,9 +448,7 @@ final public class SessionImpl extends Session implements ShutdownHandler {
                         toRetransform.add(clz);
                     }
                 }
-                if (!toRetransform.isEmpty()) {
-                    instr.retransformClasses(toRetransform.toArray(new Class[toRetransform.size()]));
-                }
+                retransform(instr, toRetransform, false);
             } catch (UnmodifiableClassException ex) {
                 BTraceLogger.debugPrint(ex);
             } catch (InternalError e) {
@@ -382,44 +479,168 @@ final public class SessionImpl extends Session implements ShutdownHandler {
 
     private void startCommandHandler() {
         setState(State.CONNECTED);
+        overflowReport = overflowReporter.scheduleAtFixedRate(new Runnable() {
+
+            public void run() {
+                try {
+                    reportOverflows();
+                } catch (IOException e) {
+                    BTraceLogger.debugPrint(e);
+                }
+            }
+        }, OVERFLOW_REPORT_PERIOD, OVERFLOW_REPORT_PERIOD, TimeUnit.MILLISECONDS);
+        Channel ch = getChannel();
+        if (ch instanceof ServerChannel && ((ServerChannel)ch).isMultiplexed()) {
+            cmdReader = new CommandReader((ServerChannel)ch);
+            cmdReader.start();
+            return;
+        }
         cmdHandler = handlerPool.submit(new Runnable() {
 
             public void run() {
                 Channel ch = getChannel();
-                while (!Thread.currentThread().isInterrupted()) {
-                    try {
-                        BTraceLogger.debugPrint("SERVER: Reading command");
-                        AbstractCommand cmd = ch.readCommand();
-                        BTraceLogger.debugPrint("Command: " + cmd);
-                        if (cmd != null) {
-                            try {
-                                cmd.execute(lookup);
-                            } catch (Throwable t) {
-                                BTraceLogger.debugPrint(t);
-                            }
-                        } else {
-                            break;
-                        }
-                    } catch (ClassNotFoundException e) {
-                        BTraceLogger.debugPrint(e);
-                        detach();
-                        ch.close();
-                        break;
-                    } catch (EOFException e) {
-                        if (getState() == State.CONNECTED) {
-                            detach();
-                            ch.close();
-                        }
-                        break;
-                    } catch (IOException e) {
-                        BTraceLogger.debugPrint(e);
-                        detach();
-                        ch.close();
-                        break;
+                while (!Thread.currentThread().isInterrupted() && processCommand(ch));
+            }
+        });
+    }
+
+    private boolean stopCommandHandler() {
+        return cmdReader != null ? cmdReader.stop() : cmdHandler.cancel(true);
+    }
+
+    /**
+     * Reads and executes the next command
+     * @return <b>FALSE</b> if no more commands are to be read from the channel
+     */
+    private boolean processCommand(Channel ch) {
+        AbstractCommand cmd = nextCommand(ch);
+        if (cmd != null) {
+            executeCommand(cmd);
+            return true;
+        }
+        return false;
+    }
+
+    private void executeCommand(AbstractCommand cmd) {
+        try {
+            cmd.execute(lookup);
+        } catch (Throwable t) {
+            BTraceLogger.debugPrint(t);
+        }
+    }
+
+    /**
+     * Reads the next command
+     * @return The command read or <b>NULL</b> if no more commands are to be read from the channel
+     */
+    private AbstractCommand nextCommand(Channel ch) {
+        try {
+            BTraceLogger.debugPrint("SERVER: Reading command");
+            AbstractCommand cmd = ch.readCommand();
+            BTraceLogger.debugPrint("Command: " + cmd);
+            return cmd;
+        } catch (ClassNotFoundException e) {
+            BTraceLogger.debugPrint(e);
+            detach();
+            ch.close();
+        } catch (EOFException e) {
+            if (getState() == State.CONNECTED) {
+                detach();
+                ch.close();
+            }
+        } catch (IOException e) {
+            BTraceLogger.debugPrint(e);
+            detach();
+            ch.close();
+        }
+        return null;
+    }
+
+    /**
+     * Reads the commands of a multiplexed channel in the {@linkplain #connectionPool}
+     * and passes them to the {@linkplain #commandPool} for execution.
+     * Scheduled by the I/O thread whenever new data arrive; at most one reader
+     * and one executor are running at a time so the commands are executed in order.
+     */
+    private final class CommandReader implements Runnable {
+        final private ServerChannel ch;
+        final private AtomicBoolean scheduled = new AtomicBoolean(false);
+        final private AtomicBoolean stopped = new AtomicBoolean(false);
+        final private Runnable trigger = new Runnable() {
+            @Override
+            public void run() {
+                schedule();
+            }
+        };
+        // read but not executed yet
+        final private Queue<AbstractCommand> pending = new ConcurrentLinkedQueue<AbstractCommand>();
+        final private AtomicBoolean executing = new AtomicBoolean(false);
+        final private Runnable executor = new Runnable() {
+            @Override
+            public void run() {
+                do {
+                    AbstractCommand cmd;
+                    while ((cmd = pending.poll()) != null) {
+                        executeCommand(cmd);
                     }
+                    executing.set(false);
+                    // a command might have been added right after the last poll
+                } while (!pending.isEmpty() && executing.compareAndSet(false, true));
+            }
+        };
+
+        CommandReader(ServerChannel ch) {
+            this.ch = ch;
+        }
+
+        void start() {
+            ch.setReadListener(trigger);
+        }
+
+        boolean stop() {
+            if (stopped.compareAndSet(false, true)) {
+                ch.setReadListener(null);
+                return true;
+            }
+            return false;
+        }
+
+        private void schedule() {
+            if (!stopped.get() && scheduled.compareAndSet(false, true)) {
+                try {
+                    connectionPool.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // too many connections waiting for a reader; drop this one rather than stall all of them
+                    BTraceLogger.debugPrint(e);
+                    stop();
+                    detach();
+                    ch.close();
                 }
             }
-        });
+        }
+
+        private void dispatch(AbstractCommand cmd) {
+            pending.add(cmd);
+            if (executing.compareAndSet(false, true)) {
+                commandPool.execute(executor);
+            }
+        }
+
+        @Override
+        public void run() {
+            do {
+                while (!stopped.get() && ch.isReadable()) {
+                    AbstractCommand cmd = nextCommand(ch);
+                    if (cmd != null) {
+                        dispatch(cmd);
+                    } else {
+                        stop();
+                    }
+                }
+                scheduled.set(false);
+                // the data might have arrived right after the last check
+            } while (!stopped.get() && ch.isReadable() && scheduled.compareAndSet(false, true));
+        }
     }
 
     private void verify(byte[] buf) {
@@ -496,6 +717,110 @@ final public class SessionImpl extends Session implements ShutdownHandler {
         return writer.toByteArray();
     }
 
+    private static byte[] exportHandlers(byte[] buf, List<OnMethod> onMethods) {
+        ClassWriter writer = InstrumentUtils.newClassWriter(buf);
+        ClassReader reader = new ClassReader(buf);
+        InstrumentUtils.accept(reader, new HandlerExporter(writer, onMethods));
+        return writer.toByteArray();
+    }
+
+    /**
+     * Notifies the client about the commands dropped since the last notification
+     */
+    private synchronized void reportOverflows() throws IOException {
+        final Channel ch = getChannel();
+        final long ringOverflows = sum(ch.getEventRingOverflows().values());
+        final long dropped = ch.getDroppedCommands();
+        if (dropped + ringOverflows > reportedDrops) {
+            reportedDrops = dropped + ringOverflows;
+            ch.sendCommand(OverflowNotification.class, new AbstractCommand.Initializer<OverflowNotification>() {
+
+                @Override
+                public void init(OverflowNotification cmd) {
+                    cmd.setPolicy(ch.getOverflowPolicy().toString());
+                    cmd.setDroppedCommands(dropped);
+                    cmd.setRingOverflows(ringOverflows);
+                }
+            });
+        }
+    }
+
+    private boolean isGoverned() {
+        return probeRateLimit > 0 || probeCpuLimit > 0;
+    }
+
+    /**
+     * Attaches the statistics to the @OnMethod handlers of the loaded trace class
+     * and starts checking them against the probe overhead budget
+     */
+    private void startProbeGovernor() {
+        if (!isGoverned()) {
+            return;
+        }
+        List<ProbeStats> stats = new ArrayList<ProbeStats>();
+        for (Field f : btraceClazz.getDeclaredFields()) {
+            String fName = f.getName();
+            if (fName.startsWith(Constants.BTRACE_PROBE_STATS_PREFIX)) {
+                ProbeStats s = new ProbeStats(fName.substring(Constants.BTRACE_PROBE_STATS_PREFIX.length()));
+                try {
+                    f.set(null, s);
+                    stats.add(s);
+                } catch (IllegalAccessException e) {
+                    BTraceLogger.debugPrint(e);
+                }
+            }
+        }
+        if (!stats.isEmpty()) {
+            BTraceLogger.debugPrint("governing " + stats.size() + " probes; rate limit " + probeRateLimit + "/s, cpu limit " + probeCpuLimit + "%, " + probeThrottle); // NOI18N
+            probeGovernor = overflowReporter.scheduleAtFixedRate(
+                new ProbeGovernor(this, stats, probeRateLimit, probeCpuLimit, probeThrottle),
+                ProbeGovernor.PERIOD, ProbeGovernor.PERIOD, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Notifies the client about a probe being throttled
+     */
+    void reportThrottle(final String probe, final String action, final int samplingMean, final double rate, final double cpu) {
+        BTraceLogger.debugPrint("client " + className + ": probe " + probe + " " + action + " at " + rate + " events/s, " + cpu + "% cpu"); // NOI18N
+        try {
+            getChannel().sendCommand(ProbeThrottleNotification.class, new AbstractCommand.Initializer<ProbeThrottleNotification>() {
+
+                @Override
+                public void init(ProbeThrottleNotification cmd) {
+                    cmd.setProbe(probe);
+                    cmd.setAction(action);
+                    cmd.setSamplingMean(samplingMean);
+                    cmd.setRate(rate);
+                    cmd.setCpu(cpu);
+                }
+            });
+        } catch (IOException e) {
+            BTraceLogger.debugPrint(e);
+        }
+    }
+
+    private static long sum(Collection<Long> vals) {
+        long rslt = 0;
+        for(Long val : vals) {
+            rslt += val;
+        }
+        return rslt;
+    }
+
+    private void reportEventRingOverflows() throws IOException {
+        final Map<String, Long> overflows = getChannel().getEventRingOverflows();
+        if (!overflows.isEmpty()) {
+            getChannel().sendCommand(MessageCommand.class, new AbstractCommand.Initializer<MessageCommand>() {
+
+                @Override
+                public void init(MessageCommand cmd) {
+                    cmd.setMessage("event ring overflow (dropped events per thread): " + overflows + "\n");
+                }
+            });
+        }
+    }
+
     private void errorExit(final Throwable th) throws IOException {
         BTraceLogger.debugPrint("sending error command"); // NOI18N
         getChannel().sendCommand(ErrorCommand.class, new AbstractCommand.Initializer<ErrorCommand>() {
@@ -522,30 +847,226 @@ final public class SessionImpl extends Session implements ShutdownHandler {
         }
     }
 
-    private static boolean isBTraceClass(String name) {
-        return name != null ? name.startsWith("net/java/btrace") : false; // NOI18N
+    ClassFilter getFilter() {
+        return filter;
+    }
+
+    boolean hasSubclassChecks() {
+        return hasSubclassChecks;
+    }
+
+    boolean skipsRetransforms() {
+        return skipRetransforms;
     }
 
-    /*
-     * Certain classes like java.lang.ThreadLocal and it's
-     * inner classes, java.lang.Object cannot be safely
-     * instrumented with BTrace. This is because BTrace uses
-     * ThreadLocal class to check recursive entries due to
-     * BTrace's own functions. But this leads to infinite recursions
-     * if BTrace instruments java.lang.ThreadLocal for example.
-     * For now, we avoid such classes till we find a solution.
+    String getTraceClassName() {
+        return className;
+    }
+
+    /**
+     * Makes the instrumented classes call the handlers in the trace class instead of their own copies.
+     * Must be set before the trace class is loaded.
+     */
+    void setOutOfLineHandlers(boolean outOfLineHandlers) {
+        this.outOfLineHandlers = outOfLineHandlers;
+    }
+
+    /**
+     * Makes the probe sites check the probe flags in the trace class before loading the handler arguments.
+     * On by default; when off the turned off probes still call their handlers which return right away.
+     * Must be set before the trace class is loaded.
      */
-    private static boolean isSensitiveClass(String name) {
-        return name == null ||
-                name.equals("java/lang/Object") || // NOI18N
-                name.startsWith("java/lang/ThreadLocal") || // NOI18N
-                name.startsWith("sun/reflect") || // NOI18N
-                name.equals("sun/misc/Unsafe") || // NOI18N
-                name.startsWith("sun/security/") || // NOI18N
-                name.equals("java/lang/VerifyError"); // NOI18N
+    void setProbeGuards(boolean probeGuards) {
+        this.probeGuards = probeGuards;
     }
 
-    private byte[] doTransform(Class<?> classBeingRedefined, final String cname, byte[] classfileBuffer) {
+    /**
+     * Sets the overhead budget of each @OnMethod probe.
+     * Must be set before the trace class is loaded.
+     * @param rateLimit The maximum handled events per second; 0 means no limit
+     * @param cpuLimit The maximum percentage of the CPU time; 0 means no limit
+     * @param throttle The action taken on the probes over the budget
+     */
+    void setProbeBudget(long rateLimit, double cpuLimit, ProbeThrottle throttle) {
+        this.probeRateLimit = rateLimit;
+        this.probeCpuLimit = cpuLimit;
+        this.probeThrottle = throttle != null ? throttle : ProbeThrottle.SAMPLE;
+    }
+
+    /**
+     * Makes the session report the retransformed classes to the client
+     */
+    void setTrackRetransforms(boolean trackRetransforms) {
+        this.trackRetransforms = trackRetransforms;
+    }
+
+    /**
+     * Makes the loaded classes retransformed in batches, pausing between the batches.
+     * Must be set before the trace class is loaded.
+     * @param batchSize The maximum number of the classes retransformed at once; 0 for all of them
+     * @param pause The time to wait between the batches in milliseconds
+     */
+    void setRetransformation(int batchSize, long pause) {
+        this.retransformBatchSize = batchSize;
+        this.retransformPause = pause;
+    }
+
+    /**
+     * Finds the loaded classes the session probes apply to
+     */
+    private List<Class> findCandidates(final Instrumentation instr, final Class[] loaded) throws InterruptedException {
+        if (loaded.length <= FILTER_CHUNK || FILTER_THREADS == 1) {
+            return findCandidates(instr, loaded, 0, loaded.length);
+        }
+        List<Future<List<Class>>> chunks = new ArrayList<Future<List<Class>>>();
+        for (int i = 0; i < loaded.length; i += FILTER_CHUNK) {
+            final int from = i;
+            final int to = Math.min(loaded.length, i + FILTER_CHUNK);
+            chunks.add(filterPool.submit(new Callable<List<Class>>() {
+
+                @Override
+                public List<Class> call() {
+                    return findCandidates(instr, loaded, from, to);
+                }
+            }));
+        }
+        List<Class> candidates = new ArrayList<Class>();
+        try {
+            for (Future<List<Class>> chunk : chunks) {
+                candidates.addAll(chunk.get());
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            for (Future<List<Class>> chunk : chunks) {
+                chunk.cancel(true);
+            }
+        }
+        return candidates;
+    }
+
+    private List<Class> findCandidates(Instrumentation instr, Class[] loaded, int from, int to) {
+        List<Class> candidates = new ArrayList<Class>();
+        for (int i = from; i < to; i++) {
+            Class clz = loaded[i];
+            if (instr.isModifiableClass(clz)) {
+                if (clz.getAnnotation(BTraceExtension.class) != null || filter.isCandidate(clz)) {
+                    candidates.add(clz);
+                }
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Retransforms the classes in batches of {@linkplain #retransformBatchSize} classes
+     * so the application is not stopped for all of them at once.
+     * The first batch is retransformed right away; when there is a {@linkplain #retransformPause pause}
+     * between the batches the rest is retransformed by the {@linkplain #retransformer}.
+     * @param notify Whether to report the progress to the client
+     */
+    private void retransform(Instrumentation instr, List<Class> classes, boolean notify) throws UnmodifiableClassException {
+        int total = classes.size();
+        if (total == 0) {
+            return;
+        }
+        int batchSize = retransformBatchSize > 0 ? retransformBatchSize : total;
+        int next = retransformBatch(instr, classes, 0, batchSize, notify);
+        if (next < total && retransformPause > 0) {
+            new RetransformBatches(instr, classes, next, batchSize, notify).schedule();
+            return;
+        }
+        while (next < total) {
+            next = retransformBatch(instr, classes, next, batchSize, notify);
+        }
+    }
+
+    /**
+     * @return The index of the first class of the next batch
+     */
+    private int retransformBatch(Instrumentation instr, List<Class> classes, final int from, int batchSize, boolean notify) throws UnmodifiableClassException {
+        final int total = classes.size();
+        final int to = Math.min(total, from + batchSize);
+        if (notify && trackRetransforms) {
+            try {
+                getChannel().sendCommand(RetransformationStartNotification.class, new AbstractCommand.Initializer<RetransformationStartNotification>() {
+
+                    @Override
+                    public void init(RetransformationStartNotification cmd) {
+                        cmd.setNumClasses(to - from);
+                        cmd.setRetransformedClasses(from);
+                        cmd.setTotalClasses(total);
+                    }
+                });
+            } catch (IOException ex) {
+                BTraceLogger.debugPrint(ex);
+            }
+        }
+        BTraceLogger.debugPrint("retransforming " + (to - from) + " classes (" + from + " of " + total + " done)"); // NOI18N
+        instr.retransformClasses(classes.subList(from, to).toArray(new Class[to - from]));
+        return to;
+    }
+
+    /**
+     * The remaining batches of a paced retransformation; each batch schedules the next one
+     */
+    private final class RetransformBatches implements Runnable {
+        final private Instrumentation instr;
+        final private List<Class> classes;
+        final private int batchSize;
+        final private boolean notify;
+        private int next;
+
+        RetransformBatches(Instrumentation instr, List<Class> classes, int next, int batchSize, boolean notify) {
+            this.instr = instr;
+            this.classes = classes;
+            this.next = next;
+            this.batchSize = batchSize;
+            this.notify = notify;
+        }
+
+        void schedule() {
+            retransformTask = retransformer.schedule(this, retransformPause, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            try {
+                next = retransformBatch(instr, classes, next, batchSize, notify);
+            } catch (Throwable t) {
+                BTraceLogger.debugPrint(t);
+                return;
+            }
+            if (next < classes.size()) {
+                schedule();
+            } else {
+                retransformTask = null;
+            }
+        }
+    }
+
+    /**
+     * Adds the session probes to the chain
+     * @return The position of the session in the chain
+     */
+    int addTo(InstrumentorChain chain) {
+        int index = outOfLineHandlers ? chain.add(className, matchPlan)
+                                      : chain.add(className, traceHandlers, matchPlan);
+        chain.setProbeGuards(index, probeGuards);
+        return index;
+    }
+
+    /**
+     * Called by {@linkplain ProbeTransformer} before the session probes are applied to a class
+     */
+    void transforming(final String cname) {
         BTraceLogger.debugPrint("client " + className + ": instrumenting " + cname); // NOI18N
         if (trackRetransforms) {
             try {
@@ -560,35 +1081,27 @@ final public class SessionImpl extends Session implements ShutdownHandler {
                 BTraceLogger.debugPrint(ex);
             }
         }
-//        classes.add(new WeakReference<Class<?>>(classBeingRedefined));
-        return instrument(classBeingRedefined, cname, classfileBuffer);
     }
 
-    private byte[] instrument(Class clazz, String cname, byte[] target) {
-        byte[] instrumentedCode;
-        try {
-            ClassWriter writer = InstrumentUtils.newClassWriter(target);
-            ClassReader reader = new ClassReader(target);
-            Instrumentor i = new Instrumentor(clazz, className, btraceCode, onMethods, writer);
-            InstrumentUtils.accept(reader, i);
-            if (!i.hasMatch()) {
-                BTraceLogger.debugPrint("*WARNING* No method was matched for class " + cname); // NOI18N
-            } else {
-                instrumentedClasses.add(cname.replace('/', '.'));
-            }
-            instrumentedCode = writer.toByteArray();
-        } catch (Throwable th) {
-            BTraceLogger.debugPrint(th);
-            return null;
+    /**
+     * Called by {@linkplain ProbeTransformer} after the session probes have been applied to a class
+     */
+    void instrumented(String cname, boolean matched) {
+        if (!matched) {
+            BTraceLogger.debugPrint("*WARNING* No method was matched for class " + cname); // NOI18N
+        } else {
+            instrumentedClasses.add(cname.replace('/', '.'));
         }
-        BTraceLogger.dumpClass(cname, instrumentedCode);
-        return instrumentedCode;
     }
 
     private Instrumentation getInstrumentation() {
         return lookup.lookup(Instrumentation.class);
     }
 
+    private ProbeTransformer getTransformer() {
+        return lookup.lookup(ProbeTransformer.class);
+    }
+
     private Channel getChannel() {
         return lookup.lookup(Channel.class);
     }
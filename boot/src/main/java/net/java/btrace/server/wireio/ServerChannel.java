@@ -24,18 +24,25 @@
  */
 package net.java.btrace.server.wireio;
 
+import net.java.btrace.api.core.BTraceLogger;
 import net.java.btrace.api.extensions.ExtensionsRepository;
 import net.java.btrace.api.wireio.AbstractCommand;
 import net.java.btrace.api.wireio.CommandFactory;
 import net.java.btrace.api.wireio.Channel;
+import net.java.btrace.api.wireio.MappedRing;
 import net.java.btrace.api.wireio.ObjectInputStreamEx;
 import net.java.btrace.api.wireio.SocketChannel;
+import net.java.btrace.api.wireio.SocketMultiplexer;
 import net.java.btrace.api.wireio.Version;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInput;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutput ;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.util.List;
 import net.java.btrace.api.wireio.Command;
@@ -46,15 +53,51 @@ import net.java.btrace.api.wireio.Command;
  */
 public final class ServerChannel extends SocketChannel {
 
+    final private static long HANDSHAKE_TIMEOUT = 10000; // ms
+    final private static long COMMAND_TIMEOUT = 10000; // ms; for the rest of a partially received command
+
+    private int ringSize = 0;
+    private SocketMultiplexer.Connection connection = null;
+
     protected ServerChannel(ObjectInput oi, ObjectOutput  oo, ExtensionsRepository extRep) {
         super(oi, oo, extRep);
     }
 
+    protected ServerChannel(ObjectInput oi, ObjectOutput  oo, InputStream is, OutputStream os, ExtensionsRepository extRep) {
+        super(oi, oo, is, os, extRep);
+    }
+
     public static Channel open(Socket skt, final ExtensionsRepository extRep) {
+        return open(skt, extRep, DEFAULT_FLUSH_SIZE);
+    }
+
+    /**
+     * @param skt The socket to communicate over
+     * @param extRep The extensions repository
+     * @param flushSize The output buffer size
+     * @return Returns a new {@linkplain Channel} or <b>NULL</b> if the handshake failed
+     */
+    public static Channel open(Socket skt, final ExtensionsRepository extRep, int flushSize) {
+        return open(skt, extRep, flushSize, 0);
+    }
+
+    /**
+     * @param skt The socket to communicate over
+     * @param extRep The extensions repository
+     * @param flushSize The output buffer size
+     * @param ringSize The size of the shared memory ring offered to local clients; 0 disables the shared memory transport
+     * @return Returns a new {@linkplain Channel} or <b>NULL</b> if the handshake failed
+     */
+    public static Channel open(Socket skt, final ExtensionsRepository extRep, int flushSize, int ringSize) {
         try {
-            ObjectInputStream ois = new ObjectInputStreamEx(skt.getInputStream(), extRep.getClassLoader());
-            ObjectOutput  oos = new ObjectOutputStream(skt.getOutputStream());
-            ServerChannel ch = new ServerChannel(ois, oos, extRep);
+            InputStream is = new BufferedInputStream(skt.getInputStream());
+            OutputStream os = new BufferedOutputStream(skt.getOutputStream(), flushSize > 0 ? flushSize : DEFAULT_FLUSH_SIZE);
+            ObjectInputStream ois = new ObjectInputStreamEx(is, extRep.getClassLoader());
+            ObjectOutput  oos = new ObjectOutputStream(os);
+            oos.flush(); // push the stream header through the buffer; the peer is blocked reading it
+            ServerChannel ch = new ServerChannel(ois, oos, is, os, extRep);
+            // shared memory is meaningful only for clients running on the same host
+            ch.ringSize = skt.getInetAddress().isLoopbackAddress() ? ringSize : 0;
             if (!ch.handshake()) {
                 try {
                     ch.output.close();
@@ -69,18 +112,98 @@ public final class ServerChannel extends SocketChannel {
         return null;
     }
 
+    /**
+     * Opens a channel over a connection served by a {@linkplain SocketMultiplexer}.
+     * Performs the handshake so it must not be called from the I/O thread.
+     * The queued commands are written by the I/O thread instead of the delayed writer,
+     * unless they are sent through the shared memory ring.
+     * @param c The connection to communicate over
+     * @param extRep The extensions repository
+     * @param flushSize The output buffer size
+     * @param ringSize The size of the shared memory ring offered to local clients; 0 disables the shared memory transport
+     * @return Returns a new {@linkplain Channel} or <b>NULL</b> if the handshake failed
+     */
+    public static Channel open(SocketMultiplexer.Connection c, final ExtensionsRepository extRep, int flushSize, int ringSize) {
+        try {
+            // the connection buffers the input itself
+            InputStream is = c.getInputStream();
+            OutputStream os = new BufferedOutputStream(c.getOutputStream(), flushSize > 0 ? flushSize : DEFAULT_FLUSH_SIZE);
+            // a client stuck in the handshake would be holding a thread of the command pool
+            c.setReadTimeout(HANDSHAKE_TIMEOUT);
+            ObjectOutput  oos = new ObjectOutputStream(os);
+            oos.flush(); // push the stream header through the buffer; the peer is blocked reading it
+            ObjectInputStream ois = new ObjectInputStreamEx(is, extRep.getClassLoader());
+            ServerChannel ch = new ServerChannel(ois, oos, is, os, extRep);
+            ch.connection = c;
+            ch.ringSize = c.getInetAddress().isLoopbackAddress() ? ringSize : 0;
+            if (!ch.handshake()) {
+                c.close();
+                return null;
+            }
+            // the commands are read only when some data arrived; a peer stalling in the middle of one would hold the reader
+            c.setReadTimeout(COMMAND_TIMEOUT);
+            return ch;
+        } catch (IOException e) {
+            BTraceLogger.debugPrint(e);
+        }
+        c.close();
+        return null;
+    }
+
+    /**
+     * @return <b>TRUE</b> if the channel is served by a {@linkplain SocketMultiplexer};
+     *         the commands should be read only when the channel {@linkplain #isReadable() is readable}
+     */
+    public boolean isMultiplexed() {
+        return connection != null;
+    }
+
+    /**
+     * Registers the callback to invoke whenever new data arrive. Applicable only to
+     * {@linkplain #isMultiplexed() multiplexed} channels.
+     * @param l The callback; invoked from the I/O thread so it must not block
+     */
+    public void setReadListener(Runnable l) {
+        if (connection != null) {
+            connection.setReadListener(l);
+        }
+    }
+
+    /**
+     * @return <b>TRUE</b> if reading a command would not wait for the peer to send more data.
+     *         It may still block until the rest of a partially received command arrives.
+     */
+    public boolean isReadable() {
+        if (connection == null || connection.isReadable()) {
+            // EOF is reported by reading
+            return true;
+        }
+        try {
+            return hasInput();
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
     @Override
     protected boolean handshake() {
         try {
-            init();
+            if (connection == null) {
+                init();
+            }
             String magic = input.readUTF();
             if (BTRACE_MAGIC.equals(magic)) {
                 output.writeUTF(BTRACE_MAGIC);
                 output.writeInt(Version.MAJOR);
                 output.writeInt(Version.MINOR);
                 output.flush();
-                boolean cont = input.readBoolean();
-                if (cont) {
+                // v1 clients send boolean TRUE here; newer clients send their highest protocol version
+                int clientProtocol = input.readUnsignedByte();
+                if (clientProtocol != 0) {
+                    int protocol = Math.min(clientProtocol & ~PROTOCOL_FLAGS, Version.PROTOCOL);
+                    // compression and shared memory are used only when requested by the client
+                    boolean compressed = (clientProtocol & PROTOCOL_COMPRESSED) != 0 && protocol >= Version.PROTOCOL_V2;
+                    boolean sharedMemory = (clientProtocol & PROTOCOL_SHARED_MEMORY) != 0 && protocol >= Version.PROTOCOL_V2 && ringSize > 0;
                     int commandCnt = input.readInt();
                     boolean cmdFactoriesOk = false;
                     try {
@@ -106,8 +229,47 @@ public final class ServerChannel extends SocketChannel {
                     } catch (ClassNotFoundException e) {
                         cmdFactoriesOk = false;
                     }
-                    output.writeBoolean(cmdFactoriesOk);
+                    MappedRing ring = null;
+                    if (cmdFactoriesOk && sharedMemory) {
+                        try {
+                            ring = MappedRing.create(ringSize);
+                            compressed = false; // no point in compressing the data in memory
+                        } catch (IOException e) {
+                            BTraceLogger.debugPrint(e);
+                        }
+                    }
+                    int ack = protocol;
+                    if (compressed) ack |= PROTOCOL_COMPRESSED;
+                    if (ring != null) ack |= PROTOCOL_SHARED_MEMORY;
+                    // v1 clients read the negotiated protocol as a boolean
+                    output.writeByte(cmdFactoriesOk ? ack : 0);
+                    if (ring != null) {
+                        output.writeUTF(ring.getPath());
+                        output.flush();
+                        // the client confirms it has mapped the ring
+                        if (input.readBoolean()) {
+                            ring.unlink();
+                        } else {
+                            ring.close();
+                            ring.unlink();
+                            ring = null;
+                        }
+                    }
                     output.flush();
+                    if (cmdFactoriesOk) {
+                        setProtocol(protocol, compressed);
+                        if (ring != null) {
+                            attachRing(ring);
+                        }
+                        if (connection != null) {
+                            // writing to the ring may block; better to do it from a dedicated thread
+                            setDelayedWrite(ring != null);
+                            init();
+                            if (ring == null) {
+                                connection.attach(this);
+                            }
+                        }
+                    }
                     return cmdFactoriesOk;
                 }
             }
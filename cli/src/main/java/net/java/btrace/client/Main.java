@@ -43,6 +43,7 @@ import sun.misc.SignalHandler;
 import net.java.btrace.api.core.BTraceLogger;
 import net.java.btrace.api.extensions.ExtensionsRepository;
 import net.java.btrace.api.extensions.ExtensionsRepositoryFactory;
+import net.java.btrace.api.wireio.OverflowPolicy;
 import net.java.btrace.util.Messages;
 import java.util.concurrent.atomic.AtomicInteger;
 import jline.Terminal;
@@ -64,6 +65,13 @@ public final class Main {
     public static volatile boolean exiting;
     public static final boolean DEBUG;
     public static final boolean TRACK_RETRANSFORM;
+    public static final int EVENT_RING_SIZE;
+    public static final String OVERFLOW_POLICY;
+    public static final int COMMAND_QUEUE_CAPACITY;
+    public static final int FLUSH_SIZE;
+    public static final long FLUSH_LINGER;
+    public static final boolean COMPRESS;
+    public static final boolean SHARED_MEMORY;
     public static final boolean UNSAFE;
     public static final boolean DUMP_CLASSES;
     public static final String DUMP_DIR;
@@ -80,6 +88,28 @@ public final class Main {
         if (TRACK_RETRANSFORM) {
             BTraceLogger.debugPrint("trackRetransforms flag is set");
         }
+        EVENT_RING_SIZE = Integer.getInteger("net.java.btrace.eventRingSize", 0);
+        if (EVENT_RING_SIZE > 0) {
+            BTraceLogger.debugPrint("eventRingSize is " + EVENT_RING_SIZE);
+        }
+        OVERFLOW_POLICY = System.getProperty("net.java.btrace.overflowPolicy");
+        if (OVERFLOW_POLICY != null) {
+            BTraceLogger.debugPrint("overflowPolicy is " + OVERFLOW_POLICY);
+        }
+        COMMAND_QUEUE_CAPACITY = Integer.getInteger("net.java.btrace.commandQueueCapacity", 0);
+        if (COMMAND_QUEUE_CAPACITY > 0) {
+            BTraceLogger.debugPrint("commandQueueCapacity is " + COMMAND_QUEUE_CAPACITY);
+        }
+        FLUSH_SIZE = Integer.getInteger("net.java.btrace.flushSize", 0);
+        FLUSH_LINGER = Long.getLong("net.java.btrace.flushLinger", -1);
+        COMPRESS = Boolean.getBoolean("net.java.btrace.compress");
+        if (COMPRESS) {
+            BTraceLogger.debugPrint("compress flag is set");
+        }
+        SHARED_MEMORY = Boolean.getBoolean("net.java.btrace.sharedMemory");
+        if (SHARED_MEMORY) {
+            BTraceLogger.debugPrint("sharedMemory flag is set");
+        }
         UNSAFE = Boolean.getBoolean("net.java.btrace.unsafe");
         if (UNSAFE) {
             BTraceLogger.debugPrint("btrace unsafe mode is set");
@@ -266,6 +296,19 @@ public final class Main {
             client.setProbeDescPath(PROBE_DESC_PATH);
             client.setExtRepository(extRepository);
             client.setTrackRetransforms(TRACK_RETRANSFORM);
+            client.setEventRingSize(EVENT_RING_SIZE);
+            client.setCommandQueueCapacity(COMMAND_QUEUE_CAPACITY);
+            client.setFlushSize(FLUSH_SIZE);
+            client.setFlushLinger(FLUSH_LINGER);
+            client.setCompress(COMPRESS);
+            client.setSharedMemory(SHARED_MEMORY);
+            if (OVERFLOW_POLICY != null) {
+                try {
+                    client.setOverflowPolicy(OverflowPolicy.parse(OVERFLOW_POLICY));
+                } catch (IllegalArgumentException e) {
+                    errorExit(e.getMessage(), 1);
+                }
+            }
             client.setUnsafe(UNSAFE);
             client.setDumpClasses(DUMP_CLASSES);
             client.setDumpDir(DUMP_DIR);
@@ -287,9 +330,9 @@ public final class Main {
                                 try {
                                     cw.park();
                                     cr.println("Please enter your option:");
-                                    cr.println("\t1. exit\n\t2. send an event\n\t3. send a named event\n\n\t0. continue");
+                                    cr.println("\t1. exit\n\t2. send an event\n\t3. send a named event\n\t4. change the overflow policy\n\t5. turn a probe on\n\t6. turn a probe off\n\n\t0. continue");
                                     cr.flush();
-                                    int option = cr.readCharacter('1', '2', '3', '0');
+                                    int option = cr.readCharacter('1', '2', '3', '4', '5', '6', '0');
                                     if (option == '1') {
                                         System.exit(0);
                                     } else if (option == '2') {
@@ -302,6 +345,23 @@ public final class Main {
                                             BTraceLogger.debugPrint("sending event command");
                                             sendEvent(client, name);
                                         }
+                                    } else if (option == '4') {
+                                        cr.setPrompt("Please enter the overflow policy (block, dropNewest, dropOldest, sample:N): ");
+                                        String policy = cr.readLine();
+                                        if (policy != null) {
+                                            try {
+                                                client.setOverflowPolicy(OverflowPolicy.parse(policy.trim()));
+                                            } catch (IllegalArgumentException e) {
+                                                cr.println(e.getMessage());
+                                            }
+                                        }
+                                    } else if (option == '5' || option == '6') {
+                                        cr.setPrompt("Please enter the probe handler name (empty for all the probes): ");
+                                        String probe = cr.readLine();
+                                        if (probe != null) {
+                                            BTraceLogger.debugPrint("sending probe state command");
+                                            client.setProbeEnabled(probe.trim(), option == '5');
+                                        }
                                     } else if (option == '0') {
                                         BTraceLogger.debugPrint("continuing");
                                     } else {
@@ -34,11 +34,14 @@ import net.java.btrace.api.wireio.AbstractCommand;
 import net.java.btrace.api.core.Lookup;
 import net.java.btrace.api.wireio.Response;
 import net.java.btrace.api.wireio.Channel;
+import net.java.btrace.api.wireio.OverflowPolicy;
 import net.java.btrace.org.objectweb.asm.Type;
 import net.java.btrace.wireio.commands.EventCommand;
 import net.java.btrace.wireio.commands.ExitCommand;
 import net.java.btrace.wireio.commands.InstrumentCommand;
 import net.java.btrace.wireio.commands.MessageCommand;
+import net.java.btrace.wireio.commands.OverflowPolicyCommand;
+import net.java.btrace.wireio.commands.ProbeStateCommand;
 import com.sun.tools.attach.AgentInitializationException;
 import com.sun.tools.attach.AgentLoadException;
 import com.sun.tools.attach.AttachNotSupportedException;
@@ -125,6 +128,13 @@ public class Client {
     private boolean dumpClasses;
     private String dumpDir;
     private boolean trackRetransforms;
+    private int eventRingSize;
+    private int commandQueueCapacity;
+    private int flushSize;
+    private long flushLinger = -1;
+    private boolean compress;
+    private boolean sharedMemory;
+    private volatile OverflowPolicy overflowPolicy;
     private String bootCp;
     private String sysCp;
     private String probeDescPath;
@@ -387,6 +397,114 @@ public class Client {
         return this;
     }
 
+    public int getEventRingSize() {
+        return eventRingSize;
+    }
+
+    public Client setEventRingSize(int eventRingSize) {
+        if (state.get() != State.OFFLINE) {
+            BTraceLogger.debugPrint("Can not change client parameters when already attached");
+            return this;
+        }
+        this.eventRingSize = eventRingSize;
+        return this;
+    }
+
+    public int getCommandQueueCapacity() {
+        return commandQueueCapacity;
+    }
+
+    public Client setCommandQueueCapacity(int commandQueueCapacity) {
+        if (state.get() != State.OFFLINE) {
+            BTraceLogger.debugPrint("Can not change client parameters when already attached");
+            return this;
+        }
+        this.commandQueueCapacity = commandQueueCapacity;
+        return this;
+    }
+
+    public int getFlushSize() {
+        return flushSize;
+    }
+
+    public Client setFlushSize(int flushSize) {
+        if (state.get() != State.OFFLINE) {
+            BTraceLogger.debugPrint("Can not change client parameters when already attached");
+            return this;
+        }
+        this.flushSize = flushSize;
+        return this;
+    }
+
+    public long getFlushLinger() {
+        return flushLinger;
+    }
+
+    /**
+     * @param flushLinger Milliseconds the agent waits for more output before sending it; negative value keeps the agent default
+     * @return Returns this {@linkplain Client} instance
+     */
+    public Client setFlushLinger(long flushLinger) {
+        if (state.get() != State.OFFLINE) {
+            BTraceLogger.debugPrint("Can not change client parameters when already attached");
+            return this;
+        }
+        this.flushLinger = flushLinger;
+        return this;
+    }
+
+    public boolean isCompress() {
+        return compress;
+    }
+
+    /**
+     * @param compress Ask the agent to compress the trace output; useful for remote tracing over slow links
+     * @return Returns this {@linkplain Client} instance
+     */
+    public Client setCompress(boolean compress) {
+        if (state.get() != State.OFFLINE) {
+            BTraceLogger.debugPrint("Can not change client parameters when already attached");
+            return this;
+        }
+        this.compress = compress;
+        return this;
+    }
+
+    public boolean isSharedMemory() {
+        return sharedMemory;
+    }
+
+    /**
+     * @param sharedMemory Ask the agent to send the trace output through a shared memory ring instead of the socket
+     * @return Returns this {@linkplain Client} instance
+     */
+    public Client setSharedMemory(boolean sharedMemory) {
+        if (state.get() != State.OFFLINE) {
+            BTraceLogger.debugPrint("Can not change client parameters when already attached");
+            return this;
+        }
+        this.sharedMemory = sharedMemory;
+        return this;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Sets the policy applied by the session when its command queue overflows.
+     * May be changed while the session is running.
+     * @param overflowPolicy The {@linkplain OverflowPolicy} to use; <b>null</b> keeps the agent default
+     * @return Returns this {@linkplain Client} instance
+     */
+    public Client setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        if (state.get() == State.RUNNING) {
+            sendOverflowPolicy();
+        }
+        return this;
+    }
+
     public boolean isUnsafe() {
         return unsafe;
     }
@@ -440,6 +558,18 @@ public class Client {
                 if (trackRetransforms) {
                     agentArgs += ",trackRetransforms=true";
                 }
+                if (eventRingSize > 0) {
+                    agentArgs += ",eventRingSize=" + eventRingSize;
+                }
+                if (commandQueueCapacity > 0) {
+                    agentArgs += ",commandQueueCapacity=" + commandQueueCapacity;
+                }
+                if (flushSize > 0) {
+                    agentArgs += ",flushSize=" + flushSize;
+                }
+                if (flushLinger >= 0) {
+                    agentArgs += ",flushLinger=" + flushLinger;
+                }
                 if (bootCp != null) {
                     agentArgs += ",bootClassPath=" + bootCp;
                 }
@@ -495,9 +625,10 @@ public class Client {
                     throw new IOException("Can not open port " + port);
                 }
 
-                channel = ClientChannel.open(sock, extRepository);
+                channel = ClientChannel.open(sock, extRepository, compress, sharedMemory);
                 if (channel != null) {
                     commandCtx.add(channel);
+                    sendOverflowPolicy();
                     Response<Boolean> f = channel.sendCommand(InstrumentCommand.class, new AbstractCommand.Initializer<InstrumentCommand>() {
 
                         public void init(InstrumentCommand cmd) {
@@ -577,6 +708,43 @@ public class Client {
         }
     }
 
+    /**
+     * Turns a probe of the running script on or off; the instrumented code stays in place
+     * @param probe The probe handler name or <b>null</b> for all the probes
+     * @param enabled The new probe state
+     */
+    public void setProbeEnabled(final String probe, final boolean enabled) {
+        if (state.get() == State.RUNNING) {
+            try {
+                channel.sendCommand(ProbeStateCommand.class, new AbstractCommand.Initializer<ProbeStateCommand>() {
+
+                    public void init(ProbeStateCommand cmd) {
+                        cmd.setProbe(probe);
+                        cmd.setEnabled(enabled);
+                    }
+                });
+            } catch (IOException e) {
+                BTraceLogger.debugPrint(e);
+            }
+        }
+    }
+
+    private void sendOverflowPolicy() {
+        final OverflowPolicy policy = overflowPolicy;
+        if (policy != null) {
+            try {
+                channel.sendCommand(OverflowPolicyCommand.class, new AbstractCommand.Initializer<OverflowPolicyCommand>() {
+
+                    public void init(OverflowPolicyCommand cmd) {
+                        cmd.setPolicy(policy);
+                    }
+                });
+            } catch (IOException e) {
+                BTraceLogger.debugPrint(e);
+            }
+        }
+    }
+
     private void notifyStateChange() {
         synchronized(state) {
             state.notifyAll();
@@ -29,15 +29,20 @@ import net.java.btrace.api.extensions.ExtensionsRepository;
 import net.java.btrace.api.wireio.AbstractCommand;
 import net.java.btrace.api.wireio.CommandFactory;
 import net.java.btrace.api.wireio.Channel;
+import net.java.btrace.api.wireio.MappedRing;
 import net.java.btrace.api.wireio.SocketChannel;
 import net.java.btrace.api.wireio.Version;
 import net.java.btrace.api.wireio.ObjectInputStreamEx;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInput;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutput ;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.util.List;
 import net.java.btrace.api.wireio.Command;
@@ -50,16 +55,49 @@ import net.java.btrace.api.wireio.Command;
  */
 public final class ClientChannel extends SocketChannel {
 
+    private boolean compress = false;
+    private boolean sharedMemory = false;
+
     protected ClientChannel(ObjectInput oi, ObjectOutput oo, ExtensionsRepository extRep) {
         super(oi, oo, extRep);
     }
 
+    protected ClientChannel(ObjectInput oi, ObjectOutput oo, InputStream is, OutputStream os, ExtensionsRepository extRep) {
+        super(oi, oo, is, os, extRep);
+    }
+
     public static Channel open(Socket skt, ExtensionsRepository extRep) {
+        return open(skt, extRep, false);
+    }
+
+    /**
+     * @param skt The socket to communicate over
+     * @param extRep The extensions repository
+     * @param compress Ask the agent to compress the communication
+     * @return Returns a new {@linkplain Channel} or <b>NULL</b> if the handshake failed
+     */
+    public static Channel open(Socket skt, ExtensionsRepository extRep, boolean compress) {
+        return open(skt, extRep, compress, false);
+    }
+
+    /**
+     * @param skt The socket to communicate over
+     * @param extRep The extensions repository
+     * @param compress Ask the agent to compress the communication
+     * @param sharedMemory Ask the agent to send the data through a shared memory ring; the agent must run on the same host
+     * @return Returns a new {@linkplain Channel} or <b>NULL</b> if the handshake failed
+     */
+    public static Channel open(Socket skt, ExtensionsRepository extRep, boolean compress, boolean sharedMemory) {
         try {
-            ObjectOutput  oos = new ObjectOutputStream(skt.getOutputStream());
-            ObjectInputStream ois = new ObjectInputStreamEx(skt.getInputStream(), extRep.getClassLoader());
+            OutputStream os = new BufferedOutputStream(skt.getOutputStream());
+            InputStream is = new BufferedInputStream(skt.getInputStream());
+            ObjectOutput  oos = new ObjectOutputStream(os);
+            oos.flush(); // push the stream header through the buffer; the peer is blocked reading it
+            ObjectInputStream ois = new ObjectInputStreamEx(is, extRep.getClassLoader());
             
-            ClientChannel ch = new ClientChannel(ois, oos, extRep);
+            ClientChannel ch = new ClientChannel(ois, oos, is, os, extRep);
+            ch.compress = compress;
+            ch.sharedMemory = sharedMemory;
             if (!ch.handshake()) {
                 try {
                     ch.output.close();
@@ -85,7 +123,11 @@ public final class ClientChannel extends SocketChannel {
                 int majVer = input.readInt();
                 int minVer = input.readInt();
                 if (majVer < Version.MAJOR || (majVer == Version.MAJOR && minVer <= Version.MINOR)) {
-                    output.writeBoolean(true);
+                    // v1 servers read this as boolean TRUE
+                    int protocolRequest = Version.PROTOCOL;
+                    if (compress) protocolRequest |= PROTOCOL_COMPRESSED;
+                    if (sharedMemory) protocolRequest |= PROTOCOL_SHARED_MEMORY;
+                    output.writeByte(protocolRequest);
                     CommandFactory cf = CommandFactory.getInstance(extRep.getClassLoader(getMyLoader()), Command.Target.CLIENT);
                     List<Class<? extends AbstractCommand>> supportedCmds = cf.listSupportedCommands();
                     if (BTraceLogger.isDebug()) {
@@ -118,7 +160,27 @@ public final class ClientChannel extends SocketChannel {
                         output.writeBoolean(false);
                     }
                     output.flush();
-                    return input.readBoolean();
+                    // v1 servers send boolean TRUE which stands for the protocol v1
+                    int protocol = input.readUnsignedByte();
+                    if (protocol != 0) {
+                        MappedRing ring = null;
+                        if ((protocol & PROTOCOL_SHARED_MEMORY) != 0) {
+                            String ringPath = input.readUTF();
+                            try {
+                                ring = MappedRing.open(ringPath);
+                            } catch (IOException e) {
+                                BTraceLogger.debugPrint(e);
+                            }
+                            output.writeBoolean(ring != null);
+                            output.flush();
+                        }
+                        setProtocol(protocol & ~PROTOCOL_FLAGS, (protocol & PROTOCOL_COMPRESSED) != 0);
+                        if (ring != null) {
+                            attachRing(ring);
+                        }
+                        return true;
+                    }
+                    return false;
                 }
                 output.writeBoolean(false);
             }
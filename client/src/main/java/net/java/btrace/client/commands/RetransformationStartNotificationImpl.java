@@ -19,7 +19,11 @@ public class RetransformationStartNotificationImpl extends CommandImpl<Retransfo
     public void execute(Lookup ctx, RetransformationStartNotification cmd) {
         PrintWriter pw = ctx.lookup(PrintWriter.class);
         if (pw != null) {
-            pw.println("Starting class retransformation for " + cmd.getNumClasses() + " classes");
+            if (cmd.getNumClasses() < cmd.getTotalClasses()) {
+                pw.println("Retransforming " + cmd.getNumClasses() + " classes (" + cmd.getRetransformedClasses() + " of " + cmd.getTotalClasses() + " done)");
+            } else {
+                pw.println("Starting class retransformation for " + cmd.getNumClasses() + " classes");
+            }
         }
     }
 }
@@ -26,9 +26,14 @@
 package net.java.btrace.compiler;
 
 import net.java.btrace.annotations.BTrace;
+import net.java.btrace.annotations.Condition;
+import net.java.btrace.annotations.Counter;
+import net.java.btrace.annotations.OnMethod;
 import net.java.btrace.api.extensions.util.CallTargetValidator;
 import java.util.List;
 import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import javax.lang.model.element.Modifier;
 import javax.lang.model.element.Name;
 import javax.tools.Diagnostic;
@@ -43,6 +48,7 @@ import java.util.Collection;
 import javax.lang.model.element.Element;
 import javax.lang.model.element.ElementKind;
 import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.type.TypeKind;
 
 /**
  * This class tree visitor validates a BTrace program's ClassTree.
@@ -261,6 +267,12 @@ public class VerifierVisitor extends TreeScanner<Boolean, Void> {
                         return false;
                     }
                 }
+                if (!checkConditions(node)) {
+                    return false;
+                }
+                if (!checkCounter(node)) {
+                    return false;
+                }
                 Set<Modifier> flags = node.getModifiers().getFlags();
                 if (shortSyntax) {
                     boolean err = true;
@@ -406,6 +418,87 @@ public class VerifierVisitor extends TreeScanner<Boolean, Void> {
         return false;
     }
 
+    private Element getElement(Tree node) {
+        TreePath tp = verifier.getTreeUtils().getPath(verifier.getCompilationUnit(), node);
+        return tp != null ? verifier.getTreeUtils().getElement(tp) : null;
+    }
+
+    private boolean checkCounter(MethodTree node) {
+        Element e = getElement(node);
+        OnMethod om = e != null ? e.getAnnotation(OnMethod.class) : null;
+        if (om == null || om.counter().length() == 0) {
+            return true;
+        }
+        for(Element member : e.getEnclosingElement().getEnclosedElements()) {
+            if (member.getKind() == ElementKind.FIELD && member.getSimpleName().contentEquals(om.counter()) &&
+                member.getAnnotation(Counter.class) != null) {
+                if (member.asType().getKind() != TypeKind.LONG) {
+                    return reportError("counter.type.invalid", node);
+                }
+                if (!node.getParameters().isEmpty()) {
+                    return reportError("counter.handler.invalid", node);
+                }
+                return true;
+            }
+        }
+        return reportError("counter.field.invalid", node);
+    }
+
+    private boolean checkConditions(MethodTree node) {
+        Element e = getElement(node);
+        OnMethod om = e != null ? e.getAnnotation(OnMethod.class) : null;
+        if (om == null) {
+            return true;
+        }
+        boolean valid = true;
+        for(Condition c : om.when()) {
+            switch (c.check()) {
+                case ARG_EQUALS:
+                case ARG_RANGE: {
+                    if (c.arg() < 0) {
+                        valid &= reportError("condition.arg.invalid", node);
+                    }
+                    break;
+                }
+                case DURATION: {
+                    if (!hasDurationParameter(node)) {
+                        valid &= reportError("condition.duration.invalid", node);
+                    }
+                    break;
+                }
+                case THREAD_NAME: {
+                    String value = c.value();
+                    if (value.length() == 0) {
+                        valid &= reportError("condition.thread.invalid", node);
+                    } else if (value.length() > 2 && value.startsWith("/") && value.endsWith("/")) {
+                        try {
+                            Pattern.compile(value.substring(1, value.length() - 1));
+                        } catch (PatternSyntaxException ex) {
+                            valid &= reportError("condition.thread.invalid", node);
+                        }
+                    }
+                    break;
+                }
+            }
+            if (c.min() > c.max()) {
+                valid &= reportError("condition.range.invalid", node);
+            }
+        }
+        return valid;
+    }
+
+    private boolean hasDurationParameter(MethodTree node) {
+        for(VariableTree vt : node.getParameters()) {
+            for(AnnotationTree at : vt.getModifiers().getAnnotations()) {
+                String annFqn = ((JCTree)at.getAnnotationType()).type.tsym.getQualifiedName().toString();
+                if (annFqn.equals("net.java.btrace.annotations.Duration")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     private boolean isAnnotated(MethodTree node) {
         ModifiersTree mt = node.getModifiers();
         List<? extends AnnotationTree> annos = mt.getAnnotations();
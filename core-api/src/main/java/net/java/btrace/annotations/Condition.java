@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * This annotation specifies a condition a probe point invocation
+ * must satisfy for the trace action method to be called. The condition
+ * is compiled into the probe point itself - the rejected invocations
+ * skip the probe point without collecting any arguments.
+ * <p>
+ * Eg. <b>@OnMethod(clazz="java.lang.String", method="indexOf", type="int (java.lang.String)",
+ * when=@Condition(check=Check.ARG_EQUALS, arg=0, value="foo"))</b>
+ * will call the trace action only when <i>String.indexOf</i> looks for <i>"foo"</i>.
+ * </p>
+ *
+ * @author Jaroslav Bachorik
+ * @since 2.0
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Condition {
+    /**
+     * The condition tests
+     */
+    enum Check {
+        /**
+         * The probed method parameter {@linkplain Condition#arg()} equals
+         * to {@linkplain Condition#value()}. Applicable to the primitive
+         * and {@linkplain String} parameters; the primitive values are
+         * parsed from {@linkplain Condition#value()}.
+         */
+        ARG_EQUALS,
+        /**
+         * The probed method parameter {@linkplain Condition#arg()} lies within
+         * the [{@linkplain Condition#min()}, {@linkplain Condition#max()}] range.
+         * Applicable to the numeric primitive parameters.
+         */
+        ARG_RANGE,
+        /**
+         * The probed method duration, in nanoseconds, lies within
+         * the [{@linkplain Condition#min()}, {@linkplain Condition#max()}] range.
+         * Requires the trace action to have a {@linkplain Duration} parameter.
+         */
+        DURATION,
+        /**
+         * The current thread name equals to {@linkplain Condition#value()}
+         * or matches it when it is a regular expression within two
+         * forward slash characters [like /pool-.+/]
+         */
+        THREAD_NAME
+    }
+
+    /**
+     * The condition test
+     */
+    Check check();
+
+    /**
+     * The index of the probed method parameter, starting from 0
+     */
+    int arg() default -1;
+
+    /**
+     * The compared value
+     */
+    String value() default "";
+
+    /**
+     * The lower bound of the range; inclusive
+     */
+    long min() default Long.MIN_VALUE;
+
+    /**
+     * The upper bound of the range; inclusive
+     */
+    long max() default Long.MAX_VALUE;
+}
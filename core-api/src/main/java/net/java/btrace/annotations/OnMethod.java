@@ -77,5 +77,35 @@ public @interface OnMethod {
      */
     Location location() default @Location();
 
+    /**
+     * Specifies the sampling of the probe point invocations.
+     * By default each invocation is traced.
+     *
+     * @see Sampled
+     */
+    Sampled sampled() default @Sampled();
+
+    /**
+     * Specifies the conditions the probe point invocations
+     * must satisfy. All of them must hold for the trace action
+     * to be called. By default each invocation is traced.
+     *
+     * @see Condition
+     */
+    Condition[] when() default {};
+
+    /**
+     * The name of a {@linkplain Counter} field the probe point increments
+     * in place of calling the trace action method. The trace action method
+     * must not declare any parameters. By default the trace action is called.
+     * <p>
+     * A counting probe can still be turned on and off at runtime but,
+     * not calling the trace action, it is not measured against
+     * the probe overhead budget and is never throttled.
+     *
+     * @see Counter
+     */
+    String counter() default "";
+
     boolean follow() default false;
 }
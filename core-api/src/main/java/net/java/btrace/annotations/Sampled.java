@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * This annotation specifies how often a BTrace probe point
+ * fires. The invocations not sampled skip the probe point
+ * altogether - no arguments are collected and the trace action
+ * method is not called.
+ * <p>
+ * Eg. <b>@OnMethod(clazz="java.lang.String", method="indexOf", sampled=@Sampled(mean=100))</b>
+ * will call the trace action for every 100th call of <i>String.indexOf</i>
+ * in each thread.
+ * </p>
+ *
+ * @author Jaroslav Bachorik
+ * @since 2.0
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Sampled {
+    /**
+     * The way the sampled invocations are picked
+     */
+    enum Sampler {
+        /**
+         * Every {@linkplain Sampled#mean()}-th invocation
+         * in a thread is sampled
+         */
+        COUNTER,
+        /**
+         * Each invocation is sampled with the probability
+         * of 1/{@linkplain Sampled#mean()}
+         */
+        RANDOM
+    }
+
+    /**
+     * The average number of invocations per one sampled.
+     * The default value of 1 means no sampling.
+     */
+    int mean() default 1;
+
+    /**
+     * Specifies how the sampled invocations are picked.
+     *
+     * @see Sampler
+     */
+    Sampler kind() default Sampler.COUNTER;
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.server;
+
+/**
+ * Specifies how the agent degrades a probe exceeding the overhead budget
+ * set by the <b>probeRateLimit</b> and <b>probeCpuLimit</b> options.
+ * <p>
+ * The textual form, as accepted by {@linkplain #parse(java.lang.String)}, is
+ * one of <b>sample</b>, <b>pause</b> or <b>disable</b>
+ * </p>
+ * @author Jaroslav Bachorik <jaroslav.bachorik at oracle.com>
+ * @since 2.0
+ */
+public enum ProbeThrottle {
+    /**
+     * Sample the probe down until it fits the budget; the sampling is relaxed again once the load drops
+     */
+    SAMPLE,
+    /**
+     * Turn the probe off for a while and then turn it back on
+     */
+    PAUSE,
+    /**
+     * Turn the probe off for the rest of the session
+     */
+    DISABLE;
+
+    /**
+     * Parses the textual form of the throttling
+     * @param throttle The throttling string
+     * @return Returns the corresponding {@linkplain ProbeThrottle}; <b>null</b> or an empty string yield {@linkplain #SAMPLE}
+     * @throws IllegalArgumentException if the throttling string is not recognized
+     */
+    public static ProbeThrottle parse(String throttle) {
+        if (throttle == null || throttle.length() == 0) {
+            return SAMPLE;
+        }
+        for (ProbeThrottle t : values()) {
+            if (t.toString().equals(throttle)) {
+                return t;
+            }
+        }
+        throw new IllegalArgumentException("unknown probe throttling: " + throttle);
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase();
+    }
+}
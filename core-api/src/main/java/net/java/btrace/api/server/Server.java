@@ -30,6 +30,8 @@ import java.lang.instrument.Instrumentation;
 import java.util.List;
 import java.util.Map;
 import net.java.btrace.api.core.ServiceLocator;
+import net.java.btrace.api.wireio.MappedRing;
+import net.java.btrace.api.wireio.OverflowPolicy;
 import net.java.btrace.spi.server.ServerImpl;
 
 /**
@@ -57,12 +59,32 @@ final public class Server {
         final public String bootClassPath;
         final public String systemClassPath;
         final public int port;
+        final public int eventRingSize;
+        final public OverflowPolicy overflowPolicy;
+        final public int commandQueueCapacity;
+        final public int flushSize;
+        final public long flushLinger;
+        final public int sharedMemorySize;
+        final public boolean recycleCommands;
+        final public boolean outOfLineHandlers;
+        final public int retransformBatchSize;
+        final public long retransformPause;
+        final public boolean probeGuards;
+        final public long probeRateLimit;
+        final public double probeCpuLimit;
+        final public ProbeThrottle probeThrottle;
 
         private Settings(boolean debugMode, boolean trackRetransforms, String scriptOutputFile,
                          long fileRollMilliseconds, boolean unsafeMode, boolean dumpClasses,
                          String dumpDir, boolean stdOut, String probeDescPath, String script,
                          String scriptDir, String extPath, boolean noServer, String bootClassPath,
-                         String systemClassPath, int port) {
+                         String systemClassPath, int port, int eventRingSize,
+                         OverflowPolicy overflowPolicy, int commandQueueCapacity,
+                         int flushSize, long flushLinger, int sharedMemorySize,
+                         boolean recycleCommands, boolean outOfLineHandlers,
+                         int retransformBatchSize, long retransformPause,
+                         boolean probeGuards, long probeRateLimit,
+                         double probeCpuLimit, ProbeThrottle probeThrottle) {
             this.debugMode = debugMode;
             this.trackRetransforms = trackRetransforms;
             this.scriptOutputFile = scriptOutputFile;
@@ -79,6 +101,20 @@ final public class Server {
             this.bootClassPath = bootClassPath;
             this.systemClassPath = systemClassPath;
             this.port = port;
+            this.eventRingSize = eventRingSize;
+            this.overflowPolicy = overflowPolicy;
+            this.commandQueueCapacity = commandQueueCapacity;
+            this.flushSize = flushSize;
+            this.flushLinger = flushLinger;
+            this.sharedMemorySize = sharedMemorySize;
+            this.recycleCommands = recycleCommands;
+            this.outOfLineHandlers = outOfLineHandlers;
+            this.retransformBatchSize = retransformBatchSize;
+            this.retransformPause = retransformPause;
+            this.probeGuards = probeGuards;
+            this.probeRateLimit = probeRateLimit;
+            this.probeCpuLimit = probeCpuLimit;
+            this.probeThrottle = probeThrottle;
         }
 
         public static Settings from(Map<String, String> args) {
@@ -134,16 +170,126 @@ final public class Server {
 
             p = args.get("port");
             int port = p != null ? Integer.valueOf(p) : BTRACE_DEFAULT_PORT;
+
+            p = args.get("eventRingSize");
+            int eventRingSize = 0;
+            if (p != null && p.length() > 0) {
+                try {
+                    eventRingSize = Integer.parseInt(p);
+                } catch (NumberFormatException nfe) {
+                    eventRingSize = 0;
+                }
+            }
+
+            OverflowPolicy overflowPolicy;
+            try {
+                overflowPolicy = OverflowPolicy.parse(args.get("overflowPolicy"));
+            } catch (IllegalArgumentException e) {
+                overflowPolicy = OverflowPolicy.BLOCK;
+            }
+
+            p = args.get("commandQueueCapacity");
+            int commandQueueCapacity = 0;
+            if (p != null && p.length() > 0) {
+                try {
+                    commandQueueCapacity = Integer.parseInt(p);
+                } catch (NumberFormatException nfe) {
+                    commandQueueCapacity = 0;
+                }
+            }
+
+            p = args.get("flushSize");
+            int flushSize = 0;
+            if (p != null && p.length() > 0) {
+                try {
+                    flushSize = Integer.parseInt(p);
+                } catch (NumberFormatException nfe) {
+                    flushSize = 0;
+                }
+            }
+
+            p = args.get("flushLinger");
+            long flushLinger = 2;
+            if (p != null && p.length() > 0) {
+                try {
+                    flushLinger = Long.parseLong(p);
+                } catch (NumberFormatException nfe) {
+                    flushLinger = 2;
+                }
+            }
+            p = args.get("sharedMemorySize");
+            int sharedMemorySize = MappedRing.DEFAULT_CAPACITY;
+            if (p != null && p.length() > 0) {
+                try {
+                    sharedMemorySize = Integer.parseInt(p);
+                } catch (NumberFormatException nfe) {
+                    sharedMemorySize = MappedRing.DEFAULT_CAPACITY;
+                }
+            }
+            p = args.get("recycleCommands");
+            boolean recycleCommands = "true".equals(p);
+            p = args.get("outOfLineHandlers");
+            boolean outOfLineHandlers = "true".equals(p);
+            p = args.get("retransformBatchSize");
+            int retransformBatchSize = 0;
+            if (p != null && p.length() > 0) {
+                try {
+                    retransformBatchSize = Integer.parseInt(p);
+                } catch (NumberFormatException nfe) {
+                    retransformBatchSize = 0;
+                }
+            }
+            p = args.get("retransformPause");
+            long retransformPause = 0;
+            if (p != null && p.length() > 0) {
+                try {
+                    retransformPause = Long.parseLong(p);
+                } catch (NumberFormatException nfe) {
+                    retransformPause = 0;
+                }
+            }
+            p = args.get("probeGuards");
+            boolean probeGuards = p == null || !"false".equals(p);
+            p = args.get("probeRateLimit");
+            long probeRateLimit = 0;
+            if (p != null && p.length() > 0) {
+                try {
+                    probeRateLimit = Long.parseLong(p);
+                } catch (NumberFormatException nfe) {
+                    probeRateLimit = 0;
+                }
+            }
+            p = args.get("probeCpuLimit");
+            double probeCpuLimit = 0;
+            if (p != null && p.length() > 0) {
+                try {
+                    probeCpuLimit = Double.parseDouble(p);
+                } catch (NumberFormatException nfe) {
+                    probeCpuLimit = 0;
+                }
+            }
+            ProbeThrottle probeThrottle;
+            try {
+                probeThrottle = ProbeThrottle.parse(args.get("probeThrottle"));
+            } catch (IllegalArgumentException e) {
+                probeThrottle = ProbeThrottle.SAMPLE;
+            }
             return new Settings(debugMode, trackRetransforms, scriptOutputFile,
                                 fileRollMilliseconds, unsafeMode, dumpClasses,
                                 dumpDir, traceToStdOut, probeDescPath, script,
                                 scriptDir, extPath, noServer, bootClassPath,
-                                systemClassPath, port);
+                                systemClassPath, port, eventRingSize,
+                                overflowPolicy, commandQueueCapacity,
+                                flushSize, flushLinger, sharedMemorySize,
+                                recycleCommands, outOfLineHandlers,
+                                retransformBatchSize, retransformPause,
+                                probeGuards, probeRateLimit,
+                                probeCpuLimit, probeThrottle);
         }
 
         @Override
         public String toString() {
-            return "BTrace Server Settings{" + "debugMode=" + debugMode + ", trackRetransforms=" + trackRetransforms + ", scriptOutputFile=" + scriptOutputFile + ", fileRollMilliseconds=" + fileRollMilliseconds + ", unsafeMode=" + unsafeMode + ", dumpClasses=" + dumpClasses + ", dumpDir=" + dumpDir + ", stdOut=" + stdOut + ", probeDescPath=" + probeDescPath + ", script=" + script + ", scriptDir=" + scriptDir + ", extPath=" + extPath + '}';
+            return "BTrace Server Settings{" + "debugMode=" + debugMode + ", trackRetransforms=" + trackRetransforms + ", scriptOutputFile=" + scriptOutputFile + ", fileRollMilliseconds=" + fileRollMilliseconds + ", unsafeMode=" + unsafeMode + ", dumpClasses=" + dumpClasses + ", dumpDir=" + dumpDir + ", stdOut=" + stdOut + ", probeDescPath=" + probeDescPath + ", script=" + script + ", scriptDir=" + scriptDir + ", extPath=" + extPath + ", eventRingSize=" + eventRingSize + ", overflowPolicy=" + overflowPolicy + ", commandQueueCapacity=" + commandQueueCapacity + ", flushSize=" + flushSize + ", flushLinger=" + flushLinger + ", sharedMemorySize=" + sharedMemorySize + ", recycleCommands=" + recycleCommands + ", outOfLineHandlers=" + outOfLineHandlers + ", retransformBatchSize=" + retransformBatchSize + ", retransformPause=" + retransformPause + ", probeGuards=" + probeGuards + ", probeRateLimit=" + probeRateLimit + ", probeCpuLimit=" + probeCpuLimit + ", probeThrottle=" + probeThrottle + '}';
         }
     }
 
@@ -59,6 +59,14 @@ abstract public class Session extends Observable implements ShutdownHandler {
      */
     abstract public void event(String name);
 
+    /**
+     * Turns a probe of the session on or off; the instrumented code stays in place
+     * @param name The probe handler name or empty string for all the probes
+     * @param enabled The new probe state
+     * @return Returns false if the session has no such probe
+     */
+    abstract public boolean setProbeEnabled(String name, boolean enabled);
+
     /**
      * Loads the precompiled and pre-verified trace class
      * @param traceCode The precompiled and pre-verified trace class (bytecode)
@@ -47,9 +47,11 @@ import java.io.ObjectInput;
  */
 public abstract class AbstractCommand {
     transient final private int type;
-    transient final private int rx, tx;
+    transient private int rx;
+    transient final private int tx;
 
-    private final transient CommandImpl impl = CommandImpl.NULL;
+    // set by the CommandFactory right after the command has been created
+    transient CommandImpl impl = CommandImpl.NULL;
 
     public static final AbstractCommand NULL = new AbstractCommand(-1, 1, -1) {
         @Override
@@ -103,6 +105,30 @@ public abstract class AbstractCommand {
         return true;
     }
 
+    /**
+     * Can this instance be reused for another command of the same type once
+     * it has been serialized? Recyclable commands must reset all their state in {@linkplain #clear()}.
+     * Commands requiring a response are never recycled.
+     * @return Returns <b>TRUE</b> if the instance can be recycled, <b>FALSE</b> otherwise
+     * @since 2.0
+     */
+    public boolean isRecyclable() {
+        return false;
+    }
+
+    /**
+     * Resets the command state before the instance is reused.
+     * To be overridden by the {@linkplain #isRecyclable() recyclable} commands.
+     * @since 2.0
+     */
+    protected void clear() {
+    }
+
+    final void reuse(int rx) {
+        this.rx = rx;
+        clear();
+    }
+
     /**
      * Executes the command with the given context
      * @param ctx The execution context - a command can use it to search for specific services and information
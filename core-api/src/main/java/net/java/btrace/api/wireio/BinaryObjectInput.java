@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.wireio;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.UTFDataFormatException;
+
+/**
+ * The counterpart of {@linkplain BinaryObjectOutput}; reads the data from
+ * a reusable in-memory buffer holding one frame
+ * @author Jaroslav Bachorik <jaroslav.bachorik at oracle.com>
+ * @since 2.0
+ */
+final class BinaryObjectInput implements ObjectInput {
+    private final ClassLoader loader;
+    private byte[] buf = new byte[256];
+    private int pos = 0;
+    private int limit = 0;
+    private StringDictionary dictionary = null;
+    private int protocol = Version.PROTOCOL_V2;
+
+    BinaryObjectInput(ClassLoader loader) {
+        this.loader = loader;
+    }
+
+    void setProtocol(int protocol) {
+        this.protocol = protocol;
+    }
+
+    int getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * Enables the string dictionary decoding in {@linkplain #readUTF()}
+     */
+    void setDictionary(StringDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Reads exactly <b>len</b> bytes from the given stream into the internal buffer
+     */
+    void fill(InputStream is, int len) throws IOException {
+        if (buf.length < len) {
+            buf = new byte[Math.max(buf.length << 1, len)];
+        }
+        int off = 0;
+        while (off < len) {
+            int read = is.read(buf, off, len - off);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            off += read;
+        }
+        pos = 0;
+        limit = len;
+    }
+
+    /**
+     * Sets the internal buffer content directly
+     */
+    void fill(byte[] data, int off, int len) {
+        if (buf.length < len) {
+            buf = new byte[len];
+        }
+        System.arraycopy(data, off, buf, 0, len);
+        pos = 0;
+        limit = len;
+    }
+
+    private void require(int len) throws EOFException {
+        if (limit - pos < len) {
+            throw new EOFException();
+        }
+    }
+
+    @Override
+    public int read() {
+        return pos < limit ? buf[pos++] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b) {
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (pos >= limit) {
+            return -1;
+        }
+        int cnt = Math.min(len, limit - pos);
+        System.arraycopy(buf, pos, b, off, cnt);
+        pos += cnt;
+        return cnt;
+    }
+
+    @Override
+    public long skip(long n) {
+        int cnt = (int)Math.min(n, limit - pos);
+        pos += cnt;
+        return cnt;
+    }
+
+    @Override
+    public int available() {
+        return limit - pos;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        require(len);
+        System.arraycopy(buf, pos, b, off, len);
+        pos += len;
+    }
+
+    @Override
+    public int skipBytes(int n) {
+        return (int)skip(n);
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        return readUnsignedByte() != 0;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        require(1);
+        return buf[pos++];
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        require(1);
+        return buf[pos++] & 0xff;
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        return (short)unzigzag(readVarInt());
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xffff;
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        return (char)readVarInt();
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        return unzigzag(readVarInt());
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        long v = readVarLong();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        require(4);
+        int bits = ((buf[pos] & 0xff) << 24) | ((buf[pos + 1] & 0xff) << 16) |
+                   ((buf[pos + 2] & 0xff) << 8) | (buf[pos + 3] & 0xff);
+        pos += 4;
+        return Float.intBitsToFloat(bits);
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        require(8);
+        long bits = 0;
+        for (int i = 0; i < 8; i++) {
+            bits = (bits << 8) | (buf[pos++] & 0xff);
+        }
+        return Double.longBitsToDouble(bits);
+    }
+
+    @Override
+    public String readLine() throws IOException {
+        if (pos >= limit) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        while (pos < limit) {
+            char c = (char)(buf[pos++] & 0xff);
+            if (c == '\n') {
+                break;
+            }
+            if (c == '\r') {
+                if (pos < limit && buf[pos] == '\n') {
+                    pos++;
+                }
+                break;
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String readUTF() throws IOException {
+        if (dictionary != null) {
+            int header = readVarInt();
+            int slot = header >>> 2;
+            switch (header & 0x03) {
+                case BinaryObjectOutput.STR_LITERAL: {
+                    return readUTFBytes();
+                }
+                case BinaryObjectOutput.STR_REF: {
+                    String s = dictionary.get(slot);
+                    if (s == null) {
+                        throw new IOException("Unknown string id: " + slot);
+                    }
+                    return s;
+                }
+                case BinaryObjectOutput.STR_DEF: {
+                    if (slot >= dictionary.getCapacity()) {
+                        throw new IOException("String id out of range: " + slot);
+                    }
+                    String s = readUTFBytes();
+                    dictionary.put(slot, s);
+                    return s;
+                }
+                default: throw new IOException("Unknown string header: " + header);
+            }
+        }
+        return readUTFBytes();
+    }
+
+    private String readUTFBytes() throws IOException {
+        int len = readVarInt();
+        require(len);
+        int end = pos + len;
+        int i = pos;
+        while (i < end && buf[i] >= 0) {
+            i++;
+        }
+        String s;
+        if (i == end) {
+            // pure ASCII
+            char[] chars = new char[len];
+            for (int j = 0; j < len; j++) {
+                chars[j] = (char)buf[pos + j];
+            }
+            s = new String(chars);
+        } else {
+            try {
+                s = new String(buf, pos, len, "UTF-8");
+            } catch (IllegalArgumentException e) {
+                throw new UTFDataFormatException(e.getMessage());
+            }
+        }
+        pos = end;
+        return s;
+    }
+
+    @Override
+    public Object readObject() throws ClassNotFoundException, IOException {
+        int tag = readUnsignedByte();
+        switch (tag) {
+            case BinaryObjectOutput.TAG_NULL: return null;
+            case BinaryObjectOutput.TAG_STRING: return readUTF();
+            case BinaryObjectOutput.TAG_INT: return readInt();
+            case BinaryObjectOutput.TAG_LONG: return readLong();
+            case BinaryObjectOutput.TAG_DOUBLE: return readDouble();
+            case BinaryObjectOutput.TAG_FLOAT: return readFloat();
+            case BinaryObjectOutput.TAG_SHORT: return readShort();
+            case BinaryObjectOutput.TAG_BYTE: return readByte();
+            case BinaryObjectOutput.TAG_BOOLEAN: return readBoolean();
+            case BinaryObjectOutput.TAG_CHAR: return readChar();
+            case BinaryObjectOutput.TAG_SERIALIZED: {
+                int len = readVarInt();
+                require(len);
+                ObjectInputStream ois = new ObjectInputStreamEx(new ByteArrayInputStream(buf, pos, len), loader);
+                pos += len;
+                try {
+                    return ois.readObject();
+                } finally {
+                    ois.close();
+                }
+            }
+            default: throw new IOException("Unknown object tag: " + tag);
+        }
+    }
+
+    int readVarInt() throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readUnsignedByte();
+            v |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    long readVarLong() throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = readUnsignedByte();
+            v |= (long)(b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static int unzigzag(int v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Reads an unsigned varint directly from the given stream
+     * @return The varint value or -1 if the stream is at its end
+     */
+    static int readVarInt(InputStream is) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = is.read();
+            if (b < 0) {
+                if (shift == 0) {
+                    return -1;
+                }
+                throw new EOFException();
+            }
+            v |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
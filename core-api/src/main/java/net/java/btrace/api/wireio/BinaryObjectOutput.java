@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.wireio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Compact {@linkplain ObjectOutput} implementation used by the wire protocol v2.
+ * <p>
+ * The data are collected in a reusable in-memory buffer. Integral values are
+ * written as zig-zag encoded varints, strings as UTF-8 bytes prefixed by their
+ * length and the common boxed primitives and strings passed to {@linkplain #writeObject(java.lang.Object)}
+ * are written as typed cells. Only other objects fall back to the java serialization.
+ * </p>
+ * @author Jaroslav Bachorik <jaroslav.bachorik at oracle.com>
+ * @since 2.0
+ */
+final class BinaryObjectOutput implements ObjectOutput {
+    final static int TAG_NULL = 0;
+    final static int TAG_STRING = 1;
+    final static int TAG_INT = 2;
+    final static int TAG_LONG = 3;
+    final static int TAG_DOUBLE = 4;
+    final static int TAG_FLOAT = 5;
+    final static int TAG_SHORT = 6;
+    final static int TAG_BYTE = 7;
+    final static int TAG_BOOLEAN = 8;
+    final static int TAG_CHAR = 9;
+    final static int TAG_SERIALIZED = 10;
+
+    // kinds of strings when a dictionary is in use; stored in the lowest 2 bits of the string header
+    final static int STR_LITERAL = 0;
+    final static int STR_REF = 1;
+    final static int STR_DEF = 2;
+
+    private byte[] buf = new byte[256];
+    private int count = 0;
+    private StringDictionary dictionary = null;
+    private int protocol = Version.PROTOCOL_V2;
+
+    void setProtocol(int protocol) {
+        this.protocol = protocol;
+    }
+
+    int getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * Enables the string dictionary encoding of the strings written by {@linkplain #writeUTF(java.lang.String)}
+     */
+    void setDictionary(StringDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * The space reserved in front of a frame for its length prefix
+     */
+    final static int FRAME_PREFIX = 5;
+
+    void reset() {
+        count = 0;
+    }
+
+    /**
+     * Resets the buffer and reserves space for the frame length prefix.
+     * The dictionary slots assigned by a frame not {@linkplain #writeFrameTo(java.io.OutputStream) written}
+     * are rolled back.
+     */
+    void resetFrame() {
+        count = FRAME_PREFIX;
+        if (dictionary != null) {
+            dictionary.mark();
+        }
+    }
+
+    /**
+     * Discards the frame started by {@linkplain #resetFrame()} together with
+     * the dictionary slots it has assigned
+     */
+    void abortFrame() {
+        count = FRAME_PREFIX;
+        if (dictionary != null) {
+            dictionary.rollback();
+        }
+    }
+
+    int size() {
+        return count;
+    }
+
+    void writeTo(OutputStream os) throws IOException {
+        os.write(buf, 0, count);
+    }
+
+    /**
+     * Writes the data collected since {@linkplain #resetFrame()} prefixed by
+     * their varint encoded length
+     */
+    void writeFrameTo(OutputStream os) throws IOException {
+        int len = count - FRAME_PREFIX;
+        int start = FRAME_PREFIX - varIntSize(len);
+        int pos = start;
+        int v = len;
+        while ((v & ~0x7f) != 0) {
+            buf[pos++] = (byte)((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        buf[pos] = (byte)v;
+        os.write(buf, start, count - start);
+        if (dictionary != null) {
+            dictionary.commit();
+        }
+    }
+
+    private void ensure(int len) {
+        if (count + len > buf.length) {
+            byte[] newBuf = new byte[Math.max(buf.length << 1, count + len)];
+            System.arraycopy(buf, 0, newBuf, 0, count);
+            buf = newBuf;
+        }
+    }
+
+    @Override
+    public void write(int b) {
+        ensure(1);
+        buf[count++] = (byte)b;
+    }
+
+    @Override
+    public void write(byte[] b) {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensure(len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    @Override
+    public void writeBoolean(boolean v) {
+        write(v ? 1 : 0);
+    }
+
+    @Override
+    public void writeByte(int v) {
+        write(v);
+    }
+
+    @Override
+    public void writeShort(int v) {
+        writeVarInt(zigzag((short)v));
+    }
+
+    @Override
+    public void writeChar(int v) {
+        writeVarInt(v & 0xffff);
+    }
+
+    @Override
+    public void writeInt(int v) {
+        writeVarInt(zigzag(v));
+    }
+
+    @Override
+    public void writeLong(long v) {
+        writeVarLong((v << 1) ^ (v >> 63));
+    }
+
+    @Override
+    public void writeFloat(float v) {
+        int bits = Float.floatToIntBits(v);
+        ensure(4);
+        buf[count++] = (byte)(bits >>> 24);
+        buf[count++] = (byte)(bits >>> 16);
+        buf[count++] = (byte)(bits >>> 8);
+        buf[count++] = (byte)bits;
+    }
+
+    @Override
+    public void writeDouble(double v) {
+        long bits = Double.doubleToLongBits(v);
+        ensure(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buf[count++] = (byte)(bits >>> shift);
+        }
+    }
+
+    @Override
+    public void writeBytes(String s) {
+        int len = s.length();
+        ensure(len);
+        for (int i = 0; i < len; i++) {
+            buf[count++] = (byte)s.charAt(i);
+        }
+    }
+
+    @Override
+    public void writeChars(String s) {
+        int len = s.length();
+        ensure(len * 2);
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            buf[count++] = (byte)(c >>> 8);
+            buf[count++] = (byte)c;
+        }
+    }
+
+    @Override
+    public void writeUTF(String s) throws IOException {
+        if (dictionary != null) {
+            if (StringDictionary.isCacheable(s)) {
+                int slot = dictionary.indexOf(s);
+                if (slot > -1) {
+                    writeVarInt((slot << 2) | STR_REF);
+                    return;
+                }
+                writeVarInt((dictionary.add(s) << 2) | STR_DEF);
+            } else {
+                writeVarInt(STR_LITERAL);
+            }
+        }
+        writeUTFBytes(s);
+    }
+
+    private void writeUTFBytes(String s) throws IOException {
+        int len = s.length();
+        int i = 0;
+        // optimistic ASCII fast path; the length prefix is fixed up if needed
+        writeVarInt(len);
+        int lenPos = count;
+        ensure(len);
+        while (i < len) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                break;
+            }
+            buf[count++] = (byte)c;
+            i++;
+        }
+        if (i < len) {
+            // non-ASCII string; rewrite it the slow way
+            count = lenPos - varIntSize(len);
+            byte[] bytes = s.getBytes("UTF-8");
+            writeVarInt(bytes.length);
+            write(bytes);
+        }
+    }
+
+    @Override
+    public void writeObject(Object obj) throws IOException {
+        if (obj == null) {
+            write(TAG_NULL);
+        } else if (obj instanceof String) {
+            write(TAG_STRING);
+            writeUTF((String)obj);
+        } else if (obj instanceof Integer) {
+            write(TAG_INT);
+            writeInt((Integer)obj);
+        } else if (obj instanceof Long) {
+            write(TAG_LONG);
+            writeLong((Long)obj);
+        } else if (obj instanceof Double) {
+            write(TAG_DOUBLE);
+            writeDouble((Double)obj);
+        } else if (obj instanceof Float) {
+            write(TAG_FLOAT);
+            writeFloat((Float)obj);
+        } else if (obj instanceof Short) {
+            write(TAG_SHORT);
+            writeShort((Short)obj);
+        } else if (obj instanceof Byte) {
+            write(TAG_BYTE);
+            writeByte((Byte)obj);
+        } else if (obj instanceof Boolean) {
+            write(TAG_BOOLEAN);
+            writeBoolean((Boolean)obj);
+        } else if (obj instanceof Character) {
+            write(TAG_CHAR);
+            writeChar((Character)obj);
+        } else {
+            // rare; eg. exceptions
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(bos);
+            oos.writeObject(obj);
+            oos.close();
+            write(TAG_SERIALIZED);
+            writeVarInt(bos.size());
+            write(bos.toByteArray());
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    void writeVarInt(int v) {
+        ensure(5);
+        while ((v & ~0x7f) != 0) {
+            buf[count++] = (byte)((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        buf[count++] = (byte)v;
+    }
+
+    void writeVarLong(long v) {
+        ensure(10);
+        while ((v & ~0x7fL) != 0) {
+            buf[count++] = (byte)((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        buf[count++] = (byte)v;
+    }
+
+    static int zigzag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    private static int varIntSize(int v) {
+        int size = 1;
+        while ((v & ~0x7f) != 0) {
+            v >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
@@ -25,11 +25,17 @@
 package net.java.btrace.api.wireio;
 
 import net.java.btrace.api.core.BTraceLogger;
+import net.java.btrace.util.SegmentedBlockingQueue;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * The representation of the communication channel.
@@ -45,30 +51,212 @@ abstract public class Channel {
     private final AtomicBoolean isInited = new AtomicBoolean(false);
 
     final private ConcurrentHashMap<Integer, ResponseHandler> responseMap = new ConcurrentHashMap<Integer, ResponseHandler>();
-    final private BlockingQueue<AbstractCommand> commandQueue = new ArrayBlockingQueue<AbstractCommand>(1280000);
+    final private static int DEFAULT_QUEUE_CAPACITY = 1280000;
+    final private SegmentedBlockingQueue<AbstractCommand> commandQueue;
 
-    private Thread delayedWriteService = null;
+    final private static int MAX_RING_BATCH = 256;
+    final private static long CLOSE_TIMEOUT = 1000; // ms
+    final private static long DEFAULT_FLUSH_LINGER = 2; // ms
+
+    private volatile long flushLinger = DEFAULT_FLUSH_LINGER;
+
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    final private AtomicLong droppedCommands = new AtomicLong(0);
+    final private AtomicLong overflowCounter = new AtomicLong(0);
+
+    /**
+     * Per-thread event rings; used only when {@linkplain #eventRingSize} is positive
+     */
+    private volatile int eventRingSize = 0;
+    final private ThreadLocal<EventRing> eventRing = new ThreadLocal<EventRing>() {
+        @Override
+        protected EventRing initialValue() {
+            EventRing ring = new EventRing(eventRingSize, Thread.currentThread());
+            eventRings.add(ring);
+            return ring;
+        }
+    };
+    final private CopyOnWriteArrayList<EventRing> eventRings = new CopyOnWriteArrayList<EventRing>();
+    // @GuardedBy eventRings
+    final private Map<String, Long> retiredOverflows = new HashMap<String, Long>();
+    // the rings are drained by the delayed writer and, upon close, by the closing thread
+    final private Object drainLock = new Object();
+    // held by the write listener while writing a batch; the closing thread waits for the batch to finish
+    final private Object writeLock = new Object();
+
+    private volatile Thread delayedWriteService = null;
+    // TRUE when the writer (or the write listener) may be out of work and needs to be woken up by the senders
+    private volatile boolean consumerIdle = true;
+    private volatile boolean useDelayedWrite;
+    private volatile WriteListener writeListener = null;
+
+    /**
+     * Notified when a channel not using the delayed writer has commands waiting
+     * to be written. The listener is expected to call {@linkplain #writePending(int)}.
+     * @since 2.0
+     */
+    public static interface WriteListener {
+        /**
+         * Called from the sending thread after a command has been enqueued. Must not block.
+         * @param ch The channel with the pending commands
+         * @param urgent <b>TRUE</b> if the command should not wait for the {@linkplain #setFlushLinger(long) linger time};
+         *               it is either a response or somebody is waiting for its response
+         */
+        void commandsPending(Channel ch, boolean urgent);
+    }
 
     protected Channel(boolean useDelayedWrite) {
-        if (useDelayedWrite) {
-            delayedWriteService = new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        while (!isClosed.get()) {
-                            try {
-                                AbstractCommand cmd = commandQueue.poll(1, TimeUnit.SECONDS);
-                                if (cmd != null) {
-                                    writeCommand(cmd);
-                                }
-                            } catch (InterruptedException e) {}
-                        }
-                    } catch (IOException e) {
-                        BTraceLogger.debugPrint(e);
+        this(useDelayedWrite, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param useDelayedWrite Use a background thread to write the queued commands
+     * @param queueCapacity The command queue capacity; when reached the {@linkplain OverflowPolicy} applies
+     */
+    protected Channel(boolean useDelayedWrite, int queueCapacity) {
+        commandQueue = new SegmentedBlockingQueue<AbstractCommand>(queueCapacity);
+        this.useDelayedWrite = useDelayedWrite;
+    }
+
+    /**
+     * Decides whether the queued commands are written by a dedicated background
+     * thread or by whoever is {@linkplain #setWriteListener(WriteListener) listening}
+     * for the pending commands. Must be called before the channel is initialised.
+     * @param useDelayedWrite Use a background thread to write the queued commands
+     * @since 2.0
+     */
+    final protected void setDelayedWrite(boolean useDelayedWrite) {
+        if (isInited.get()) {
+            throw new IllegalStateException("Channel already initialised");
+        }
+        this.useDelayedWrite = useDelayedWrite;
+    }
+
+    /**
+     * Registers the listener responsible for writing the queued commands
+     * when the channel does not use the delayed writer
+     * @param l The listener or <b>null</b>
+     * @since 2.0
+     */
+    final public void setWriteListener(WriteListener l) {
+        writeListener = l;
+    }
+
+    /**
+     * Writes the queued commands (and the content of the event rings) without
+     * waiting for more to arrive and flushes the channel.
+     * To be used instead of the delayed writer by the {@linkplain WriteListener}.
+     * @param max The maximum number of queued commands to write
+     * @return Returns the number of commands written
+     * @throws IOException
+     * @since 2.0
+     */
+    final public int writePending(int max) throws IOException {
+        synchronized(writeLock) {
+            if (isClosed.get()) {
+                return 0;
+            }
+            boolean useRings = !eventRings.isEmpty();
+            int cnt = useRings ? drainEventRings() : 0;
+            boolean flushEach = flushLinger < 0;
+            AbstractCommand cmd;
+            while (cnt < max && (cmd = commandQueue.poll()) != null) {
+                if (useRings) {
+                    // anything enqueued before the command must be written first
+                    cnt += drainEventRings();
+                }
+                writeCommand(cmd);
+                cnt++;
+                if (flushEach) {
+                    flush();
+                }
+            }
+            if (cnt > 0 && !flushEach) {
+                flush();
+            }
+            // the listener checks hasPendingCommands() afterwards; anything sent later wakes it up again
+            consumerIdle = true;
+            return cnt;
+        }
+    }
+
+    /**
+     * @return The number of segments currently allocated by the command queue
+     */
+    final int getQueueSegmentCount() {
+        return commandQueue.getSegmentCount();
+    }
+
+    /**
+     * @return <b>TRUE</b> if there are commands in the queue or in the event rings waiting to be written
+     * @since 2.0
+     */
+    final public boolean hasPendingCommands() {
+        return !commandQueue.isEmpty() || !eventRingsEmpty();
+    }
+
+    private boolean eventRingsEmpty() {
+        for(EventRing ring : eventRings) {
+            if (!ring.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Thread newDelayedWriter() {
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!isClosed.get()) {
+                        try {
+                            writeBatch();
+                        } catch (InterruptedException e) {}
                     }
+                } catch (IOException e) {
+                    BTraceLogger.debugPrint(e);
                 }
-            }, "BTrace Delayed Writer");
-            delayedWriteService.setDaemon(true);
+            }
+        }, "BTrace Delayed Writer");
+        t.setDaemon(true);
+        return t;
+    }
+
+    /**
+     * Writes the next command together with all the commands arriving within
+     * the linger time. Flushes the channel afterwards.
+     * Parks the writer if there is nothing to write.
+     */
+    private void writeBatch() throws IOException, InterruptedException {
+        int drained = drainEventRings();
+        AbstractCommand cmd = commandQueue.poll();
+        if (drained == 0 && cmd == null) {
+            awaitWork();
+            return;
+        }
+        long linger = flushLinger;
+        long lingerEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(linger);
+        boolean written = drained > 0;
+        while (cmd != null) {
+            // anything enqueued before the command must be written first
+            drainEventRings();
+            // the written command may be recycled right away; must not be touched afterwards
+            boolean urgent = linger < 0 || !isDroppable(cmd);
+            writeCommand(cmd);
+            written = true;
+            if (urgent) {
+                // somebody is waiting for this command
+                break;
+            }
+            long remaining = lingerEnd - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            cmd = commandQueue.poll(remaining, TimeUnit.NANOSECONDS);
+        }
+        if (written) {
+            flush();
         }
     }
 
@@ -96,12 +284,23 @@ abstract public class Channel {
     abstract public AbstractCommand readCommand() throws IOException, ClassNotFoundException;
 
     /**
-     * Submits the {@linkplain AbstractCommand} to the pipeline
+     * Submits the {@linkplain AbstractCommand} to the pipeline.
+     * The command may be {@linkplain CommandFactory#recycle(AbstractCommand) recycled}
+     * once written so the caller must not access it afterwards.
      * @param cmd The {@linkplain AbstractCommand} to write
      * @throws IOException
      */
     abstract public void writeCommand(AbstractCommand cmd) throws IOException;
 
+    /**
+     * Pushes all the written commands down the pipeline.
+     * Called by the delayed writer after each batch of commands.
+     * To be overridden by channels buffering their output.
+     * @throws IOException
+     */
+    protected void flush() throws IOException {
+    }
+
     /**
      * Perform the close operation.
      * To be overridden.
@@ -113,7 +312,8 @@ abstract public class Channel {
      */
     final protected void init() {
         if (isInited.compareAndSet(false, true)) {
-            if (delayedWriteService != null) {
+            if (useDelayedWrite) {
+                delayedWriteService = newDelayedWriter();
                 delayedWriteService.start();
             }
         }
@@ -124,17 +324,37 @@ abstract public class Channel {
      */
     final public void close() {
         if (isClosed.compareAndSet(false, true)) {
-            delayedWriteService.interrupt();
+            if (delayedWriteService != null) {
+                delayedWriteService.interrupt();
+                if (Thread.currentThread() != delayedWriteService) {
+                    try {
+                        // let the writer finish the current command
+                        delayedWriteService.join(CLOSE_TIMEOUT);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+            synchronized(writeLock) {
+                // waits for the write listener to finish the current batch; it will not start another one.
+                // the rest is written without the lock - the listener may be needed to send it
+            }
             try {
+                while (drainEventRings() > 0);
                 // drain the queue
                 Collection<AbstractCommand> drainage = new ArrayList<AbstractCommand>();
                 commandQueue.drainTo(drainage);
                 for (AbstractCommand cmd : drainage) {
                     writeCommand(cmd);
                 }
+                flush();
             } catch (IOException e) {
                 BTraceLogger.debugPrint(e);
             }
+            Map<String, Long> overflows = getEventRingOverflows();
+            if (!overflows.isEmpty()) {
+                BTraceLogger.debugPrint("event ring overflows: " + overflows);
+            }
             for(ResponseHandler rh : responseMap.values()) {
                 rh.setResponse(null);
             }
@@ -169,9 +389,15 @@ abstract public class Channel {
         }
         T cmd = prepareCommand(clz, init);
         if (cmd != null) {
+            if (eventRingSize > 0 && !cmd.needsResponse()) {
+                // never block the probe thread; a full ring just counts the lost command
+                offerEvent(eventRing.get(), cmd);
+                return null;
+            }
             try {
                 ResponseHandler<V> rslt = addResponseHandler(cmd);
-                commandQueue.put(cmd);
+                enqueue(cmd);
+                notifyPending(cmd);
                 return rslt;
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
@@ -199,6 +425,7 @@ abstract public class Channel {
         if (response != null) {
             try {
                 commandQueue.put(response);
+                notifyPending(response);
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
             }
@@ -207,6 +434,276 @@ abstract public class Channel {
         }
     }
 
+    private void notifyPending(AbstractCommand cmd) {
+        WriteListener l = writeListener;
+        if (l != null) {
+            l.commandsPending(this, !isDroppable(cmd));
+        } else if (consumerIdle) {
+            wakeConsumer();
+        }
+    }
+
+    /**
+     * Blocks the delayed writer until a sender {@linkplain #wakeConsumer() wakes it up}
+     * or the channel is closed.
+     */
+    private void awaitWork() throws InterruptedException {
+        consumerIdle = true;
+        try {
+            // a sender enqueueing before the flag was raised did not wake the writer; check again
+            if (commandQueue.isEmpty() && eventRingsEmpty() && !isClosed.get()) {
+                LockSupport.park(this);
+            }
+        } finally {
+            consumerIdle = false;
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    private void wakeConsumer() {
+        consumerIdle = false;
+        WriteListener l = writeListener;
+        if (l != null) {
+            l.commandsPending(this, false);
+        } else {
+            Thread t = delayedWriteService;
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+        }
+    }
+
+    private void offerEvent(EventRing ring, AbstractCommand cmd) {
+        if (!ring.offer(cmd)) {
+            // the writer is falling behind; let it catch up before giving up on the command
+            wakeConsumer();
+            Thread.yield();
+            if (!ring.offer(cmd)) {
+                ring.overflow();
+                return;
+            }
+        }
+        if (consumerIdle) {
+            wakeConsumer();
+        }
+    }
+
+    private void enqueue(AbstractCommand cmd) throws InterruptedException {
+        OverflowPolicy policy = overflowPolicy;
+        if (policy.getKind() == OverflowPolicy.Kind.BLOCK || !isDroppable(cmd)) {
+            commandQueue.put(cmd);
+            return;
+        }
+        if (commandQueue.offer(cmd)) {
+            return;
+        }
+        switch (policy.getKind()) {
+            case DROP_NEWEST: {
+                droppedCommands.incrementAndGet();
+                break;
+            }
+            case DROP_OLDEST: {
+                replaceOldest(cmd);
+                break;
+            }
+            case SAMPLE: {
+                if (overflowCounter.incrementAndGet() % policy.getRate() == 0) {
+                    // never block the sender; the sampled command takes the place of the oldest one
+                    replaceOldest(cmd);
+                } else {
+                    droppedCommands.incrementAndGet();
+                }
+                break;
+            }
+        }
+    }
+
+    private void replaceOldest(AbstractCommand cmd) {
+        // checked and removed atomically; once taken by the writer the oldest one may be recycled and enqueued again
+        if (commandQueue.pollIf(DROPPABLE) != null) {
+            droppedCommands.incrementAndGet();
+        }
+        if (!commandQueue.offer(cmd)) {
+            droppedCommands.incrementAndGet();
+        }
+    }
+
+    final private static SegmentedBlockingQueue.Filter<AbstractCommand> DROPPABLE = new SegmentedBlockingQueue.Filter<AbstractCommand>() {
+        @Override
+        public boolean accept(AbstractCommand cmd) {
+            return isDroppable(cmd);
+        }
+    };
+
+    private static boolean isDroppable(AbstractCommand cmd) {
+        // responses are carrying the TX of the command they respond to
+        return !cmd.needsResponse() && cmd.getTx() == -1;
+    }
+
+    /**
+     * Sets the policy to apply when the command queue is full
+     * @param policy The {@linkplain OverflowPolicy} to use; <b>null</b> means {@linkplain OverflowPolicy#BLOCK}
+     */
+    final public void setOverflowPolicy(OverflowPolicy policy) {
+        overflowPolicy = policy != null ? policy : OverflowPolicy.BLOCK;
+    }
+
+    /**
+     *
+     * @return The currently used {@linkplain OverflowPolicy}
+     */
+    final public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * The exact number of commands dropped due to the {@linkplain OverflowPolicy}.
+     * Does not include the {@linkplain #getEventRingOverflows() event ring overflows}.
+     * @return Returns the number of dropped commands since the channel was created
+     */
+    final public long getDroppedCommands() {
+        return droppedCommands.get();
+    }
+
+    /**
+     * Sets for how long the delayed writer waits for more commands before flushing
+     * the channel. Commands requiring a response and responses are flushed immediately.
+     * @param millis The linger time in milliseconds; 0 flushes as soon as the
+     *               command queue is empty, a negative value flushes after each command
+     */
+    final public void setFlushLinger(long millis) {
+        flushLinger = millis;
+    }
+
+    /**
+     *
+     * @return The linger time in milliseconds
+     */
+    final public long getFlushLinger() {
+        return flushLinger;
+    }
+
+    /**
+     * Sets the maximum number of commands waiting to be written.
+     * The queue memory is allocated only as needed so this is just the upper limit.
+     * @param capacity The command queue capacity; when reached the {@linkplain OverflowPolicy} applies.
+     *                 A non-positive value restores the default capacity.
+     */
+    final public void setCommandQueueCapacity(int capacity) {
+        commandQueue.setCapacity(capacity > 0 ? capacity : DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     *
+     * @return The command queue capacity
+     */
+    final public int getCommandQueueCapacity() {
+        return commandQueue.getCapacity();
+    }
+
+    /**
+     * Lets the {@linkplain CommandFactory} reuse the {@linkplain AbstractCommand#isRecyclable() recyclable}
+     * commands once they have been written. Applicable only to the channels serializing
+     * the commands; the others are ignoring this setting.
+     * @param recycle <b>TRUE</b> to recycle the written commands
+     * @since 2.0
+     */
+    final public void setCommandRecycling(boolean recycle) {
+        CommandFactory cf = getCommandFactory();
+        if (cf != null) {
+            cf.setRecycling(recycle && recyclesCommands());
+        }
+    }
+
+    /**
+     * To be overridden by the channels which are done with the commands once they have been written
+     * and which {@linkplain CommandFactory#recycle(AbstractCommand) recycle} them
+     * @return <b>TRUE</b> if the channel supports the command recycling
+     * @since 2.0
+     */
+    protected boolean recyclesCommands() {
+        return false;
+    }
+
+    /**
+     * Switches the channel to the per-thread event ring mode.
+     * <p>
+     * In this mode each sending thread gets its own lock-free ring of the given
+     * size which is drained by the delayed writer or the {@linkplain WriteListener}.
+     * A command put into a ring while the writer is idle wakes it up.
+     * Commands not requiring a response are never blocking the sender - if
+     * the sender's ring stays full after yielding to the writer once they are
+     * dropped and counted as overflows.
+     * </p>
+     * Commands requiring a response and responses themselves are always using
+     * the shared queue.
+     * @param size The per-thread ring size; rounded up to the nearest power of 2.
+     *             A non-positive value switches the rings off.
+     */
+    final public void setEventRingSize(int size) {
+        eventRingSize = size > 0 ? size : 0;
+    }
+
+    /**
+     *
+     * @return The per-thread event ring size or 0 if the event rings are not used
+     */
+    final public int getEventRingSize() {
+        return eventRingSize;
+    }
+
+    /**
+     * Lists the number of commands dropped because of an event ring overflow.
+     * The counts are kept even after the sending thread has terminated.
+     * @return Returns the map of thread name -> number of dropped commands.
+     *         Threads with no dropped commands are not included.
+     */
+    final public Map<String, Long> getEventRingOverflows() {
+        Map<String, Long> rslt = new HashMap<String, Long>();
+        synchronized(eventRings) {
+            rslt.putAll(retiredOverflows);
+            for(EventRing ring : eventRings) {
+                addOverflows(rslt, ring);
+            }
+        }
+        return Collections.unmodifiableMap(rslt);
+    }
+
+    private static void addOverflows(Map<String, Long> map, EventRing ring) {
+        long cnt = ring.getOverflows();
+        if (cnt > 0) {
+            Long prev = map.get(ring.getOwnerName());
+            map.put(ring.getOwnerName(), prev != null ? prev + cnt : cnt);
+        }
+    }
+
+    private int drainEventRings() throws IOException {
+        int cnt = 0;
+        synchronized(drainLock) {
+            for(EventRing ring : eventRings) {
+                boolean orphaned = ring.isOrphaned();
+                AbstractCommand cmd;
+                int batch = 0;
+                // limit the batch so that a busy thread can not starve the others
+                while (batch < MAX_RING_BATCH && (cmd = ring.poll()) != null) {
+                    writeCommand(cmd);
+                    batch++;
+                }
+                cnt += batch;
+                if (orphaned && ring.isEmpty()) {
+                    // the owner is gone and its ring is drained; no new commands can appear
+                    synchronized(eventRings) {
+                        eventRings.remove(ring);
+                        addOverflows(retiredOverflows, ring);
+                    }
+                }
+            }
+        }
+        return cnt;
+    }
+
     /**
      * Creates a command of the given type and with the given initialiser
      * @param <T> The command type type
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.wireio;
+
+import net.java.btrace.api.core.BTraceLogger;
+import net.java.btrace.org.objectweb.asm.ClassWriter;
+import net.java.btrace.org.objectweb.asm.MethodVisitor;
+import net.java.btrace.org.objectweb.asm.Opcodes;
+import net.java.btrace.org.objectweb.asm.Type;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Modifier;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Generates the {@linkplain CommandFactory.Creator} implementations.
+ * <p>
+ * The generated creator simply calls the command's <i>(int, int, int)</i> constructor.
+ * It is defined by a class loader delegating to the command's one so that it can
+ * see the command class. Commands which can not be accessed this way (non-public
+ * classes or constructors) are created via reflection as before.
+ * </p>
+ * @author Jaroslav Bachorik
+ */
+final class CommandCreators {
+    // the creators are shared by all the factories; a new factory is created for each connection
+    // @GuardedBy creators
+    final private static Map<Class<?>, WeakReference<CommandFactory.Creator>> creators = new WeakHashMap<Class<?>, WeakReference<CommandFactory.Creator>>();
+
+    private static volatile boolean generatorAvailable = true;
+
+    private CommandCreators() {
+    }
+
+    static CommandFactory.Creator forClass(Class<? extends AbstractCommand> cmdClass) throws NoSuchMethodException {
+        synchronized(creators) {
+            WeakReference<CommandFactory.Creator> ref = creators.get(cmdClass);
+            CommandFactory.Creator c = ref != null ? ref.get() : null;
+            if (c == null) {
+                c = generate(cmdClass);
+                if (c == null) {
+                    c = reflective(cmdClass);
+                }
+                creators.put(cmdClass, new WeakReference<CommandFactory.Creator>(c));
+            }
+            return c;
+        }
+    }
+
+    /**
+     * @return A creator using {@linkplain Constructor#newInstance(java.lang.Object[])}
+     */
+    static CommandFactory.Creator reflective(Class<? extends AbstractCommand> cmdClass) throws NoSuchMethodException {
+        final Constructor<? extends AbstractCommand> constructor = cmdClass.getDeclaredConstructor(int.class, int.class, int.class);
+        AccessController.doPrivileged(new PrivilegedAction<Void>() {
+            @Override
+            public Void run() {
+                constructor.setAccessible(true);
+                return null;
+            }
+        });
+        return new CommandFactory.Creator() {
+            @Override
+            public AbstractCommand create(int type, int rx, int tx) {
+                try {
+                    return constructor.newInstance(type, rx, tx);
+                } catch (Exception e) {
+                    e.printStackTrace(System.err);
+                }
+                return null;
+            }
+        };
+    }
+
+    private static CommandFactory.Creator generate(final Class<? extends AbstractCommand> cmdClass) throws NoSuchMethodException {
+        Constructor<? extends AbstractCommand> constructor = cmdClass.getDeclaredConstructor(int.class, int.class, int.class);
+        if (!generatorAvailable || !Modifier.isPublic(cmdClass.getModifiers()) || !Modifier.isPublic(constructor.getModifiers())
+            || Modifier.isAbstract(cmdClass.getModifiers()) || cmdClass.getName().startsWith("java.")) {
+            return null;
+        }
+        try {
+            final String name = cmdClass.getName() + "$$Creator";
+            final byte[] code = generateClass(name.replace('.', '/'), Type.getInternalName(cmdClass));
+            return AccessController.doPrivileged(new PrivilegedAction<CommandFactory.Creator>() {
+                @Override
+                public CommandFactory.Creator run() {
+                    try {
+                        Class<?> clz = new CreatorLoader(cmdClass.getClassLoader()).define(name, code);
+                        return (CommandFactory.Creator)clz.newInstance();
+                    } catch (Throwable t) {
+                        // eg. a security manager not allowing to create class loaders
+                        BTraceLogger.debugPrint(t);
+                        return null;
+                    }
+                }
+            });
+        } catch (LinkageError e) {
+            // ASM not available; no point in trying again
+            BTraceLogger.debugPrint("can not generate command creators: " + e);
+            generatorAvailable = false;
+            return null;
+        } catch (Throwable t) {
+            BTraceLogger.debugPrint(t);
+            return null;
+        }
+    }
+
+    // the ASM classes are touched only from here; when they are missing the reflective creator is used
+    private static byte[] generateClass(String name, String cmdName) {
+        String creatorName = Type.getInternalName(CommandFactory.Creator.class);
+        String createDesc = Type.getMethodDescriptor(Type.getType(AbstractCommand.class), Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE);
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_5, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER | Opcodes.ACC_SYNTHETIC, name, null, creatorName, null);
+
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, creatorName, "<init>", "()V", false);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "create", createDesc, null, null);
+        mv.visitCode();
+        mv.visitTypeInsn(Opcodes.NEW, cmdName);
+        mv.visitInsn(Opcodes.DUP);
+        mv.visitVarInsn(Opcodes.ILOAD, 1);
+        mv.visitVarInsn(Opcodes.ILOAD, 2);
+        mv.visitVarInsn(Opcodes.ILOAD, 3);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, cmdName, "<init>", "(III)V", false);
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static final class CreatorLoader extends ClassLoader {
+        CreatorLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] code) {
+            return defineClass(name, code, 0, code.length);
+        }
+    }
+}
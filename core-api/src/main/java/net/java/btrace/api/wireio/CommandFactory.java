@@ -27,17 +27,12 @@ package net.java.btrace.api.wireio;
 import net.java.btrace.api.core.BTraceLogger;
 import net.java.btrace.api.core.ServiceLocator;
 import net.java.btrace.spi.wireio.CommandImpl;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.security.AccessController;
-import java.security.PrivilegedAction;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -46,33 +41,39 @@ import java.util.concurrent.atomic.AtomicInteger;
  * @since 2.0
  */
 public class CommandFactory {
+    /**
+     * Creates the instances of one command type.
+     * <p>
+     * The implementations are generated when the command type is registered
+     * so that creating a command involves no reflection. This class is public
+     * only because the generated subclasses are defined by a different class loader.
+     * </p>
+     */
+    public static abstract class Creator {
+        protected Creator() {
+        }
+
+        /**
+         * @param type The command type id
+         * @param rx The command RX
+         * @param tx The command TX
+         * @return A new command instance
+         */
+        public abstract AbstractCommand create(int type, int rx, int tx);
+    }
+
     private static class FactoryMethod<T extends AbstractCommand> {
-        private CommandImpl<T> impl;
-        private final Constructor<T> constructor;
-        private static Field implFld;
+        private volatile CommandImpl<T> impl;
+        private final Creator creator;
         private final int type;
+        // not null only for the recyclable commands
+        private final CommandPool pool;
 
-        static {
-            try {
-                implFld = AbstractCommand.class.getDeclaredField("impl");
-                AccessController.doPrivileged(new PrivilegedAction<Void>() {
-                    @Override
-                    public Void run() {
-                        implFld.setAccessible(true);
-                        return null;
-                    }
-                });
-            } catch (NoSuchFieldException e) {
-                implFld = null;
-            } catch (SecurityException e) {
-                implFld = null;
-            }
-        }
-
-        public FactoryMethod(CommandImpl<T> impl, Constructor<T> constructor, int type) {
-            this.constructor = constructor;
+        public FactoryMethod(CommandImpl<T> impl, Class<? extends AbstractCommand> cmdClass, int type) throws NoSuchMethodException {
+            this.creator = CommandCreators.forClass(cmdClass);
             this.type = type;
-            this.constructor.setAccessible(true);
+            AbstractCommand sample = creator.create(type, -1, -1);
+            this.pool = sample != null && sample.isRecyclable() && !sample.needsResponse() ? new CommandPool() : null;
             updateImpl(impl);
         }
 
@@ -81,27 +82,33 @@ public class CommandFactory {
         }
 
         public T newInstance(int rx, int tx) {
-            try {
-                T instance = constructor.newInstance(type, rx, tx);
-                if (implFld != null) {
-                    implFld.set(instance, impl);
+            T instance = (T)creator.create(type, rx, tx);
+            instance.impl = impl;
+            return instance;
+        }
+
+        public T newInstance(int rx, boolean reuse) {
+            if (reuse && pool != null) {
+                T instance = (T)pool.poll();
+                if (instance != null) {
+                    instance.reuse(rx);
+                    instance.impl = impl;
+                    return instance;
                 }
-                return instance;
-            } catch (InstantiationException e) {
-                e.printStackTrace(System.err);
-            } catch (IllegalAccessException e) {
-                e.printStackTrace(System.err);
-            } catch (IllegalArgumentException e) {
-                e.printStackTrace(System.err);
-            } catch (InvocationTargetException e) {
-                e.printStackTrace(System.err);
             }
-            return null;
+            return newInstance(rx, -1);
+        }
+
+        public void recycle(AbstractCommand cmd) {
+            if (pool != null && cmd.getTx() == -1) {
+                pool.offer(cmd);
+            }
         }
     }
 
-    private final Map<Integer, FactoryMethod> mapById = new HashMap();
-    private final Map<Class<? extends AbstractCommand>, FactoryMethod> mapByType = new WeakHashMap();
+    // indexed by the command type id; copied on write
+    private volatile FactoryMethod[] mapById = new FactoryMethod[16];
+    private final Map<Class<? extends AbstractCommand>, FactoryMethod> mapByType = new ConcurrentHashMap<Class<? extends AbstractCommand>, FactoryMethod>();
 
     private List<Class<? extends AbstractCommand>> supportedCommands = null;
 
@@ -109,6 +116,7 @@ public class CommandFactory {
     final private static int MAX_SEQ_NR = 100000;
     private final AtomicInteger rxCntr = new AtomicInteger(0);
     private final Command.Target target;
+    private volatile boolean recycling = false;
 
     private CommandFactory(Iterable<CommandImpl> svcs, Command.Target target) throws NoSuchMethodException {
         this(Collections.EMPTY_MAP, svcs, target);
@@ -136,16 +144,14 @@ public class CommandFactory {
 
                 Class<? extends AbstractCommand> cmdClz = ann.clazz();
                 if (!mapByType.containsKey(cmdClz)) {
-                    Constructor<? extends AbstractCommand> constructor = cmdClz.getDeclaredConstructor(int.class, int.class, int.class);
-                    constructor.setAccessible(true);
+                    // fail early for the commands with no suitable constructor
+                    cmdClz.getDeclaredConstructor(int.class, int.class, int.class);
 
                     Integer cmdId = mapper.get(cmdClz);
                     if (cmdId == null) {
                         cmdId = cnt++;
                     }
-                    FactoryMethod fm = new FactoryMethod(svc, constructor, cmdId);
-                    mapById.put(cmdId, fm);
-                    mapByType.put(cmdClz, fm);
+                    register(cmdClz, new FactoryMethod(svc, cmdClz, cmdId), cmdId);
 
                     lastTypeId = cnt;
                 } else {
@@ -157,14 +163,23 @@ public class CommandFactory {
 
     private void copyInitialMapper(Map<Class<? extends AbstractCommand>, Integer> mapper) throws NoSuchMethodException, SecurityException {
         for(Map.Entry<Class<? extends AbstractCommand>, Integer> mapping : mapper.entrySet()) {
-            Constructor<? extends AbstractCommand> constructor = mapping.getKey().getDeclaredConstructor(int.class, int.class, int.class);
-            constructor.setAccessible(true);
-            FactoryMethod fm = new FactoryMethod(CommandImpl.NULL, constructor, mapping.getValue());
+            mapping.getKey().getDeclaredConstructor(int.class, int.class, int.class);
             int id = mapping.getValue();
             lastTypeId = Math.max(lastTypeId, id + 1);
-            mapById.put(mapping.getValue(), fm);
-            mapByType.put(mapping.getKey(), fm);
+            register(mapping.getKey(), new FactoryMethod(CommandImpl.NULL, mapping.getKey(), id), id);
+        }
+    }
+
+    synchronized private void register(Class<? extends AbstractCommand> cmdClz, FactoryMethod fm, int id) {
+        FactoryMethod[] table = mapById;
+        if (id >= table.length) {
+            table = Arrays.copyOf(table, Math.max(table.length * 2, id + 1));
+        } else {
+            table = table.clone();
         }
+        table[id] = fm;
+        mapById = table;
+        mapByType.put(cmdClz, fm);
     }
 
     /**
@@ -227,12 +242,45 @@ public class CommandFactory {
     public <T extends AbstractCommand> T createCommand(Class<T> cmdClass) {
         FactoryMethod<T> fm = mapByType.get(cmdClass);
         if (fm != null) {
-            T cmd = fm.newInstance(incCounter(), -1);
+            T cmd = fm.newInstance(incCounter(), recycling);
             return cmd;
         }
         return null;
     }
 
+    /**
+     * Switches the recycling of the {@linkplain AbstractCommand#isRecyclable() recyclable}
+     * commands on or off. Once recycled a command may be handed out again by {@linkplain #createCommand(java.lang.Class)}
+     * so the recycling may be used only if nobody keeps a reference to the commands after they have been written.
+     * @param recycling <b>TRUE</b> to reuse the {@linkplain #recycle(net.java.btrace.api.wireio.AbstractCommand) recycled} commands
+     */
+    public void setRecycling(boolean recycling) {
+        this.recycling = recycling;
+    }
+
+    /**
+     *
+     * @return <b>TRUE</b> if the recyclable commands are reused
+     */
+    public boolean isRecycling() {
+        return recycling;
+    }
+
+    /**
+     * Returns the command to the pool so that it can be reused.
+     * Does nothing unless the {@linkplain #setRecycling(boolean) recycling} is on
+     * and the command is {@linkplain AbstractCommand#isRecyclable() recyclable}.
+     * @param cmd The command which is not going to be used any more
+     */
+    public void recycle(AbstractCommand cmd) {
+        if (recycling) {
+            FactoryMethod fm = lookup(cmd.getType());
+            if (fm != null) {
+                fm.recycle(cmd);
+            }
+        }
+    }
+
     /**
      * Creates a new response of <b>&lt;T&gt;</b> type with an appropriate handler.
      * @param <T> Type parameter for the response type
@@ -268,13 +316,18 @@ public class CommandFactory {
      * @return Returns a deserialized command or <b>NULL</b>
      */
     public AbstractCommand restoreCommand(int type, int rx, int tx) {
-        FactoryMethod fm = mapById.get(type);
+        FactoryMethod fm = lookup(type);
         if (fm != null) {
             return fm.newInstance(rx, tx);
         }
         return null;
     }
 
+    private FactoryMethod lookup(int type) {
+        FactoryMethod[] table = mapById;
+        return type >= 0 && type < table.length ? table[type] : null;
+    }
+
     /**
      * Allows for ad-hoc addition of command type mappers
      * @param mapping The command implementation mapping list; the position is the key
@@ -285,13 +338,10 @@ public class CommandFactory {
             if (cmdClz == null) continue;
 
             try {
-                Constructor<? extends AbstractCommand> constructor = cmdClz.getDeclaredConstructor(int.class, int.class, int.class);
-                constructor.setAccessible(true);
+                cmdClz.getDeclaredConstructor(int.class, int.class, int.class);
 
                 int id = cnt++;
-                FactoryMethod fm = new FactoryMethod(CommandImpl.NULL, constructor, id);
-                mapById.put(cnt, fm);
-                mapByType.put(cmdClz, fm);
+                register(cmdClz, new FactoryMethod(CommandImpl.NULL, cmdClz, id), id);
             } catch (NoSuchMethodException e) {
                 BTraceLogger.debugPrint(e);
             } catch (SecurityException e) {
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.wireio;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A small lock-free pool of recycled command instances of one type.
+ * <p>
+ * The pool is a fixed array of slots used as a ring. The commands are usually
+ * recycled by a single writer thread and taken by many sending threads; both sides
+ * remember where they succeeded the last time and look for the next slot from there.
+ * The positions are just hints - the slots themselves are updated by CAS.
+ * When no free slot is found the recycled command is simply left to the garbage collector.
+ * </p>
+ * @author Jaroslav Bachorik
+ */
+final class CommandPool {
+    final private static int CAPACITY = 64; // power of 2
+    final private static int MASK = CAPACITY - 1;
+    // scanning the whole array would cost more than allocating a new command
+    final private static int MAX_PROBES = 8;
+
+    final private AtomicReferenceArray<AbstractCommand> slots = new AtomicReferenceArray<AbstractCommand>(CAPACITY);
+    private volatile int putHint = 0;
+    private volatile int takeHint = 0;
+
+    boolean offer(AbstractCommand cmd) {
+        int start = putHint;
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int idx = (start + i) & MASK;
+            if (slots.get(idx) == null && slots.compareAndSet(idx, null, cmd)) {
+                putHint = idx + 1;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    AbstractCommand poll() {
+        int start = takeHint;
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int idx = (start + i) & MASK;
+            AbstractCommand cmd = slots.get(idx);
+            if (cmd != null && slots.compareAndSet(idx, cmd, null)) {
+                takeHint = idx + 1;
+                return cmd;
+            }
+        }
+        return null;
+    }
+}
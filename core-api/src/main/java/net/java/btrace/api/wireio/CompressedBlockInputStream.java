@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.wireio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the blocks written by {@linkplain CompressedBlockOutputStream}
+ * @author Jaroslav Bachorik <jaroslav.bachorik at oracle.com>
+ * @since 2.0
+ */
+final class CompressedBlockInputStream extends InputStream {
+    final private InputStream in;
+    final private Inflater inflater = new Inflater();
+    private byte[] block = new byte[CompressedBlockOutputStream.DEFAULT_BLOCK_SIZE];
+    private byte[] compressed = new byte[CompressedBlockOutputStream.DEFAULT_BLOCK_SIZE];
+    private int pos = 0, limit = 0;
+
+    CompressedBlockInputStream(InputStream in) {
+        this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos == limit && !readBlock()) {
+            return -1;
+        }
+        return block[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (pos == limit && !readBlock()) {
+            return -1;
+        }
+        int cnt = Math.min(len, limit - pos);
+        System.arraycopy(block, pos, b, off, cnt);
+        pos += cnt;
+        return cnt;
+    }
+
+    @Override
+    public int available() {
+        return limit - pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        in.close();
+    }
+
+    private boolean readBlock() throws IOException {
+        int rawLen = BinaryObjectInput.readVarInt(in);
+        if (rawLen < 0) {
+            return false;
+        }
+        int len = BinaryObjectInput.readVarInt(in);
+        if (len < 0) {
+            throw new EOFException();
+        }
+        if (compressed.length < len) {
+            compressed = new byte[len];
+        }
+        if (block.length < rawLen) {
+            block = new byte[rawLen];
+        }
+        int off = 0;
+        while (off < len) {
+            int read = in.read(compressed, off, len - off);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            off += read;
+        }
+        try {
+            inflater.setInput(compressed, 0, len);
+            off = 0;
+            while (off < rawLen) {
+                int inflated = inflater.inflate(block, off, rawLen - off);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("Corrupted compressed block");
+                }
+                off += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted compressed block: " + e.getMessage());
+        } finally {
+            inflater.reset();
+        }
+        pos = 0;
+        limit = rawLen;
+        return true;
+    }
+}
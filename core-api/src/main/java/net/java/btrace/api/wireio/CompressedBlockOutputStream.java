@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.wireio;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Collects the written frames and sends them as one compressed block upon {@linkplain #flush()}
+ * or when the block is full.
+ * <p>
+ * Each block is compressed on its own (the deflater is reset after each block),
+ * so a block can be decoded without any state other than the block itself.
+ * A block is written as <i>varint raw length</i>, <i>varint compressed length</i>
+ * followed by the deflated data.
+ * </p>
+ * @author Jaroslav Bachorik <jaroslav.bachorik at oracle.com>
+ * @since 2.0
+ */
+final class CompressedBlockOutputStream extends OutputStream {
+    final static int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    final private OutputStream out;
+    final private Deflater deflater;
+    final private byte[] block;
+    private byte[] compressed;
+    private int count = 0;
+    private long rawBytes = 0, compressedBytes = 0;
+
+    CompressedBlockOutputStream(OutputStream out) {
+        this(out, DEFAULT_BLOCK_SIZE, Deflater.BEST_SPEED);
+    }
+
+    CompressedBlockOutputStream(OutputStream out, int blockSize, int level) {
+        this.out = out;
+        this.deflater = new Deflater(level);
+        this.block = new byte[blockSize];
+        this.compressed = new byte[blockSize + blockSize / 8 + 64];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == block.length) {
+            writeBlock();
+        }
+        block[count++] = (byte)b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == block.length) {
+                writeBlock();
+            }
+            int cnt = Math.min(len, block.length - count);
+            System.arraycopy(b, off, block, count, cnt);
+            count += cnt;
+            off += cnt;
+            len -= cnt;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeBlock();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+
+    long getRawBytes() {
+        return rawBytes;
+    }
+
+    long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    private void writeBlock() throws IOException {
+        if (count == 0) return;
+
+        deflater.setInput(block, 0, count);
+        deflater.finish();
+        int len = 0;
+        while (!deflater.finished()) {
+            if (len == compressed.length) {
+                byte[] newBuf = new byte[compressed.length << 1];
+                System.arraycopy(compressed, 0, newBuf, 0, len);
+                compressed = newBuf;
+            }
+            len += deflater.deflate(compressed, len, compressed.length - len);
+        }
+        deflater.reset();
+
+        writeVarInt(count);
+        writeVarInt(len);
+        out.write(compressed, 0, len);
+        rawBytes += count;
+        compressedBytes += len;
+        count = 0;
+    }
+
+    private void writeVarInt(int v) throws IOException {
+        while ((v & ~0x7f) != 0) {
+            out.write((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.wireio;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded single-producer/single-consumer ring of {@linkplain AbstractCommand}s.
+ * <p>
+ * Each probe thread owns exactly one ring per {@linkplain Channel} and is the
+ * only one to {@linkplain #offer(net.java.btrace.api.wireio.AbstractCommand) offer}
+ * commands to it. The channel writer is the only consumer. Neither side takes
+ * a lock - the producer publishes the slot by advancing the tail and the consumer
+ * releases it by advancing the head.
+ * </p>
+ * <p>
+ * When the ring is full the command is rejected instead of blocking the probe
+ * thread; the channel decides whether to retry or to count it as an {@linkplain #overflow() overflow}.
+ * </p>
+ * @author Jaroslav Bachorik <jaroslav.bachorik at oracle.com>
+ * @since 2.0
+ */
+final class EventRing {
+    final private AbstractCommand[] slots;
+    final private int mask;
+    final private AtomicLong head = new AtomicLong(0);
+    final private AtomicLong tail = new AtomicLong(0);
+    // cached copy of the head; read and written only by the producer
+    private long headCache = 0;
+    // written only by the producer
+    private volatile long overflows = 0;
+
+    final private WeakReference<Thread> owner;
+    final private String ownerName;
+
+    EventRing(int capacity, Thread owner) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new AbstractCommand[size];
+        this.mask = size - 1;
+        this.owner = new WeakReference<Thread>(owner);
+        this.ownerName = owner.getName();
+    }
+
+    /**
+     * Producer side. May be called only by the owning thread.
+     * @param cmd The command to enqueue
+     * @return Returns <b>TRUE</b> if the command was enqueued, <b>FALSE</b> if the ring was full
+     */
+    boolean offer(AbstractCommand cmd) {
+        long t = tail.get();
+        if (t - headCache >= slots.length) {
+            headCache = head.get();
+            if (t - headCache >= slots.length) {
+                return false;
+            }
+        }
+        slots[(int)t & mask] = cmd;
+        // not lazySet - the subsequent check of the writer's idle flag must not be reordered before the publication
+        tail.set(t + 1);
+        return true;
+    }
+
+    /**
+     * Producer side. Records a command lost because the ring was full.
+     */
+    void overflow() {
+        overflows++;
+    }
+
+    /**
+     * Consumer side. May be called only by the channel writer.
+     * @return Returns the oldest enqueued command or <b>NULL</b> if the ring is empty
+     */
+    AbstractCommand poll() {
+        long h = head.get();
+        if (h >= tail.get()) {
+            return null;
+        }
+        int idx = (int)h & mask;
+        AbstractCommand cmd = slots[idx];
+        slots[idx] = null;
+        head.lazySet(h + 1);
+        return cmd;
+    }
+
+    boolean isEmpty() {
+        return head.get() >= tail.get();
+    }
+
+    /**
+     * @return Returns <b>TRUE</b> if the owning thread has terminated
+     */
+    boolean isOrphaned() {
+        Thread t = owner.get();
+        return t == null || !t.isAlive();
+    }
+
+    long getOverflows() {
+        return overflows;
+    }
+
+    String getOwnerName() {
+        return ownerName;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.wireio;
+
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Ordered accesses to the memory of a {@linkplain MappedByteBuffer} shared with another process.
+ * <p>
+ * The Java 6 API has no way to order the plain {@linkplain java.nio.ByteBuffer} accesses
+ * against each other and the volatile fields of this VM mean nothing to the other process.
+ * The release stores and acquire loads of {@code sun.misc.Unsafe} are used instead.
+ * This is the only class of the module using the internal API; the {@linkplain MappedRing}
+ * is not available when it is not {@linkplain #isAvailable() available}.
+ * </p>
+ * @author Jaroslav Bachorik
+ */
+final class MappedMemory {
+    final private static sun.misc.Unsafe UNSAFE;
+    final private static long ADDRESS_OFFSET;
+
+    static {
+        Object u = null;
+        long addressOffset = -1;
+        try {
+            Field f = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            u = f.get(null);
+        } catch (Exception e) {
+            u = null;
+        }
+        UNSAFE = (sun.misc.Unsafe)u;
+        if (UNSAFE != null) {
+            try {
+                addressOffset = UNSAFE.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+            } catch (Exception e) {
+                addressOffset = -1;
+            }
+        }
+        ADDRESS_OFFSET = addressOffset;
+    }
+
+    private MappedMemory() {}
+
+    static boolean isAvailable() {
+        return UNSAFE != null && ADDRESS_OFFSET != -1;
+    }
+
+    /**
+     * @return The address of the mapped memory; valid as long as the buffer is reachable
+     */
+    static long address(MappedByteBuffer mbb) {
+        return UNSAFE.getLong(mbb, ADDRESS_OFFSET);
+    }
+
+    static int getInt(long address) {
+        return UNSAFE.getInt(address);
+    }
+
+    static void putInt(long address, int value) {
+        UNSAFE.putInt(address, value);
+    }
+
+    static void putLong(long address, long value) {
+        UNSAFE.putLong(address, value);
+    }
+
+    /**
+     * An acquire load; the subsequent accesses can not be moved before it
+     */
+    static int getIntVolatile(long address) {
+        return UNSAFE.getIntVolatile(null, address);
+    }
+
+    static void putIntVolatile(long address, int value) {
+        UNSAFE.putIntVolatile(null, address, value);
+    }
+
+    /**
+     * A release store; the preceding accesses can not be moved after it
+     */
+    static void putOrderedInt(long address, int value) {
+        UNSAFE.putOrderedInt(null, address, value);
+    }
+
+    /**
+     * An acquire load; the subsequent accesses can not be moved before it
+     */
+    static long getLongVolatile(long address) {
+        return UNSAFE.getLongVolatile(null, address);
+    }
+
+    /**
+     * A release store; the preceding accesses can not be moved after it
+     */
+    static void putOrderedLong(long address, long value) {
+        UNSAFE.putOrderedLong(null, address, value);
+    }
+}
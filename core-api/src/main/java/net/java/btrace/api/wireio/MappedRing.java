@@ -0,0 +1,400 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.wireio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single-producer single-consumer byte ring buffer backed by a memory-mapped file.
+ * <p>
+ * Used to transfer the framed commands from the agent to a client running
+ * on the same host without going through the loopback socket. The agent
+ * {@linkplain #create(int) creates} the ring and becomes its producer; the client
+ * {@linkplain #open(java.lang.String) opens} the ring using the path received
+ * during the handshake and becomes its consumer.
+ * </p>
+ * <p>
+ * The file starts with a header holding the capacity, the producer and consumer
+ * positions (each on its own cache line) and the closed flags. The positions are
+ * ever increasing byte counters; the data written by the producer are made
+ * visible to the consumer by publishing the producer position upon {@linkplain OutputStream#flush()}.
+ * The header fields are accessed directly in the mapped memory using ordered
+ * stores and volatile loads so that neither the compiler nor the CPU can move
+ * the data accesses across the publication of the positions.
+ * Neither side uses any locks - a side waiting for data or free space spins
+ * for a while and then parks with an increasing timeout.
+ * </p>
+ * <p>
+ * The ring is not available when the VM does not provide the ordered accesses to the mapped memory;
+ * {@linkplain #create(int)} and {@linkplain #open(java.lang.String)} fail
+ * with {@linkplain IOException} then.
+ * </p>
+ * @author Jaroslav Bachorik <jaroslav.bachorik at oracle.com>
+ * @since 2.0
+ */
+final public class MappedRing {
+    final public static int DEFAULT_CAPACITY = 4 * 1024 * 1024;
+
+    final private static int MAGIC = 0x42545247; // BTRG
+    final private static int MAGIC_OFFSET = 0;
+    final private static int CAPACITY_OFFSET = 4;
+    final private static int WRITE_POS_OFFSET = 64;
+    final private static int READ_POS_OFFSET = 128;
+    final private static int PRODUCER_CLOSED_OFFSET = 192;
+    final private static int CONSUMER_CLOSED_OFFSET = 196;
+    final private static int HEADER_SIZE = 256;
+
+    // spinning makes no sense when the other side can not run at the same time
+    final private static int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 100 : 0;
+    final private static long MAX_PARK_NANOS = 1000000L;
+
+    final private static String RING_FILE = "ring";
+
+    final private File file;
+    final private RandomAccessFile raf;
+    final private MappedByteBuffer buffer;
+    final private ByteBuffer data;
+    final private int capacity;
+    final private int mask;
+    final private boolean producer;
+    // the address of the mapped header; valid as long as the buffer is reachable
+    final private long base;
+    private volatile boolean closed = false;
+
+    private MappedRing(File file, RandomAccessFile raf, MappedByteBuffer buffer, int capacity, boolean producer) {
+        this.file = file;
+        this.raf = raf;
+        this.buffer = buffer;
+        this.base = MappedMemory.address(buffer);
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.producer = producer;
+        buffer.position(HEADER_SIZE);
+        this.data = buffer.slice();
+        buffer.position(0);
+    }
+
+    private static void checkAvailable() throws IOException {
+        if (!MappedMemory.isAvailable()) {
+            throw new IOException("Shared memory ring not supported by this VM");
+        }
+    }
+
+    /**
+     * Creates a new ring in a file placed in a fresh temporary directory
+     * accessible only by the current user
+     * @param capacity The requested capacity; rounded up to the nearest power of 2
+     * @return The producer side of the new ring
+     * @throws IOException
+     */
+    public static MappedRing create(int capacity) throws IOException {
+        checkAvailable();
+        int cap = Integer.highestOneBit(Math.max(capacity, 1024));
+        if (cap < capacity) {
+            cap <<= 1;
+        }
+        File dir = createPrivateDir();
+        File f = new File(dir, RING_FILE);
+        // fails if anybody managed to sneak in a file or a link before the permissions were restricted
+        if (!f.createNewFile()) {
+            dir.delete();
+            throw new IOException("Can not create the ring file: " + f);
+        }
+        f.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.setLength(HEADER_SIZE + cap);
+            MappedByteBuffer mbb = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + cap);
+            long addr = MappedMemory.address(mbb);
+            MappedMemory.putInt(addr + CAPACITY_OFFSET, cap);
+            MappedMemory.putLong(addr + WRITE_POS_OFFSET, 0L);
+            MappedMemory.putLong(addr + READ_POS_OFFSET, 0L);
+            MappedMemory.putInt(addr + PRODUCER_CLOSED_OFFSET, 0);
+            MappedMemory.putInt(addr + CONSUMER_CLOSED_OFFSET, 0);
+            // the magic number publishes the rest of the header
+            MappedMemory.putOrderedInt(addr + MAGIC_OFFSET, MAGIC);
+            return new MappedRing(f, raf, mbb, cap, true);
+        } catch (IOException e) {
+            raf.close();
+            f.delete();
+            dir.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates an empty temporary directory with the owner-only (0700) permissions.
+     * The permissions are restricted before anything is placed in the directory.
+     */
+    private static File createPrivateDir() throws IOException {
+        File dir = File.createTempFile("btrace-", ".ring");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Can not create the ring directory: " + dir);
+        }
+        dir.deleteOnExit();
+        boolean restricted = dir.setReadable(false, false) && dir.setWritable(false, false) && dir.setExecutable(false, false)
+                             && dir.setReadable(true, true) && dir.setWritable(true, true) && dir.setExecutable(true, true);
+        String[] content = dir.list();
+        if (!restricted || content == null || content.length != 0) {
+            dir.delete();
+            throw new IOException("Can not restrict the access to the ring directory: " + dir);
+        }
+        return dir;
+    }
+
+    /**
+     * Opens an existing ring
+     * @param path The ring file path
+     * @return The consumer side of the ring
+     * @throws IOException
+     */
+    public static MappedRing open(String path) throws IOException {
+        checkAvailable();
+        File f = new File(path);
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            long len = raf.length();
+            if (len < HEADER_SIZE) {
+                throw new IOException("Invalid ring file: " + path);
+            }
+            MappedByteBuffer mbb = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, len);
+            long addr = MappedMemory.address(mbb);
+            // the rest of the header is valid only once the magic number is seen
+            int magic = MappedMemory.getIntVolatile(addr + MAGIC_OFFSET);
+            int cap = MappedMemory.getInt(addr + CAPACITY_OFFSET);
+            if (magic != MAGIC || Integer.bitCount(cap) != 1 || HEADER_SIZE + cap > len) {
+                throw new IOException("Invalid ring file: " + path);
+            }
+            return new MappedRing(f, raf, mbb, cap, false);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    public String getPath() {
+        return file.getAbsolutePath();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public boolean isProducer() {
+        return producer;
+    }
+
+    /**
+     * Removes the backing file and its directory. The already established mappings
+     * stay valid on the platforms allowing to delete a mapped file.
+     */
+    public void unlink() {
+        file.delete();
+        File dir = file.getParentFile();
+        if (dir != null && producer) {
+            dir.delete();
+        }
+    }
+
+    /**
+     * Closes this side of the ring. The other side will see the ring closed.
+     */
+    public void close() {
+        if (closed) return;
+        closed = true;
+        MappedMemory.putIntVolatile(base + (producer ? PRODUCER_CLOSED_OFFSET : CONSUMER_CLOSED_OFFSET), 1);
+        try {
+            raf.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * @return The stream to write the data to; the data are published upon {@linkplain OutputStream#flush()}
+     */
+    public OutputStream getOutputStream() {
+        if (!producer) throw new IllegalStateException("Consumer side of the ring");
+        return new RingOutputStream();
+    }
+
+    /**
+     * @return The stream to read the published data from
+     */
+    public InputStream getInputStream() {
+        if (producer) throw new IllegalStateException("Producer side of the ring");
+        return new RingInputStream();
+    }
+
+    private long getVolatile(int offset) {
+        return MappedMemory.getLongVolatile(base + offset);
+    }
+
+    private void putOrdered(int offset, long value) {
+        MappedMemory.putOrderedLong(base + offset, value);
+    }
+
+    private boolean isClosed(int offset) {
+        return MappedMemory.getIntVolatile(base + offset) != 0;
+    }
+
+    private static long backoff(int iteration, long parkNanos) {
+        if (iteration < SPINS) {
+            return parkNanos;
+        }
+        LockSupport.parkNanos(parkNanos);
+        return Math.min(parkNanos << 1, MAX_PARK_NANOS);
+    }
+
+    private class RingOutputStream extends OutputStream {
+        private long writePos = getVolatile(WRITE_POS_OFFSET);
+        private final byte[] single = new byte[1];
+
+        @Override
+        public void write(int b) throws IOException {
+            single[0] = (byte)b;
+            write(single, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int free = awaitSpace();
+                int idx = (int)(writePos & mask);
+                int cnt = Math.min(len, Math.min(free, capacity - idx));
+                data.position(idx);
+                data.put(b, off, cnt);
+                writePos += cnt;
+                off += cnt;
+                len -= cnt;
+            }
+        }
+
+        @Override
+        public void flush() {
+            // the data written so far can not be reordered after the position
+            putOrdered(WRITE_POS_OFFSET, writePos);
+        }
+
+        @Override
+        public void close() {
+            flush();
+            MappedRing.this.close();
+        }
+
+        private int awaitSpace() throws IOException {
+            long parkNanos = 1000;
+            for (int i = 0; ; i++) {
+                if (closed) {
+                    throw new IOException("Ring closed");
+                }
+                long free = capacity - (writePos - getVolatile(READ_POS_OFFSET));
+                if (free > 0) {
+                    return (int)free;
+                }
+                if (isClosed(CONSUMER_CLOSED_OFFSET)) {
+                    throw new IOException("Ring closed by the consumer");
+                }
+                if (i == 0) {
+                    // make the pending data available so the consumer can make progress
+                    flush();
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException();
+                }
+                parkNanos = backoff(i, parkNanos);
+            }
+        }
+    }
+
+    private class RingInputStream extends InputStream {
+        private long readPos = getVolatile(READ_POS_OFFSET);
+        private final byte[] single = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            int avail = awaitData();
+            if (avail < 0) {
+                return -1;
+            }
+            int idx = (int)(readPos & mask);
+            int cnt = Math.min(len, Math.min(avail, capacity - idx));
+            data.position(idx);
+            data.get(b, off, cnt);
+            readPos += cnt;
+            // the data are copied out before the producer may overwrite them
+            putOrdered(READ_POS_OFFSET, readPos);
+            return cnt;
+        }
+
+        @Override
+        public int available() {
+            return (int)(getVolatile(WRITE_POS_OFFSET) - readPos);
+        }
+
+        @Override
+        public void close() {
+            MappedRing.this.close();
+        }
+
+        private int awaitData() throws IOException {
+            long parkNanos = 1000;
+            for (int i = 0; ; i++) {
+                if (closed) {
+                    return -1;
+                }
+                // read the closed flag before the position so no data published before closing are missed
+                boolean producerClosed = isClosed(PRODUCER_CLOSED_OFFSET);
+                // the data up to the position are readable once the position is seen
+                long avail = getVolatile(WRITE_POS_OFFSET) - readPos;
+                if (avail > 0) {
+                    return (int)avail;
+                }
+                if (producerClosed) {
+                    return -1;
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException();
+                }
+                parkNanos = backoff(i, parkNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.wireio;
+
+/**
+ * Specifies what a {@linkplain Channel} does with a command when its
+ * command queue is full.
+ * <p>
+ * Only the commands which neither need a response nor are a response
+ * themselves can ever be dropped. The rest is always waiting for the
+ * queue to free up.
+ * </p>
+ * <p>
+ * The textual form, as accepted by {@linkplain #parse(java.lang.String)}, is
+ * one of <b>block</b>, <b>dropNewest</b>, <b>dropOldest</b> or <b>sample:N</b>
+ * </p>
+ * @author Jaroslav Bachorik <jaroslav.bachorik at oracle.com>
+ * @since 2.0
+ */
+final public class OverflowPolicy {
+    public static enum Kind {
+        /**
+         * Wait until there is room in the queue
+         */
+        BLOCK,
+        /**
+         * Drop the command being sent
+         */
+        DROP_NEWEST,
+        /**
+         * Drop the oldest queued command to make room for the one being sent
+         */
+        DROP_OLDEST,
+        /**
+         * Drop all but each N-th command; the N-th command replaces the oldest queued one
+         */
+        SAMPLE
+    }
+
+    final public static OverflowPolicy BLOCK = new OverflowPolicy(Kind.BLOCK, 1);
+    final public static OverflowPolicy DROP_NEWEST = new OverflowPolicy(Kind.DROP_NEWEST, 1);
+    final public static OverflowPolicy DROP_OLDEST = new OverflowPolicy(Kind.DROP_OLDEST, 1);
+
+    final private Kind kind;
+    final private int rate;
+
+    private OverflowPolicy(Kind kind, int rate) {
+        this.kind = kind;
+        this.rate = rate;
+    }
+
+    /**
+     * Creates a sampling policy
+     * @param rate Only each <b>rate</b>-th command of the overflowing ones is kept
+     * @return Returns a new sampling {@linkplain OverflowPolicy}
+     */
+    public static OverflowPolicy sample(int rate) {
+        if (rate < 1) {
+            throw new IllegalArgumentException("sampling rate must be positive: " + rate);
+        }
+        return rate == 1 ? BLOCK : new OverflowPolicy(Kind.SAMPLE, rate);
+    }
+
+    /**
+     * Parses the textual form of the policy
+     * @param policy The policy string
+     * @return Returns the corresponding {@linkplain OverflowPolicy}; <b>null</b> or an empty string yield {@linkplain #BLOCK}
+     * @throws IllegalArgumentException if the policy string is not recognized
+     */
+    public static OverflowPolicy parse(String policy) {
+        if (policy == null || policy.length() == 0 || "block".equals(policy)) {
+            return BLOCK;
+        }
+        if ("dropNewest".equals(policy)) {
+            return DROP_NEWEST;
+        }
+        if ("dropOldest".equals(policy)) {
+            return DROP_OLDEST;
+        }
+        if (policy.startsWith("sample:")) {
+            try {
+                return sample(Integer.parseInt(policy.substring("sample:".length())));
+            } catch (NumberFormatException e) {
+                // fall through
+            }
+        }
+        throw new IllegalArgumentException("unknown overflow policy: " + policy);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     *
+     * @return The sampling rate for {@linkplain Kind#SAMPLE}, 1 otherwise
+     */
+    public int getRate() {
+        return rate;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof OverflowPolicy)) {
+            return false;
+        }
+        OverflowPolicy other = (OverflowPolicy)obj;
+        return kind == other.kind && rate == other.rate;
+    }
+
+    @Override
+    public int hashCode() {
+        return kind.hashCode() * 31 + rate;
+    }
+
+    @Override
+    public String toString() {
+        switch (kind) {
+            case DROP_NEWEST: return "dropNewest";
+            case DROP_OLDEST: return "dropOldest";
+            case SAMPLE: return "sample:" + rate;
+            default: return "block";
+        }
+    }
+}
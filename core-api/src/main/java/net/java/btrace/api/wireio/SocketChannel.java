@@ -28,7 +28,9 @@ import java.io.ObjectOutput ;
 import java.io.EOFException;
 import net.java.btrace.api.extensions.ExtensionsRepository;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInput;
+import java.io.OutputStream;
 
 /**
  * A {@linkplain Channel} implementation using sockets for communication
@@ -43,22 +45,167 @@ abstract public class SocketChannel extends Channel {
     };
     
     final protected static String BTRACE_MAGIC="BTRACE";
+    /**
+     * The default size of the output buffer; when filled up the buffer is flushed
+     * regardless of the {@linkplain #setFlushLinger(long) linger time}
+     */
+    final public static int DEFAULT_FLUSH_SIZE = 64 * 1024;
+    
+    /**
+     * Set in the protocol version byte exchanged during the handshake when the
+     * frames are to be compressed
+     */
+    final protected static int PROTOCOL_COMPRESSED = 0x80;
+    /**
+     * Set in the protocol version byte exchanged during the handshake when the
+     * agent-to-client frames are to be sent through a {@linkplain MappedRing}
+     */
+    final protected static int PROTOCOL_SHARED_MEMORY = 0x40;
+    final protected static int PROTOCOL_FLAGS = PROTOCOL_COMPRESSED | PROTOCOL_SHARED_MEMORY;
+    
+    final private static int FLAG_HAS_RX = 0x01;
+    final private static int FLAG_HAS_TX = 0x02;
+    final private static int TYPE_SHIFT = 2;
     
     final protected ObjectInput input;
     final protected ObjectOutput  output;
     private CommandFactory cFactory;
     final protected ExtensionsRepository extRep;
     
+    final private InputStream rawInput;
+    final private OutputStream rawOutput;
+    private InputStream frameStreamIn;
+    private OutputStream frameStreamOut;
+    private volatile int protocol = Version.PROTOCOL_V1;
+    private volatile boolean compressed = false;
+    private volatile MappedRing ring = null;
+    private BinaryObjectInput frameInput;
+    private BinaryObjectOutput frameOutput;
+    
     protected SocketChannel(ObjectInput oi, ObjectOutput  oo, ExtensionsRepository extRep) {
+        this(oi, oo, null, null, extRep);
+    }
+    
+    /**
+     * @param oi The object input used for the handshake and the protocol v1
+     * @param oo The object output used for the handshake and the protocol v1
+     * @param is The raw input stream underlying <b>oi</b>; used by the protocol v2
+     * @param os The raw output stream underlying <b>oo</b>; used by the protocol v2
+     * @param extRep The extensions repository
+     * @since 2.0
+     */
+    protected SocketChannel(ObjectInput oi, ObjectOutput  oo, InputStream is, OutputStream os, ExtensionsRepository extRep) {
         super(oi != null && oo != null);
         this.input = oi;
         this.output = oo;
+        this.rawInput = is;
+        this.rawOutput = os;
         this.extRep = extRep;
     }
     
+    /**
+     * Switches the channel to the protocol negotiated during the handshake.
+     * The framed protocols (v2 and newer) are used only if the raw streams are available.
+     * @param protocol The protocol version; {@linkplain Version#PROTOCOL_V1} up to {@linkplain Version#PROTOCOL}
+     */
+    final protected void setProtocol(int protocol) {
+        setProtocol(protocol, false);
+    }
+    
+    /**
+     * Switches the channel to the protocol negotiated during the handshake.
+     * The framed protocols (v2 and newer) are used only if the raw streams are available.
+     * @param protocol The protocol version; {@linkplain Version#PROTOCOL_V1} up to {@linkplain Version#PROTOCOL}
+     * @param compressed Compress the frames; applicable only to the framed protocols
+     * @since 2.0
+     */
+    final protected void setProtocol(int protocol, boolean compressed) {
+        if (protocol >= Version.PROTOCOL_V2 && rawInput != null && rawOutput != null) {
+            if (compressed) {
+                frameStreamIn = new CompressedBlockInputStream(rawInput);
+                frameStreamOut = new CompressedBlockOutputStream(rawOutput);
+            } else {
+                frameStreamIn = rawInput;
+                frameStreamOut = rawOutput;
+            }
+            this.compressed = compressed;
+            frameInput = new BinaryObjectInput(extRep != null ? extRep.getClassLoader() : getMyLoader());
+            frameOutput = new BinaryObjectOutput();
+            if (protocol >= Version.PROTOCOL_V3) {
+                // one table per direction; each side of the connection mirrors the peer's one
+                frameInput.setDictionary(new StringDictionary());
+                frameOutput.setDictionary(new StringDictionary());
+            }
+            this.protocol = Math.min(protocol, Version.PROTOCOL);
+            frameInput.setProtocol(this.protocol);
+            frameOutput.setProtocol(this.protocol);
+        } else {
+            this.protocol = Version.PROTOCOL_V1;
+        }
+    }
+    
+    /**
+     * Redirects the agent-to-client frames through the given shared memory ring.
+     * Must be called after {@linkplain #setProtocol(int, boolean)} switched to a framed protocol.
+     * The rest of the communication still goes through the socket.
+     * @param ring The producer side of the ring on the agent, the consumer side on the client
+     * @since 2.0
+     */
+    final protected void attachRing(MappedRing ring) {
+        if (protocol < Version.PROTOCOL_V2) {
+            throw new IllegalStateException("The shared memory transport requires a framed protocol");
+        }
+        if (ring.isProducer()) {
+            frameStreamOut = ring.getOutputStream();
+        } else {
+            frameStreamIn = ring.getInputStream();
+        }
+        this.ring = ring;
+    }
+    
+    /**
+     * @return <b>TRUE</b> if the agent-to-client frames are sent through a shared memory ring
+     */
+    final public boolean isSharedMemory() {
+        return ring != null;
+    }
+    
+    /**
+     * @return The wire protocol version in use
+     */
+    final public int getProtocol() {
+        return protocol;
+    }
+    
+    /**
+     * @return <b>TRUE</b> if the frames are sent compressed
+     */
+    final public boolean isCompressed() {
+        return compressed;
+    }
+    
+    /**
+     * Checks whether there are any received bytes not consumed yet. Even if there
+     * are some {@linkplain #readCommand()} may block when only a part of the command
+     * has arrived so far.
+     * @return <b>TRUE</b> if there are received bytes waiting to be read
+     * @throws IOException
+     * @since 2.0
+     */
+    final protected boolean hasInput() throws IOException {
+        if (input == null) return false;
+        if (protocol >= Version.PROTOCOL_V2) {
+            return frameStreamIn.available() > 0 || (compressed && rawInput.available() > 0);
+        }
+        return input.available() > 0 || (rawInput != null && rawInput.available() > 0);
+    }
+    
     @Override
     final public AbstractCommand readCommand() throws IOException, ClassNotFoundException {
         if (input == null) return null;
+        if (protocol >= Version.PROTOCOL_V2) {
+            return readFrame();
+        }
         try {
             while (true) {
                 int id = input.readInt();
@@ -80,20 +227,111 @@ abstract public class SocketChannel extends Channel {
         return AbstractCommand.NULL;
     }
     
+    private AbstractCommand readFrame() throws IOException, ClassNotFoundException {
+        try {
+            while (true) {
+                int len = BinaryObjectInput.readVarInt(frameStreamIn);
+                if (len < 0) {
+                    throw new EOFException();
+                }
+                frameInput.fill(frameStreamIn, len);
+                int header = frameInput.readVarInt();
+                int rx = (header & FLAG_HAS_RX) != 0 ? frameInput.readInt() : -1;
+                int tx = (header & FLAG_HAS_TX) != 0 ? frameInput.readInt() : -1;
+                AbstractCommand c = cFactory.restoreCommand(header >>> TYPE_SHIFT, rx, tx);
+                if (c == null) { // unknown command type; the whole frame is skipped
+                    if (protocol >= Version.PROTOCOL_V3) {
+                        // the frame may define dictionary strings the following frames refer to
+                        throw new IOException("Can not skip an unknown command of type " + (header >>> TYPE_SHIFT) + " when using the string dictionary");
+                    }
+                    continue;
+                }
+                c.read(frameInput);
+                if (c instanceof ResponseCommand) { // implicitly process the response
+                    responseReceived((ResponseCommand)c);
+                    continue;
+                }
+                return c;
+            }
+        } catch (EOFException e) {
+            throw e;
+        } catch (IOException e) {
+            close();
+        }
+        return AbstractCommand.NULL;
+    }
+    
     @Override
     final public void writeCommand(AbstractCommand cmd) throws IOException {
         if (output == null) throw new IOException("output command channel not available");
+        if (protocol >= Version.PROTOCOL_V2) {
+            writeFrame(cmd);
+            cFactory.recycle(cmd);
+            return;
+        }
         try {
             output.writeInt(cmd.getType());
             output.writeInt(cmd.getRx());
             output.writeInt(cmd.getTx());
             cmd.write(output);
+        } catch (IOException e) {
+            close();
+        }
+        // serialized; nobody is going to touch the command any more
+        cFactory.recycle(cmd);
+    }
+
+    /**
+     * Writes the command as a length prefixed frame.
+     * The frame consists of a varint header (type, has-rx, has-tx flags), the optional
+     * varint rx and tx and the command body.
+     */
+    private synchronized void writeFrame(AbstractCommand cmd) throws IOException {
+        boolean written = false;
+        try {
+            int rx = cmd.getRx();
+            int tx = cmd.getTx();
+            int header = cmd.getType() << TYPE_SHIFT;
+            if (rx != -1) header |= FLAG_HAS_RX;
+            if (tx != -1) header |= FLAG_HAS_TX;
+            frameOutput.resetFrame();
+            frameOutput.writeVarInt(header);
+            if (rx != -1) frameOutput.writeInt(rx);
+            if (tx != -1) frameOutput.writeInt(tx);
+            cmd.write(frameOutput);
+            frameOutput.writeFrameTo(frameStreamOut);
+            written = true;
+        } catch (IOException e) {
+            close();
+        } finally {
+            if (!written) {
+                // the peer must not learn about the strings defined by the discarded frame
+                frameOutput.abortFrame();
+            }
+        }
+    }
+
+    @Override
+    final protected void flush() throws IOException {
+        if (output == null) return;
+        try {
+            if (protocol >= Version.PROTOCOL_V2) {
+                synchronized(this) {
+                    frameStreamOut.flush();
+                }
+                return;
+            }
             output.flush();
         } catch (IOException e) {
             close();
         }
     }
     
+    @Override
+    protected boolean recyclesCommands() {
+        return true;
+    }
+    
     @Override
     final public CommandFactory getCommandFactory() {
         return cFactory;
@@ -105,11 +343,13 @@ abstract public class SocketChannel extends Channel {
     
     @Override
     final public void doClose() {
+        // called from close() only, after the closed flag has been set
+        if (ring != null) {
+            ring.close();
+        }
         try {
-            if (isClosed.compareAndSet(false, true)) {
-                input.close();
-                output.close();
-            }
+            if (input != null) input.close();
+            if (output != null) output.close();
         } catch (IOException e) {
             // ignore
         }
@@ -0,0 +1,771 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.wireio;
+
+import net.java.btrace.api.core.BTraceLogger;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves any number of socket connections from a single thread using a NIO {@linkplain Selector}.
+ * <p>
+ * The I/O thread accepts the incoming connections, moves the received bytes
+ * to the per-connection input buffers, writes the per-connection output buffers
+ * to the sockets and writes the commands queued in the {@linkplain Connection#attach(Channel) attached}
+ * channels - it replaces the per-channel delayed writer. The commands are never
+ * executed by the I/O thread; the connection's {@linkplain Connection#setReadListener(Runnable) read listener}
+ * is supposed to hand the reading over to an executor.
+ * </p>
+ * <p>
+ * The streams of a {@linkplain Connection} are blocking so that they can be used
+ * by the existing handshake and command (de)serialization code as they are.
+ * </p>
+ * @author Jaroslav Bachorik
+ * @since 2.0
+ */
+final public class SocketMultiplexer {
+    /**
+     * Receives the notifications from the I/O thread. None of the methods may block.
+     */
+    public static interface Handler {
+        /**
+         * A new connection has been accepted. The handshake should be performed
+         * outside of the I/O thread.
+         * @param c The accepted connection
+         */
+        void accepted(Connection c);
+
+        /**
+         * There are no open connections and no new one has been accepted
+         * for {@linkplain #IDLE_PERIOD}
+         * @return <b>FALSE</b> to stop the multiplexer
+         */
+        boolean idle();
+    }
+
+    final public static long IDLE_PERIOD = 1000; // ms
+
+    final private static int BUFFER_SIZE = 64 * 1024;
+    // received but not yet read bytes; the socket is not read when reached
+    final private static int INPUT_HIGH_WATER = 1024 * 1024;
+    // written but not yet sent bytes; no more commands are written and the writers from other threads block when reached
+    final private static int OUTPUT_HIGH_WATER = 1024 * 1024;
+    // the number of commands written from one channel before the other connections get their turn
+    final private static int MAX_WRITE_BATCH = 512;
+    final private static long CLOSE_TIMEOUT = 1000; // ms; to send the remaining output of a closed connection
+    final private static long OUTPUT_TIMEOUT = 10000; // ms; for the blocked writers to wait for the output to be sent
+
+    final private Selector selector;
+    final private ServerSocketChannel server;
+    final private Handler handler;
+    final private Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    final private DelayQueue<Timer> timers = new DelayQueue<Timer>();
+    final private ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    final private AtomicInteger connections = new AtomicInteger(0);
+
+    private volatile Thread ioThread = null;
+    private volatile boolean running = false;
+
+    private SocketMultiplexer(Selector selector, ServerSocketChannel server, Handler handler) {
+        this.selector = selector;
+        this.server = server;
+        this.handler = handler;
+    }
+
+    /**
+     * Binds the server socket. The connections are not accepted until the
+     * multiplexer is {@linkplain #run() run}.
+     * @param port The port to listen on; 0 picks up an ephemeral port
+     * @param handler The {@linkplain Handler} to notify
+     * @return Returns a new multiplexer
+     * @throws IOException
+     */
+    public static SocketMultiplexer open(int port, Handler handler) throws IOException {
+        Selector selector = Selector.open();
+        ServerSocketChannel ssc = ServerSocketChannel.open();
+        try {
+            ssc.socket().bind(new InetSocketAddress(port));
+            ssc.configureBlocking(false);
+            ssc.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            ssc.close();
+            selector.close();
+            throw e;
+        }
+        return new SocketMultiplexer(selector, ssc, handler);
+    }
+
+    /**
+     * @return The port the multiplexer is listening on
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * @return The number of the accepted connections not closed yet
+     */
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    /**
+     * Runs the task in the I/O thread as soon as possible
+     * @param task The task to run; must not block
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!isIOThread()) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Stops the multiplexer and closes all the connections
+     */
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void schedule(Runnable task, long delayMillis) {
+        Timer t = new Timer(task, delayMillis);
+        timers.add(t);
+        if (!isIOThread() && timers.peek() == t) {
+            // the I/O thread may be sleeping longer than required
+            selector.wakeup();
+        }
+    }
+
+    private boolean isIOThread() {
+        return Thread.currentThread() == ioThread;
+    }
+
+    /**
+     * Runs the I/O loop in the calling thread until {@linkplain #stop() stopped}
+     * or until the {@linkplain Handler#idle() handler} decides so.
+     */
+    public void run() {
+        ioThread = Thread.currentThread();
+        running = true;
+        long idleDeadline = System.currentTimeMillis() + IDLE_PERIOD;
+        try {
+            while (running) {
+                runTasks();
+                long timeout = Math.max(idleDeadline - System.currentTimeMillis(), 0);
+                Timer next = timers.peek();
+                if (next != null) {
+                    long delay = next.getDelay(TimeUnit.NANOSECONDS);
+                    timeout = Math.min(timeout, delay > 0 ? Math.max(TimeUnit.NANOSECONDS.toMillis(delay), 1) : 0);
+                }
+                if (timeout == 0 || !tasks.isEmpty()) {
+                    selector.selectNow();
+                } else {
+                    selector.select(timeout);
+                }
+                boolean accepted = false;
+                Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accepted |= accept();
+                        continue;
+                    }
+                    Connection c = (Connection)key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            c.readable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            c.writeOutput();
+                        }
+                    } catch (CancelledKeyException e) {
+                        c.closeSocket();
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (accepted || connections.get() > 0) {
+                    idleDeadline = now + IDLE_PERIOD;
+                } else if (now >= idleDeadline) {
+                    running = handler.idle();
+                    idleDeadline = now + IDLE_PERIOD;
+                }
+            }
+        } catch (IOException e) {
+            BTraceLogger.debugPrint(e);
+        } finally {
+            running = false;
+            for(SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection)key.attachment()).closeSocket();
+                }
+            }
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException e) {
+                BTraceLogger.debugPrint(e);
+            }
+            ioThread = null;
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            runTask(task);
+        }
+        Timer t;
+        while ((t = timers.poll()) != null) {
+            runTask(t.task);
+        }
+    }
+
+    private static void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (Throwable t) {
+            // a failing task must not bring down the other connections
+            BTraceLogger.debugPrint(t);
+        }
+    }
+
+    private boolean accept() {
+        boolean accepted = false;
+        while (true) {
+            java.nio.channels.SocketChannel sc;
+            try {
+                sc = server.accept();
+                if (sc == null) {
+                    return accepted;
+                }
+            } catch (IOException e) {
+                BTraceLogger.debugPrint(e);
+                return accepted;
+            }
+            try {
+                sc.configureBlocking(false);
+                Connection c = new Connection(sc);
+                c.key = sc.register(selector, SelectionKey.OP_READ, c);
+                connections.incrementAndGet();
+                accepted = true;
+                handler.accepted(c);
+            } catch (IOException e) {
+                BTraceLogger.debugPrint(e);
+                try {
+                    sc.close();
+                } catch (IOException ex) {
+                }
+            }
+        }
+    }
+
+    private static final class Timer implements Delayed {
+        final private Runnable task;
+        final private long deadline;
+
+        Timer(Runnable task, long delayMillis) {
+            this.task = task;
+            this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            long diff = deadline - ((Timer)o).deadline;
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+    }
+
+    /**
+     * A connection accepted by the {@linkplain SocketMultiplexer}.
+     * <p>
+     * The {@linkplain #getInputStream() input stream} reads the bytes already received
+     * by the I/O thread and blocks when there are none. The {@linkplain #getOutputStream() output stream}
+     * collects the bytes to be sent by the I/O thread upon {@linkplain OutputStream#flush() flush}.
+     * </p>
+     */
+    final public class Connection implements Channel.WriteListener {
+        final private java.nio.channels.SocketChannel socket;
+        private SelectionKey key;
+        final private AtomicBoolean closed = new AtomicBoolean(false);
+
+        final private Object inLock = new Object();
+        // @GuardedBy inLock
+        private byte[] inBuf = new byte[BUFFER_SIZE];
+        private int inPos = 0, inLimit = 0;
+        private boolean inEof = false, readSuspended = false;
+        private volatile long readTimeout = 0;
+        private volatile Runnable readListener = null;
+
+        final private Object outLock = new Object();
+        // @GuardedBy outLock; kept in the write mode
+        private ByteBuffer outBuf = ByteBuffer.allocate(BUFFER_SIZE);
+        private boolean outClosed = false;
+        final private AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+        private volatile Channel channel = null;
+        final private AtomicBoolean writeScheduled = new AtomicBoolean(false);
+        final private AtomicBoolean urgentWriteScheduled = new AtomicBoolean(false);
+        private boolean writeDeferred = false; // accessed from the I/O thread only
+
+        final private Runnable flushTask = new Runnable() {
+            @Override
+            public void run() {
+                flushScheduled.set(false);
+                writeOutput();
+            }
+        };
+        final private Runnable writeTask = new Runnable() {
+            @Override
+            public void run() {
+                writeScheduled.set(false);
+                writeCommands();
+            }
+        };
+        final private Runnable urgentWriteTask = new Runnable() {
+            @Override
+            public void run() {
+                urgentWriteScheduled.set(false);
+                writeCommands();
+            }
+        };
+        final private Runnable resumeReadTask = new Runnable() {
+            @Override
+            public void run() {
+                if (key.isValid()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                }
+            }
+        };
+        final private Runnable closeTask = new Runnable() {
+            @Override
+            public void run() {
+                closeSocket();
+            }
+        };
+
+        final private InputStream in = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Connection.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                synchronized(inLock) {
+                    return inLimit - inPos;
+                }
+            }
+
+            @Override
+            public void close() {
+                synchronized(inLock) {
+                    inEof = true;
+                    inLock.notifyAll();
+                }
+            }
+        };
+
+        final private OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte)b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Connection.this.write(b, off, len);
+            }
+
+            @Override
+            public void flush() {
+                requestFlush();
+            }
+
+            @Override
+            public void close() {
+                synchronized(outLock) {
+                    if (outClosed) return;
+                    outClosed = true;
+                }
+                // the remaining output is sent before closing the socket
+                requestFlush();
+                schedule(closeTask, CLOSE_TIMEOUT);
+            }
+        };
+
+        private Connection(java.nio.channels.SocketChannel socket) {
+            this.socket = socket;
+        }
+
+        /**
+         * @return The stream reading the received data; blocks until some data are available
+         */
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        /**
+         * @return The stream collecting the data to send; they are sent upon flush.
+         *         Closing the stream closes the connection once the data are sent.
+         */
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        /**
+         * @return The address of the peer
+         */
+        public InetAddress getInetAddress() {
+            return socket.socket().getInetAddress();
+        }
+
+        /**
+         * @param millis The maximum time to block when reading; 0 means no limit
+         */
+        public void setReadTimeout(long millis) {
+            readTimeout = millis;
+        }
+
+        /**
+         * Registers the callback invoked from the I/O thread whenever new data
+         * arrive or the peer closes the connection. If there already are some
+         * data waiting to be read the callback is invoked right away from the calling thread.
+         * @param l The callback; must not block. <b>null</b> unregisters the current one.
+         */
+        public void setReadListener(Runnable l) {
+            readListener = l;
+            if (l != null && isReadable()) {
+                l.run();
+            }
+        }
+
+        /**
+         * @return <b>TRUE</b> if reading would not wait for the peer. It may still block
+         *         when the data received so far do not make up the whole command.
+         */
+        public boolean isReadable() {
+            synchronized(inLock) {
+                return inPos < inLimit || inEof;
+            }
+        }
+
+        /**
+         * Lets the I/O thread write the commands queued in the channel instead of
+         * the channel's delayed writer
+         * @param ch The channel communicating over this connection
+         */
+        public void attach(Channel ch) {
+            channel = ch;
+            ch.setWriteListener(this);
+            if (ch.hasPendingCommands()) {
+                commandsPending(ch, true);
+            }
+        }
+
+        /**
+         * Closes the connection immediately
+         */
+        public void close() {
+            if (isIOThread()) {
+                closeSocket();
+            } else {
+                execute(closeTask);
+            }
+        }
+
+        /**
+         * @return <b>TRUE</b> if the connection has been closed
+         */
+        public boolean isClosed() {
+            return closed.get();
+        }
+
+        @Override
+        public void commandsPending(Channel ch, boolean urgent) {
+            if (urgent) {
+                if (urgentWriteScheduled.compareAndSet(false, true)) {
+                    execute(urgentWriteTask);
+                }
+            } else if (writeScheduled.compareAndSet(false, true)) {
+                long linger = ch.getFlushLinger();
+                if (linger > 0) {
+                    // the commands arriving within the linger time are sent together
+                    schedule(writeTask, linger);
+                } else {
+                    execute(writeTask);
+                }
+            }
+        }
+
+        private int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            boolean resume = false;
+            int cnt;
+            synchronized(inLock) {
+                long timeout = readTimeout;
+                long deadline = System.currentTimeMillis() + timeout;
+                while (inPos == inLimit) {
+                    if (inEof) {
+                        return -1;
+                    }
+                    long toWait = 0;
+                    if (timeout > 0) {
+                        toWait = deadline - System.currentTimeMillis();
+                        if (toWait <= 0) {
+                            throw new SocketTimeoutException("Read timed out");
+                        }
+                    }
+                    try {
+                        inLock.wait(toWait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                cnt = Math.min(len, inLimit - inPos);
+                System.arraycopy(inBuf, inPos, b, off, cnt);
+                inPos += cnt;
+                if (inPos == inLimit) {
+                    inPos = inLimit = 0;
+                }
+                if (readSuspended && inLimit - inPos < INPUT_HIGH_WATER / 2) {
+                    readSuspended = false;
+                    resume = true;
+                }
+            }
+            if (resume) {
+                execute(resumeReadTask);
+            }
+            return cnt;
+        }
+
+        private void write(byte[] b, int off, int len) throws IOException {
+            boolean ioThread = isIOThread();
+            synchronized(outLock) {
+                long deadline = System.currentTimeMillis() + OUTPUT_TIMEOUT;
+                // the I/O thread must not wait for itself; it stops writing commands above the high water instead
+                while (!ioThread && !outClosed && outBuf.position() >= OUTPUT_HIGH_WATER) {
+                    requestFlush();
+                    long toWait = deadline - System.currentTimeMillis();
+                    if (toWait <= 0) {
+                        throw new SocketTimeoutException("Write timed out");
+                    }
+                    try {
+                        outLock.wait(toWait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (outClosed) {
+                    throw new IOException("Connection closed");
+                }
+                if (outBuf.remaining() < len) {
+                    int capacity = outBuf.capacity();
+                    while (capacity - outBuf.position() < len) {
+                        capacity *= 2;
+                    }
+                    ByteBuffer newBuf = ByteBuffer.allocate(capacity);
+                    outBuf.flip();
+                    newBuf.put(outBuf);
+                    outBuf = newBuf;
+                }
+                outBuf.put(b, off, len);
+            }
+        }
+
+        private void requestFlush() {
+            if (flushScheduled.compareAndSet(false, true)) {
+                execute(flushTask);
+            }
+        }
+
+        // I/O thread only
+        private void readable() {
+            readBuffer.clear();
+            int n;
+            try {
+                n = socket.read(readBuffer);
+            } catch (IOException e) {
+                closeSocket();
+                return;
+            }
+            if (n < 0) {
+                // the peer will not send anything more; keep sending whatever is pending
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                synchronized(inLock) {
+                    inEof = true;
+                    inLock.notifyAll();
+                }
+            } else if (n > 0) {
+                synchronized(inLock) {
+                    if (inBuf.length - inLimit < n) {
+                        int pending = inLimit - inPos;
+                        byte[] target = pending + n <= inBuf.length ? inBuf : new byte[Math.max(inBuf.length * 2, pending + n)];
+                        System.arraycopy(inBuf, inPos, target, 0, pending);
+                        inBuf = target;
+                        inPos = 0;
+                        inLimit = pending;
+                    }
+                    readBuffer.flip();
+                    readBuffer.get(inBuf, inLimit, n);
+                    inLimit += n;
+                    if (inLimit - inPos >= INPUT_HIGH_WATER) {
+                        readSuspended = true;
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    }
+                    inLock.notifyAll();
+                }
+            } else {
+                return;
+            }
+            notifyReadListener();
+        }
+
+        private void notifyReadListener() {
+            Runnable l = readListener;
+            if (l != null) {
+                runTask(l);
+            }
+        }
+
+        // I/O thread only
+        private void writeOutput() {
+            boolean drained;
+            boolean closeNow = false;
+            synchronized(outLock) {
+                if (closed.get()) {
+                    return;
+                }
+                if (outBuf.position() > 0) {
+                    outBuf.flip();
+                    try {
+                        socket.write(outBuf);
+                    } catch (IOException e) {
+                        outBuf.clear();
+                        outClosed = true;
+                        closeNow = true;
+                    }
+                    outBuf.compact();
+                }
+                drained = outBuf.position() == 0;
+                if (drained && outBuf.capacity() > OUTPUT_HIGH_WATER) {
+                    outBuf = ByteBuffer.allocate(BUFFER_SIZE);
+                }
+                closeNow |= drained && outClosed;
+                outLock.notifyAll();
+            }
+            if (closeNow) {
+                closeSocket();
+                return;
+            }
+            int ops = key.interestOps();
+            key.interestOps(drained ? ops & ~SelectionKey.OP_WRITE : ops | SelectionKey.OP_WRITE);
+            if (drained && writeDeferred) {
+                writeDeferred = false;
+                writeCommands();
+            }
+        }
+
+        // I/O thread only
+        private void writeCommands() {
+            Channel ch = channel;
+            if (ch == null || closed.get()) {
+                return;
+            }
+            synchronized(outLock) {
+                if (outBuf.position() >= OUTPUT_HIGH_WATER) {
+                    // the peer is not keeping up; the commands stay queued and the overflow policy applies
+                    writeDeferred = true;
+                    return;
+                }
+            }
+            try {
+                ch.writePending(MAX_WRITE_BATCH);
+            } catch (IOException e) {
+                BTraceLogger.debugPrint(e);
+            }
+            if (ch.hasPendingCommands() && writeScheduled.compareAndSet(false, true)) {
+                // let the other connections have their turn before writing the next batch
+                execute(writeTask);
+            }
+        }
+
+        // I/O thread only
+        private void closeSocket() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            connections.decrementAndGet();
+            key.cancel();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                BTraceLogger.debugPrint(e);
+            }
+            synchronized(outLock) {
+                outClosed = true;
+                outLock.notifyAll();
+            }
+            synchronized(inLock) {
+                inEof = true;
+                inLock.notifyAll();
+            }
+            notifyReadListener();
+        }
+    }
+}
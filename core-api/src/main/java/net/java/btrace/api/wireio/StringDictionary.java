@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.wireio;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A bounded per-connection string table used by the wire protocol v3.
+ * <p>
+ * The writing side assigns the slots - the first occurrence of a string
+ * defines its slot and the later occurrences send only the slot number.
+ * When the table is full a slot is reclaimed using the CLOCK (second chance)
+ * algorithm. The reading side just mirrors the slot assignments so it does not
+ * need to know the eviction policy.
+ * </p>
+ * <p>
+ * Only strings of a reasonable length are stored in the table; very short strings
+ * are cheaper to send as they are and long ones are rarely repeated.
+ * </p>
+ * <p>
+ * The slots assigned while writing a frame are journaled so that they can be
+ * {@linkplain #rollback() rolled back} if the frame never makes it to the peer.
+ * </p>
+ * @author Jaroslav Bachorik <jaroslav.bachorik at oracle.com>
+ * @since 2.0
+ */
+final class StringDictionary {
+    final static int DEFAULT_CAPACITY = 4096;
+    final static int MIN_LENGTH = 4;
+    final static int MAX_LENGTH = 256;
+
+    private final String[] slots;
+    private final boolean[] referenced;
+    private final Map<String, Integer> index = new HashMap<String, Integer>();
+    private int hand = 0;
+    private long evictions = 0;
+
+    // the slot assignments since mark(); slot number and the previous content
+    private int[] journalSlots = new int[8];
+    private String[] journalStrings = new String[8];
+    private int journalSize = 0;
+    private boolean journaling = false;
+    private int markHand = 0;
+    private long markEvictions = 0;
+
+    StringDictionary() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    StringDictionary(int capacity) {
+        slots = new String[capacity];
+        referenced = new boolean[capacity];
+    }
+
+    static boolean isCacheable(String s) {
+        int len = s.length();
+        return len >= MIN_LENGTH && len <= MAX_LENGTH;
+    }
+
+    /**
+     * Writing side lookup
+     * @param s The string to look up
+     * @return The slot holding the string or -1
+     */
+    int indexOf(String s) {
+        Integer slot = index.get(s);
+        if (slot == null) {
+            return -1;
+        }
+        referenced[slot] = true;
+        return slot;
+    }
+
+    /**
+     * Writing side; stores the string, possibly evicting a not recently used one
+     * @param s The string to store
+     * @return The assigned slot
+     */
+    int add(String s) {
+        while (slots[hand] != null && referenced[hand]) {
+            referenced[hand] = false;
+            hand = (hand + 1) % slots.length;
+        }
+        int slot = hand;
+        hand = (hand + 1) % slots.length;
+        if (journaling) {
+            record(slot);
+        }
+        if (slots[slot] != null) {
+            index.remove(slots[slot]);
+            evictions++;
+        }
+        slots[slot] = s;
+        index.put(s, slot);
+        return slot;
+    }
+
+    /**
+     * Writing side; starts journaling the slot assignments.
+     * Any assignments not {@linkplain #commit() committed} so far are rolled back.
+     */
+    void mark() {
+        rollback();
+        markHand = hand;
+        markEvictions = evictions;
+        journaling = true;
+    }
+
+    /**
+     * Writing side; the slot assignments since {@linkplain #mark()} have reached the peer
+     */
+    void commit() {
+        clearJournal();
+    }
+
+    /**
+     * Writing side; reverts the slot assignments made since {@linkplain #mark()}.
+     * The peer has not seen them and would be resolving the later references
+     * against the previous content of the slots.
+     */
+    void rollback() {
+        if (!journaling) {
+            return;
+        }
+        // newest first; the same slot may have been reassigned within the frame
+        for (int i = journalSize - 1; i >= 0; i--) {
+            int slot = journalSlots[i];
+            index.remove(slots[slot]);
+            String prev = journalStrings[i];
+            slots[slot] = prev;
+            referenced[slot] = false;
+            if (prev != null) {
+                index.put(prev, slot);
+            }
+        }
+        hand = markHand;
+        evictions = markEvictions;
+        clearJournal();
+    }
+
+    private void record(int slot) {
+        if (journalSize == journalSlots.length) {
+            int[] newSlots = new int[journalSize << 1];
+            String[] newStrings = new String[journalSize << 1];
+            System.arraycopy(journalSlots, 0, newSlots, 0, journalSize);
+            System.arraycopy(journalStrings, 0, newStrings, 0, journalSize);
+            journalSlots = newSlots;
+            journalStrings = newStrings;
+        }
+        journalSlots[journalSize] = slot;
+        journalStrings[journalSize++] = slots[slot];
+    }
+
+    private void clearJournal() {
+        for (int i = 0; i < journalSize; i++) {
+            journalStrings[i] = null;
+        }
+        journalSize = 0;
+        journaling = false;
+    }
+
+    /**
+     * Reading side; mirrors the slot assignment
+     */
+    void put(int slot, String s) {
+        slots[slot] = s;
+    }
+
+    /**
+     * Reading side lookup
+     * @return The string stored in the slot or <b>NULL</b>
+     */
+    String get(int slot) {
+        return slot >= 0 && slot < slots.length ? slots[slot] : null;
+    }
+
+    int getCapacity() {
+        return slots.length;
+    }
+
+    long getEvictions() {
+        return evictions;
+    }
+}
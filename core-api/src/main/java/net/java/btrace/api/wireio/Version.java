@@ -24,6 +24,9 @@
  */
 package net.java.btrace.api.wireio;
 
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
 /**
  *
  * @author Jaroslav Bachorik
@@ -31,4 +34,46 @@ package net.java.btrace.api.wireio;
 final public class Version {
     final public static int MAJOR = 2;
     final public static int MINOR = 0;
+
+    /**
+     * The original wire protocol - java serialization streams
+     */
+    final public static int PROTOCOL_V1 = 1;
+    /**
+     * The compact wire protocol - length prefixed frames with varint encoded
+     * ids and typed primitive cells
+     */
+    final public static int PROTOCOL_V2 = 2;
+    /**
+     * The protocol v2 with the repeated strings sent as ids into a bounded
+     * per-connection string table
+     */
+    final public static int PROTOCOL_V3 = 3;
+    /**
+     * The protocol v3 with the batch progress sent in the retransformation notifications
+     */
+    final public static int PROTOCOL_V4 = 4;
+    /**
+     * The highest wire protocol version supported by this side of the channel.
+     * The actual protocol is negotiated during the handshake.
+     */
+    final public static int PROTOCOL = PROTOCOL_V4;
+
+    /**
+     * Lets a command serialize only what the peer understands
+     * @param out The stream the command is being written to
+     * @return The negotiated protocol version; {@linkplain #PROTOCOL_V1} for the java serialization streams
+     */
+    public static int getProtocol(ObjectOutput out) {
+        return out instanceof BinaryObjectOutput ? ((BinaryObjectOutput)out).getProtocol() : PROTOCOL_V1;
+    }
+
+    /**
+     * Lets a command deserialize only what the peer has sent
+     * @param in The stream the command is being read from
+     * @return The negotiated protocol version; {@linkplain #PROTOCOL_V1} for the java serialization streams
+     */
+    public static int getProtocol(ObjectInput in) {
+        return in instanceof BinaryObjectInput ? ((BinaryObjectInput)in).getProtocol() : PROTOCOL_V1;
+    }
 }
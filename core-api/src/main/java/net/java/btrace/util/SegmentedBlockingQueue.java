@@ -0,0 +1,431 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.util;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded {@linkplain BlockingQueue} storing its elements in a chain
+ * of fixed size array segments.
+ * <p>
+ * Unlike {@linkplain java.util.concurrent.ArrayBlockingQueue} it does not
+ * allocate the whole capacity up front. Segments are allocated only when the
+ * queue grows and are released as soon as they are drained. The first segment
+ * is kept once allocated and one drained segment is kept as a spare, so a queue
+ * holding just a few elements at a time does not allocate any new segment.
+ * </p>
+ * <p>
+ * {@linkplain #remove(java.lang.Object)} is cheap only for the head element
+ * and the iterator works on a snapshot of the queue.
+ * </p>
+ * @author Jaroslav Bachorik <jaroslav.bachorik at oracle.com>
+ */
+final public class SegmentedBlockingQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+    final private static int DEFAULT_SEGMENT_SIZE = 256;
+
+    /**
+     * Decides whether {@linkplain #pollIf(net.java.btrace.util.SegmentedBlockingQueue.Filter)} may take the head element
+     */
+    public static interface Filter<E> {
+        boolean accept(E e);
+    }
+
+    private static final class Segment {
+        final Object[] items;
+        int takeIdx = 0, putIdx = 0;
+        Segment next = null;
+
+        Segment(int size) {
+            items = new Object[size];
+        }
+    }
+
+    final private int segmentSize;
+    final private ReentrantLock lock = new ReentrantLock();
+    final private Condition notEmpty = lock.newCondition();
+    final private Condition notFull = lock.newCondition();
+
+    // @GuardedBy lock
+    private int capacity;
+    // @GuardedBy lock
+    private int count = 0;
+    // @GuardedBy lock
+    private int segments = 0;
+    // @GuardedBy lock
+    private Segment head = null, tail = null;
+    // a drained segment kept for reuse; @GuardedBy lock
+    private Segment spare = null;
+
+    /**
+     * Creates a queue with the default segment size
+     * @param capacity The maximum number of elements
+     */
+    public SegmentedBlockingQueue(int capacity) {
+        this(capacity, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param capacity The maximum number of elements
+     * @param segmentSize The number of elements per segment
+     */
+    public SegmentedBlockingQueue(int capacity, int segmentSize) {
+        if (capacity <= 0 || segmentSize <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.capacity = capacity;
+        this.segmentSize = Math.min(segmentSize, capacity);
+    }
+
+    /**
+     * Changes the capacity. Elements already queued above the new capacity are kept.
+     * @param capacity The maximum number of elements
+     */
+    public void setCapacity(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException();
+        }
+        lock.lock();
+        try {
+            this.capacity = capacity;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCapacity() {
+        lock.lock();
+        try {
+            return capacity;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     *
+     * @return The number of currently allocated segments, including the spare one
+     */
+    public int getSegmentCount() {
+        lock.lock();
+        try {
+            return segments;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // @GuardedBy lock
+    private void enqueue(E e) {
+        if (tail == null) {
+            head = tail = new Segment(segmentSize);
+            segments++;
+        } else if (tail.putIdx == tail.items.length) {
+            if (spare != null) {
+                tail.next = spare;
+                spare = null;
+            } else {
+                tail.next = new Segment(segmentSize);
+                segments++;
+            }
+            tail = tail.next;
+        }
+        tail.items[tail.putIdx++] = e;
+        count++;
+        notEmpty.signal();
+    }
+
+    // @GuardedBy lock
+    private E dequeue() {
+        @SuppressWarnings("unchecked")
+        E e = (E)head.items[head.takeIdx];
+        head.items[head.takeIdx++] = null;
+        count--;
+        if (count == 0) {
+            // drained; the only segment left is reused from its beginning
+            head.takeIdx = head.putIdx = 0;
+        } else if (head.takeIdx == head.items.length) {
+            Segment drained = head;
+            head = head.next;
+            if (spare == null) {
+                drained.takeIdx = drained.putIdx = 0;
+                drained.next = null;
+                spare = drained;
+            } else {
+                segments--;
+            }
+        }
+        notFull.signal();
+        return e;
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (e == null) throw new NullPointerException();
+        lock.lock();
+        try {
+            if (count >= capacity) {
+                return false;
+            }
+            enqueue(e);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        if (e == null) throw new NullPointerException();
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count >= capacity) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            enqueue(e);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        if (e == null) throw new NullPointerException();
+        lock.lockInterruptibly();
+        try {
+            while (count >= capacity) {
+                notFull.await();
+            }
+            enqueue(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E poll() {
+        lock.lock();
+        try {
+            return count == 0 ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves and removes the head of the queue only if it is accepted by the filter.
+     * The check and the removal are atomic.
+     * @param filter Called with the head element while the queue is locked; must not block
+     * @return The removed head or <b>null</b> if the queue is empty or the head is not accepted
+     */
+    @SuppressWarnings("unchecked")
+    public E pollIf(Filter<? super E> filter) {
+        lock.lock();
+        try {
+            return count == 0 || !filter.accept((E)head.items[head.takeIdx]) ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        lock.lock();
+        try {
+            return count == 0 ? null : (E)head.items[head.takeIdx];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return Math.max(capacity - count, 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null) throw new NullPointerException();
+        if (c == this) throw new IllegalArgumentException();
+        lock.lock();
+        try {
+            int n = 0;
+            while (n < maxElements && count > 0) {
+                c.add(dequeue());
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (o == null) return false;
+        lock.lock();
+        try {
+            if (count == 0) {
+                return false;
+            }
+            if (o.equals(head.items[head.takeIdx])) {
+                dequeue();
+                return true;
+            }
+            // rare; rebuild the queue without the first matching element
+            List<E> elements = new ArrayList<E>(count);
+            while (count > 0) {
+                elements.add(dequeue());
+            }
+            boolean removed = elements.remove(o);
+            for (E e : elements) {
+                enqueue(e);
+            }
+            return removed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.lock();
+        try {
+            if (head != null) {
+                // keep the head segment and the spare one only
+                Arrays.fill(head.items, null);
+                head.takeIdx = head.putIdx = 0;
+                head.next = null;
+                tail = head;
+                segments = spare != null ? 2 : 1;
+            }
+            count = 0;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Returns an iterator over a snapshot of the queue contents.
+     *         The iterator does not support removal.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Iterator<E> iterator() {
+        List<E> snapshot;
+        lock.lock();
+        try {
+            snapshot = new ArrayList<E>(count);
+            for (Segment s = head; s != null; s = s.next) {
+                for (int i = s.takeIdx; i < s.putIdx; i++) {
+                    snapshot.add((E)s.items[i]);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        final Iterator<E> delegate = snapshot.iterator();
+        return new Iterator<E>() {
+            public boolean hasNext() {
+                return delegate.hasNext();
+            }
+
+            public E next() {
+                return delegate.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
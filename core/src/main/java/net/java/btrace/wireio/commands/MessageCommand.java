@@ -49,6 +49,17 @@ final public class MessageCommand extends AbstractCommand {
         return super.canBeSpeculated();
     }
     
+    @Override
+    final public boolean isRecyclable() {
+        return true;
+    }
+
+    @Override
+    final protected void clear() {
+        time = 0;
+        msg = null;
+    }
+
     @Override
     final public void write(ObjectOutput out) throws IOException {
         out.writeLong(time);
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.wireio.commands;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import net.java.btrace.api.wireio.AbstractCommand;
+
+/**
+ * This command is sent out periodically while the session channel
+ * keeps dropping commands. It carries the exact counts since the
+ * session start.
+ *
+ * @author Jaroslav Bachorik <jaroslav.bachorik at oracle.com>
+ */
+final public class OverflowNotification extends AbstractCommand {
+    private String policy = "";
+    private long droppedCommands;
+    private long ringOverflows;
+
+    public OverflowNotification(int typeId, int rx, int tx) {
+        super(typeId, rx, tx);
+    }
+
+    @Override
+    final public boolean canBeSpeculated() {
+        return false;
+    }
+
+    /**
+     *
+     * @return The textual form of the overflow policy in use
+     */
+    final public String getPolicy() {
+        return policy;
+    }
+
+    final public void setPolicy(String policy) {
+        this.policy = policy != null ? policy : "";
+    }
+
+    /**
+     *
+     * @return The number of commands dropped by the overflow policy
+     */
+    final public long getDroppedCommands() {
+        return droppedCommands;
+    }
+
+    final public void setDroppedCommands(long droppedCommands) {
+        this.droppedCommands = droppedCommands;
+    }
+
+    /**
+     *
+     * @return The number of commands dropped because of per-thread event ring overflows
+     */
+    final public long getRingOverflows() {
+        return ringOverflows;
+    }
+
+    final public void setRingOverflows(long ringOverflows) {
+        this.ringOverflows = ringOverflows;
+    }
+
+    @Override
+    final public void write(ObjectOutput out) throws IOException {
+        out.writeUTF(policy);
+        out.writeLong(droppedCommands);
+        out.writeLong(ringOverflows);
+    }
+
+    @Override
+    final public void read(ObjectInput in) throws ClassNotFoundException, IOException {
+        policy = in.readUTF();
+        droppedCommands = in.readLong();
+        ringOverflows = in.readLong();
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.wireio.commands;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import net.java.btrace.api.wireio.AbstractCommand;
+
+/**
+ * This command is sent out whenever the agent changes the throttling
+ * of a probe exceeding the configured overhead budget.
+ *
+ * @author Jaroslav Bachorik <jaroslav.bachorik at oracle.com>
+ */
+final public class ProbeThrottleNotification extends AbstractCommand {
+    private String probe = "";
+    private String action = "";
+    private int samplingMean = 1;
+    private double rate;
+    private double cpu;
+
+    public ProbeThrottleNotification(int typeId, int rx, int tx) {
+        super(typeId, rx, tx);
+    }
+
+    @Override
+    final public boolean canBeSpeculated() {
+        return false;
+    }
+
+    /**
+     *
+     * @return The name of the throttled probe handler
+     */
+    final public String getProbe() {
+        return probe;
+    }
+
+    final public void setProbe(String probe) {
+        this.probe = probe != null ? probe : "";
+    }
+
+    /**
+     *
+     * @return The action taken - sample, relax, pause, resume or disable
+     */
+    final public String getAction() {
+        return action;
+    }
+
+    final public void setAction(String action) {
+        this.action = action != null ? action : "";
+    }
+
+    /**
+     *
+     * @return The number of the probe invocations per one handled
+     */
+    final public int getSamplingMean() {
+        return samplingMean;
+    }
+
+    final public void setSamplingMean(int samplingMean) {
+        this.samplingMean = samplingMean;
+    }
+
+    /**
+     *
+     * @return The measured probe rate in the handled invocations per second
+     */
+    final public double getRate() {
+        return rate;
+    }
+
+    final public void setRate(double rate) {
+        this.rate = rate;
+    }
+
+    /**
+     *
+     * @return The measured probe cost in percents of the available CPU time
+     */
+    final public double getCpu() {
+        return cpu;
+    }
+
+    final public void setCpu(double cpu) {
+        this.cpu = cpu;
+    }
+
+    @Override
+    final public void write(ObjectOutput out) throws IOException {
+        out.writeUTF(probe);
+        out.writeUTF(action);
+        out.writeInt(samplingMean);
+        out.writeDouble(rate);
+        out.writeDouble(cpu);
+    }
+
+    @Override
+    final public void read(ObjectInput in) throws ClassNotFoundException, IOException {
+        probe = in.readUTF();
+        action = in.readUTF();
+        samplingMean = in.readInt();
+        rate = in.readDouble();
+        cpu = in.readDouble();
+    }
+}
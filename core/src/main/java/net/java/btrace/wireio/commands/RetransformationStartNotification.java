@@ -26,6 +26,7 @@
 package net.java.btrace.wireio.commands;
 
 import net.java.btrace.api.wireio.AbstractCommand;
+import net.java.btrace.api.wireio.Version;
 import java.io.ObjectInput;
 import java.io.IOException;
 import java.io.ObjectOutput;
@@ -35,10 +36,17 @@ import java.lang.instrument.Instrumentation;
  * This command is sent out when the BTrace engine calls
  * {@linkplain Instrumentation#retransformClasses(java.lang.Class[])} method.
  * It is followed by {@linkplain OkayCommand} command when the retransformation ends.
+ * <p>
+ * When the classes are retransformed in batches the command is sent
+ * before each batch, with the number of the classes in the batch and
+ * the progress of the whole retransformation. The progress is sent only
+ * when the peers have negotiated {@linkplain Version#PROTOCOL_V4} or newer.
  * @author Jaroslav Bachorik <jaroslav.bachorik@sun.com>
  */
 final public class RetransformationStartNotification extends AbstractCommand {
     private int numClasses;
+    private int retransformedClasses;
+    private int totalClasses;
 
     public RetransformationStartNotification(int typeId, int rx, int tx) {
         super(typeId, rx, tx);
@@ -46,11 +54,23 @@ final public class RetransformationStartNotification extends AbstractCommand {
 
     final public void write(ObjectOutput out) throws IOException {
         out.writeInt(numClasses);
+        if (Version.getProtocol(out) >= Version.PROTOCOL_V4) {
+            out.writeInt(retransformedClasses);
+            out.writeInt(totalClasses);
+        }
     }
 
     final public void read(ObjectInput in)
         throws IOException, ClassNotFoundException {
         numClasses = in.readInt();
+        if (Version.getProtocol(in) >= Version.PROTOCOL_V4) {
+            retransformedClasses = in.readInt();
+            totalClasses = in.readInt();
+        } else {
+            // without the progress each batch looks like a whole retransformation
+            retransformedClasses = 0;
+            totalClasses = numClasses;
+        }
     }
 
     final public int getNumClasses() {
@@ -60,4 +80,27 @@ final public class RetransformationStartNotification extends AbstractCommand {
     final public void setNumClasses(int num) {
         numClasses = num;
     }
+
+    /**
+     * @return The number of the classes retransformed by the previous batches;
+     *         always 0 before {@linkplain Version#PROTOCOL_V4}
+     */
+    final public int getRetransformedClasses() {
+        return retransformedClasses;
+    }
+
+    final public void setRetransformedClasses(int num) {
+        retransformedClasses = num;
+    }
+
+    /**
+     * @return The number of the classes in all the batches
+     */
+    final public int getTotalClasses() {
+        return totalClasses;
+    }
+
+    final public void setTotalClasses(int num) {
+        totalClasses = num;
+    }
 }
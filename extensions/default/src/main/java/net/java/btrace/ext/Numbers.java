@@ -24,6 +24,7 @@
  */
 package net.java.btrace.ext;
 
+import java.util.Random;
 import net.java.btrace.api.extensions.BTraceExtension;
 
 /*
@@ -32,6 +33,13 @@ import net.java.btrace.api.extensions.BTraceExtension;
  */
 @BTraceExtension
 public class Numbers {
+    // per-thread generators; the shared Math.random() one is contended when called from many threads
+    private static final ThreadLocal<Random> rnd = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
 
     /**
      * Returns a <code>double</code> value with a positive sign, greater
@@ -40,7 +48,7 @@ public class Numbers {
      * uniform distribution from that range.
      */
     public static double random() {
-        return Math.random();
+        return rnd.get().nextDouble();
     }
 
     /**
@@ -29,18 +29,12 @@ import java.lang.annotation.Annotation;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Pattern;
-import static net.java.btrace.org.objectweb.asm.Opcodes.ACC_INTERFACE;
 import static net.java.btrace.instr.Constants.*;
 import net.java.btrace.org.objectweb.asm.AnnotationVisitor;
-import net.java.btrace.org.objectweb.asm.Attribute;
 import net.java.btrace.org.objectweb.asm.ClassReader;
 import net.java.btrace.org.objectweb.asm.ClassVisitor;
-import net.java.btrace.org.objectweb.asm.FieldVisitor;
-import net.java.btrace.org.objectweb.asm.MethodVisitor;
 import net.java.btrace.org.objectweb.asm.Type;
-import net.java.btrace.org.objectweb.asm.Opcodes;
 import net.java.btrace.api.extensions.BTraceExtension;
-import java.util.regex.PatternSyntaxException;
 
 /**
  * This class checks whether a given target class
@@ -51,27 +45,33 @@ import java.util.regex.PatternSyntaxException;
  */
 public class ClassFilter {
 
-    private String[] sourceClasses;
-    private Pattern[] sourceClassPatterns;
+    // exact class names and class name patterns
+    private ClassNameIndex sourceClasses;
     private String[] annotationClasses;
     private Pattern[] annotationClassPatterns;
     // +foo type class pattern in any @OnMethod.
     private String[] superTypes;
     // same as above but stored in internal name form ('/' instead of '.')
     private String[] superTypesInternal;
+    // supertype or annotation checks can not be done by the class name only
+    private boolean needsClassFile;
         
     static {
-        CheckingVisitor.class.getClass();
+        ClassInfo.class.getClass();
         ClassReader.class.getClass();
         ClassVisitor.class.getClass();
         AnnotationVisitor.class.getClass();
-        FieldVisitor.class.getClass();
-        MethodVisitor.class.getClass();
-        Attribute.class.getClass();
     }
 
     public ClassFilter(List<OnMethod> onMethods) {
-        init(onMethods);
+        this(new MatchPlan(onMethods));
+    }
+
+    /**
+     * @param plan The compiled probes; may be shared with the {@linkplain Instrumentor}s
+     */
+    public ClassFilter(MatchPlan plan) {
+        init(plan);
     }
 
     public boolean isCandidate(Class target) {
@@ -86,17 +86,8 @@ public class ClassFilter {
             return false;
         }
 
-        String className = target.getName();
-        for (String name : sourceClasses) {
-            if (name.equals(className)) {
-                return true;
-            }
-        }
-
-        for (Pattern pat : sourceClassPatterns) {
-            if (pat.matcher(className).matches()) {
-                return true;
-            }
+        if (sourceClasses.matches(target.getName().replace('.', '/'))) {
+            return true;
         }
 
         for (String st : superTypes) {
@@ -130,14 +121,65 @@ public class ClassFilter {
         return false;
     }
 
+    /**
+     * Checks the class by its name only, before its class file is parsed.
+     * @param internalName The class name in the internal form (using '/')
+     * @return <b>false</b> if the class can not be a candidate whatever its class file contains
+     */
+    public boolean isCandidateName(String internalName) {
+        return needsClassFile || sourceClasses.matches(internalName);
+    }
+
     public boolean isCandidate(byte[] classBytes) {
         return isCandidate(new ClassReader(classBytes));
     }
 
     public boolean isCandidate(ClassReader reader) {
-        CheckingVisitor cv = new CheckingVisitor();
-        InstrumentUtils.accept(reader, cv);
-        return cv.isCandidate();
+        return isCandidate(new ClassInfo(reader));
+    }
+
+    /**
+     * Checks an already parsed class file. The same {@linkplain ClassInfo}
+     * can be checked against any number of filters.
+     * @param info The parsed class file header
+     * @return <b>true</b> if the class may be matched by any of the probes
+     */
+    public boolean isCandidate(ClassInfo info) {
+        if (info.isInterface()) {
+            return false;
+        }
+        boolean matched = matchesName(info);
+        if (!matched && annotationClasses.length == 0 && annotationClassPatterns.length == 0) {
+            // no need to look at the class annotations
+            return false;
+        }
+
+        String[] annotations = info.getAnnotations();
+        for (String desc : annotations) {
+            if (BTRACE_DESC.equals(desc) || BTRACE_EXT.equals(desc)) {
+                // ignore classes annotated with @BTrace or @BTraceExtension -
+                // we don't want to instrument tracing classes!
+                return false;
+            }
+        }
+        if (matched) {
+            return true;
+        }
+
+        for (String desc : annotations) {
+            String annoName = Type.getType(desc).getClassName();
+            for (String name : annotationClasses) {
+                if (annoName.equals(name)) {
+                    return true;
+                }
+            }
+            for (Pattern pat : annotationClassPatterns) {
+                if (pat.matcher(annoName).matches()) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
     /*
@@ -160,170 +202,54 @@ public class ClassFilter {
         }
     }
 
-    private class CheckingVisitor extends ClassVisitor {
-
-        private boolean isInterface;
-        private boolean isCandidate;
-
-        public CheckingVisitor() {
-            super(Opcodes.ASM4);
-        }
-
-        boolean isCandidate() {
-            return isCandidate;
-        }
-
-        public void visit(int version, int access, String name,
-                String signature, String superName, String[] interfaces) {
-            if ((access & ACC_INTERFACE) != 0) {
-                isInterface = true;
-                isCandidate = false;
-                return;
-            }
-            name = name.replace('/', '.');
-            for (String className : sourceClasses) {
-                if (className.equals(name)) {
-                    isCandidate = true;
-                    return;
-                }
-            }
-
-            for (Pattern pat : sourceClassPatterns) {
-                if (pat.matcher(name).matches()) {
-                    isCandidate = true;
-                    return;
-                }
-            }
-
-            for (String st : superTypesInternal) {
-                if (superName.equals(st)) {
-                    isCandidate = true;
-                    return;
-                }
-                for (String iface : interfaces) {
-                    if (iface.equals(st)) {
-                        isCandidate = true;
-                        return;
-                    }
-                }
-            }
+    private boolean matchesName(ClassInfo info) {
+        if (sourceClasses.matches(info.getInternalName())) {
+            return true;
         }
 
-        public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
-            if (isInterface) {
-                return null;
-            }
-
-            if (BTRACE_DESC.equals(desc)) {
-                // ignore classes annotated with @BTrace -
-                // we don't want to instrument tracing classes!
-                isCandidate = false;
-                return null;
-            }
-            
-            if (BTRACE_EXT.equals(desc)) {
-                // ignore classes annotated with @BTraceExtension -
-                // we don't want to instrument tracing extensions classes!
-                isCandidate = false;
-                return null;
-            }
-
-            if (!isCandidate) {
-                String annoName = Type.getType(desc).getClassName();
-                for (String name : annotationClasses) {
-                    if (annoName.equals(name)) {
-                        isCandidate = true;
-                        return null;
-                    }
-                }
-                for (Pattern pat : annotationClassPatterns) {
-                    if (pat.matcher(annoName).matches()) {
-                        isCandidate = true;
-                        return null;
-                    }
-                }
+        for (String st : superTypesInternal) {
+            if (info.isSubTypeOf(st)) {
+                return true;
             }
-
-            return null;
-        }
-
-        public void visitAttribute(Attribute attr) {
-        }
-
-        public void visitEnd() {
-        }
-
-        public FieldVisitor visitField(int access, String name,
-                String desc, String signature, Object value) {
-            return null;
-        }
-
-        public void visitInnerClass(String name, String outerName,
-                String innerName, int access) {
-        }
-
-        public MethodVisitor visitMethod(int access, String name, String desc,
-                String signature, String[] exceptions) {
-            return null;
-        }
-
-        public void visitOuterClass(String owner, String name, String desc) {
-        }
-
-        public void visitSource(String source, String debug) {
         }
+        return false;
     }
 
-    private void init(List<OnMethod> onMethods) {
-        List<String> strSrcList = new ArrayList<String>();
-        List<Pattern> patSrcList = new ArrayList<Pattern>();
+    private void init(MatchPlan plan) {
+        sourceClasses = new ClassNameIndex();
         List<String> superTypesList = new ArrayList<String>();
         List<String> superTypesInternalList = new ArrayList<String>();
         List<String> strAnoList = new ArrayList<String>();
         List<Pattern> patAnoList = new ArrayList<Pattern>();
 
-        for (OnMethod om : onMethods) {
-            String className = om.getClazz();
-            if (className.length() == 0) {
-                continue;
-            }
-            char firstCh = className.charAt(0);
-            if (firstCh == '/' &&
-                    REGEX_SPECIFIER.matcher(className).matches()) {
-                try {
-                    Pattern p = Pattern.compile(className.substring(1,
-                            className.length() - 1));
-                    patSrcList.add(p);
-                } catch (PatternSyntaxException pse) {
-                    System.err.println("btrace ERROR: invalid regex pattern - " + className.substring(1, className.length() - 1));
+        for (MatchPlan.Probe p : plan.getProbes()) {
+            MatchPlan.NameMatcher m = p.clazz;
+            switch (p.classMatch) {
+                case NAME: {
+                    if (m.getName() != null) {
+                        sourceClasses.add(m.getName());
+                    } else if (m.getPattern() != null) {
+                        sourceClasses.add(m.getPattern());
+                    }
+                    break;
                 }
-            } else if (firstCh == '@') {
-                className = className.substring(1);
-                if (REGEX_SPECIFIER.matcher(className).matches()) {
-                    try {
-                        Pattern p = Pattern.compile(
-                                className.substring(1, className.length() - 1));
-                        patAnoList.add(p);
-                    } catch (PatternSyntaxException pse) {
-                        System.err.println("btrace ERROR: invalid regex pattern - " + className.substring(1, className.length() - 1));
+                case ANNOTATION: {
+                    if (m.getName() != null) {
+                        strAnoList.add(m.getName());
+                    } else if (m.getPattern() != null) {
+                        patAnoList.add(m.getPattern());
                     }
-                } else {
-                    strAnoList.add(className);
+                    break;
+                }
+                case SUPERTYPE: {
+                    superTypesList.add(p.superType);
+                    superTypesInternalList.add(p.superTypeInternal);
+                    sourceClasses.add(p.superType);
+                    break;
                 }
-            } else if (firstCh == '+') {
-                String superType = className.substring(1);
-                superTypesList.add(superType);
-                superTypesInternalList.add(superType.replace('.', '/'));
-                strSrcList.add(superType);
-            } else {
-                strSrcList.add(className);
             }
         }
 
-        sourceClasses = new String[strSrcList.size()];
-        strSrcList.toArray(sourceClasses);
-        sourceClassPatterns = new Pattern[patSrcList.size()];
-        patSrcList.toArray(sourceClassPatterns);
         superTypes = new String[superTypesList.size()];
         superTypesList.toArray(superTypes);
         superTypesInternal = new String[superTypesInternalList.size()];
@@ -332,5 +258,6 @@ public class ClassFilter {
         strAnoList.toArray(annotationClasses);
         annotationClassPatterns = new Pattern[patAnoList.size()];
         patAnoList.toArray(annotationClassPatterns);
+        needsClassFile = superTypes.length > 0 || annotationClasses.length > 0 || annotationClassPatterns.length > 0;
     }
 }
@@ -0,0 +1,391 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.instr;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import net.java.btrace.org.objectweb.asm.ClassReader;
+
+/**
+ * The super class and the directly implemented interfaces of the known
+ * classes, per defining class loader.
+ * <p>
+ * The index is fed incrementally - with the class files as they are loaded
+ * and with the already loaded classes. It allows checking a class against
+ * a supertype at its first load, before the class or any of its supertypes
+ * could be inspected by reflection. A supertype not known yet is read from
+ * the class file resource of the initiating class loader, if available.
+ * <p>
+ * The result of checking a class against a supertype is remembered with the
+ * class so the repeated checks against the few supertypes used in the probes
+ * take a single lookup. The loaders are held weakly. The instances are thread safe
+ * and do not lock on the lookups so the classes may be loaded concurrently.
+ *
+ * @author Jaroslav Bachorik
+ */
+final public class ClassHierarchy {
+    final private static String OBJECT = "java/lang/Object";
+    final private static String[] NONE = new String[0];
+    // the number of the supertypes the check results are remembered for, per class
+    final private static int MAX_CACHED = 8;
+
+    final private static class Entry {
+        // null for java.lang.Object
+        final private String superName;
+        final private String[] interfaces;
+        private volatile String[] subTypeOf = NONE;
+        private volatile String[] notSubTypeOf = NONE;
+
+        Entry(String superName, String[] interfaces) {
+            this.superName = superName;
+            this.interfaces = interfaces != null ? interfaces : NONE;
+        }
+
+        /**
+         * @return 1 if the class is a subtype of the given type, 0 if it is not or -1 if not known
+         */
+        int cached(String typeName) {
+            for (String t : subTypeOf) {
+                if (t == typeName || t.equals(typeName)) {
+                    return 1;
+                }
+            }
+            for (String t : notSubTypeOf) {
+                if (t == typeName || t.equals(typeName)) {
+                    return 0;
+                }
+            }
+            return -1;
+        }
+
+        synchronized void cache(String typeName, boolean subType) {
+            String[] types = subType ? subTypeOf : notSubTypeOf;
+            if (types.length < MAX_CACHED) {
+                String[] newTypes = new String[types.length + 1];
+                System.arraycopy(types, 0, newTypes, 0, types.length);
+                newTypes[types.length] = typeName;
+                if (subType) {
+                    subTypeOf = newTypes;
+                } else {
+                    notSubTypeOf = newTypes;
+                }
+            }
+        }
+    }
+
+    // a class not found by a loader; replaced once the class is loaded
+    final private static Entry MISSING = new Entry(null, null);
+    // finds the resources on the boot class path only; an empty loader delegating straight to the bootstrap one
+    final private static ClassLoader BOOT_RESOURCES = new ClassLoader(null) {};
+
+    /**
+     * A weak reference to a class loader usable as a map key; compares the loaders by identity
+     */
+    final private static class LoaderRef extends WeakReference<ClassLoader> {
+        final private int hash;
+
+        LoaderRef(ClassLoader loader) {
+            super(loader);
+            this.hash = System.identityHashCode(loader);
+        }
+
+        LoaderRef(ClassLoader loader, ReferenceQueue<ClassLoader> queue) {
+            super(loader, queue);
+            this.hash = System.identityHashCode(loader);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof LoaderRef)) {
+                return false;
+            }
+            ClassLoader loader = get();
+            return loader != null && loader == ((LoaderRef)obj).get();
+        }
+    }
+
+    final private ConcurrentMap<LoaderRef, ConcurrentMap<String, Entry>> loaders = new ConcurrentHashMap<LoaderRef, ConcurrentMap<String, Entry>>();
+    final private ConcurrentMap<String, Entry> bootClasses = new ConcurrentHashMap<String, Entry>();
+    // the collected loaders to remove from the index
+    final private ReferenceQueue<ClassLoader> collected = new ReferenceQueue<ClassLoader>();
+
+    /**
+     * Records a class file being loaded
+     * @param loader The defining class loader; <b>null</b> for the bootstrap loader
+     * @param info The parsed class file
+     */
+    public void add(ClassLoader loader, ClassInfo info) {
+        add(loader, info.getInternalName(), info.getSuperName(), info.getInterfaces());
+    }
+
+    /**
+     * Records a class file being loaded
+     * @param loader The defining class loader; <b>null</b> for the bootstrap loader
+     * @param internalName The class name in the internal form (using '/')
+     * @param superName The internal name of the super class; <b>null</b> for java.lang.Object
+     * @param interfaces The internal names of the directly implemented interfaces
+     */
+    public void add(ClassLoader loader, String internalName, String superName, String[] interfaces) {
+        classes(loader, true).put(internalName, new Entry(superName, interfaces));
+    }
+
+    /**
+     * Records an already loaded class together with its not yet known supertypes
+     */
+    public void add(Class clazz) {
+        entry(clazz);
+    }
+
+    /**
+     * Forgets all the recorded classes
+     */
+    public void clear() {
+        loaders.clear();
+        bootClasses.clear();
+    }
+
+    /**
+     * Checks an already loaded class. The class is recorded if not known yet.
+     * @param clazz The class to check
+     * @param typeName The supertype name in the internal form (using '/')
+     * @return <b>true</b> if the class is the given type or any of its subtypes
+     */
+    public boolean isSubTypeOf(Class clazz, String typeName) {
+        if (clazz == null) {
+            return false;
+        }
+        Entry e = entry(clazz);
+        if (e == null) {
+            return false;
+        }
+        String name = clazz.getName();
+        if (name.length() == typeName.length() && name.replace('.', '/').equals(typeName)) {
+            return true;
+        }
+        return isSubTypeOf(clazz.getClassLoader(), e, typeName);
+    }
+
+    /**
+     * Checks a class by its name
+     * @param loader The defining class loader; <b>null</b> for the bootstrap loader
+     * @param internalName The class name in the internal form (using '/')
+     * @param typeName The supertype name in the internal form (using '/')
+     * @return <b>true</b> if the class is the given type or any of its known subtypes
+     */
+    public boolean isSubTypeOf(ClassLoader loader, String internalName, String typeName) {
+        if (internalName.equals(typeName) || OBJECT.equals(typeName)) {
+            return true;
+        }
+        Entry e = lookup(loader, internalName);
+        return e != null && isSubTypeOf(loader, e, typeName);
+    }
+
+    /**
+     * Checks a class by its supertypes; the class itself need not be recorded
+     * @param loader The initiating class loader of the supertypes; <b>null</b> for the bootstrap loader
+     * @param superName The internal name of the super class; <b>null</b> for java.lang.Object
+     * @param interfaces The internal names of the directly implemented interfaces
+     * @param typeName The supertype name in the internal form (using '/')
+     * @return <b>true</b> if any of the given supertypes is the given type or any of its known subtypes
+     */
+    public boolean isSubTypeOf(ClassLoader loader, String superName, String[] interfaces, String typeName) {
+        if (OBJECT.equals(typeName)) {
+            return true;
+        }
+        if (superName != null && isSubTypeOf(loader, superName, typeName)) {
+            return true;
+        }
+        if (interfaces != null) {
+            for (String iface : interfaces) {
+                if (isSubTypeOf(loader, iface, typeName)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Walks the supertypes of a recorded class; the result is remembered
+     * unless some of the supertypes is not known
+     */
+    private boolean isSubTypeOf(ClassLoader loader, Entry e, String typeName) {
+        int cached = e.cached(typeName);
+        if (cached != -1) {
+            return cached == 1;
+        }
+        if (OBJECT.equals(typeName)) {
+            return true;
+        }
+        boolean complete = true;
+        boolean subType = false;
+        if (e.superName != null) {
+            int r = isDirectSubTypeOf(loader, e.superName, typeName);
+            subType = r == 1;
+            complete = r != -1;
+        }
+        for (int i = 0; !subType && i < e.interfaces.length; i++) {
+            int r = isDirectSubTypeOf(loader, e.interfaces[i], typeName);
+            subType = r == 1;
+            complete &= r != -1;
+        }
+        if (subType || complete) {
+            e.cache(typeName, subType);
+        }
+        return subType;
+    }
+
+    /**
+     * @return 1 if the supertype is the given type or any of its subtypes, 0 if not or -1 if not known
+     */
+    private int isDirectSubTypeOf(ClassLoader loader, String superType, String typeName) {
+        if (superType.equals(typeName)) {
+            return 1;
+        }
+        if (superType.equals(OBJECT)) {
+            return 0;
+        }
+        Entry se = lookup(loader, superType);
+        if (se == null) {
+            return -1;
+        }
+        if (isSubTypeOf(loader, se, typeName)) {
+            return 1;
+        }
+        return se.cached(typeName) == 0 ? 0 : -1;
+    }
+
+    /**
+     * @return The entry of the loaded class; recorded together with its supertypes if not known yet
+     */
+    private Entry entry(Class clazz) {
+        if (clazz == null || clazz.isPrimitive() || clazz.isArray()) {
+            return null;
+        }
+        ConcurrentMap<String, Entry> classes = classes(clazz.getClassLoader(), true);
+        String name = clazz.getName().replace('.', '/');
+        Entry e = classes.get(name);
+        if (e != null && e != MISSING) {
+            return e;
+        }
+        Class sup = clazz.getSuperclass();
+        Class[] ifcs = clazz.getInterfaces();
+        String[] interfaces = new String[ifcs.length];
+        for (int i = 0; i < ifcs.length; i++) {
+            interfaces[i] = ifcs[i].getName().replace('.', '/');
+            entry(ifcs[i]);
+        }
+        entry(sup);
+        e = new Entry(sup != null ? sup.getName().replace('.', '/') : null, interfaces);
+        classes.put(name, e);
+        return e;
+    }
+
+    private ConcurrentMap<String, Entry> classes(ClassLoader loader, boolean create) {
+        if (loader == null) {
+            return bootClasses;
+        }
+        Object ref;
+        while ((ref = collected.poll()) != null) {
+            loaders.remove((LoaderRef)ref);
+        }
+        ConcurrentMap<String, Entry> classes = loaders.get(new LoaderRef(loader));
+        if (classes == null && create) {
+            classes = new ConcurrentHashMap<String, Entry>();
+            ConcurrentMap<String, Entry> prev = loaders.putIfAbsent(new LoaderRef(loader, collected), classes);
+            if (prev != null) {
+                classes = prev;
+            }
+        }
+        return classes;
+    }
+
+    /**
+     * Finds the class as seen from the given loader - defined by the loader
+     * or by any of its parents; as the last resort the class file is read
+     */
+    private Entry lookup(ClassLoader loader, String internalName) {
+        boolean missing = false;
+        ClassLoader l = loader;
+        while (true) {
+            Map<String, Entry> classes = classes(l, false);
+            if (classes != null) {
+                Entry e = classes.get(internalName);
+                if (e == MISSING) {
+                    // not visible to a parent does not mean not visible to the loader itself
+                    missing |= l == loader;
+                } else if (e != null) {
+                    return e;
+                }
+            }
+            if (l == null) {
+                break;
+            }
+            l = l.getParent();
+        }
+        if (missing) {
+            return null;
+        }
+        Entry e = read(loader, internalName);
+        // the class may have been recorded by a concurrent load meanwhile
+        Entry prev = classes(loader, true).putIfAbsent(internalName, e != null ? e : MISSING);
+        return prev != null && prev != MISSING ? prev : e;
+    }
+
+    private static Entry read(ClassLoader loader, String internalName) {
+        String resource = internalName + ".class";
+        try {
+            // ClassLoader.getSystemResourceAsStream() would also see the application classes
+            InputStream is = (loader != null ? loader : BOOT_RESOURCES).getResourceAsStream(resource);
+            if (is == null) {
+                return null;
+            }
+            try {
+                ClassReader reader = new ClassReader(is);
+                return new Entry(reader.getSuperName(), reader.getInterfaces());
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            return null;
+        } catch (RuntimeException e) {
+            // not a valid class file
+            return null;
+        }
+    }
+}
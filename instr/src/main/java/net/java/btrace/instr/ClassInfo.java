@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.instr;
+
+import java.util.ArrayList;
+import java.util.List;
+import net.java.btrace.org.objectweb.asm.AnnotationVisitor;
+import net.java.btrace.org.objectweb.asm.ClassReader;
+import net.java.btrace.org.objectweb.asm.ClassVisitor;
+import net.java.btrace.org.objectweb.asm.Opcodes;
+
+/**
+ * The header of a class file as needed to decide whether the class
+ * is a candidate for instrumentation.
+ * <p>
+ * The class file is parsed once and the result is shared by all the
+ * {@linkplain ClassFilter} instances the class is checked against.
+ * The class annotations are read only when some filter asks for them.
+ *
+ * @author Jaroslav Bachorik
+ */
+final public class ClassInfo {
+    final private static String[] NO_ANNOTATIONS = new String[0];
+
+    final private ClassReader reader;
+    final private int access;
+    final private String internalName;
+    final private String superName;
+    final private String[] interfaces;
+    final private ClassLoader loader;
+    final private ClassHierarchy hierarchy;
+    private String name;
+    private String[] annotations;
+
+    public ClassInfo(byte[] classBytes) {
+        this(new ClassReader(classBytes));
+    }
+
+    public ClassInfo(ClassReader reader) {
+        this(reader, null, null);
+    }
+
+    /**
+     * @param classBytes The class file
+     * @param loader The defining class loader; <b>null</b> for the bootstrap loader
+     * @param hierarchy The known classes to resolve the supertypes against; may be <b>null</b>
+     */
+    public ClassInfo(byte[] classBytes, ClassLoader loader, ClassHierarchy hierarchy) {
+        this(new ClassReader(classBytes), loader, hierarchy);
+    }
+
+    public ClassInfo(ClassReader reader, ClassLoader loader, ClassHierarchy hierarchy) {
+        this.reader = reader;
+        this.loader = loader;
+        this.hierarchy = hierarchy;
+        this.access = reader.getAccess();
+        this.internalName = reader.getClassName();
+        this.superName = reader.getSuperName();
+        this.interfaces = reader.getInterfaces();
+    }
+
+    /**
+     * @return The reader the class file has been parsed by; can be reused to transform the class
+     */
+    public ClassReader getReader() {
+        return reader;
+    }
+
+    public boolean isInterface() {
+        return (access & Opcodes.ACC_INTERFACE) != 0;
+    }
+
+    /**
+     * @return The class name in the internal form (using '/')
+     */
+    public String getInternalName() {
+        return internalName;
+    }
+
+    /**
+     * @return The class name in the java form (using '.')
+     */
+    public String getName() {
+        if (name == null) {
+            name = internalName.replace('/', '.');
+        }
+        return name;
+    }
+
+    /**
+     * @return The internal name of the super class or <b>null</b> for java.lang.Object
+     */
+    public String getSuperName() {
+        return superName;
+    }
+
+    /**
+     * @return The internal names of the directly implemented interfaces
+     */
+    public String[] getInterfaces() {
+        return interfaces;
+    }
+
+    /**
+     * Checks the class against a supertype. Without a {@linkplain ClassHierarchy}
+     * only the super class and the directly implemented interfaces are known.
+     * @param typeName The supertype name in the internal form (using '/')
+     * @return <b>true</b> if the class is the given type or any of its subtypes
+     */
+    public boolean isSubTypeOf(String typeName) {
+        if (typeName.equals(internalName) || typeName.equals(superName)) {
+            return true;
+        }
+        for (String iface : interfaces) {
+            if (iface.equals(typeName)) {
+                return true;
+            }
+        }
+        return hierarchy != null && hierarchy.isSubTypeOf(loader, superName, interfaces, typeName);
+    }
+
+    /**
+     * @return The descriptors of the class annotations (both visible and invisible)
+     */
+    public String[] getAnnotations() {
+        if (annotations == null) {
+            final List<String> descs = new ArrayList<String>();
+            reader.accept(new ClassVisitor(Opcodes.ASM4) {
+                @Override
+                public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+                    descs.add(desc);
+                    return null;
+                }
+            }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+            annotations = descs.isEmpty() ? NO_ANNOTATIONS : descs.toArray(new String[descs.size()]);
+        }
+        return annotations;
+    }
+}
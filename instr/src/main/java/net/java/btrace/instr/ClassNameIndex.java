@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.instr;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Matches class names against a set of exact names and regular expressions
+ * without testing each of them in turn.
+ * <p>
+ * The exact names are kept in a hash set. The literal prefix of each regular
+ * expression (eg. <code>java.util.</code> for <code>java\.util\..*</code>) is
+ * put into a prefix trie and the expression is tried only for the names
+ * starting with that prefix. The expressions without any usable prefix are
+ * tried for all the names.
+ * <p>
+ * The index works with the internal class names (using '/').
+ *
+ * @author Jaroslav Bachorik
+ */
+final class ClassNameIndex {
+    final private static class Node {
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private Pattern[] patterns = new Pattern[0];
+
+        Node child(char c) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node addChild(char c) {
+            Node n = child(c);
+            if (n == null) {
+                n = new Node();
+                char[] newKeys = new char[keys.length + 1];
+                Node[] newChildren = new Node[children.length + 1];
+                System.arraycopy(keys, 0, newKeys, 0, keys.length);
+                System.arraycopy(children, 0, newChildren, 0, children.length);
+                newKeys[keys.length] = c;
+                newChildren[children.length] = n;
+                keys = newKeys;
+                children = newChildren;
+            }
+            return n;
+        }
+
+        void addPattern(Pattern p) {
+            Pattern[] newPatterns = new Pattern[patterns.length + 1];
+            System.arraycopy(patterns, 0, newPatterns, 0, patterns.length);
+            newPatterns[patterns.length] = p;
+            patterns = newPatterns;
+        }
+    }
+
+    final private Set<String> names = new HashSet<String>();
+    final private Node root = new Node();
+    private boolean empty = true;
+
+    /**
+     * @param name The class name in the java form (using '.')
+     */
+    void add(String name) {
+        names.add(name.replace('.', '/'));
+        empty = false;
+    }
+
+    /**
+     * @param p The regular expression for the class names in the java form (using '.')
+     */
+    void add(Pattern p) {
+        String prefix = literalPrefix(p.pattern());
+        Node n = root;
+        for (int i = 0; i < prefix.length(); i++) {
+            char c = prefix.charAt(i);
+            n = n.addChild(c == '.' ? '/' : c);
+        }
+        n.addPattern(p);
+        empty = false;
+    }
+
+    boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * @param internalName The class name in the internal form (using '/')
+     * @return <b>true</b> if the name is one of the exact names or matches any of the regular expressions
+     */
+    boolean matches(String internalName) {
+        if (empty) {
+            return false;
+        }
+        if (names.contains(internalName)) {
+            return true;
+        }
+        String name = null;
+        Node n = root;
+        int i = 0;
+        while (n != null) {
+            if (n.patterns.length > 0) {
+                if (name == null) {
+                    name = internalName.replace('/', '.');
+                }
+                for (Pattern p : n.patterns) {
+                    if (p.matcher(name).matches()) {
+                        return true;
+                    }
+                }
+            }
+            n = i < internalName.length() ? n.child(internalName.charAt(i++)) : null;
+        }
+        return false;
+    }
+
+    /**
+     * Computes the literal text each string matching the regular expression must start with.
+     * Conservative - any construct not understood terminates the prefix.
+     */
+    static String literalPrefix(String regex) {
+        if (hasTopLevelAlternation(regex)) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        if (regex.startsWith("^")) {
+            i++;
+        }
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            char lit;
+            int len = 1;
+            if (c == '\\') {
+                if (i + 1 >= regex.length()) {
+                    break;
+                }
+                char e = regex.charAt(i + 1);
+                if (e == '.' || e == '$' || e == '\\' || e == '/') {
+                    lit = e;
+                    len = 2;
+                } else {
+                    // a character class, quoting etc.
+                    break;
+                }
+            } else if (Character.isLetterOrDigit(c) || c == '_' || c == '/' || c == '-' || c == '<' || c == '>') {
+                lit = c;
+            } else {
+                break;
+            }
+            int next = i + len;
+            if (next < regex.length()) {
+                char q = regex.charAt(next);
+                if (q == '*' || q == '?' || q == '{' || q == '+') {
+                    // the literal is optional or repeated; stop before it
+                    break;
+                }
+            }
+            sb.append(lit);
+            i = next;
+        }
+        return sb.toString();
+    }
+
+    private static boolean hasTopLevelAlternation(String regex) {
+        int depth = 0;
+        boolean inClass = false;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (inClass) {
+                if (c == ']') {
+                    inClass = false;
+                }
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '|' && depth == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -31,10 +31,14 @@ import net.java.btrace.annotations.Kind;
 import net.java.btrace.annotations.Location;
 import net.java.btrace.annotations.OnMethod;
 import net.java.btrace.annotations.OnProbe;
+import net.java.btrace.annotations.Sampled;
+import net.java.btrace.annotations.Condition;
+import net.java.btrace.annotations.Counter;
 import net.java.btrace.annotations.Where;
 import java.util.regex.Pattern;
 import net.java.btrace.org.objectweb.asm.Type;
 import net.java.btrace.api.extensions.BTraceExtension;
+import net.java.btrace.runtime.ProbeCounter;
 
 /**
  * Constants shared by few classes.
@@ -44,6 +48,12 @@ import net.java.btrace.api.extensions.BTraceExtension;
 public abstract class Constants { 
     public static final String BTRACE_METHOD_PREFIX =
         "$btrace$";
+    // prefix of the static flags turning the BTrace handlers off
+    public static final String BTRACE_PROBE_DISABLED_PREFIX =
+        "$disabled$";
+    // prefix of the static fields holding the BTrace handlers' invocation statistics
+    public static final String BTRACE_PROBE_STATS_PREFIX =
+        "$stats$";
 
     public static final String JAVA_LANG_OBJECT = 
         Type.getInternalName(Object.class);
@@ -77,6 +87,33 @@ public abstract class Constants {
     public static final String KIND_DESC =
         Type.getDescriptor(Kind.class);
 
+    public static final String SAMPLED_DESC =
+        Type.getDescriptor(Sampled.class);
+
+    public static final String SAMPLER_DESC =
+        Type.getDescriptor(Sampled.Sampler.class);
+
+    public static final String CONDITION_DESC =
+        Type.getDescriptor(Condition.class);
+
+    public static final String CONDITION_CHECK_DESC =
+        Type.getDescriptor(Condition.Check.class);
+
+    public static final String COUNTER_DESC =
+        Type.getDescriptor(Counter.class);
+
+    // the striped counters incremented by the counted probe points
+    public static final String PROBE_COUNTER =
+        Type.getInternalName(ProbeCounter.class);
+    public static final String PROBE_COUNTER_DESC =
+        Type.getDescriptor(ProbeCounter.class);
+    public static final String PROBE_COUNTER_INCREMENT = "increment";
+    public static final String PROBE_COUNTER_INCREMENT_DESC = "()V";
+    public static final String PROBE_COUNTER_SUM = "sum";
+    public static final String PROBE_COUNTER_SUM_DESC = "()J";
+    public static final String PROBE_COUNTER_SET = "set";
+    public static final String PROBE_COUNTER_SET_DESC = "(J)V";
+
     // class name pattern is specified with this pattern
     public static final Pattern REGEX_SPECIFIER = Pattern.compile("/.+/");
 }
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.instr;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import net.java.btrace.org.objectweb.asm.ClassVisitor;
+import net.java.btrace.org.objectweb.asm.MethodVisitor;
+import net.java.btrace.org.objectweb.asm.Opcodes;
+import static net.java.btrace.instr.Constants.ANYTYPE_DESC;
+import static net.java.btrace.instr.Constants.OBJECT_DESC;
+import static net.java.btrace.org.objectweb.asm.Opcodes.*;
+
+/**
+ * This adapter keeps the probe handlers in a BTrace class and makes
+ * them callable from the instrumented classes. It is the counterpart
+ * of {@linkplain MethodRemover} for the out-of-line handlers - the
+ * instrumented classes call the handlers of the BTrace class instead
+ * of their own copies.
+ * <p>
+ * The handlers are made public static and {@linkplain AnyType}
+ * is replaced by {@linkplain Object} in their descriptors, the same
+ * way {@linkplain Instrumentor} does for the copied handlers.
+ *
+ * @author Jaroslav Bachorik
+ */
+public class HandlerExporter extends ClassVisitor {
+    final private Set<String> handlers = new HashSet<String>();
+
+    public HandlerExporter(ClassVisitor visitor, List<OnMethod> onMethods) {
+        super(Opcodes.ASM4, visitor);
+        for (OnMethod om : onMethods) {
+            handlers.add(om.getTargetName() + om.getTargetDescriptor());
+        }
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+        if (handlers.contains(name + desc)) {
+            access = (access & ~(ACC_PRIVATE | ACC_PROTECTED)) | ACC_PUBLIC | ACC_STATIC;
+            desc = desc.replace(ANYTYPE_DESC, OBJECT_DESC);
+            if (signature != null) {
+                signature = signature.replace(ANYTYPE_DESC, OBJECT_DESC);
+            }
+        }
+        return super.visitMethod(access, name, desc, signature, exceptions);
+    }
+}
@@ -26,6 +26,7 @@
 package net.java.btrace.instr;
 
 import net.java.btrace.annotations.Kind;
+import net.java.btrace.annotations.Sampled;
 import net.java.btrace.annotations.Where;
 import java.util.List;
 import java.util.ArrayList;
@@ -45,7 +46,6 @@ import net.java.btrace.org.objectweb.asm.Type;
 import net.java.btrace.util.LocalVariablesSorter;
 import net.java.btrace.util.TimeStampGenerator;
 import net.java.btrace.util.TimeStampHelper;
-import java.util.regex.PatternSyntaxException;
 import static net.java.btrace.instr.Constants.*;
 
 /**
@@ -56,9 +56,13 @@ import static net.java.btrace.instr.Constants.*;
  */
 public class Instrumentor extends ClassVisitor {
     private String btraceClassName;
-    private ClassReader btraceClass;
-    private List<OnMethod> onMethods;
-    private List<OnMethod> applicableOnMethods;
+    // the class resolved against a ClassHierarchy; null if not available
+    private ClassInfo classInfo;
+    // null if the handlers are called out-of-line in the BTrace class
+    private TraceHandlers handlers;
+    private MatchPlan plan;
+    private boolean probeGuards;
+    private List<MatchPlan.Probe> applicableProbes;
     private Set<OnMethod> calledOnMethods;
     private String className, superName;
     private Class clazz;
@@ -69,23 +73,67 @@ public class Instrumentor extends ClassVisitor {
 
 
     public Instrumentor(Class clazz,
-            String btraceClassName, ClassReader btraceClass,
-            List<OnMethod> onMethods, ClassVisitor cv) {
+            String btraceClassName, TraceHandlers handlers,
+            MatchPlan plan, ClassVisitor cv) {
         super(Opcodes.ASM4, cv);
         this.clazz = clazz;
         this.btraceClassName = btraceClassName.replace('.', '/');
-        this.btraceClass = btraceClass;
-        this.onMethods = onMethods;
-        this.applicableOnMethods = new ArrayList<OnMethod>();
+        this.handlers = handlers;
+        this.plan = plan;
+        this.applicableProbes = new ArrayList<MatchPlan.Probe>();
         this.calledOnMethods = new HashSet<OnMethod>();
     }
 
+    /**
+     * Creates an instrumentor calling the handlers of the BTrace class directly
+     * instead of copying them into the instrumented class.
+     * The handlers must have been exported by {@linkplain HandlerExporter}.
+     */
+    public Instrumentor(Class clazz,
+            String btraceClassName, MatchPlan plan, ClassVisitor cv) {
+        this(clazz, btraceClassName, (TraceHandlers)null, plan, cv);
+    }
+
+    public Instrumentor(Class clazz,
+            String btraceClassName, ClassReader btraceClass,
+            MatchPlan plan, ClassVisitor cv) {
+        this(clazz, btraceClassName, new TraceHandlers(btraceClass), plan, cv);
+    }
+
+    public Instrumentor(Class clazz,
+            String btraceClassName, byte[] btraceCode,
+            MatchPlan plan, ClassVisitor cv) {
+        this(clazz, btraceClassName, new TraceHandlers(btraceCode), plan, cv);
+    }
+
+    public Instrumentor(Class clazz,
+            String btraceClassName, ClassReader btraceClass,
+            List<OnMethod> onMethods, ClassVisitor cv) {
+        this(clazz, btraceClassName, btraceClass, new MatchPlan(onMethods), cv);
+    }
+
     public Instrumentor(Class clazz,
             String btraceClassName, byte[] btraceCode,
             List<OnMethod> onMethods, ClassVisitor cv) {
         this(clazz, btraceClassName, new ClassReader(btraceCode), onMethods, cv);
     }
 
+    /**
+     * Lets the supertype probes match against the whole class hierarchy
+     * @param classInfo The instrumented class resolved against a {@linkplain ClassHierarchy}
+     */
+    void setClassInfo(ClassInfo classInfo) {
+        this.classInfo = classInfo;
+    }
+
+    /**
+     * Makes each probe site check the disabled flag of its handler in the BTrace class
+     * first and skip loading the action arguments and calling the action when set
+     */
+    void setProbeGuards(boolean probeGuards) {
+        this.probeGuards = probeGuards;
+    }
+
     final public boolean hasMatch() {
         return !calledOnMethods.isEmpty();
     }
@@ -97,43 +145,38 @@ public class Instrumentor extends ClassVisitor {
         className = name;
         this.superName = superName;
         // we filter the probe methods applicable for this particular
-        // class by brute force walking. FIXME: should I optimize?
+        // class by walking the compiled probes
         String externalName = name.replace('/', '.');
-        for (OnMethod om : onMethods) {
-            String probeClazz = om.getClazz();
-            if (probeClazz.length() == 0) {
-                continue;
-            }
-            char firstChar = probeClazz.charAt(0);
-            if (firstChar == '/' &&
-                REGEX_SPECIFIER.matcher(probeClazz).matches()) {
-                probeClazz = probeClazz.substring(1, probeClazz.length() - 1);
-                try {
-                    if (externalName.matches(probeClazz)) {
-                        applicableOnMethods.add(om);
+        for (MatchPlan.Probe p : plan.getProbes()) {
+            switch (p.classMatch) {
+                case NAME: {
+                    if (p.clazz.matches(externalName)) {
+                        applicableProbes.add(p);
                     }
-                } catch (PatternSyntaxException pse) {
-                    reportPatternSyntaxException(probeClazz);
+                    break;
                 }
-            } else if (firstChar == '+') {
-                // super type being matched.
-                String superType = probeClazz.substring(1);
-                // internal name of super type.
-                String superTypeInternal = superType.replace('.', '/');
-                /*
-                 * If we are redefining a class, then we have a Class object
-                 * of it and we can walk through it's hierarchy to match for
-                 * specified super type. But, if we are loading it a fresh, then
-                 * we can not walk through super hierarchy. We just check the
-                 * immediate super class and directly implemented interfaces
-                 */
-                if (ClassFilter.isSubTypeOf(this.clazz, superType) ||
-                    superName.equals(superTypeInternal) ||
-                    isInArray(interfaces, superTypeInternal)) {
-                    applicableOnMethods.add(om);
+                case SUPERTYPE: {
+                    boolean subtype;
+                    if (classInfo != null) {
+                        // the whole hierarchy is known, even for a freshly loaded class
+                        subtype = classInfo.isSubTypeOf(p.superTypeInternal);
+                    } else {
+                        /*
+                         * If we are redefining a class, then we have a Class object
+                         * of it and we can walk through it's hierarchy to match for
+                         * specified super type. But, if we are loading it a fresh, then
+                         * we can not walk through super hierarchy. We just check the
+                         * immediate super class and directly implemented interfaces
+                         */
+                        subtype = ClassFilter.isSubTypeOf(this.clazz, p.superType) ||
+                                  p.superTypeInternal.equals(superName) ||
+                                  isInArray(interfaces, p.superTypeInternal);
+                    }
+                    if (subtype) {
+                        applicableProbes.add(p);
+                    }
+                    break;
                 }
-            } else if (probeClazz.equals(externalName)) {
-                applicableOnMethods.add(om);
             }
         }
         this.version = version;
@@ -143,25 +186,9 @@ public class Instrumentor extends ClassVisitor {
     public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
         AnnotationVisitor av = super.visitAnnotation(desc, visible);
         String extName = Type.getType(desc).getClassName();
-        for (OnMethod om : onMethods) {
-            String probeClazz = om.getClazz();
-            if (probeClazz.length() > 0 && probeClazz.charAt(0) == '@') {
-                probeClazz = probeClazz.substring(1);
-                if (probeClazz.length() == 0) {
-                    continue;
-                }
-                if (REGEX_SPECIFIER.matcher(probeClazz).matches()) {
-                    probeClazz = probeClazz.substring(1, probeClazz.length() - 1);
-                    try {
-                        if (extName.matches(probeClazz)) {
-                            applicableOnMethods.add(om);
-                        }
-                    } catch (PatternSyntaxException pse) {
-                        reportPatternSyntaxException(probeClazz);
-                    }
-                } else if (probeClazz.equals(extName)) {
-                    applicableOnMethods.add(om);
-                }
+        for (MatchPlan.Probe p : plan.getProbes()) {
+            if (p.classMatch == MatchPlan.ClassMatch.ANNOTATION && p.clazz.matches(extName)) {
+                applicableProbes.add(p);
             }
         }
         return av;
@@ -172,7 +199,7 @@ public class Instrumentor extends ClassVisitor {
         MethodVisitor methodVisitor = super.visitMethod(access, name, desc,
                 signature, exceptions);
 
-        if (applicableOnMethods.isEmpty() ||
+        if (applicableProbes.isEmpty() ||
             (access & ACC_ABSTRACT) != 0    ||
             (access & ACC_NATIVE) != 0      ||
             name.startsWith(BTRACE_METHOD_PREFIX)) {
@@ -193,55 +220,19 @@ public class Instrumentor extends ClassVisitor {
 
         final int[] tsIndex = new int[]{-1, -1};
 
-        for (OnMethod om : applicableOnMethods) {
-            if (om.getLocation().getValue() == Kind.LINE) {
-                methodVisitor = instrumentorFor(om, methodVisitor, lvs, tsIndex, access, name, desc);
-            } else {
-                String methodName = om.getMethod();
-                if (methodName.equals("")) {
-                    methodName = om.getTargetName();
-                }
-                if (methodName.equals(name) &&
-                    typeMatches(om.getType(), desc)) {
-                    methodVisitor = instrumentorFor(om, methodVisitor, lvs, tsIndex, access, name, desc);
-                } else if (methodName.charAt(0) == '/' &&
-                           REGEX_SPECIFIER.matcher(methodName).matches()) {
-                    methodName = methodName.substring(1, methodName.length() - 1);
-                    try {
-                        if (name.matches(methodName) &&
-                            typeMatches(om.getType(), desc)) {
-                            methodVisitor = instrumentorFor(om, methodVisitor, lvs, tsIndex, access, name, desc);
-                        }
-                    } catch (PatternSyntaxException pse) {
-                        reportPatternSyntaxException(name);
-                    }
-                }
+        for (MatchPlan.Probe p : applicableProbes) {
+            if (p.matchesMethod(name, desc)) {
+                methodVisitor = instrumentorFor(p.onMethod, methodVisitor, lvs, tsIndex, access, name, desc);
             }
         }
 
         return new MethodVisitor(Opcodes.ASM4, methodVisitor) {
             public AnnotationVisitor visitAnnotation(String annoDesc,
                                   boolean visible) {
-                for (OnMethod om : applicableOnMethods) {
-                    String extAnnoName = Type.getType(annoDesc).getClassName();
-                    String annoName = om.getMethod();
-                    if (annoName.length() > 0 && annoName.charAt(0) == '@') {
-                        annoName = annoName.substring(1);
-                        if (annoName.length() == 0) {
-                            continue;
-                        }
-                        if (REGEX_SPECIFIER.matcher(annoName).matches()) {
-                            annoName = annoName.substring(1, annoName.length() - 1);
-                            try {
-                                if (extAnnoName.matches(annoName)) {
-                                    mv = instrumentorFor(om, mv, lvs, tsIndex, access, name, desc);
-                                }
-                            } catch (PatternSyntaxException pse) {
-                                reportPatternSyntaxException(extAnnoName);
-                            }
-                        } else if (annoName.equals(extAnnoName)) {
-                            mv = instrumentorFor(om, mv, lvs, tsIndex, access, name, desc);
-                        }
+                String extAnnoName = Type.getType(annoDesc).getClassName();
+                for (MatchPlan.Probe p : applicableProbes) {
+                    if (p.matchesMethodAnnotation(extAnnoName)) {
+                        mv = instrumentorFor(p.onMethod, mv, lvs, tsIndex, access, name, desc);
                     }
                 }
                 return mv.visitAnnotation(annoDesc, visible);
@@ -250,6 +241,32 @@ public class Instrumentor extends ClassVisitor {
     }
 
     private MethodVisitor instrumentorFor(
+        OnMethod om, MethodVisitor mv, LocalVariablesSorter lvs,
+        int[] tsIndex, int access, String name, String desc) {
+        if (om.isSampled() && om.getDurationParameter() != -1) {
+            // the entry time stamp is taken only for the sampled invocations - can not be shared
+            tsIndex = new int[]{-1, -1};
+        }
+        MethodVisitor instrumentor = newInstrumentor(om, mv, lvs, tsIndex, access, name, desc);
+        MethodVisitor probe = instrumentor instanceof TimeStampGenerator ?
+                                ((TimeStampGenerator)instrumentor).getInstrumentor() : instrumentor;
+        if (probe instanceof MethodInstrumentor) {
+            MethodInstrumentor mi = (MethodInstrumentor)probe;
+            // a counted site never calls the handler; the site guard is the only place to turn it off
+            if (probeGuards || om.isCounted()) {
+                mi.setProbeGuard(btraceClassName, BTRACE_PROBE_DISABLED_PREFIX + om.getTargetName());
+            }
+            if (om.isSampled()) {
+                mi.setSampling(om.getSamplerId(), om.getSamplingMean(), om.getSampler() == Sampled.Sampler.RANDOM);
+            }
+            if (!om.getConditions().isEmpty()) {
+                mi.setConditions(om.getConditions(), tsIndex);
+            }
+        }
+        return instrumentor;
+    }
+
+    private MethodVisitor newInstrumentor(
         final OnMethod om, MethodVisitor mv, final LocalVariablesSorter lvs,
         final int[] tsIndex, int access, String name, final String desc) {
         final Location loc = om.getLocation();
@@ -675,7 +692,7 @@ public class Instrumentor extends ClassVisitor {
                                 if (om.getDurationParameter() != -1) {
                                     usesTimeStamp = true;
                                     // TODO: this is a nasty hack; should be in TimeStampGenerator but can't fit it there, no way :(
-                                    if (tsIndex[1] == -1) {
+                                    if (tsIndex[1] == -1 && !isSampled()) {
                                         TimeStampHelper.generateTimeStampAccess(this, className);
                                         tsIndex[1] = lvs.newLocal(Type.LONG_TYPE);
                                     }
@@ -697,6 +714,11 @@ public class Instrumentor extends ClassVisitor {
                                             loadLocal(Type.LONG_TYPE, tsIndex[1]);
                                             loadLocal(Type.LONG_TYPE, tsIndex[0]);
                                             visitInsn(LSUB);
+                                        } else if (tsIndex[0] != -1 && isSampled()) {
+                                            // the exit time stamp of a sampled invocation
+                                            loadTimeStamp();
+                                            loadLocal(Type.LONG_TYPE, tsIndex[0]);
+                                            visitInsn(LSUB);
                                         }
                                     }
                                 };
@@ -1180,6 +1202,11 @@ public class Instrumentor extends ClassVisitor {
                                         loadLocal(Type.LONG_TYPE, tsIndex[1]);
                                         loadLocal(Type.LONG_TYPE, tsIndex[0]);
                                         visitInsn(LSUB);
+                                    } else if (tsIndex[0] != -1 && isSampled()) {
+                                        // the exit time stamp of a sampled invocation
+                                        loadTimeStamp();
+                                        loadLocal(Type.LONG_TYPE, tsIndex[0]);
+                                        visitInsn(LSUB);
                                     }
                                 }
                             };
@@ -1353,16 +1380,25 @@ public class Instrumentor extends ClassVisitor {
     }
 
     public void visitEnd() {
-        int size = applicableOnMethods.size();
+        if (handlers == null) {
+            introduceTimeStampHelper();
+            super.visitEnd();
+            return;
+        }
+        int size = applicableProbes.size();
         List<MethodCopier.MethodInfo> mi = new ArrayList<MethodCopier.MethodInfo>(size);
         for (OnMethod om : calledOnMethods) {
+            if (om.isCounted()) {
+                // the counted probe sites never call the action method
+                continue;
+            }
             mi.add(new MethodCopier.MethodInfo(om.getTargetName(),
                      om.getTargetDescriptor(),
                      getActionMethodName(om.getTargetName()),
                      ACC_STATIC | ACC_PRIVATE));
         }
         introduceTimeStampHelper();
-        MethodCopier copier = new MethodCopier(btraceClass, cv, mi, (version & 0x0000ffff) >= Opcodes.V1_6) {
+        MethodCopier copier = new MethodCopier(handlers, cv, mi, (version & 0x0000ffff) >= Opcodes.V1_6) {
             @Override
             protected MethodVisitor addMethod(int access, String name, String desc,
                         String signature, String[] exceptions) {
@@ -1373,8 +1409,9 @@ public class Instrumentor extends ClassVisitor {
                 return super.addMethod(access, name, desc, signature, exceptions);
             }
         };
+        // the copier ends the class in the delegate visitor as well;
+        // visiting the end twice would run the chained instrumentors twice
         copier.visitEnd();
-        super.visitEnd();
     }
 
 
@@ -1413,38 +1450,27 @@ public class Instrumentor extends ClassVisitor {
     }
 
     private void invokeBTraceAction(MethodInstrumentor mv, OnMethod om) {
-        mv.invokeStatic(className, getActionMethodName(om.getTargetName()),
-            om.getTargetDescriptor().replace(ANYTYPE_DESC, OBJECT_DESC));
+        mv.beginProbe();
+        if (om.isCounted()) {
+            // the counter increment replaces the whole action call
+            mv.incrementCounter(btraceClassName, Preprocessor.BTRACE_FIELD_PREFIX + om.getCounter());
+        } else if (handlers == null) {
+            mv.invokeStatic(btraceClassName, om.getTargetName(),
+                om.getTargetDescriptor().replace(ANYTYPE_DESC, OBJECT_DESC));
+        } else {
+            mv.invokeStatic(className, getActionMethodName(om.getTargetName()),
+                om.getTargetDescriptor().replace(ANYTYPE_DESC, OBJECT_DESC));
+        }
+        mv.endProbe();
         calledOnMethods.add(om);
     }
 
     private boolean matches(String pattern, String input) {
-        if (pattern.length() == 0) {
-            return false;
-        }
-        if (pattern.charAt(0) == '/' &&
-            REGEX_SPECIFIER.matcher(pattern).matches()) {
-            try {
-                return input.matches(pattern.substring(1, pattern.length() - 1));
-            } catch (PatternSyntaxException pse) {
-                reportPatternSyntaxException(pattern.substring(1, pattern.length() - 1));
-                return false;
-            }
-        } else {
-            return pattern.equals(input);
-        }
+        return plan.matches(pattern, input);
     }
 
     private boolean typeMatches(String decl, String desc) {
-        // empty type declaration matches any method signature
-        if (decl.isEmpty()) {
-            return true;
-        } else {
-            String d = TypeUtils.declarationToDescriptor(decl);
-            Type[] args1 = Type.getArgumentTypes(d);
-            Type[] args2 = Type.getArgumentTypes(desc);
-            return TypeUtils.isCompatible(args1, args2);
-        }
+        return plan.typeMatches(decl, desc);
     }
 
     private static boolean isInArray(String[] candidates, String given) {
@@ -1455,9 +1481,4 @@ public class Instrumentor extends ClassVisitor {
         }
         return false;
     }
-
-    private static void reportPatternSyntaxException(String pattern) {
-        System.err.println("btrace ERROR: invalid regex pattern - " + pattern);
-    }
 }
-
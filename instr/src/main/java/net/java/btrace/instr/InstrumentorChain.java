@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.instr;
+
+import java.util.ArrayList;
+import java.util.List;
+import net.java.btrace.org.objectweb.asm.ClassVisitor;
+import net.java.btrace.org.objectweb.asm.ClassWriter;
+
+/**
+ * Instruments a class for several BTrace scripts in one pass.
+ * <p>
+ * The target class is parsed once into a {@linkplain ClassInfo} which is
+ * used to check the class against the scripts' {@linkplain ClassFilter}s.
+ * The {@linkplain Instrumentor}s of all the added scripts are then stacked
+ * in front of a single {@linkplain ClassWriter} - the result is the same
+ * as instrumenting the class by each script in turn but the class is
+ * read and written only once.
+ *
+ * @author Jaroslav Bachorik
+ */
+final public class InstrumentorChain {
+    final private static class Probes {
+        final private String btraceClassName;
+        // null for the out-of-line handlers
+        final private TraceHandlers handlers;
+        final private MatchPlan plan;
+        private boolean guarded;
+
+        Probes(String btraceClassName, TraceHandlers handlers, MatchPlan plan) {
+            this.btraceClassName = btraceClassName;
+            this.handlers = handlers;
+            this.plan = plan;
+        }
+    }
+
+    final private Class clazz;
+    final private byte[] target;
+    final private ClassInfo info;
+    final private ClassHierarchy hierarchy;
+    final private List<Probes> probes = new ArrayList<Probes>(4);
+    private boolean[] matched;
+
+    /**
+     * @param clazz The class being redefined or <b>null</b> if the class is being loaded
+     * @param target The class file
+     */
+    public InstrumentorChain(Class clazz, byte[] target) {
+        this(clazz, target, null, null);
+    }
+
+    /**
+     * @param clazz The class being redefined or <b>null</b> if the class is being loaded
+     * @param target The class file
+     * @param loader The defining class loader; <b>null</b> for the bootstrap loader
+     * @param hierarchy The known classes to match the supertype probes against; may be <b>null</b>
+     */
+    public InstrumentorChain(Class clazz, byte[] target, ClassLoader loader, ClassHierarchy hierarchy) {
+        this.clazz = clazz;
+        this.target = target;
+        this.info = new ClassInfo(target, loader, hierarchy);
+        this.hierarchy = hierarchy;
+    }
+
+    /**
+     * @return The parsed class file header to check the {@linkplain ClassFilter}s against
+     */
+    public ClassInfo getClassInfo() {
+        return info;
+    }
+
+    /**
+     * Adds the probes of a BTrace script to the chain. The probes are applied in the order they were added.
+     * @param btraceClassName The BTrace class name
+     * @param btraceCode The preprocessed BTrace class
+     * @param onMethods The probes to apply
+     * @return The position of the script in the chain; used in {@linkplain #hasMatch(int)}
+     */
+    public int add(String btraceClassName, byte[] btraceCode, List<OnMethod> onMethods) {
+        return add(btraceClassName, btraceCode, new MatchPlan(onMethods));
+    }
+
+    /**
+     * Adds the compiled probes of a BTrace script to the chain. The probes are applied in the order they were added.
+     * @param btraceClassName The BTrace class name
+     * @param btraceCode The preprocessed BTrace class
+     * @param plan The compiled probes to apply
+     * @return The position of the script in the chain; used in {@linkplain #hasMatch(int)}
+     */
+    public int add(String btraceClassName, byte[] btraceCode, MatchPlan plan) {
+        return add(btraceClassName, new TraceHandlers(btraceCode), plan);
+    }
+
+    /**
+     * Adds the compiled probes of a BTrace script to the chain. The probes are applied in the order they were added.
+     * @param btraceClassName The BTrace class name
+     * @param handlers The parsed handlers of the preprocessed BTrace class
+     * @param plan The compiled probes to apply
+     * @return The position of the script in the chain; used in {@linkplain #hasMatch(int)}
+     */
+    public int add(String btraceClassName, TraceHandlers handlers, MatchPlan plan) {
+        probes.add(new Probes(btraceClassName, handlers, plan));
+        return probes.size() - 1;
+    }
+
+    /**
+     * Adds the compiled probes of a BTrace script calling the handlers of the BTrace class out-of-line.
+     * The probes are applied in the order they were added.
+     * @param btraceClassName The BTrace class name; the class has its handlers exported by {@linkplain HandlerExporter}
+     * @param plan The compiled probes to apply
+     * @return The position of the script in the chain; used in {@linkplain #hasMatch(int)}
+     */
+    public int add(String btraceClassName, MatchPlan plan) {
+        probes.add(new Probes(btraceClassName, null, plan));
+        return probes.size() - 1;
+    }
+
+    /**
+     * Makes the probe sites of a script check the disabled flags of the handlers
+     * in the BTrace class so the turned off probes skip the handler call
+     * @param index The position returned by {@linkplain #add(java.lang.String, byte[], java.util.List)}
+     */
+    public void setProbeGuards(int index, boolean guarded) {
+        probes.get(index).guarded = guarded;
+    }
+
+    public boolean isEmpty() {
+        return probes.isEmpty();
+    }
+
+    /**
+     * Runs the added scripts' instrumentors over the class
+     * @return The instrumented class or <b>null</b> if no probe has matched
+     */
+    public byte[] instrument() {
+        int size = probes.size();
+        matched = new boolean[size];
+        if (size == 0) {
+            return null;
+        }
+        ClassWriter writer = InstrumentUtils.newClassWriter(target);
+        Instrumentor[] instrumentors = new Instrumentor[size];
+        ClassVisitor cv = writer;
+        // the first added instrumentor must see the original class
+        for (int i = size - 1; i >= 0; i--) {
+            Probes p = probes.get(i);
+            cv = instrumentors[i] = p.handlers != null ? new Instrumentor(clazz, p.btraceClassName, p.handlers, p.plan, cv)
+                                                       : new Instrumentor(clazz, p.btraceClassName, p.plan, cv);
+            if (hierarchy != null) {
+                instrumentors[i].setClassInfo(info);
+            }
+            instrumentors[i].setProbeGuards(p.guarded);
+        }
+        InstrumentUtils.accept(info.getReader(), cv);
+
+        boolean any = false;
+        for (int i = 0; i < size; i++) {
+            matched[i] = instrumentors[i].hasMatch();
+            any |= matched[i];
+        }
+        return any ? writer.toByteArray() : null;
+    }
+
+    /**
+     * @param index The position returned by {@linkplain #add(java.lang.String, byte[], java.util.List)}
+     * @return <b>true</b> if any of the script's probes has been applied by the last {@linkplain #instrument()}
+     */
+    public boolean hasMatch(int index) {
+        return matched != null && matched[index];
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.instr;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import net.java.btrace.annotations.Kind;
+import net.java.btrace.org.objectweb.asm.Type;
+import static net.java.btrace.instr.Constants.*;
+
+/**
+ * The probes of a BTrace script compiled for matching.
+ * <p>
+ * The class, method and location name specifications of all the {@linkplain OnMethod}s
+ * are parsed once - the regular expressions are compiled and the method type declarations
+ * converted to argument types. A plan is created once per script and then shared by its
+ * {@linkplain ClassFilter} and by the {@linkplain Instrumentor}s of all the instrumented
+ * classes.
+ * <p>
+ * Instances are thread safe.
+ *
+ * @author Jaroslav Bachorik
+ */
+final public class MatchPlan {
+    /**
+     * A compiled name specification - either an exact name or a <code>/regex/</code>
+     */
+    final static class NameMatcher {
+        final private static NameMatcher NONE = new NameMatcher(null, null);
+
+        final private String exact;
+        final private Pattern pattern;
+
+        private NameMatcher(String exact, Pattern pattern) {
+            this.exact = exact;
+            this.pattern = pattern;
+        }
+
+        static NameMatcher compile(String spec) {
+            if (spec.length() == 0) {
+                return NONE;
+            }
+            if (spec.charAt(0) == '/' && REGEX_SPECIFIER.matcher(spec).matches()) {
+                String regex = spec.substring(1, spec.length() - 1);
+                try {
+                    return new NameMatcher(null, Pattern.compile(regex));
+                } catch (PatternSyntaxException pse) {
+                    System.err.println("btrace ERROR: invalid regex pattern - " + regex);
+                    return NONE;
+                }
+            }
+            return new NameMatcher(spec, null);
+        }
+
+        boolean matches(String name) {
+            if (exact != null) {
+                return exact.equals(name);
+            }
+            return pattern != null && pattern.matcher(name).matches();
+        }
+
+        /**
+         * @return The exact name or <b>null</b>
+         */
+        String getName() {
+            return exact;
+        }
+
+        /**
+         * @return The compiled regular expression or <b>null</b>
+         */
+        Pattern getPattern() {
+            return pattern;
+        }
+    }
+
+    /**
+     * How the probe selects the classes
+     */
+    static enum ClassMatch {
+        NAME, SUPERTYPE, ANNOTATION, NONE
+    }
+
+    /**
+     * One compiled {@linkplain OnMethod}
+     */
+    final static class Probe {
+        final OnMethod onMethod;
+        final ClassMatch classMatch;
+        // the class name, or the annotation type name for ANNOTATION
+        final NameMatcher clazz;
+        // SUPERTYPE only
+        final String superType, superTypeInternal;
+        // the method name; or the annotation type name if annotatedMethod
+        final NameMatcher method;
+        final boolean annotatedMethod;
+        final boolean anyMethod;
+        // null for any arguments
+        final Type[] argTypes;
+
+        private Probe(OnMethod om) {
+            this.onMethod = om;
+            String cls = om.getClazz();
+            String st = null;
+            if (cls.length() == 0) {
+                classMatch = ClassMatch.NONE;
+                clazz = NameMatcher.NONE;
+            } else if (cls.charAt(0) == '@') {
+                classMatch = ClassMatch.ANNOTATION;
+                clazz = NameMatcher.compile(cls.substring(1));
+            } else if (cls.charAt(0) == '+') {
+                classMatch = ClassMatch.SUPERTYPE;
+                st = cls.substring(1);
+                clazz = NameMatcher.compile(st);
+            } else {
+                classMatch = ClassMatch.NAME;
+                clazz = NameMatcher.compile(cls);
+            }
+            superType = st;
+            superTypeInternal = st != null ? st.replace('.', '/') : null;
+
+            String m = om.getMethod();
+            if (m.length() == 0) {
+                m = om.getTargetName();
+                if (m == null) {
+                    m = "";
+                }
+            }
+            annotatedMethod = m.length() > 0 && m.charAt(0) == '@';
+            method = annotatedMethod ? NameMatcher.compile(m.substring(1)) : NameMatcher.compile(m);
+            anyMethod = om.getLocation().getValue() == Kind.LINE;
+            argTypes = parseArgTypes(om.getType());
+        }
+
+        /**
+         * @return <b>true</b> if the probe applies to the method; does not check the method annotations
+         */
+        boolean matchesMethod(String name, String desc) {
+            if (anyMethod) {
+                return true;
+            }
+            return !annotatedMethod && method.matches(name) && argsMatch(argTypes, desc);
+        }
+
+        boolean matchesMethodAnnotation(String annoName) {
+            return annotatedMethod && method.matches(annoName);
+        }
+    }
+
+    final private List<OnMethod> onMethods;
+    final private Probe[] probes;
+    // the specs used by the probe locations; compiled on demand
+    final private ConcurrentMap<String, NameMatcher> names = new ConcurrentHashMap<String, NameMatcher>();
+    final private ConcurrentMap<String, Type[]> types = new ConcurrentHashMap<String, Type[]>();
+
+    public MatchPlan(List<OnMethod> onMethods) {
+        this.onMethods = Collections.unmodifiableList(new ArrayList<OnMethod>(onMethods));
+        this.probes = new Probe[onMethods.size()];
+        int i = 0;
+        for (OnMethod om : onMethods) {
+            probes[i++] = new Probe(om);
+            Location loc = om.getLocation();
+            nameMatcher(loc.getClazz());
+            nameMatcher(loc.getMethod());
+            nameMatcher(loc.getField());
+            argTypes(loc.getType());
+        }
+    }
+
+    public List<OnMethod> getOnMethods() {
+        return onMethods;
+    }
+
+    Probe[] getProbes() {
+        return probes;
+    }
+
+    /**
+     * @param spec An exact name or a <code>/regex/</code>; an empty spec matches nothing
+     * @return The compiled spec
+     */
+    NameMatcher nameMatcher(String spec) {
+        NameMatcher m = names.get(spec);
+        if (m == null) {
+            m = NameMatcher.compile(spec);
+            names.putIfAbsent(spec, m);
+        }
+        return m;
+    }
+
+    /**
+     * Equivalent to <code>input.matches(pattern)</code> for the <code>/pattern/</code> specs
+     * and to <code>input.equals(pattern)</code> for the exact names
+     */
+    boolean matches(String spec, String input) {
+        return nameMatcher(spec).matches(input);
+    }
+
+    /**
+     * @param decl The method type declaration (eg. <code>void (java.lang.String, int)</code>); empty matches any method
+     * @param desc The method descriptor
+     * @return <b>true</b> if the method argument types are compatible with the declaration
+     */
+    boolean typeMatches(String decl, String desc) {
+        return argsMatch(argTypes(decl), desc);
+    }
+
+    private Type[] argTypes(String decl) {
+        if (decl.length() == 0) {
+            return null;
+        }
+        Type[] t = types.get(decl);
+        if (t == null) {
+            t = parseArgTypes(decl);
+            types.putIfAbsent(decl, t);
+        }
+        return t;
+    }
+
+    private static Type[] parseArgTypes(String decl) {
+        if (decl.length() == 0) {
+            return null;
+        }
+        return Type.getArgumentTypes(TypeUtils.declarationToDescriptor(decl));
+    }
+
+    private static boolean argsMatch(Type[] argTypes, String desc) {
+        // no type declaration matches any method signature
+        return argTypes == null || TypeUtils.isCompatible(argTypes, Type.getArgumentTypes(desc));
+    }
+}
@@ -54,6 +54,7 @@ import static net.java.btrace.instr.Constants.CLASS_INITIALIZER;
  */
 public class MethodCopier extends ClassVisitor {
     private ClassReader fromClass;
+    private TraceHandlers fromHandlers;
     private Iterable<MethodInfo> methods;
     private final boolean keepStackMap;
 
@@ -80,6 +81,17 @@ public class MethodCopier extends ClassVisitor {
         this.keepStackMap = keepStackMap;
     }
 
+    /**
+     * Copies the methods from the already parsed handlers instead of reading the source class again
+     */
+    public MethodCopier(TraceHandlers fromHandlers, ClassVisitor toClass,
+                       Iterable<MethodInfo> methods, boolean keepStackMap) {
+        super(Opcodes.ASM4, toClass);
+        this.fromHandlers = fromHandlers;
+        this.methods = methods;
+        this.keepStackMap = keepStackMap;
+    }
+
     protected MethodVisitor addMethod(int access, String name, String desc,
                         String signature, String[] exceptions) {
         MethodVisitor mv = super.visitMethod(access, name, desc, 
@@ -97,6 +109,11 @@ public class MethodCopier extends ClassVisitor {
                 return null;
             }
 
+            @Override
+            public AnnotationVisitor visitParameterAnnotation(int i, String string, boolean bln) {
+                return null;
+            }
+
             @Override
             public void visitFrame(int i, int i1, Object[] os, int i2, Object[] os1) {
                 if (keepStackMap) super.visitFrame(i, i1, os, i2, os1);
@@ -119,6 +136,17 @@ public class MethodCopier extends ClassVisitor {
     }
     
     public void visitEnd() {
+        if (fromHandlers != null) {
+            for (TraceHandlers.Handler h : fromHandlers.getHandlers()) {
+                MethodInfo mi = getMethodInfo(h.name, h.desc);
+                if (mi != null) {
+                    h.accept(addMethod(mi.newAccess, mi.newName, h.desc,
+                                       h.signature, h.exceptions));
+                }
+            }
+            super.visitEnd();
+            return;
+        }
         fromClass.accept(new ClassVisitor(Opcodes.ASM4) {
             public MethodVisitor visitMethod(int access, String name, String desc, 
                 String signature, String[] exceptions) {
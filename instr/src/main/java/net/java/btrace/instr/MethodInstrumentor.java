@@ -25,16 +25,26 @@
 
 package net.java.btrace.instr;
 
+import net.java.btrace.org.objectweb.asm.Label;
 import net.java.btrace.org.objectweb.asm.MethodVisitor;
 import net.java.btrace.org.objectweb.asm.Type;
 import net.java.btrace.org.objectweb.asm.Opcodes;
+import net.java.btrace.runtime.ProbeConditions;
+import net.java.btrace.runtime.ProbeSampler;
 import net.java.btrace.util.LocalVariablesSorter;
+import net.java.btrace.util.TimeStampHelper;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import static net.java.btrace.org.objectweb.asm.Opcodes.*;
 import static net.java.btrace.instr.Constants.CONSTRUCTOR;
+import static net.java.btrace.instr.Constants.PROBE_COUNTER;
+import static net.java.btrace.instr.Constants.PROBE_COUNTER_DESC;
+import static net.java.btrace.instr.Constants.PROBE_COUNTER_INCREMENT;
+import static net.java.btrace.instr.Constants.PROBE_COUNTER_INCREMENT_DESC;
 
 /**
  * Base class for all out method instrumenting classes.
@@ -73,6 +83,26 @@ public class MethodInstrumentor extends MethodVisitor {
     public static final String JAVA_LANG_DOUBLE = 
         Type.getInternalName(Double.class);
 
+    public static final String PROBE_SAMPLER =
+        Type.getInternalName(ProbeSampler.class);
+    public static final String PROBE_SAMPLER_HIT = "hit";
+    public static final String PROBE_SAMPLER_HIT_DESC = "(II)Z";
+    public static final String PROBE_SAMPLER_RANDOM = "random";
+    public static final String PROBE_SAMPLER_RANDOM_DESC = "(I)Z";
+
+    public static final String PROBE_CONDITIONS =
+        Type.getInternalName(ProbeConditions.class);
+    public static final String PROBE_CONDITIONS_THREAD_NAME_MATCHES = "threadNameMatches";
+    public static final String PROBE_CONDITIONS_THREAD_NAME_MATCHES_DESC = "(I)Z";
+    public static final String JAVA_LANG_THREAD =
+        Type.getInternalName(Thread.class);
+    public static final String JAVA_LANG_THREAD_CURRENT_THREAD = "currentThread";
+    public static final String JAVA_LANG_THREAD_CURRENT_THREAD_DESC = "()Ljava/lang/Thread;";
+    public static final String JAVA_LANG_THREAD_GET_NAME = "getName";
+    public static final String JAVA_LANG_THREAD_GET_NAME_DESC = "()Ljava/lang/String;";
+    public static final String JAVA_LANG_STRING_EQUALS = "equals";
+    public static final String JAVA_LANG_STRING_EQUALS_DESC = "(Ljava/lang/Object;)Z";
+
     public static final String BOX_VALUEOF = "valueOf";
     public static final String BOX_BOOLEAN_DESC = "(Z)Ljava/lang/Boolean;";
     public static final String BOX_CHARACTER_DESC = "(C)Ljava/lang/Character;";
@@ -257,6 +287,20 @@ public class MethodInstrumentor extends MethodVisitor {
     private Type returnType;
     private Type[] argumentTypes;
     private Map<Integer, Type> extraTypes;
+    // the static flag turning the probe off; null if the probe sites are not guarded
+    private String guardOwner, guardField;
+    // the sampling state slot of the probe; -1 if the probe is not sampled
+    private int samplerId = -1;
+    private int samplingMean;
+    private boolean randomSampling;
+    // the local variable holding the sampling decision taken at the method entry; -1 if none
+    private int samplingDecisionIndex = -1;
+    // the conditions the invocation must satisfy to reach the probe site
+    private List<ProbeCondition> conditions = Collections.emptyList();
+    // the entry and exit time stamp locals shared with the time stamp generator
+    private int[] tsIndex;
+    // the end of the currently guarded probe site
+    private Label guardEnd;
 
     public MethodInstrumentor(MethodVisitor mv, String parentClz, String superClz,
         int access, String name, String desc) {
@@ -297,7 +341,323 @@ public class MethodInstrumentor extends MethodVisitor {
         }
     }
 
+    /**
+     * Makes each probe site skipped while the given static boolean flag is set
+     * @param owner The internal name of the class holding the flag
+     * @param field The flag name
+     */
+    void setProbeGuard(String owner, String field) {
+        this.guardOwner = owner;
+        this.guardField = field;
+    }
+
+    /**
+     * Makes each probe site skipped for the invocations not sampled
+     * @param samplerId The sampling state slot
+     * @param mean The average number of invocations per one sampled
+     * @param random <b>true</b> for the probabilistic sampling, <b>false</b> for the counter based one
+     */
+    void setSampling(int samplerId, int mean, boolean random) {
+        this.samplerId = samplerId;
+        this.samplingMean = mean;
+        this.randomSampling = random;
+    }
+
+    public boolean isSampled() {
+        return samplerId != -1;
+    }
+
+    /**
+     * Pushes the sampling decision for the current invocation on the stack
+     */
+    public void loadSamplingDecision() {
+        if (randomSampling) {
+            push(samplingMean);
+            super.visitMethodInsn(INVOKESTATIC, PROBE_SAMPLER, PROBE_SAMPLER_RANDOM, PROBE_SAMPLER_RANDOM_DESC);
+        } else {
+            push(samplerId);
+            push(samplingMean);
+            super.visitMethodInsn(INVOKESTATIC, PROBE_SAMPLER, PROBE_SAMPLER_HIT, PROBE_SAMPLER_HIT_DESC);
+        }
+    }
+
+    /**
+     * Makes the probe sites use the sampling decision taken at the method entry
+     * @param index The local variable holding the decision
+     */
+    public void setSamplingDecision(int index) {
+        this.samplingDecisionIndex = index;
+    }
+
+    /**
+     * Makes each probe site skipped for the invocations not satisfying all the conditions
+     * @param conditions The probe point conditions
+     * @param tsIndex The time stamp locals for the {@linkplain net.java.btrace.annotations.Condition.Check#DURATION} conditions
+     */
+    void setConditions(List<ProbeCondition> conditions, int[] tsIndex) {
+        this.conditions = conditions;
+        this.tsIndex = tsIndex;
+    }
+
+    /**
+     * Pushes the current invocation duration on the stack; 0 if not measured
+     */
+    protected void loadDuration() {
+        if (tsIndex != null && tsIndex[0] != -1 && tsIndex[1] != -1) {
+            loadLocal(Type.LONG_TYPE, tsIndex[1]);
+            loadLocal(Type.LONG_TYPE, tsIndex[0]);
+            super.visitInsn(LSUB);
+        } else if (tsIndex != null && tsIndex[0] != -1 && isSampled()) {
+            // the exit time stamp of a sampled invocation
+            loadTimeStamp();
+            loadLocal(Type.LONG_TYPE, tsIndex[0]);
+            super.visitInsn(LSUB);
+        } else {
+            super.visitInsn(LCONST_0);
+        }
+    }
+
+    /**
+     * Pushes the current time stamp on the stack
+     */
+    protected void loadTimeStamp() {
+        TimeStampHelper.generateTimeStampAccess(mv, parentClz);
+    }
+
+    /**
+     * Starts the probe site - the action arguments are about to be loaded.
+     * Checks the probe flag and the sampling, if set, and jumps over the site
+     * when the probe is off or the invocation is not sampled.
+     * Called repeatedly for the same site it has no effect.
+     */
+    protected void beginProbe() {
+        if (guardEnd != null) {
+            return;
+        }
+        if (guardField != null) {
+            guardEnd = new Label();
+            super.visitFieldInsn(GETSTATIC, guardOwner, guardField, Type.BOOLEAN_TYPE.getDescriptor());
+            super.visitJumpInsn(IFNE, guardEnd);
+        }
+        if (isSampled()) {
+            if (guardEnd == null) {
+                guardEnd = new Label();
+            }
+            if (samplingDecisionIndex != -1) {
+                loadLocal(Type.BOOLEAN_TYPE, samplingDecisionIndex);
+            } else {
+                loadSamplingDecision();
+            }
+            super.visitJumpInsn(IFEQ, guardEnd);
+        }
+        if (!conditions.isEmpty()) {
+            if (guardEnd == null) {
+                guardEnd = new Label();
+            }
+            for (ProbeCondition c : conditions) {
+                checkCondition(c, guardEnd);
+            }
+        }
+    }
+
+    /**
+     * Increments a {@linkplain net.java.btrace.runtime.ProbeCounter} held in a static field
+     * @param owner The internal name of the class holding the counter
+     * @param field The counter field name
+     */
+    protected void incrementCounter(String owner, String field) {
+        super.visitFieldInsn(GETSTATIC, owner, field, PROBE_COUNTER_DESC);
+        super.visitMethodInsn(INVOKEVIRTUAL, PROBE_COUNTER, PROBE_COUNTER_INCREMENT, PROBE_COUNTER_INCREMENT_DESC);
+    }
+
+    /**
+     * Jumps to the given label unless the condition holds
+     */
+    private void checkCondition(ProbeCondition c, Label skip) {
+        switch (c.getCheck()) {
+            case ARG_EQUALS: {
+                Type t = argumentType(c.getArg());
+                if (t == null) {
+                    super.visitJumpInsn(GOTO, skip);
+                } else if (t.equals(TypeUtils.stringType)) {
+                    super.visitLdcInsn(c.getValue());
+                    loadLocal(t, argumentIndex(c.getArg()));
+                    super.visitMethodInsn(INVOKEVIRTUAL, JAVA_LANG_STRING, JAVA_LANG_STRING_EQUALS, JAVA_LANG_STRING_EQUALS_DESC);
+                    super.visitJumpInsn(IFEQ, skip);
+                } else if (t.equals(Type.FLOAT_TYPE)) {
+                    // a literal like "0.1" must be rounded to float the same way the argument was
+                    Float val = parseFloat(c.getValue());
+                    if (val == null) {
+                        super.visitJumpInsn(GOTO, skip);
+                        break;
+                    }
+                    loadLocal(t, argumentIndex(c.getArg()));
+                    super.visitLdcInsn(val);
+                    super.visitInsn(FCMPL);
+                    super.visitJumpInsn(IFNE, skip);
+                } else if (t.equals(Type.DOUBLE_TYPE)) {
+                    Double val = parseDouble(c.getValue());
+                    if (val == null) {
+                        super.visitJumpInsn(GOTO, skip);
+                        break;
+                    }
+                    loadDoubleArgument(t, c.getArg());
+                    super.visitLdcInsn(val);
+                    super.visitInsn(DCMPL);
+                    super.visitJumpInsn(IFNE, skip);
+                } else if (t.getSort() >= Type.BOOLEAN && t.getSort() <= Type.LONG) {
+                    Long val = parseLong(t, c.getValue());
+                    if (val == null) {
+                        super.visitJumpInsn(GOTO, skip);
+                        break;
+                    }
+                    loadLongArgument(t, c.getArg());
+                    super.visitLdcInsn(val);
+                    super.visitInsn(LCMP);
+                    super.visitJumpInsn(IFNE, skip);
+                } else {
+                    super.visitJumpInsn(GOTO, skip);
+                }
+                break;
+            }
+            case ARG_RANGE: {
+                Type t = argumentType(c.getArg());
+                if (t == null || t.getSort() < Type.CHAR || t.getSort() > Type.DOUBLE) {
+                    super.visitJumpInsn(GOTO, skip);
+                } else if (t.equals(Type.FLOAT_TYPE) || t.equals(Type.DOUBLE_TYPE)) {
+                    if (c.getMin() != Long.MIN_VALUE) {
+                        loadDoubleArgument(t, c.getArg());
+                        super.visitLdcInsn(Double.valueOf(c.getMin()));
+                        // NaN is out of range
+                        super.visitInsn(DCMPL);
+                        super.visitJumpInsn(IFLT, skip);
+                    }
+                    if (c.getMax() != Long.MAX_VALUE) {
+                        loadDoubleArgument(t, c.getArg());
+                        super.visitLdcInsn(Double.valueOf(c.getMax()));
+                        super.visitInsn(DCMPG);
+                        super.visitJumpInsn(IFGT, skip);
+                    }
+                } else {
+                    if (c.getMin() != Long.MIN_VALUE) {
+                        loadLongArgument(t, c.getArg());
+                        super.visitLdcInsn(Long.valueOf(c.getMin()));
+                        super.visitInsn(LCMP);
+                        super.visitJumpInsn(IFLT, skip);
+                    }
+                    if (c.getMax() != Long.MAX_VALUE) {
+                        loadLongArgument(t, c.getArg());
+                        super.visitLdcInsn(Long.valueOf(c.getMax()));
+                        super.visitInsn(LCMP);
+                        super.visitJumpInsn(IFGT, skip);
+                    }
+                }
+                break;
+            }
+            case DURATION: {
+                if (c.getMin() != Long.MIN_VALUE) {
+                    loadDuration();
+                    super.visitLdcInsn(Long.valueOf(c.getMin()));
+                    super.visitInsn(LCMP);
+                    super.visitJumpInsn(IFLT, skip);
+                }
+                if (c.getMax() != Long.MAX_VALUE) {
+                    loadDuration();
+                    super.visitLdcInsn(Long.valueOf(c.getMax()));
+                    super.visitInsn(LCMP);
+                    super.visitJumpInsn(IFGT, skip);
+                }
+                break;
+            }
+            case THREAD_NAME: {
+                if (c.getPatternId() != -1) {
+                    push(c.getPatternId());
+                    super.visitMethodInsn(INVOKESTATIC, PROBE_CONDITIONS, PROBE_CONDITIONS_THREAD_NAME_MATCHES, PROBE_CONDITIONS_THREAD_NAME_MATCHES_DESC);
+                } else {
+                    super.visitLdcInsn(c.getValue());
+                    super.visitMethodInsn(INVOKESTATIC, JAVA_LANG_THREAD, JAVA_LANG_THREAD_CURRENT_THREAD, JAVA_LANG_THREAD_CURRENT_THREAD_DESC);
+                    super.visitMethodInsn(INVOKEVIRTUAL, JAVA_LANG_THREAD, JAVA_LANG_THREAD_GET_NAME, JAVA_LANG_THREAD_GET_NAME_DESC);
+                    super.visitMethodInsn(INVOKEVIRTUAL, JAVA_LANG_STRING, JAVA_LANG_STRING_EQUALS, JAVA_LANG_STRING_EQUALS_DESC);
+                }
+                super.visitJumpInsn(IFEQ, skip);
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return The type of the given probed method parameter; <b>null</b> if there is no such parameter
+     */
+    private Type argumentType(int arg) {
+        return arg >= 0 && arg < argumentTypes.length ? argumentTypes[arg] : null;
+    }
+
+    private int argumentIndex(int arg) {
+        int ptr = isStatic() ? 0 : 1;
+        for (int i = 0; i < arg; i++) {
+            ptr += argumentTypes[i].getSize();
+        }
+        return ptr;
+    }
+
+    private void loadLongArgument(Type t, int arg) {
+        loadLocal(t, argumentIndex(arg));
+        if (!t.equals(Type.LONG_TYPE)) {
+            super.visitInsn(I2L);
+        }
+    }
+
+    private void loadDoubleArgument(Type t, int arg) {
+        loadLocal(t, argumentIndex(arg));
+        if (t.equals(Type.FLOAT_TYPE)) {
+            super.visitInsn(F2D);
+        }
+    }
+
+    private static Long parseLong(Type t, String value) {
+        if (t.equals(Type.BOOLEAN_TYPE)) {
+            if ("true".equals(value)) return 1L;
+            if ("false".equals(value)) return 0L;
+            return null;
+        }
+        if (t.equals(Type.CHAR_TYPE) && value.length() == 1) {
+            return (long)value.charAt(0);
+        }
+        try {
+            return Long.valueOf(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static Float parseFloat(String value) {
+        try {
+            return Float.valueOf(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static Double parseDouble(String value) {
+        try {
+            return Double.valueOf(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Ends the probe site - the action has been called
+     */
+    protected void endProbe() {
+        if (guardEnd != null) {
+            super.visitLabel(guardEnd);
+            guardEnd = null;
+        }
+    }
+
     protected void loadArguments(ArgumentProvider ... argumentProviders) {
+        beginProbe();
         Arrays.sort(argumentProviders, new Comparator<ArgumentProvider>() {
             public int compare(ArgumentProvider o1, ArgumentProvider o2) {
                 if (o1 == null && o2 == null) {
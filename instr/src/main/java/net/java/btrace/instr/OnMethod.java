@@ -25,6 +25,12 @@
 
 package net.java.btrace.instr;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import net.java.btrace.annotations.Condition;
+import net.java.btrace.annotations.Sampled;
+
 /**
  * This class is used to store data of the annotation
  * net.java.btrace.annotations.OnMethod. We can not read the
@@ -41,6 +47,13 @@ public class OnMethod {
     private String method = "";
     private String type = "";
     private Location loc = new Location();
+    private int samplingMean = 1;
+    private Sampled.Sampler sampler = Sampled.Sampler.COUNTER;
+    // the per-thread sampling state slot; -1 if not sampled
+    private int samplerId = -1;
+    private List<ProbeCondition> conditions = Collections.emptyList();
+    // the counter field incremented in place of calling the handler; null if none
+    private String counter;
     // target method name on which this annotation is specified
     private String targetName;
     // target method descriptor on which this annotation is specified
@@ -64,6 +77,11 @@ public class OnMethod {
         setMethod(other.getMethod());
         setType(other.getType());
         setLocation(other.getLocation());
+        setSamplingMean(other.getSamplingMean());
+        setSampler(other.getSampler());
+        setSamplerId(other.getSamplerId());
+        conditions = other.conditions;
+        setCounter(other.getCounter());
     }
 
     public String getClazz() {
@@ -98,6 +116,66 @@ public class OnMethod {
         this.loc = loc;
     }
 
+    public int getSamplingMean() {
+        return samplingMean;
+    }
+
+    public void setSamplingMean(int samplingMean) {
+        this.samplingMean = samplingMean;
+    }
+
+    public Sampled.Sampler getSampler() {
+        return sampler;
+    }
+
+    public void setSampler(Sampled.Sampler sampler) {
+        this.sampler = sampler;
+    }
+
+    public int getSamplerId() {
+        return samplerId;
+    }
+
+    public void setSamplerId(int samplerId) {
+        this.samplerId = samplerId;
+    }
+
+    public boolean isSampled() {
+        return samplingMean > 1 && samplerId != -1;
+    }
+
+    public List<ProbeCondition> getConditions() {
+        return conditions;
+    }
+
+    public void addCondition(ProbeCondition condition) {
+        if (conditions.isEmpty()) {
+            conditions = new ArrayList<ProbeCondition>();
+        }
+        conditions.add(condition);
+    }
+
+    public boolean hasCondition(Condition.Check check) {
+        for (ProbeCondition c : conditions) {
+            if (c.getCheck() == check) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public String getCounter() {
+        return counter;
+    }
+
+    public void setCounter(String counter) {
+        this.counter = counter;
+    }
+
+    public boolean isCounted() {
+        return counter != null;
+    }
+
     public String getTargetName() {
         return targetName;
     }
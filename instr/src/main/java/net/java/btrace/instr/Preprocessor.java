@@ -28,11 +28,14 @@ package net.java.btrace.instr;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import static net.java.btrace.org.objectweb.asm.Opcodes.*;
 import static net.java.btrace.instr.Constants.*;
 import net.java.btrace.runtime.BTraceRuntime;
+import net.java.btrace.runtime.ProbeStats;
 import net.java.btrace.annotations.Export;
 import net.java.btrace.annotations.Property;
 import net.java.btrace.annotations.TLS;
@@ -72,6 +75,13 @@ import net.java.btrace.org.objectweb.asm.Type;
  *       BTraceRuntime.handleException on exception catch
  *    7. add a field to store client's BTraceRuntime instance
  *    8. strip the synthetic method calls to BTrace inline markers
+ *    9. pass the stored BTraceRuntime instance to the BTraceRuntime
+ *       calls made from the prolog and epilog so they don't need to
+ *       look up the current runtime
+ *   10. add a static flag per BTrace action method to turn it off
+ *       and return from the method right away when the flag is set
+ *   11. replace @Counter fields by ProbeCounter fields created
+ *       in <clinit> and replace put/get by counter reset/sum
  *
  * 
  * @author A. Sundararajan
@@ -96,6 +106,15 @@ public class Preprocessor extends ClassVisitor {
         Type.getDescriptor(BTraceRuntime.class);
 
     public static final String BTRACE_RUNTIME_FIELD_NAME = "runtime";
+    // per-handler invocation statistics
+    public static final String PROBE_STATS =
+        Type.getInternalName(ProbeStats.class);
+    public static final String PROBE_STATS_DESC =
+        Type.getDescriptor(ProbeStats.class);
+    public static final String PROBE_STATS_ENTER = "enter";
+    public static final String PROBE_STATS_ENTER_DESC = "(" + PROBE_STATS_DESC + ")Z";
+    public static final String PROBE_STATS_LEAVE = "leave";
+    public static final String PROBE_STATS_LEAVE_DESC = "(" + PROBE_STATS_DESC + ")V";
     public static final String BTRACE_FIELD_PREFIX = "$";
 
     public static final String BTRACE_RUNTIME_HANDLE_EXCEPTION;
@@ -138,7 +157,7 @@ public class Preprocessor extends ClassVisitor {
            Method handleException = 
                        BTraceRuntime.class.getMethod(
                        "handleException", 
-                       new Class[] { Throwable.class });
+                       new Class[] { Throwable.class, BTraceRuntime.class });
            BTRACE_RUNTIME_HANDLE_EXCEPTION = 
                        handleException.getName();
            BTRACE_RUNTIME_HANDLE_EXCEPTION_DESC = 
@@ -160,7 +179,7 @@ public class Preprocessor extends ClassVisitor {
 
            Method start = BTraceRuntime.class.getMethod(
                        "start",
-                       new Class[0]);
+                       new Class[] { BTraceRuntime.class });
            BTRACE_RUNTIME_START = start.getName();
            BTRACE_RUNTIME_START_DESC = 
                        Type.getMethodDescriptor(start);
@@ -274,15 +293,34 @@ public class Preprocessor extends ClassVisitor {
     private List<FieldDescriptor> fields;
     private Map<String, FieldDescriptor> threadLocalFields;
     private Map<String, FieldDescriptor> exportFields;
+    private Map<String, FieldDescriptor> counterFields;
+    // names of the BTrace action methods; each gets its disabled flag
+    private Set<String> handlerNames;
+    // names of the @OnMethod handlers keeping their invocation statistics
+    private Set<String> statsNames;
+    final private boolean probeStats;
 
     // flag to tell whether we have seen <clinit> or not
     private boolean classInitializerFound;
 
     public Preprocessor(ClassVisitor cv) {
+        this(cv, false);
+    }
+
+    /**
+     * @param cv The class visitor to delegate to
+     * @param probeStats Makes the @OnMethod handlers update their {@linkplain ProbeStats}
+     *                   kept in the static "$stats$&lt;handler&gt;" fields
+     */
+    public Preprocessor(ClassVisitor cv, boolean probeStats) {
         super(Opcodes.ASM4, cv);
         fields = new ArrayList<FieldDescriptor>();
         threadLocalFields = new HashMap<String, FieldDescriptor>();
         exportFields = new HashMap<String, FieldDescriptor>();
+        counterFields = new HashMap<String, FieldDescriptor>();
+        handlerNames = new LinkedHashSet<String>();
+        statsNames = new LinkedHashSet<String>();
+        this.probeStats = probeStats;
     }
 
     public void visit(int version,
@@ -357,6 +395,7 @@ public class Preprocessor extends ClassVisitor {
         boolean isThreadLocal;
         boolean isExport;
         boolean isProperty;
+        boolean isCounter;
         String propertyName;
         String propertyDescription;
         int var = -1;
@@ -387,6 +426,7 @@ public class Preprocessor extends ClassVisitor {
             boolean isExport;
             boolean isThreadLocal;
             boolean isProperty;
+            boolean isCounter;
             String propName = "";
             String propDescription = "";
             
@@ -395,6 +435,8 @@ public class Preprocessor extends ClassVisitor {
                     isThreadLocal = true;
                 } else if (desc.equals(BTRACE_EXPORT_DESC)) {
                     isExport = true;                    
+                } else if (desc.equals(COUNTER_DESC)) {
+                    isCounter = true;
                 } else if (desc.equals(BTRACE_PROPERTY_DESC)) {
                     isProperty = true;
                     return new AnnotationVisitor(Opcodes.ASM4) {
@@ -420,11 +462,14 @@ public class Preprocessor extends ClassVisitor {
                                     signature, value, attrs,
                                     isThreadLocal, isExport, isProperty,
                                     propName, propDescription);
+                fd.isCounter = isCounter;
                 fields.add(fd);
                 if (isThreadLocal) {         
                     threadLocalFields.put(name, fd);
                 } else if (isExport) {
                     exportFields.put(name, fd);
+                } else if (isCounter) {
+                    counterFields.put(name, fd);
                 }
             }
         };
@@ -460,6 +505,11 @@ public class Preprocessor extends ClassVisitor {
                 fieldDesc = JAVA_LANG_THREAD_LOCAL_DESC;
                 fieldSignature = null;
                 fieldValue = null;
+            } else if (fd.isCounter) {
+                fieldAccess &= ~ACC_FINAL;
+                fieldDesc = PROBE_COUNTER_DESC;
+                fieldSignature = null;
+                fieldValue = null;
             }
 
             fieldAccess &= ~ACC_PRIVATE;
@@ -485,6 +535,15 @@ public class Preprocessor extends ClassVisitor {
         // add a special field to store client's BTraceRuntime
         super.visitField(ACC_PUBLIC|ACC_STATIC, BTRACE_RUNTIME_FIELD_NAME,
                    BTRACE_RUNTIME_DESC, null, null);        
+
+        for (String handlerName : handlerNames) {
+            super.visitField(ACC_PUBLIC|ACC_STATIC|ACC_VOLATILE, BTRACE_PROBE_DISABLED_PREFIX + handlerName,
+                       Type.BOOLEAN_TYPE.getDescriptor(), null, null);
+        }
+        for (String handlerName : statsNames) {
+            super.visitField(ACC_PUBLIC|ACC_STATIC, BTRACE_PROBE_STATS_PREFIX + handlerName,
+                       PROBE_STATS_DESC, null, null);
+        }
     }
 
     public MethodVisitor visitMethod(int access, String name, 
@@ -524,6 +583,9 @@ public class Preprocessor extends ClassVisitor {
             
             return new MethodInstrumentor(adaptee, className, superName, access, name, desc) {
                 private boolean isBTraceHandler = false;
+                private boolean hasStats = false;
+                // a counted handler is never called by its probe points
+                private boolean isCounted = false;
                 private Label start = new Label();
                 private Label handler = new Label();
                 private int nextVar = 0;
@@ -658,15 +720,39 @@ public class Preprocessor extends ClassVisitor {
                 public AnnotationVisitor visitAnnotation(String name, boolean bln) {
                     if (name.startsWith("Lnet/java/btrace/annotations/")) {
                         isBTraceHandler = true;
+                        hasStats |= probeStats && (name.equals(ONMETHOD_DESC) || name.equals(ONPROBE_DESC));
                     } else {
                         isBTraceHandler = false;
                     }
-                    return super.visitAnnotation(name, bln);
+                    AnnotationVisitor av = super.visitAnnotation(name, bln);
+                    if (name.equals(ONMETHOD_DESC)) {
+                        return new AnnotationVisitor(Opcodes.ASM4, av) {
+                            @Override
+                            public void visit(String name, Object value) {
+                                if (name.equals("counter") && !"".equals(value)) {
+                                    isCounted = true;
+                                }
+                                super.visit(name, value);
+                            }
+                        };
+                    }
+                    return av;
                 }
 
 
 
                 public void visitCode() {
+                    if (isBTraceHandler && !isClassInitializer) {
+                        // a disabled handler returns before entering the runtime
+                        handlerNames.add(getName());
+                        Label enabled = new Label();
+                        super.visitFieldInsn(GETSTATIC, className,
+                                       BTRACE_PROBE_DISABLED_PREFIX + getName(),
+                                       Type.BOOLEAN_TYPE.getDescriptor());
+                        super.visitJumpInsn(IFEQ, enabled);
+                        super.visitInsn(RETURN);
+                        super.visitLabel(enabled);
+                    }
                     if (isClassInitializer || isBTraceHandler) {
                         visitTryCatchBlock(start, handler, handler,
                                         JAVA_LANG_THROWABLE);
@@ -679,6 +765,15 @@ public class Preprocessor extends ClassVisitor {
                              super.visitFieldInsn(PUTSTATIC, className,
                                        BTRACE_RUNTIME_FIELD_NAME,
                                        BTRACE_RUNTIME_DESC);
+                             // the counters must exist before any probe point or initializer uses them
+                             for (FieldDescriptor fd : counterFields.values()) {
+                                 super.visitTypeInsn(NEW, PROBE_COUNTER);
+                                 super.visitInsn(DUP);
+                                 super.visitMethodInsn(INVOKESPECIAL, PROBE_COUNTER, CONSTRUCTOR, "()V");
+                                 super.visitFieldInsn(PUTSTATIC, className,
+                                           BTRACE_FIELD_PREFIX + fd.name,
+                                           PROBE_COUNTER_DESC);
+                             }
                         }
                         visitFieldInsn(GETSTATIC, className,
                                        BTRACE_RUNTIME_FIELD_NAME,
@@ -709,10 +804,42 @@ public class Preprocessor extends ClassVisitor {
                         visitJumpInsn(IFNE, start);
                         super.visitInsn(RETURN);
                         visitLabel(start);
+                        if (hasStats() && !isClassInitializer) {
+                            // a sampled out invocation leaves the runtime right away
+                            statsNames.add(getName());
+                            Label handled = new Label();
+                            loadStats();
+                            super.visitMethodInsn(INVOKESTATIC, PROBE_STATS,
+                                            PROBE_STATS_ENTER, PROBE_STATS_ENTER_DESC);
+                            super.visitJumpInsn(IFNE, handled);
+                            visitInsn(RETURN);
+                            super.visitLabel(handled);
+                        }
                     }
                     super.visitCode();
                 }
 
+                private void loadStats() {
+                    super.visitFieldInsn(GETSTATIC, className,
+                                   BTRACE_PROBE_STATS_PREFIX + getName(),
+                                   PROBE_STATS_DESC);
+                }
+
+                /**
+                 * The counted probe points bypass the handler; its statistics would stay empty
+                 */
+                private boolean hasStats() {
+                    return hasStats && !isCounted;
+                }
+
+                private void leaveStats() {
+                    if (hasStats() && !isClassInitializer) {
+                        loadStats();
+                        super.visitMethodInsn(INVOKESTATIC, PROBE_STATS,
+                                        PROBE_STATS_LEAVE, PROBE_STATS_LEAVE_DESC);
+                    }
+                }
+
                 public void visitFieldInsn(int opcode, String owner, 
                                                String name, String desc) {
                     String fieldName = name;
@@ -738,6 +865,21 @@ public class Preprocessor extends ClassVisitor {
                                 generateThreadLocalPut(fd);
                             }
                             return;
+                        }
+
+                        if (counterFields.get(name) != null) {
+                            if (opcode == GETSTATIC) {
+                                super.visitFieldInsn(GETSTATIC, className, fieldName, PROBE_COUNTER_DESC);
+                                super.visitMethodInsn(INVOKEVIRTUAL, PROBE_COUNTER,
+                                                PROBE_COUNTER_SUM, PROBE_COUNTER_SUM_DESC);
+                            } else {
+                                super.visitFieldInsn(GETSTATIC, className, fieldName, PROBE_COUNTER_DESC);
+                                super.visitInsn(DUP_X2);
+                                super.visitInsn(POP);
+                                super.visitMethodInsn(INVOKEVIRTUAL, PROBE_COUNTER,
+                                                PROBE_COUNTER_SET, PROBE_COUNTER_SET_DESC);
+                            }
+                            return;
                         } // else fall through
                     } // else fall through
                     super.visitFieldInsn(opcode, owner, fieldName, desc);
@@ -767,11 +909,15 @@ public class Preprocessor extends ClassVisitor {
                                         BTRACE_FIELD_PREFIX + fd.name,
                                         JAVA_LANG_THREAD_LOCAL_DESC);
                             }
+                            super.visitFieldInsn(GETSTATIC, className,
+                                BTRACE_RUNTIME_FIELD_NAME,
+                                BTRACE_RUNTIME_DESC);
                             visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
                                 BTRACE_RUNTIME_START,
                                 BTRACE_RUNTIME_START_DESC);
                         } else {
                             if (isBTraceHandler) {
+                                leaveStats();
                                 visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
                                     BTRACE_RUNTIME_LEAVE, 
                                     BTRACE_RUNTIME_LEAVE_DESC);
@@ -784,6 +930,10 @@ public class Preprocessor extends ClassVisitor {
                 public void visitMaxs(int maxStack, int maxLocals) {
                     visitLabel(handler);
                     if (isClassInitializer || isBTraceHandler) {
+                        leaveStats();
+                        super.visitFieldInsn(GETSTATIC, className,
+                                        BTRACE_RUNTIME_FIELD_NAME,
+                                        BTRACE_RUNTIME_DESC);
                         visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
                                         BTRACE_RUNTIME_HANDLE_EXCEPTION,
                                         BTRACE_RUNTIME_HANDLE_EXCEPTION_DESC);
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.instr;
+
+import net.java.btrace.annotations.Condition;
+
+/**
+ * This class is used to store data of the annotation
+ * net.java.btrace.annotations.Condition. The annotation is
+ * read while parsing the BTrace class, the same way as the
+ * enclosing OnMethod annotation.
+ *
+ * @author Jaroslav Bachorik
+ */
+public class ProbeCondition {
+    private Condition.Check check;
+    private int arg = -1;
+    private String value = "";
+    private long min = Long.MIN_VALUE;
+    private long max = Long.MAX_VALUE;
+    // the thread name pattern slot; -1 if the thread name is matched exactly
+    private int patternId = -1;
+
+    public Condition.Check getCheck() {
+        return check;
+    }
+
+    public void setCheck(Condition.Check check) {
+        this.check = check;
+    }
+
+    public int getArg() {
+        return arg;
+    }
+
+    public void setArg(int arg) {
+        this.arg = arg;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public void setValue(String value) {
+        this.value = value;
+    }
+
+    public long getMin() {
+        return min;
+    }
+
+    public void setMin(long min) {
+        this.min = min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public void setMax(long max) {
+        this.max = max;
+    }
+
+    public int getPatternId() {
+        return patternId;
+    }
+
+    public void setPatternId(int patternId) {
+        this.patternId = patternId;
+    }
+
+    @Override
+    public String toString() {
+        return "ProbeCondition{" + "check=" + check + ", arg=" + arg + ", value=" + value + ", min=" + min + ", max=" + max + '}';
+    }
+}
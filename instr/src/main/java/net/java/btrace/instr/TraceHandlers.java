@@ -0,0 +1,382 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.instr;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import net.java.btrace.org.objectweb.asm.ClassReader;
+import net.java.btrace.org.objectweb.asm.ClassVisitor;
+import net.java.btrace.org.objectweb.asm.Handle;
+import net.java.btrace.org.objectweb.asm.Label;
+import net.java.btrace.org.objectweb.asm.MethodVisitor;
+import net.java.btrace.org.objectweb.asm.Opcodes;
+import static net.java.btrace.instr.Constants.CLASS_INITIALIZER;
+import static net.java.btrace.instr.Constants.CONSTRUCTOR;
+
+/**
+ * The handler methods of a preprocessed BTrace class kept in a parsed form.
+ * <p>
+ * The BTrace class is read only once; the {@linkplain MethodCopier} then
+ * replays just the handlers an instrumented class calls instead of
+ * parsing the whole BTrace class again for each instrumented class.
+ * Each replay uses its own labels so the instance can be shared by
+ * concurrent instrumentations.
+ *
+ * @author Jaroslav Bachorik
+ */
+final public class TraceHandlers {
+    /**
+     * A recorded handler method
+     */
+    final static class Handler {
+        final int access;
+        final String name, desc, signature;
+        final String[] exceptions;
+        final private List<Insn> code = new ArrayList<Insn>();
+        private int labels = 0;
+
+        private Handler(int access, String name, String desc, String signature, String[] exceptions) {
+            this.access = access;
+            this.name = name;
+            this.desc = desc;
+            this.signature = signature;
+            this.exceptions = exceptions;
+        }
+
+        /**
+         * Replays the method code and ends the method in the given visitor
+         */
+        void accept(MethodVisitor mv) {
+            Label[] ls = new Label[labels];
+            for (int i = 0; i < ls.length; i++) {
+                ls[i] = new Label();
+            }
+            mv.visitCode();
+            for (Insn i : code) {
+                i.accept(mv, ls);
+            }
+            mv.visitEnd();
+        }
+    }
+
+    private abstract static class Insn {
+        abstract void accept(MethodVisitor mv, Label[] ls);
+    }
+
+    /**
+     * Records the method code; labels are recorded as indices to be
+     * resolved against a fresh set of labels on each replay
+     */
+    final private static class Recorder extends MethodVisitor {
+        final private Handler h;
+        final private Map<Label, Integer> labelIds = new IdentityHashMap<Label, Integer>();
+
+        Recorder(Handler h) {
+            super(Opcodes.ASM4);
+            this.h = h;
+        }
+
+        private int id(Label l) {
+            Integer i = labelIds.get(l);
+            if (i == null) {
+                i = h.labels++;
+                labelIds.put(l, i);
+            }
+            return i;
+        }
+
+        private int[] ids(Label[] ls) {
+            int[] ret = new int[ls.length];
+            for (int i = 0; i < ls.length; i++) {
+                ret[i] = id(ls[i]);
+            }
+            return ret;
+        }
+
+        private static Label[] resolve(int[] ids, Label[] ls) {
+            Label[] ret = new Label[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                ret[i] = ls[ids[i]];
+            }
+            return ret;
+        }
+
+        // uninitialized frame types are labels; the other types are kept as they are
+        private Object[] frameTypes(int n, Object[] types) {
+            if (types == null) {
+                return null;
+            }
+            Object[] ret = new Object[n];
+            for (int i = 0; i < n; i++) {
+                ret[i] = types[i] instanceof Label ? (Object)new LabelRef(id((Label)types[i])) : types[i];
+            }
+            return ret;
+        }
+
+        private static Object[] frameTypes(Object[] types, Label[] ls) {
+            if (types == null) {
+                return null;
+            }
+            Object[] ret = new Object[types.length];
+            for (int i = 0; i < types.length; i++) {
+                ret[i] = types[i] instanceof LabelRef ? ls[((LabelRef)types[i]).id] : types[i];
+            }
+            return ret;
+        }
+
+        @Override
+        public void visitFrame(final int type, final int nLocal, Object[] local, final int nStack, Object[] stack) {
+            final Object[] l = frameTypes(nLocal, local);
+            final Object[] s = frameTypes(nStack, stack);
+            h.code.add(new Insn() {
+                void accept(MethodVisitor mv, Label[] ls) {
+                    mv.visitFrame(type, nLocal, frameTypes(l, ls), nStack, frameTypes(s, ls));
+                }
+            });
+        }
+
+        @Override
+        public void visitInsn(final int opcode) {
+            h.code.add(new Insn() {
+                void accept(MethodVisitor mv, Label[] ls) {
+                    mv.visitInsn(opcode);
+                }
+            });
+        }
+
+        @Override
+        public void visitIntInsn(final int opcode, final int operand) {
+            h.code.add(new Insn() {
+                void accept(MethodVisitor mv, Label[] ls) {
+                    mv.visitIntInsn(opcode, operand);
+                }
+            });
+        }
+
+        @Override
+        public void visitVarInsn(final int opcode, final int var) {
+            h.code.add(new Insn() {
+                void accept(MethodVisitor mv, Label[] ls) {
+                    mv.visitVarInsn(opcode, var);
+                }
+            });
+        }
+
+        @Override
+        public void visitTypeInsn(final int opcode, final String type) {
+            h.code.add(new Insn() {
+                void accept(MethodVisitor mv, Label[] ls) {
+                    mv.visitTypeInsn(opcode, type);
+                }
+            });
+        }
+
+        @Override
+        public void visitFieldInsn(final int opcode, final String owner, final String name, final String desc) {
+            h.code.add(new Insn() {
+                void accept(MethodVisitor mv, Label[] ls) {
+                    mv.visitFieldInsn(opcode, owner, name, desc);
+                }
+            });
+        }
+
+        @Override
+        public void visitMethodInsn(final int opcode, final String owner, final String name, final String desc) {
+            h.code.add(new Insn() {
+                void accept(MethodVisitor mv, Label[] ls) {
+                    mv.visitMethodInsn(opcode, owner, name, desc);
+                }
+            });
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(final String name, final String desc, final Handle bsm, final Object... bsmArgs) {
+            h.code.add(new Insn() {
+                void accept(MethodVisitor mv, Label[] ls) {
+                    mv.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+                }
+            });
+        }
+
+        @Override
+        public void visitJumpInsn(final int opcode, Label label) {
+            final int l = id(label);
+            h.code.add(new Insn() {
+                void accept(MethodVisitor mv, Label[] ls) {
+                    mv.visitJumpInsn(opcode, ls[l]);
+                }
+            });
+        }
+
+        @Override
+        public void visitLabel(Label label) {
+            final int l = id(label);
+            h.code.add(new Insn() {
+                void accept(MethodVisitor mv, Label[] ls) {
+                    mv.visitLabel(ls[l]);
+                }
+            });
+        }
+
+        @Override
+        public void visitLdcInsn(final Object cst) {
+            h.code.add(new Insn() {
+                void accept(MethodVisitor mv, Label[] ls) {
+                    mv.visitLdcInsn(cst);
+                }
+            });
+        }
+
+        @Override
+        public void visitIincInsn(final int var, final int increment) {
+            h.code.add(new Insn() {
+                void accept(MethodVisitor mv, Label[] ls) {
+                    mv.visitIincInsn(var, increment);
+                }
+            });
+        }
+
+        @Override
+        public void visitTableSwitchInsn(final int min, final int max, Label dflt, Label... labels) {
+            final int d = id(dflt);
+            final int[] l = ids(labels);
+            h.code.add(new Insn() {
+                void accept(MethodVisitor mv, Label[] ls) {
+                    mv.visitTableSwitchInsn(min, max, ls[d], resolve(l, ls));
+                }
+            });
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(Label dflt, final int[] keys, Label[] labels) {
+            final int d = id(dflt);
+            final int[] l = ids(labels);
+            h.code.add(new Insn() {
+                void accept(MethodVisitor mv, Label[] ls) {
+                    mv.visitLookupSwitchInsn(ls[d], keys, resolve(l, ls));
+                }
+            });
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn(final String desc, final int dims) {
+            h.code.add(new Insn() {
+                void accept(MethodVisitor mv, Label[] ls) {
+                    mv.visitMultiANewArrayInsn(desc, dims);
+                }
+            });
+        }
+
+        @Override
+        public void visitTryCatchBlock(Label start, Label end, Label handler, final String type) {
+            final int s = id(start), e = id(end), hd = id(handler);
+            h.code.add(new Insn() {
+                void accept(MethodVisitor mv, Label[] ls) {
+                    mv.visitTryCatchBlock(ls[s], ls[e], ls[hd], type);
+                }
+            });
+        }
+
+        @Override
+        public void visitLocalVariable(final String name, final String desc, final String signature, Label start, Label end, final int index) {
+            final int s = id(start), e = id(end);
+            h.code.add(new Insn() {
+                void accept(MethodVisitor mv, Label[] ls) {
+                    mv.visitLocalVariable(name, desc, signature, ls[s], ls[e], index);
+                }
+            });
+        }
+
+        @Override
+        public void visitLineNumber(final int line, Label start) {
+            final int s = id(start);
+            h.code.add(new Insn() {
+                void accept(MethodVisitor mv, Label[] ls) {
+                    mv.visitLineNumber(line, ls[s]);
+                }
+            });
+        }
+
+        @Override
+        public void visitMaxs(final int maxStack, final int maxLocals) {
+            h.code.add(new Insn() {
+                void accept(MethodVisitor mv, Label[] ls) {
+                    mv.visitMaxs(maxStack, maxLocals);
+                }
+            });
+        }
+    }
+
+    final private static class LabelRef {
+        final private int id;
+
+        LabelRef(int id) {
+            this.id = id;
+        }
+    }
+
+    final private byte[] code;
+    // in the BTrace class order
+    final private List<Handler> handlers = new ArrayList<Handler>();
+
+    public TraceHandlers(byte[] btraceCode) {
+        this(new ClassReader(btraceCode), btraceCode);
+    }
+
+    public TraceHandlers(ClassReader btraceClass) {
+        this(btraceClass, btraceClass.b);
+    }
+
+    private TraceHandlers(ClassReader btraceClass, byte[] btraceCode) {
+        this.code = btraceCode;
+        btraceClass.accept(new ClassVisitor(Opcodes.ASM4) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                if (name.equals(CONSTRUCTOR) || name.equals(CLASS_INITIALIZER)) {
+                    return null;
+                }
+                Handler h = new Handler(access, name, desc, signature, exceptions);
+                handlers.add(h);
+                return new Recorder(h);
+            }
+        }, 0);
+    }
+
+    /**
+     * @return The BTrace class these handlers were read from
+     */
+    public byte[] getCode() {
+        return code;
+    }
+
+    /**
+     * @return The handler methods in the BTrace class order
+     */
+    List<Handler> getHandlers() {
+        return handlers;
+    }
+}
@@ -29,12 +29,17 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.BufferedInputStream;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.regex.PatternSyntaxException;
+import net.java.btrace.annotations.Condition;
 import net.java.btrace.annotations.Duration;
 import net.java.btrace.annotations.Kind;
 import net.java.btrace.annotations.ProbeClassName;
 import net.java.btrace.annotations.ProbeMethodName;
 import net.java.btrace.annotations.Return;
+import net.java.btrace.annotations.Sampled;
 import net.java.btrace.annotations.Self;
 import net.java.btrace.annotations.TargetInstance;
 import net.java.btrace.annotations.TargetMethodOrField;
@@ -44,6 +49,8 @@ import static net.java.btrace.instr.Constants.*;
 import net.java.btrace.api.extensions.ExtensionsRepository;
 import net.java.btrace.api.extensions.ExtensionsRepositoryFactory;
 import net.java.btrace.util.Messages;
+import net.java.btrace.runtime.ProbeConditions;
+import net.java.btrace.runtime.ProbeSampler;
 import net.java.btrace.org.objectweb.asm.AnnotationVisitor;
 import net.java.btrace.org.objectweb.asm.ClassReader;
 import net.java.btrace.org.objectweb.asm.ClassVisitor;
@@ -78,6 +85,7 @@ public class Verifier extends ClassVisitor {
     private boolean unsafe;
     private CycleDetector cycleDetector;
     private CallTargetValidator ctValidator;
+    private Set<String> counterFields = new HashSet<String>();
 
     public Verifier(ClassVisitor cv, boolean unsafe, ExtensionsRepository eLocator) {
         super(Opcodes.ASM4, cv);
@@ -144,15 +152,27 @@ public class Verifier extends ClassVisitor {
         return super.visitAnnotation(desc, visible);
     }
 
-    public FieldVisitor	visitField(int access, String name, 
-            String desc, String signature, Object value) {
+    public FieldVisitor	visitField(int access, final String name, 
+            final String desc, String signature, Object value) {
         if (! seenBTrace) {
             reportError("not.a.btrace.program");
         }
         if ((access & ACC_STATIC) == 0) {
             reportError("agent.no.instance.variables", name);
         }
-        return super.visitField(access, name, desc, signature, value);
+        return new FieldVisitor(Opcodes.ASM4, super.visitField(access, name, desc, signature, value)) {
+            @Override
+            public AnnotationVisitor visitAnnotation(String annoDesc, boolean visible) {
+                if (annoDesc.equals(COUNTER_DESC)) {
+                    if (desc.equals(Type.LONG_TYPE.getDescriptor())) {
+                        counterFields.add(name);
+                    } else {
+                        reportError("counter.type.invalid", name);
+                    }
+                }
+                return super.visitAnnotation(annoDesc, visible);
+            }
+        };
     }
      
     public void visitInnerClass(String name, String outerName, 
@@ -198,6 +218,16 @@ public class Verifier extends ClassVisitor {
                         reportError("return.type.should.be.void", methodName + methodDesc);
                     }
                 }
+                if (om != null && om.hasCondition(Condition.Check.DURATION) && om.getDurationParameter() == -1) {
+                    reportError("condition.duration.invalid", methodName + methodDesc);
+                }
+                if (om != null && om.isCounted()) {
+                    if (!counterFields.contains(om.getCounter())) {
+                        reportError("counter.field.invalid", methodName + methodDesc + ": " + om.getCounter());
+                    } else if (Type.getArgumentTypes(methodDesc).length > 0) {
+                        reportError("counter.handler.invalid", methodName + methodDesc);
+                    }
+                }
                 super.visitEnd();
             }
 
@@ -318,6 +348,10 @@ public class Verifier extends ClassVisitor {
                                 om.setMethod((String)value);
                             } else if (name.equals("type")) {
                                 om.setType((String)value);
+                            } else if (name.equals("counter")) {
+                                if (((String)value).length() > 0) {
+                                    om.setCounter((String)value);
+                                }
                             }
                         }
 
@@ -353,9 +387,43 @@ public class Verifier extends ClassVisitor {
                                     }
                                 };
                             }
+                            if (desc.equals(SAMPLED_DESC)) {
+                                return new AnnotationVisitor(Opcodes.ASM4) {
+                                    public void visitEnum(String name, String desc, String value) {
+                                        if (desc.equals(SAMPLER_DESC)) {
+                                            om.setSampler(Enum.valueOf(Sampled.Sampler.class, value));
+                                        }
+                                    }
+
+                                    public void visit(String name, Object value) {
+                                        if (name.equals("mean")) {
+                                            om.setSamplingMean(((Number)value).intValue());
+                                        }
+                                    }
+
+                                    public void visitEnd() {
+                                        if (om.getSamplingMean() < 1) {
+                                            reportError("sampled.mean.invalid", methodName + methodDesc);
+                                        } else if (om.getSamplingMean() > 1) {
+                                            om.setSamplerId(ProbeSampler.newSampler());
+                                        }
+                                    }
+                                };
+                            }
 
                             return super.visitAnnotation(name, desc);
                         }
+
+                        public AnnotationVisitor visitArray(String name) {
+                            if (name.equals("when")) {
+                                return new AnnotationVisitor(Opcodes.ASM4) {
+                                    public AnnotationVisitor visitAnnotation(String name, String desc) {
+                                        return desc.equals(CONDITION_DESC) ? conditionVisitor() : null;
+                                    }
+                                };
+                            }
+                            return super.visitArray(name);
+                        }
                     };
                 } else if (desc.equals(ONPROBE_DESC)) {
                     final OnProbe op = new OnProbe();
@@ -375,6 +443,66 @@ public class Verifier extends ClassVisitor {
                     return null;
                 }
             }
+
+            private AnnotationVisitor conditionVisitor() {
+                final ProbeCondition c = new ProbeCondition();
+                return new AnnotationVisitor(Opcodes.ASM4) {
+                    public void visitEnum(String name, String desc, String value) {
+                        if (desc.equals(CONDITION_CHECK_DESC)) {
+                            c.setCheck(Enum.valueOf(Condition.Check.class, value));
+                        }
+                    }
+
+                    public void visit(String name, Object value) {
+                        if (name.equals("arg")) {
+                            c.setArg(((Number)value).intValue());
+                        } else if (name.equals("value")) {
+                            c.setValue((String)value);
+                        } else if (name.equals("min")) {
+                            c.setMin(((Number)value).longValue());
+                        } else if (name.equals("max")) {
+                            c.setMax(((Number)value).longValue());
+                        }
+                    }
+
+                    public void visitEnd() {
+                        if (c.getCheck() == null) {
+                            return;
+                        }
+                        switch (c.getCheck()) {
+                            case ARG_EQUALS:
+                            case ARG_RANGE: {
+                                if (c.getArg() < 0) {
+                                    reportError("condition.arg.invalid", methodName + methodDesc);
+                                    return;
+                                }
+                                break;
+                            }
+                            case THREAD_NAME: {
+                                String value = c.getValue();
+                                if (value.length() == 0) {
+                                    reportError("condition.thread.invalid", methodName + methodDesc);
+                                    return;
+                                }
+                                if (REGEX_SPECIFIER.matcher(value).matches()) {
+                                    try {
+                                        c.setPatternId(ProbeConditions.newPattern(value.substring(1, value.length() - 1)));
+                                    } catch (PatternSyntaxException e) {
+                                        reportError("condition.thread.invalid", methodName + methodDesc + ": " + e.getDescription());
+                                        return;
+                                    }
+                                }
+                                break;
+                            }
+                        }
+                        if (c.getMin() > c.getMax()) {
+                            reportError("condition.range.invalid", methodName + methodDesc);
+                            return;
+                        }
+                        om.addCondition(c);
+                    }
+                };
+            }
         };
     }
  
@@ -25,6 +25,7 @@
 
 package net.java.btrace.util;
 
+import net.java.btrace.org.objectweb.asm.Label;
 import net.java.btrace.org.objectweb.asm.MethodVisitor;
 import static net.java.btrace.org.objectweb.asm.Opcodes.*;
 import net.java.btrace.org.objectweb.asm.Type;
@@ -114,18 +115,49 @@ public class TimeStampGenerator extends MethodVisitor {
         super.visitVarInsn(opcode, var);
     }
 
+    public MethodInstrumentor getInstrumentor() {
+        return (MethodInstrumentor)mv;
+    }
+
     private void generateTS(int index) {
         if (tsIndex != null && tsIndex[index] != -1) return;
         
-        if (!((MethodInstrumentor)mv).usesTimeStamp()) return; // the method instrumentor is not using timestamp; no need to generate time stamp collectors
+        if (!getInstrumentor().usesTimeStamp()) return; // the method instrumentor is not using timestamp; no need to generate time stamp collectors
         
         if (tsIndex[index] > -1) return;
         try {
             generatingIndex = true;
+            if (getInstrumentor().isSampled()) {
+                // a sampled probe takes its exit time stamp only within the probe site
+                if (index == 0) {
+                    generateSampledTS();
+                }
+                return;
+            }
             TimeStampHelper.generateTimeStampAccess(this, className);
             tsIndex[index] = lvs.newLocal(Type.LONG_TYPE);
         } finally {
             generatingIndex = false;
         }
     }
+
+    /**
+     * Takes the sampling decision at the method entry and the entry time stamp
+     * for the sampled invocations only; the rest of them stores 0 instead
+     */
+    private void generateSampledTS() {
+        Label notSampled = new Label();
+        Label stamped = new Label();
+        MethodInstrumentor instr = getInstrumentor();
+        instr.loadSamplingDecision();
+        super.visitInsn(DUP);
+        instr.setSamplingDecision(lvs.newLocal(Type.BOOLEAN_TYPE));
+        super.visitJumpInsn(IFEQ, notSampled);
+        TimeStampHelper.generateTimeStampAccess(this, className);
+        super.visitJumpInsn(GOTO, stamped);
+        super.visitLabel(notSampled);
+        super.visitInsn(LCONST_0);
+        super.visitLabel(stamped);
+        tsIndex[0] = lvs.newLocal(Type.LONG_TYPE);
+    }
 }
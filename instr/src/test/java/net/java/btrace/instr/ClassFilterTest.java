@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.instr;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class ClassFilterTest {
+    @Test
+    public void literalPrefix() {
+        System.out.println("literalPrefix");
+        assertEquals("java.util.", ClassNameIndex.literalPrefix("java\\.util\\..*"));
+        assertEquals("java.util.Hash", ClassNameIndex.literalPrefix("^java\\.util\\.Hash\\w*"));
+        assertEquals("java.util.", ClassNameIndex.literalPrefix("java\\.util\\.[A-Z]+"));
+        assertEquals("java", ClassNameIndex.literalPrefix("javax?\\..*"));
+        assertEquals("com.foo", ClassNameIndex.literalPrefix("com\\.foo(Bar|Baz)"));
+        assertEquals("", ClassNameIndex.literalPrefix("java\\.util\\..*|com\\..*"));
+        assertEquals("", ClassNameIndex.literalPrefix(".*\\.OnMethodTest"));
+        assertEquals("", ClassNameIndex.literalPrefix("(?i)java\\..*"));
+    }
+
+    @Test
+    public void nameIndex() {
+        System.out.println("nameIndex");
+        ClassNameIndex index = new ClassNameIndex();
+        assertTrue(index.isEmpty());
+        assertFalse(index.matches("java/lang/String"));
+
+        index.add("java.lang.String");
+        index.add(Pattern.compile("java\\.util\\.Hash\\w*"));
+        index.add(Pattern.compile("java\\.util\\.concurrent\\..*Queue"));
+        index.add(Pattern.compile(".*\\$Inner"));
+        assertTrue(index.matches("java/lang/String"));
+        assertFalse(index.matches("java/lang/StringBuilder"));
+        assertTrue(index.matches("java/util/HashMap"));
+        assertFalse(index.matches("java/util/TreeMap"));
+        assertTrue(index.matches("java/util/concurrent/LinkedBlockingQueue"));
+        assertFalse(index.matches("java/util/concurrent/ConcurrentHashMap"));
+        assertTrue(index.matches("com/foo/Bar$Inner"));
+        assertFalse(index.matches("com/foo/Bar"));
+    }
+
+    @Test
+    public void candidateName() {
+        System.out.println("candidateName");
+        ClassFilter filter = new ClassFilter(onMethods("/java\\.util\\.Hash.*/", "java.lang.String"));
+        assertTrue(filter.isCandidateName("java/util/HashMap"));
+        assertTrue(filter.isCandidateName("java/lang/String"));
+        assertFalse(filter.isCandidateName("java/util/ArrayList"));
+        assertFalse(filter.isCandidateName("java/lang/Object"));
+
+        // the supertypes and annotations can not be checked by the name only
+        filter = new ClassFilter(onMethods("/java\\.util\\.Hash.*/", "+java.util.Map"));
+        assertTrue(filter.isCandidateName("java/util/ArrayList"));
+        filter = new ClassFilter(onMethods("@javax.annotation.Resource"));
+        assertTrue(filter.isCandidateName("java/util/ArrayList"));
+    }
+
+    @Test
+    public void candidateClass() {
+        System.out.println("candidateClass");
+        ClassFilter filter = new ClassFilter(onMethods("/java\\.util\\.Hash.*/", "java.lang.String", "+java.util.SortedMap"));
+        assertTrue(filter.isCandidate(java.util.HashMap.class));
+        assertTrue(filter.isCandidate(String.class));
+        assertTrue(filter.isCandidate(java.util.TreeMap.class));
+        assertFalse(filter.isCandidate(java.util.ArrayList.class));
+        assertFalse(filter.isCandidate(java.util.Map.class));
+    }
+
+    private static List<OnMethod> onMethods(String ... classes) {
+        List<OnMethod> oms = new ArrayList<OnMethod>();
+        for (String c : classes) {
+            OnMethod om = new OnMethod();
+            om.setClazz(c);
+            oms.add(om);
+        }
+        return oms;
+    }
+}
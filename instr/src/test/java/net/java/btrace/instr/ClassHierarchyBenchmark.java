@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.instr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Matching the class files against <code>+SuperType</code> probes at load time -
+ * by the direct supertypes only vs. through {@linkplain ClassHierarchy}.
+ * <p>
+ * The <code>java.util</code> and <code>javax.swing</code> class files of the JRE
+ * <code>rt.jar</code> are checked against a few classes and interfaces, in the
+ * jar order. The hierarchy starts empty; the supertypes not seen yet are read
+ * from the class file resources.
+ * @author Jaroslav Bachorik
+ */
+public class ClassHierarchyBenchmark {
+    private static final String[] TYPES = new String[]{
+        "java/util/Collection", "java/util/Map", "java/lang/Runnable", "javax/swing/JComponent", "java/util/EventListener"
+    };
+    private static final int RUNS = 10;
+
+    public static void main(String[] args) throws Exception {
+        String jar = System.getProperty("java.home") + File.separator + "lib" + File.separator + "rt.jar";
+        List<byte[]> classes = new ArrayList<byte[]>();
+        JarFile jf = new JarFile(jar);
+        try {
+            Enumeration<JarEntry> entries = jf.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry je = entries.nextElement();
+                String name = je.getName();
+                if ((name.startsWith("java/util/") || name.startsWith("javax/swing/")) && name.endsWith(".class")) {
+                    InputStream is = jf.getInputStream(je);
+                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                    byte[] buf = new byte[8192];
+                    int read;
+                    while ((read = is.read(buf)) != -1) {
+                        bos.write(buf, 0, read);
+                    }
+                    is.close();
+                    classes.add(bos.toByteArray());
+                }
+            }
+        } finally {
+            jf.close();
+        }
+        System.out.println("classes: " + classes.size() + ", types: " + TYPES.length);
+
+        // the first run is a warm-up
+        long direct = Long.MAX_VALUE, indexed = Long.MAX_VALUE;
+        int hits1 = 0, hits2 = 0;
+        for (int r = 0; r <= RUNS; r++) {
+            long start = System.nanoTime();
+            hits1 = 0;
+            for (byte[] c : classes) {
+                ClassInfo info = new ClassInfo(c);
+                for (String t : TYPES) {
+                    if (isDirectSubTypeOf(info, t)) {
+                        hits1++;
+                    }
+                }
+            }
+            if (r > 0) {
+                direct = Math.min(direct, System.nanoTime() - start);
+            }
+            ClassHierarchy h = new ClassHierarchy();
+            start = System.nanoTime();
+            hits2 = 0;
+            for (byte[] c : classes) {
+                ClassInfo info = new ClassInfo(c, null, h);
+                h.add(null, info);
+                for (String t : TYPES) {
+                    if (info.isSubTypeOf(t)) {
+                        hits2++;
+                    }
+                }
+            }
+            if (r > 0) {
+                indexed = Math.min(indexed, System.nanoTime() - start);
+            }
+        }
+        int n = classes.size();
+        System.out.println("mode\tus/class\tmatches");
+        System.out.println("direct\t" + direct / n / 1000d + "\t" + hits1);
+        System.out.println("hierarchy\t" + indexed / n / 1000d + "\t" + hits2);
+    }
+
+    private static boolean isDirectSubTypeOf(ClassInfo info, String type) {
+        if (type.equals(info.getSuperName())) {
+            return true;
+        }
+        for (String iface : info.getInterfaces()) {
+            if (type.equals(iface)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.instr;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import net.java.btrace.support.InstrumentorTestBase;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class ClassHierarchyTest extends InstrumentorTestBase {
+    @Test
+    public void transitiveSupertypes() throws Exception {
+        System.out.println("transitiveSupertypes");
+        ClassHierarchy h = new ClassHierarchy();
+        ClassLoader cl = new URLClassLoader(new URL[0], null);
+        h.add(cl, "a/C", "a/B", null);
+        h.add(cl, "a/B", "a/A", new String[]{"a/I"});
+        h.add(cl, "a/I", "java/lang/Object", new String[]{"a/J"});
+        assertTrue(h.isSubTypeOf(cl, "a/C", "a/C"));
+        assertTrue(h.isSubTypeOf(cl, "a/C", "a/A"));
+        assertTrue(h.isSubTypeOf(cl, "a/C", "a/J"));
+        assertTrue(h.isSubTypeOf(cl, "a/C", "java/lang/Object"));
+        assertFalse(h.isSubTypeOf(cl, "a/C", "a/X"));
+        assertFalse(h.isSubTypeOf(cl, "a/B", "a/C"));
+        // the class being loaded need not be recorded yet
+        assertTrue(h.isSubTypeOf(cl, "a/C", new String[]{"a/K"}, "a/J"));
+
+        h.clear();
+        assertFalse(h.isSubTypeOf(cl, "a/C", "a/A"));
+    }
+
+    @Test
+    public void parentLoader() throws Exception {
+        System.out.println("parentLoader");
+        ClassHierarchy h = new ClassHierarchy();
+        ClassLoader parent = new URLClassLoader(new URL[0], null);
+        ClassLoader child = new URLClassLoader(new URL[0], parent);
+        h.add(parent, "a/B", "a/A", null);
+        h.add(child, "a/C", "a/B", null);
+        assertTrue(h.isSubTypeOf(child, "a/C", "a/A"));
+        // the parent does not see the classes of its children
+        h.add(parent, "a/D", "a/C", null);
+        assertFalse(h.isSubTypeOf(parent, "a/D", "a/A"));
+    }
+
+    @Test
+    public void loadedClasses() throws Exception {
+        System.out.println("loadedClasses");
+        ClassHierarchy h = new ClassHierarchy();
+        assertTrue(h.isSubTypeOf(ArrayList.class, "java/util/Collection"));
+        assertTrue(h.isSubTypeOf(ArrayList.class, "java/lang/Iterable"));
+        assertFalse(h.isSubTypeOf(ArrayList.class, "java/util/Map"));
+        // java.util.List has been recorded with ArrayList
+        assertTrue(h.isSubTypeOf((ClassLoader)null, "java/util/List", Collection.class.getName().replace('.', '/')));
+    }
+
+    @Test
+    public void bootClassPathOnly() throws Exception {
+        System.out.println("bootClassPathOnly");
+        ClassHierarchy h = new ClassHierarchy();
+        String instrumentor = Instrumentor.class.getName().replace('.', '/');
+        String visitor = Instrumentor.class.getSuperclass().getName().replace('.', '/');
+        // an application class can not be resolved through the bootstrap loader
+        assertFalse(h.isSubTypeOf((ClassLoader)null, instrumentor, visitor));
+        assertTrue(h.isSubTypeOf((ClassLoader)null, "java/util/ArrayList", "java/util/List"));
+        assertTrue(h.isSubTypeOf(ClassLoader.getSystemClassLoader(), instrumentor, visitor));
+    }
+
+    @Test
+    public void classFileResources() throws Exception {
+        System.out.println("classFileResources");
+        ClassHierarchy h = new ClassHierarchy();
+        ClassInfo info = new ClassInfo(loadTargetClass("IndirectlyDerivedClass"), ClassLoader.getSystemClassLoader(), h);
+        // resources.DerivedClass is read from its class file
+        assertTrue(info.isSubTypeOf("resources/AbstractClass"));
+        assertFalse(info.isSubTypeOf("java/util/Map"));
+        assertFalse(new ClassInfo(loadTargetClass("IndirectlyDerivedClass")).isSubTypeOf("resources/AbstractClass"));
+    }
+
+    @Test
+    public void indirectSubclassAtLoad() throws Exception {
+        System.out.println("indirectSubclassAtLoad");
+        Trace btrace = loadTrace("onmethod/MatchDerived");
+        byte[] target = loadTargetClass("IndirectlyDerivedClass");
+        ClassFilter filter = new ClassFilter(btrace.onMethods);
+
+        // only the direct supertypes are known without the hierarchy
+        InstrumentorChain chain = new InstrumentorChain(null, target);
+        assertFalse(filter.isCandidate(chain.getClassInfo()));
+        chain.add(btrace.className, btrace.content, btrace.onMethods);
+        assertNull(chain.instrument());
+
+        ClassHierarchy h = new ClassHierarchy();
+        originalBC = target;
+        chain = new InstrumentorChain(null, target, ClassLoader.getSystemClassLoader(), h);
+        assertTrue(filter.isCandidate(chain.getClassInfo()));
+        chain.add(btrace.className, btrace.content, btrace.onMethods);
+        transformedBC = chain.instrument();
+        checkTransformation("ALOAD 0\nALOAD 1\nALOAD 2\n" +
+                            "INVOKESTATIC resources/IndirectlyDerivedClass.$btrace$traces$onmethod$MatchDerived$args (Ljava/lang/Object;Ljava/lang/String;Ljava/util/Map;)V");
+    }
+
+    @Test
+    public void reflectiveCheck() throws Exception {
+        System.out.println("reflectiveCheck");
+        ClassHierarchy h = new ClassHierarchy();
+        Class[] classes = new Class[]{ArrayList.class, String.class, Collections.class};
+        String[] types = new String[]{"java.util.Collection", "java.lang.Iterable", "java.lang.CharSequence", "java.lang.Object"};
+        for (Class c : classes) {
+            for (String t : types) {
+                // asked twice to check the remembered result as well
+                assertEquals(c + " " + t, ClassFilter.isSubTypeOf(c, t), h.isSubTypeOf(c, t.replace('.', '/')));
+                assertEquals(c + " " + t, ClassFilter.isSubTypeOf(c, t), h.isSubTypeOf(c, t.replace('.', '/')));
+            }
+        }
+    }
+}
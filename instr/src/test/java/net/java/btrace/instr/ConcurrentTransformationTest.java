@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.instr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import net.java.btrace.support.InstrumentorTestBase;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Transforms the same classes from many threads at once, with several sessions
+ * sharing the compiled probes, the parsed handlers and the class hierarchy,
+ * and compares the result to the serial transformation.
+ * @author Jaroslav Bachorik
+ */
+public class ConcurrentTransformationTest extends InstrumentorTestBase {
+    private static final String[] TRACES = new String[]{
+        "onmethod/ArgsDuration", "onmethod/NoArgsEntryReturn", "onmethod/MatchDerived", "onmethod/MethodCall", "onmethod/Args"
+    };
+    private static final String[] TARGETS = new String[]{
+        "OnMethodTest", "AbstractClass", "DerivedClass", "IndirectlyDerivedClass"
+    };
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 50;
+
+    // a session as seen by the transformer
+    private static class Session {
+        final Trace trace;
+        final MatchPlan plan;
+        final ClassFilter filter;
+        final TraceHandlers handlers;
+
+        Session(Trace trace, boolean outOfLine) {
+            this.trace = trace;
+            this.plan = new MatchPlan(trace.onMethods);
+            this.filter = new ClassFilter(plan);
+            this.handlers = outOfLine ? null : new TraceHandlers(trace.content);
+        }
+    }
+
+    @Test
+    public void concurrentEqualsSerial() throws Exception {
+        System.out.println("concurrentEqualsSerial");
+        final List<Session> sessions = new ArrayList<Session>();
+        for (int i = 0; i < TRACES.length; i++) {
+            // every other session calls the handlers out-of-line
+            sessions.add(new Session(loadTrace(TRACES[i]), i % 2 == 1));
+        }
+        final byte[][] targets = new byte[TARGETS.length][];
+        for (int i = 0; i < TARGETS.length; i++) {
+            targets[i] = loadTargetClass(TARGETS[i]);
+        }
+
+        final byte[][] expected = new byte[targets.length][];
+        ClassHierarchy serial = new ClassHierarchy();
+        for (int i = 0; i < targets.length; i++) {
+            expected[i] = transform(targets[i], sessions, serial);
+        }
+        assertNotNull(expected[0]);
+        // matched through the class hierarchy
+        assertNotNull(expected[3]);
+
+        final ClassHierarchy shared = new ClassHierarchy();
+        final CountDownLatch start = new CountDownLatch(1);
+        final Queue<String> failures = new ConcurrentLinkedQueue<String>();
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int offset = t;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int r = 0; r < ROUNDS; r++) {
+                            // each thread walks the classes in a different order
+                            for (int i = 0; i < targets.length; i++) {
+                                int idx = (i + offset + r) % targets.length;
+                                byte[] result = transform(targets[idx], sessions, shared);
+                                if (!Arrays.equals(expected[idx], result)) {
+                                    failures.add(TARGETS[idx]);
+                                }
+                            }
+                        }
+                    } catch (Throwable th) {
+                        failures.add(th.toString());
+                    }
+                }
+            }, "transformer-" + t);
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+    }
+
+    /**
+     * Applies the matching sessions the same way the agent transformer does
+     */
+    private static byte[] transform(byte[] target, List<Session> sessions, ClassHierarchy h) {
+        ClassLoader loader = ConcurrentTransformationTest.class.getClassLoader();
+        InstrumentorChain chain = new InstrumentorChain(null, target, loader, h);
+        h.add(loader, chain.getClassInfo());
+        boolean matched = false;
+        for (Session s : sessions) {
+            if (s.filter.isCandidateName(chain.getClassInfo().getInternalName()) && s.filter.isCandidate(chain.getClassInfo())) {
+                if (s.handlers != null) {
+                    chain.add(s.trace.className, s.handlers, s.plan);
+                } else {
+                    chain.add(s.trace.className, s.plan);
+                }
+                matched = true;
+            }
+        }
+        return matched ? chain.instrument() : null;
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.instr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import net.java.btrace.org.objectweb.asm.ClassReader;
+import net.java.btrace.org.objectweb.asm.ClassWriter;
+
+/**
+ * Class load overhead of 1, 4 and 16 attached scripts - one transformer per session
+ * (each session parses the class for its filter and instruments it by its own
+ * read/write pass) versus the shared transformer ({@linkplain ClassInfo} parsed once,
+ * all the matching sessions applied by one {@linkplain InstrumentorChain} pass), optionally
+ * rejecting the classes by {@linkplain ClassFilter#isCandidateName(java.lang.String)} first.
+ * <p>
+ * Each session traces all the methods of the <code>java.util.X*</code> classes,
+ * X being a different letter for each session, so most of the classes are rejected
+ * by the filters as in a real application.
+ * <p>
+ * Usage: <code>InstrumentorChainBenchmark [maxClasses] [jar ...]</code>; the corpus
+ * defaults to the JRE <code>rt.jar</code>
+ * @author Jaroslav Bachorik
+ */
+public class InstrumentorChainBenchmark {
+    private static final int[] SESSIONS = new int[]{1, 4, 16};
+    private static final int RUNS = 3;
+
+    private static class Session {
+        final String className;
+        final byte[] code;
+        final List<OnMethod> onMethods;
+        final ClassFilter filter;
+
+        Session(String className, byte[] code, List<OnMethod> onMethods) {
+            this.className = className;
+            this.code = code;
+            this.onMethods = onMethods;
+            this.filter = new ClassFilter(onMethods);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int maxClasses = args.length > 0 ? Integer.parseInt(args[0]) : Integer.MAX_VALUE;
+        List<String> jars = new ArrayList<String>();
+        for (int i = 1; i < args.length; i++) {
+            jars.add(args[i]);
+        }
+        if (jars.isEmpty()) {
+            jars.add(System.getProperty("java.home") + File.separator + "lib" + File.separator + "rt.jar");
+        }
+        List<String> names = new ArrayList<String>();
+        List<byte[]> corpus = loadCorpus(jars, maxClasses, names);
+        System.out.println("corpus: " + corpus.size() + " classes from " + jars);
+
+        System.out.println("sessions\tmode\tus/class\tinstrumented");
+        for (int n : SESSIONS) {
+            List<Session> sessions = newSessions(n);
+            // warm-up runs, results discarded
+            perSession(corpus, sessions);
+            shared(corpus, names, sessions, false);
+            shared(corpus, names, sessions, true);
+
+            long perSession = Long.MAX_VALUE, shared = Long.MAX_VALUE, indexed = Long.MAX_VALUE;
+            int perSessionCount = 0, sharedCount = 0, indexedCount = 0;
+            for (int r = 0; r < RUNS; r++) {
+                long start = System.nanoTime();
+                perSessionCount = perSession(corpus, sessions);
+                perSession = Math.min(perSession, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                sharedCount = shared(corpus, names, sessions, false);
+                shared = Math.min(shared, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                indexedCount = shared(corpus, names, sessions, true);
+                indexed = Math.min(indexed, System.nanoTime() - start);
+            }
+            report(n, "per-session", perSession, corpus.size(), perSessionCount);
+            report(n, "shared", shared, corpus.size(), sharedCount);
+            report(n, "shared+names", indexed, corpus.size(), indexedCount);
+        }
+    }
+
+    private static void report(int sessions, String mode, long dur, int classes, int instrumented) {
+        System.out.println(sessions + "\t" + mode + "\t" + String.format("%.2f", dur / 1000d / classes) + "\t" + instrumented);
+    }
+
+    /**
+     * The former behaviour - each session has its own transformer
+     */
+    private static int perSession(List<byte[]> corpus, List<Session> sessions) {
+        int instrumented = 0;
+        for (byte[] target : corpus) {
+            byte[] code = target;
+            for (Session s : sessions) {
+                try {
+                    if (s.filter.isCandidate(code)) {
+                        ClassWriter writer = InstrumentUtils.newClassWriter(code);
+                        ClassReader reader = new ClassReader(code);
+                        InstrumentUtils.accept(reader, new Instrumentor(null, s.className, s.code, s.onMethods, writer));
+                        code = writer.toByteArray();
+                    }
+                } catch (Throwable t) {
+                    // skip the class
+                }
+            }
+            if (code != target) {
+                instrumented++;
+            }
+        }
+        return instrumented;
+    }
+
+    /**
+     * The shared transformer; optionally rejecting the classes by their names before parsing them
+     */
+    private static int shared(List<byte[]> corpus, List<String> names, List<Session> sessions, boolean checkNames) {
+        int instrumented = 0;
+        for (int i = 0; i < corpus.size(); i++) {
+            byte[] target = corpus.get(i);
+            try {
+                InstrumentorChain chain = null;
+                for (Session s : sessions) {
+                    if (checkNames && !s.filter.isCandidateName(names.get(i))) {
+                        continue;
+                    }
+                    if (chain == null) {
+                        chain = new InstrumentorChain(null, target);
+                    }
+                    if (s.filter.isCandidate(chain.getClassInfo())) {
+                        chain.add(s.className, s.code, s.onMethods);
+                    }
+                }
+                if (chain != null && !chain.isEmpty() && chain.instrument() != null) {
+                    instrumented++;
+                }
+            } catch (Throwable t) {
+                // skip the class
+            }
+        }
+        return instrumented;
+    }
+
+    private static List<Session> newSessions(int count) throws IOException {
+        byte[] btrace = load(ClassLoader.getSystemResourceAsStream("traces/onmethod/NoArgs.class"));
+        List<Session> sessions = new ArrayList<Session>(count);
+        for (int i = 0; i < count; i++) {
+            ClassWriter writer = InstrumentUtils.newClassWriter();
+            Verifier verifier = new Verifier(new Preprocessor(writer));
+            InstrumentUtils.accept(new ClassReader(btrace), verifier);
+            List<OnMethod> onMethods = verifier.getOnMethods();
+            for (OnMethod om : onMethods) {
+                om.setClazz("/java\\.util\\." + (char)('A' + i % 26) + "\\w*/");
+                om.setMethod("/.*/");
+            }
+            sessions.add(new Session(verifier.getClassName() + i, writer.toByteArray(), onMethods));
+        }
+        return sessions;
+    }
+
+    private static List<byte[]> loadCorpus(List<String> jars, int maxClasses, List<String> names) throws IOException {
+        List<byte[]> corpus = new ArrayList<byte[]>();
+        for (String jar : jars) {
+            JarFile jf = new JarFile(jar);
+            try {
+                Enumeration<JarEntry> entries = jf.entries();
+                while (entries.hasMoreElements() && corpus.size() < maxClasses) {
+                    JarEntry e = entries.nextElement();
+                    if (e.getName().endsWith(".class")) {
+                        corpus.add(load(jf.getInputStream(e)));
+                        names.add(e.getName().substring(0, e.getName().length() - 6));
+                    }
+                }
+            } finally {
+                jf.close();
+            }
+        }
+        return corpus;
+    }
+
+    private static byte[] load(InputStream is) throws IOException {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) > 0) {
+                bos.write(buffer, 0, read);
+            }
+            return bos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.instr;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import net.java.btrace.support.InstrumentorTestBase;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class InstrumentorChainTest extends InstrumentorTestBase {
+    @Test
+    public void chainedEqualsSequential() throws Exception {
+        System.out.println("chainedEqualsSequential");
+        byte[] target = loadTargetClass("OnMethodTest");
+        originalBC = target;
+        transform("onmethod/Args");
+        originalBC = transformedBC;
+        transform("onmethod/ArgsDuration");
+        String sequential = asmify(transformedBC);
+
+        originalBC = target;
+        InstrumentorChain chain = transformChained("onmethod/Args", "onmethod/ArgsDuration");
+        assertTrue(chain.hasMatch(0));
+        assertTrue(chain.hasMatch(1));
+        // the entry code of the two scripts may be interleaved differently
+        assertEquals(sortedLines(sequential), sortedLines(asmify(transformedBC)));
+    }
+
+    private static List<String> sortedLines(String code) {
+        List<String> lines = Arrays.asList(code.split("\\n"));
+        Collections.sort(lines);
+        return lines;
+    }
+
+    @Test
+    public void partialMatch() throws Exception {
+        System.out.println("partialMatch");
+        originalBC = loadTargetClass("OnMethodTest");
+        InstrumentorChain chain = transformChained("issues/BTRACE22", "onmethod/NoArgs");
+        assertFalse(chain.hasMatch(0));
+        assertTrue(chain.hasMatch(1));
+        checkTransformation("ALOAD 0\nINVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$NoArgs$argsEmpty (Ljava/lang/Object;)V");
+    }
+
+    @Test
+    public void noMatch() throws Exception {
+        System.out.println("noMatch");
+        originalBC = loadTargetClass("OnMethodTest");
+        InstrumentorChain chain = transformChained("issues/BTRACE22");
+        assertNull(transformedBC);
+        assertFalse(chain.hasMatch(0));
+        assertNull(new InstrumentorChain(null, originalBC).instrument());
+    }
+
+    @Test
+    public void classInfo() throws Exception {
+        System.out.println("classInfo");
+        ClassInfo info = new ClassInfo(loadTargetClass("DerivedClass"));
+        assertEquals("resources.DerivedClass", info.getName());
+        assertEquals("resources/AbstractClass", info.getSuperName());
+        assertFalse(info.isInterface());
+
+        OnMethod om = new OnMethod();
+        om.setClazz("+resources.AbstractClass");
+        assertTrue(new ClassFilter(Collections.singletonList(om)).isCandidate(info));
+        om.setClazz("/resources\\.Other.*/");
+        assertFalse(new ClassFilter(Collections.singletonList(om)).isCandidate(info));
+        om.setClazz("@java.lang.Deprecated");
+        assertFalse(new ClassFilter(Collections.singletonList(om)).isCandidate(info));
+    }
+}
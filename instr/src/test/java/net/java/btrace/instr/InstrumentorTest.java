@@ -24,6 +24,7 @@
  */
 package net.java.btrace.instr;
 
+import java.io.IOException;
 import net.java.btrace.support.InstrumentorTestBase;
 import org.junit.Test;
 
@@ -384,6 +385,106 @@ public class InstrumentorTest extends InstrumentorTestBase {
                 + "ATHROW");
     }
 
+    @Test
+    public void methodEntryArgsSampled() throws Exception {
+        originalBC = loadTargetClass("OnMethodTest");
+        Trace btrace = transformSampled("onmethod/ArgsSampled");
+        checkTransformation(push(btrace.onMethods.get(0).getSamplerId()) + "\nBIPUSH 10\n" +
+                            "INVOKESTATIC net/java/btrace/runtime/ProbeSampler.hit (II)Z\nIFEQ L0\n" +
+                            "ALOAD 0\nALOAD 1\nLLOAD 2\nALOAD 4\nALOAD 5\n" +
+                            "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsSampled$args (Ljava/lang/Object;Ljava/lang/String;J[Ljava/lang/String;[I)V\n" +
+                            "MAXSTACK");
+    }
+
+    @Test
+    public void methodEntryArgsDurationSampled() throws Exception {
+        originalBC = loadTargetClass("OnMethodTest");
+        transform("onmethod/ArgsDurationSampled");
+        // the entry time stamp only for the sampled invocations
+        checkTransformation("BIPUSH 100\nINVOKESTATIC net/java/btrace/runtime/ProbeSampler.random (I)Z\n" +
+                            "DUP\nISTORE 6\nIFEQ L0\nINVOKESTATIC resources/OnMethodTest.$btrace$time$stamp ()J\n" +
+                            "GOTO L1\nLCONST_0\nL1\nLSTORE 7\nL2\nLINENUMBER 44 L2\n" +
+                            "DUP2\nLSTORE 9\nILOAD 6\nIFEQ L3\nALOAD 0\nLLOAD 9\n" +
+                            "INVOKESTATIC resources/OnMethodTest.$btrace$time$stamp ()J\nLLOAD 7\nLSUB\n" +
+                            "ALOAD 1\nLLOAD 2\nALOAD 4\nALOAD 5\n" +
+                            "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsDurationSampled$args (Ljava/lang/Object;JJLjava/lang/String;J[Ljava/lang/String;[I)V\n" +
+                            "L3");
+    }
+
+    @Test
+    public void methodEntryArgsDurationSampledErr() throws Exception {
+        originalBC = loadTargetClass("OnMethodTest");
+        Trace btrace = transformSampled("onmethod/ArgsDurationSampledErr");
+        checkTransformation("TRYCATCHBLOCK L0 L1 L1 java/lang/Throwable\n" +
+                            push(btrace.onMethods.get(0).getSamplerId()) + "\nBIPUSH 10\n" +
+                            "INVOKESTATIC net/java/btrace/runtime/ProbeSampler.hit (II)Z\n" +
+                            "DUP\nISTORE 6\nIFEQ L2\nINVOKESTATIC resources/OnMethodTest.$btrace$time$stamp ()J\n" +
+                            "GOTO L3\nL2\nLCONST_0\nL3\nLSTORE 7\n" +
+                            "DUP\nASTORE 9\nILOAD 6\nIFEQ L4\nALOAD 0\n" +
+                            "INVOKESTATIC resources/OnMethodTest.$btrace$time$stamp ()J\nLLOAD 7\nLSUB\nALOAD 9\n" +
+                            "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsDurationSampledErr$args (Ljava/lang/Object;JLjava/lang/Throwable;)V\n" +
+                            "L4\nATHROW");
+    }
+
+    @Test
+    public void methodEntryArgsConditions() throws Exception {
+        originalBC = loadTargetClass("OnMethodTest");
+        transform("onmethod/ArgsConditions");
+        checkTransformation("LDC \"foo\"\nALOAD 1\nINVOKEVIRTUAL java/lang/String.equals (Ljava/lang/Object;)Z\nIFEQ L0\n" +
+                            "LLOAD 2\nLDC 1\nLCMP\nIFLT L0\nLLOAD 2\nLDC 10\nLCMP\nIFGT L0\n" +
+                            "LDC \"main\"\nINVOKESTATIC java/lang/Thread.currentThread ()Ljava/lang/Thread;\n" +
+                            "INVOKEVIRTUAL java/lang/Thread.getName ()Ljava/lang/String;\n" +
+                            "INVOKEVIRTUAL java/lang/String.equals (Ljava/lang/Object;)Z\nIFEQ L0\n" +
+                            "ALOAD 0\nALOAD 1\nLLOAD 2\nALOAD 4\nALOAD 5\n" +
+                            "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsConditions$args (Ljava/lang/Object;Ljava/lang/String;J[Ljava/lang/String;[I)V\n" +
+                            "MAXSTACK");
+    }
+
+    @Test
+    public void methodEntryArgsFloatCondition() throws Exception {
+        originalBC = loadTargetClass("OnMethodTest");
+        transform("onmethod/ArgsFloatCondition");
+        // 0.1 is not representable; a float argument must be compared with the float literal, not widened to double
+        checkTransformation("FLOAD 1\nLDC 0.1\nFCMPL\nIFNE L0\n" +
+                            "DLOAD 2\nLDC 0.1\nDCMPL\nIFNE L0\n" +
+                            "ALOAD 0\nFLOAD 1\nDLOAD 2\n" +
+                            "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsFloatCondition$floats (Ljava/lang/Object;FD)V\n" +
+                            "MAXSTACK");
+    }
+
+    @Test
+    public void methodEntryArgsDurationCondition() throws Exception {
+        originalBC = loadTargetClass("OnMethodTest");
+        transform("onmethod/ArgsDurationCondition");
+        checkTransformation("INVOKESTATIC resources/OnMethodTest.$btrace$time$stamp ()J\nLSTORE 6\n" +
+                            "INVOKESTATIC resources/OnMethodTest.$btrace$time$stamp ()J\nLSTORE 8\n" +
+                            "DUP2\nLSTORE 10\nLLOAD 8\nLLOAD 6\nLSUB\nLDC 1000000\nLCMP\nIFLT L1\n" +
+                            "ALOAD 0\nLLOAD 10\nLLOAD 8\nLLOAD 6\nLSUB\nALOAD 1\nLLOAD 2\nALOAD 4\nALOAD 5\n" +
+                            "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsDurationCondition$args (Ljava/lang/Object;JJLjava/lang/String;J[Ljava/lang/String;[I)V\n" +
+                            "L1");
+    }
+
+    @Test
+    public void methodEntryArgsThreadCondition() throws Exception {
+        originalBC = loadTargetClass("OnMethodTest");
+        Trace btrace = transformSampled("onmethod/ArgsThreadCondition");
+        checkTransformation(push(btrace.onMethods.get(0).getConditions().get(0).getPatternId()) + "\n" +
+                            "INVOKESTATIC net/java/btrace/runtime/ProbeConditions.threadNameMatches (I)Z\nIFEQ L0\n" +
+                            "ALOAD 0\nALOAD 1\nLLOAD 2\nALOAD 4\nALOAD 5\n" +
+                            "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsThreadCondition$args (Ljava/lang/Object;Ljava/lang/String;J[Ljava/lang/String;[I)V\n" +
+                            "MAXSTACK");
+    }
+
+    @Test
+    public void methodEntryArgsCounted() throws Exception {
+        originalBC = loadTargetClass("OnMethodTest");
+        transform("onmethod/ArgsCounted");
+        // the handler is never called; the site itself checks whether the probe is turned off
+        checkTransformation("GETSTATIC traces/onmethod/ArgsCounted.$disabled$args : Z\nIFNE L0\n" +
+                            "GETSTATIC traces/onmethod/ArgsCounted.$calls : Lnet/java/btrace/runtime/ProbeCounter;\n" +
+                            "INVOKEVIRTUAL net/java/btrace/runtime/ProbeCounter.increment ()V");
+    }
+
     @Test
     // check for multiple timestamps
     public void methodEntryArgsDuration2Err() throws Exception {
@@ -525,4 +626,17 @@ public class InstrumentorTest extends InstrumentorTestBase {
         checkTransformation("ALOAD 0\nINVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$NoArgsEntryReturn$argsEmptyEntry (Ljava/lang/Object;)V\n" +
                             "ALOAD 0\nINVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$NoArgsEntryReturn$argsEmptyReturn (Ljava/lang/Object;)V");
     }
-}
\ No newline at end of file
+
+    // the sampler and the thread name pattern ids are known only after loading the trace
+    private Trace transformSampled(String traceName) throws IOException {
+        Trace btrace = loadTrace(traceName);
+        InstrumentorChain chain = new InstrumentorChain(null, originalBC);
+        chain.add(btrace.className, btrace.content, btrace.onMethods);
+        transformedBC = chain.instrument();
+        return btrace;
+    }
+
+    private static String push(int value) {
+        return value <= 5 ? "ICONST_" + value : "BIPUSH " + value;
+    }
+}
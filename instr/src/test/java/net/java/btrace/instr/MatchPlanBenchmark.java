@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.instr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import net.java.btrace.annotations.Kind;
+import net.java.btrace.org.objectweb.asm.ClassReader;
+import net.java.btrace.org.objectweb.asm.ClassWriter;
+
+/**
+ * Per-class instrumentation time of a script with regular expression method
+ * and call site patterns.
+ * <p>
+ * The script traces the entries of the <code>java.util</code> methods matching
+ * a few method name patterns plus the calls of the <code>java.util</code>
+ * getters and setters from within any <code>java.util</code> method.
+ * <p>
+ * Usage: <code>MatchPlanBenchmark [jar]</code>; the corpus defaults to
+ * the <code>java.util</code> classes of the JRE <code>rt.jar</code>
+ * @author Jaroslav Bachorik
+ */
+public class MatchPlanBenchmark {
+    private static final String[] METHOD_PATTERNS = new String[]{
+        "/get\\w*/", "/put\\w*/", "/remove\\w*/", "/add\\w*/",
+        "/contains\\w*/", "/is[A-Z]\\w*/", "/to[A-Z]\\w*/", "/.*Entry.*/"
+    };
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) throws Exception {
+        String jar = args.length > 0 ? args[0] : System.getProperty("java.home") + File.separator + "lib" + File.separator + "rt.jar";
+        List<byte[]> corpus = loadCorpus(jar, args.length > 0 ? "" : "java/util/");
+        System.out.println("corpus: " + corpus.size() + " classes from " + jar);
+
+        byte[] entryTrace = load(ClassLoader.getSystemResourceAsStream("traces/onmethod/NoArgs.class"));
+        byte[] callTrace = load(ClassLoader.getSystemResourceAsStream("traces/onmethod/MethodCall.class"));
+
+        Script entry = new Script(entryTrace);
+        List<OnMethod> onMethods = new ArrayList<OnMethod>();
+        OnMethod template = entry.onMethods.get(0);
+        for (String mp : METHOD_PATTERNS) {
+            OnMethod om = new OnMethod();
+            om.setClazz("/java\\.util\\..*/");
+            om.setMethod(mp);
+            om.setTargetName(template.getTargetName());
+            om.setTargetDescriptor(template.getTargetDescriptor());
+            om.setSelfParameter(template.getSelfParameter());
+            om.setLocation(template.getLocation());
+            onMethods.add(om);
+        }
+        Script call = new Script(callTrace);
+        for (OnMethod om : call.onMethods) {
+            om.setClazz("/java\\.util\\..*/");
+            om.setMethod("/.*/");
+            om.getLocation().setValue(Kind.CALL);
+            om.getLocation().setClazz("/java\\.util\\..*/");
+            om.getLocation().setMethod("/(get|set)[A-Z]\\w*/");
+        }
+
+        MatchPlan entryPlan = new MatchPlan(onMethods);
+        MatchPlan callPlan = new MatchPlan(call.onMethods);
+
+        // the first run is a warm-up
+        long perClass = Long.MAX_VALUE, shared = Long.MAX_VALUE;
+        int cnt = 0;
+        for (int r = 0; r <= RUNS; r++) {
+            long start = System.nanoTime();
+            cnt = run(corpus, entry.className, entry.code, null, onMethods, call.className, call.code, null, call.onMethods);
+            if (r > 0) {
+                perClass = Math.min(perClass, System.nanoTime() - start);
+            }
+
+            start = System.nanoTime();
+            cnt = run(corpus, entry.className, entry.code, entryPlan, null, call.className, call.code, callPlan, null);
+            if (r > 0) {
+                shared = Math.min(shared, System.nanoTime() - start);
+            }
+        }
+        System.out.println("mode\tus/class");
+        System.out.println("plan per class\t" + String.format("%.2f", perClass / 1000d / cnt));
+        System.out.println("shared plan\t" + String.format("%.2f", shared / 1000d / cnt));
+    }
+
+    /**
+     * Instruments the corpus either with the shared {@linkplain MatchPlan}s or with the {@linkplain Instrumentor}s
+     * compiling the list of {@linkplain OnMethod}s for each class
+     */
+    private static int run(List<byte[]> corpus,
+                           String entryName, byte[] entryCode, MatchPlan entryPlan, List<OnMethod> entryProbes,
+                           String callName, byte[] callCode, MatchPlan callPlan, List<OnMethod> callProbes) {
+        int cnt = 0;
+        for (byte[] target : corpus) {
+            try {
+                ClassWriter writer = InstrumentUtils.newClassWriter(target);
+                Instrumentor i2 = callPlan != null ? new Instrumentor(null, callName, callCode, callPlan, writer)
+                                                   : new Instrumentor(null, callName, callCode, callProbes, writer);
+                Instrumentor i1 = entryPlan != null ? new Instrumentor(null, entryName, entryCode, entryPlan, i2)
+                                                    : new Instrumentor(null, entryName, entryCode, entryProbes, i2);
+                InstrumentUtils.accept(new ClassReader(target), i1);
+                writer.toByteArray();
+                cnt++;
+            } catch (Throwable t) {
+                // skip the class
+            }
+        }
+        return cnt;
+    }
+
+    private static class Script {
+        final String className;
+        final byte[] code;
+        final List<OnMethod> onMethods;
+
+        Script(byte[] btrace) {
+            ClassWriter writer = InstrumentUtils.newClassWriter();
+            Verifier verifier = new Verifier(new Preprocessor(writer));
+            InstrumentUtils.accept(new ClassReader(btrace), verifier);
+            className = verifier.getClassName();
+            code = writer.toByteArray();
+            onMethods = verifier.getOnMethods();
+        }
+    }
+
+    private static List<byte[]> loadCorpus(String jar, String prefix) throws IOException {
+        List<byte[]> corpus = new ArrayList<byte[]>();
+        JarFile jf = new JarFile(jar);
+        try {
+            Enumeration<JarEntry> entries = jf.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry e = entries.nextElement();
+                if (e.getName().startsWith(prefix) && e.getName().endsWith(".class")) {
+                    corpus.add(load(jf.getInputStream(e)));
+                }
+            }
+        } finally {
+            jf.close();
+        }
+        return corpus;
+    }
+
+    private static byte[] load(InputStream is) throws IOException {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) > 0) {
+                bos.write(buffer, 0, read);
+            }
+            return bos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+}
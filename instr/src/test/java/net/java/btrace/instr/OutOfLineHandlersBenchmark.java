@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.instr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import net.java.btrace.org.objectweb.asm.ClassReader;
+import net.java.btrace.org.objectweb.asm.ClassWriter;
+
+/**
+ * Class file growth and instrumentation time of a broad script with the
+ * handlers copied into each instrumented class vs. the handlers called
+ * out-of-line in the BTrace class.
+ * <p>
+ * The script traces the entries and returns of all the instance
+ * methods of all the classes in the corpus; the class file growth
+ * approximates the metaspace taken by the instrumentation.
+ * <p>
+ * Usage: <code>OutOfLineHandlersBenchmark [jar]</code>; the corpus defaults
+ * to the JRE <code>rt.jar</code>
+ * @author Jaroslav Bachorik
+ */
+public class OutOfLineHandlersBenchmark {
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) throws Exception {
+        String jar = args.length > 0 ? args[0] : System.getProperty("java.home") + File.separator + "lib" + File.separator + "rt.jar";
+        List<byte[]> corpus = loadCorpus(jar);
+        System.out.println("corpus: " + corpus.size() + " classes from " + jar);
+
+        byte[] trace = load(ClassLoader.getSystemResourceAsStream("traces/onmethod/NoArgsEntryReturn.class"));
+        ClassWriter w = InstrumentUtils.newClassWriter();
+        Verifier verifier = new Verifier(new Preprocessor(w));
+        InstrumentUtils.accept(new ClassReader(trace), verifier);
+        String className = verifier.getClassName();
+        byte[] code = w.toByteArray();
+        List<OnMethod> onMethods = verifier.getOnMethods();
+        for (OnMethod om : onMethods) {
+            om.setClazz("/.*/");
+            om.setMethod("/.*/");
+            om.setType("");
+        }
+        MatchPlan plan = new MatchPlan(onMethods);
+        TraceHandlers handlers = new TraceHandlers(code);
+
+        long size = 0;
+        for (byte[] target : corpus) {
+            size += target.length;
+        }
+        // the first run is a warm-up
+        long[] copied = new long[]{Long.MAX_VALUE, 0}, outOfLine = new long[]{Long.MAX_VALUE, 0};
+        int cnt = 0;
+        for (int r = 0; r <= RUNS; r++) {
+            cnt = run(corpus, className, handlers, plan, r > 0 ? copied : null);
+            cnt = run(corpus, className, null, plan, r > 0 ? outOfLine : null);
+        }
+        System.out.println("instrumented: " + cnt + " of " + corpus.size() + " classes, " + size / 1024 + " KB in total");
+        System.out.println("mode\tms\tgrowth KB\tgrowth B/class");
+        print("copied handlers", copied, cnt);
+        print("out-of-line handlers", outOfLine, cnt);
+    }
+
+    private static void print(String mode, long[] result, int cnt) {
+        System.out.println(mode + "\t" + result[0] / 1000000 + "\t" + result[1] / 1024 + "\t" + result[1] / cnt);
+    }
+
+    private static int run(List<byte[]> corpus, String className, TraceHandlers handlers, MatchPlan plan, long[] result) {
+        long growth = 0;
+        long start = System.nanoTime();
+        int cnt = 0;
+        for (byte[] target : corpus) {
+            try {
+                InstrumentorChain chain = new InstrumentorChain(null, target);
+                if (handlers != null) {
+                    chain.add(className, handlers, plan);
+                } else {
+                    chain.add(className, plan);
+                }
+                byte[] instrumented = chain.instrument();
+                if (instrumented != null) {
+                    growth += instrumented.length - target.length;
+                    cnt++;
+                }
+            } catch (Throwable t) {
+                // skip the class
+            }
+        }
+        if (result != null) {
+            result[0] = Math.min(result[0], System.nanoTime() - start);
+            result[1] = growth;
+        }
+        return cnt;
+    }
+
+    private static List<byte[]> loadCorpus(String jar) throws IOException {
+        List<byte[]> corpus = new ArrayList<byte[]>();
+        JarFile jf = new JarFile(jar);
+        try {
+            Enumeration<JarEntry> entries = jf.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry e = entries.nextElement();
+                if (e.getName().endsWith(".class")) {
+                    corpus.add(load(jf.getInputStream(e)));
+                }
+            }
+        } finally {
+            jf.close();
+        }
+        return corpus;
+    }
+
+    private static byte[] load(InputStream is) throws IOException {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) > 0) {
+                bos.write(buffer, 0, read);
+            }
+            return bos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.instr;
+
+import net.java.btrace.org.objectweb.asm.ClassReader;
+import net.java.btrace.org.objectweb.asm.ClassVisitor;
+import net.java.btrace.org.objectweb.asm.ClassWriter;
+import net.java.btrace.org.objectweb.asm.MethodVisitor;
+import net.java.btrace.org.objectweb.asm.Opcodes;
+import net.java.btrace.support.InstrumentorTestBase;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class OutOfLineHandlersTest extends InstrumentorTestBase {
+    @Test
+    public void callsTraceClass() throws Exception {
+        System.out.println("callsTraceClass");
+        originalBC = loadTargetClass("OnMethodTest");
+        transformOutOfLine("onmethod/NoArgs");
+        checkTransformation("ALOAD 0\nINVOKESTATIC traces/onmethod/NoArgs.argsEmpty (Ljava/lang/Object;)V");
+        assertFalse(asmify(transformedBC).contains(Constants.BTRACE_METHOD_PREFIX));
+    }
+
+    @Test
+    public void anytypeArgs() throws Exception {
+        System.out.println("anytypeArgs");
+        originalBC = loadTargetClass("OnMethodTest");
+        transformOutOfLine("onmethod/AnytypeArgs");
+        checkTransformation("ALOAD 0\nICONST_4\nANEWARRAY java/lang/Object\nDUP\nICONST_0\nALOAD 1\nAASTORE\nDUP\n" +
+                            "ICONST_1\nLLOAD 2\nINVOKESTATIC java/lang/Long.valueOf (J)Ljava/lang/Long;\nAASTORE\nDUP\nICONST_2\nALOAD 4\nAASTORE\nDUP\n" +
+                            "ICONST_3\nALOAD 5\nAASTORE\nINVOKESTATIC traces/onmethod/AnytypeArgs.args (Ljava/lang/Object;[Ljava/lang/Object;)V");
+    }
+
+    @Test
+    public void exportedHandlers() throws Exception {
+        System.out.println("exportedHandlers");
+        Trace btrace = loadTrace("onmethod/AnytypeArgs");
+        ClassWriter writer = InstrumentUtils.newClassWriter();
+        InstrumentUtils.accept(new ClassReader(btrace.content), new HandlerExporter(writer, btrace.onMethods));
+
+        final StringBuilder handlers = new StringBuilder();
+        new ClassReader(writer.toByteArray()).accept(new ClassVisitor(Opcodes.ASM4) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                if (name.equals("args")) {
+                    assertEquals(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, access & (Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC));
+                    handlers.append(name).append(desc);
+                }
+                return null;
+            }
+        }, ClassReader.SKIP_CODE);
+        assertEquals("args(Ljava/lang/Object;[Ljava/lang/Object;)V", handlers.toString());
+    }
+
+    private void transformOutOfLine(String traceName) throws Exception {
+        Trace btrace = loadTrace(traceName);
+        InstrumentorChain chain = new InstrumentorChain(null, originalBC);
+        chain.add(btrace.className, new MatchPlan(btrace.onMethods));
+        transformedBC = chain.instrument();
+        assertTrue(chain.hasMatch(0));
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.instr;
+
+import java.io.InputStream;
+import net.java.btrace.org.objectweb.asm.ClassReader;
+import net.java.btrace.org.objectweb.asm.ClassVisitor;
+import net.java.btrace.org.objectweb.asm.ClassWriter;
+import net.java.btrace.org.objectweb.asm.FieldVisitor;
+import net.java.btrace.org.objectweb.asm.Opcodes;
+import net.java.btrace.support.InstrumentorTestBase;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class ProbeGuardsTest extends InstrumentorTestBase {
+    private static final String FLAG_READ = "GETSTATIC traces/onmethod/NoArgs.$disabled$argsEmpty : Z";
+
+    @Test
+    public void handlerFlags() throws Exception {
+        System.out.println("handlerFlags");
+        // preprocessed as loaded by the agent - with the probe annotations kept
+        ClassWriter writer = InstrumentUtils.newClassWriter();
+        InputStream is = ClassLoader.getSystemResourceAsStream("traces/onmethod/NoArgs.class");
+        try {
+            InstrumentUtils.accept(new ClassReader(is), new Preprocessor(writer));
+        } finally {
+            is.close();
+        }
+        byte[] btrace = writer.toByteArray();
+        final StringBuilder flags = new StringBuilder();
+        new ClassReader(btrace).accept(new ClassVisitor(Opcodes.ASM4) {
+            @Override
+            public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+                if (name.startsWith(Constants.BTRACE_PROBE_DISABLED_PREFIX)) {
+                    assertEquals(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_VOLATILE, access);
+                    flags.append(name).append(' ').append(desc);
+                }
+                return null;
+            }
+        }, ClassReader.SKIP_CODE);
+        assertEquals("$disabled$argsEmpty Z", flags.toString());
+        // the handler returns right away when turned off
+        String handler = asmify(btrace);
+        handler = handler.substring(handler.indexOf("argsEmpty(Ljava/lang/Object;)V"));
+        assertTrue(handler, handler.matches("(?s).*TRYCATCHBLOCK[^\\n]*\\n\\s*" + FLAG_READ.replace("$", "\\$") + "\\n\\s*IFEQ L\\d+\\n\\s*RETURN\\n.*"));
+    }
+
+    @Test
+    public void handlerStats() throws Exception {
+        System.out.println("handlerStats");
+        assertFalse(asmify(preprocess("traces/onmethod/NoArgs.class", false)).contains(Constants.BTRACE_PROBE_STATS_PREFIX));
+
+        byte[] btrace = preprocess("traces/onmethod/NoArgs.class", true);
+        final StringBuilder fields = new StringBuilder();
+        new ClassReader(btrace).accept(new ClassVisitor(Opcodes.ASM4) {
+            @Override
+            public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+                if (name.startsWith(Constants.BTRACE_PROBE_STATS_PREFIX)) {
+                    assertEquals(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, access);
+                    fields.append(name).append(' ').append(desc);
+                }
+                return null;
+            }
+        }, ClassReader.SKIP_CODE);
+        assertEquals("$stats$argsEmpty Lnet/java/btrace/runtime/ProbeStats;", fields.toString());
+        String handler = asmify(btrace);
+        handler = handler.substring(handler.indexOf("argsEmpty(Ljava/lang/Object;)V"));
+        String stats = "GETSTATIC traces/onmethod/NoArgs.\\$stats\\$argsEmpty : Lnet/java/btrace/runtime/ProbeStats;\\n\\s*";
+        // the sampled out invocation leaves right after entering
+        assertTrue(handler, handler.matches("(?s).*IFNE L\\d+\\n\\s*RETURN\\n\\s*L\\d+\\n\\s*" + stats
+            + "INVOKESTATIC net/java/btrace/runtime/ProbeStats.enter \\(Lnet/java/btrace/runtime/ProbeStats;\\)Z\\n\\s*IFNE L\\d+\\n\\s*" + stats
+            + "INVOKESTATIC net/java/btrace/runtime/ProbeStats.leave \\(Lnet/java/btrace/runtime/ProbeStats;\\)V\\n\\s*"
+            + "INVOKESTATIC net/java/btrace/runtime/BTraceRuntime.leave \\(\\)V\\n\\s*RETURN\\n.*"));
+        // both the regular and the exceptional exits
+        assertEquals(3, count(handler, "INVOKESTATIC net/java/btrace/runtime/ProbeStats.leave"));
+    }
+
+    @Test
+    public void counterFields() throws Exception {
+        System.out.println("counterFields");
+        byte[] btrace = preprocess("traces/onmethod/ArgsCounted.class", false);
+        final StringBuilder fields = new StringBuilder();
+        new ClassReader(btrace).accept(new ClassVisitor(Opcodes.ASM4) {
+            @Override
+            public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+                if (desc.equals(Constants.PROBE_COUNTER_DESC)) {
+                    fields.append(name).append(' ').append(desc);
+                }
+                return null;
+            }
+        }, ClassReader.SKIP_CODE);
+        assertEquals("$calls Lnet/java/btrace/runtime/ProbeCounter;", fields.toString());
+        // the counted handler is never called so it gets no statistics
+        assertFalse(asmify(preprocess("traces/onmethod/ArgsCounted.class", true)).contains(Constants.BTRACE_PROBE_STATS_PREFIX));
+        String code = asmify(btrace);
+        assertTrue(code, code.contains("NEW net/java/btrace/runtime/ProbeCounter"));
+        // the reads sum the counter up, the writes reset it
+        String report = code.substring(code.indexOf("report()V"));
+        assertTrue(report, report.matches("(?s).*GETSTATIC traces/onmethod/ArgsCounted.\\$calls : Lnet/java/btrace/runtime/ProbeCounter;\\n\\s*"
+            + "INVOKEVIRTUAL net/java/btrace/runtime/ProbeCounter.sum \\(\\)J\\n.*"));
+        assertTrue(report, report.matches("(?s).*GETSTATIC traces/onmethod/ArgsCounted.\\$calls : Lnet/java/btrace/runtime/ProbeCounter;\\n\\s*"
+            + "DUP_X2\\n\\s*POP\\n\\s*INVOKEVIRTUAL net/java/btrace/runtime/ProbeCounter.set \\(J\\)V\\n.*"));
+    }
+
+    @Test
+    public void guardedSite() throws Exception {
+        System.out.println("guardedSite");
+        Trace btrace = loadTrace("onmethod/NoArgs");
+        originalBC = loadTargetClass("OnMethodTest");
+
+        InstrumentorChain chain = new InstrumentorChain(null, originalBC);
+        chain.add(btrace.className, btrace.content, btrace.onMethods);
+        byte[] unguarded = chain.instrument();
+        assertEquals(0, count(asmify(unguarded), FLAG_READ));
+
+        chain = new InstrumentorChain(null, originalBC);
+        chain.setProbeGuards(chain.add(btrace.className, btrace.content, btrace.onMethods), true);
+        transformedBC = chain.instrument();
+        checkTransformation(FLAG_READ + "\nIFNE L");
+        assertEquals(1, count(asmify(transformedBC), FLAG_READ));
+    }
+
+    @Test
+    public void guardedOutOfLineSite() throws Exception {
+        System.out.println("guardedOutOfLineSite");
+        Trace btrace = loadTrace("onmethod/NoArgs");
+        originalBC = loadTargetClass("OnMethodTest");
+        InstrumentorChain chain = new InstrumentorChain(null, originalBC);
+        chain.setProbeGuards(chain.add(btrace.className, new MatchPlan(btrace.onMethods)), true);
+        transformedBC = chain.instrument();
+        checkTransformation(FLAG_READ + "\nIFNE L");
+        assertTrue(asmify(transformedBC).contains("INVOKESTATIC traces/onmethod/NoArgs.argsEmpty (Ljava/lang/Object;)V"));
+    }
+
+    private static byte[] preprocess(String resource, boolean probeStats) throws Exception {
+        // preprocessed as loaded by the agent - with the probe annotations kept
+        ClassWriter writer = InstrumentUtils.newClassWriter();
+        InputStream is = ClassLoader.getSystemResourceAsStream(resource);
+        try {
+            InstrumentUtils.accept(new ClassReader(is), new Preprocessor(writer, probeStats));
+        } finally {
+            is.close();
+        }
+        return writer.toByteArray();
+    }
+
+    private static int count(String code, String insn) {
+        int cnt = 0;
+        for (int i = code.indexOf(insn); i != -1; i = code.indexOf(insn, i + insn.length())) {
+            cnt++;
+        }
+        return cnt;
+    }
+}
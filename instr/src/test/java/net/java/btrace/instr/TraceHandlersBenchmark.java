@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.instr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import net.java.btrace.org.objectweb.asm.ClassReader;
+import net.java.btrace.org.objectweb.asm.ClassWriter;
+
+/**
+ * Per-class instrumentation time and allocation of a script parsed for each
+ * instrumented class vs. a script parsed once into {@linkplain TraceHandlers}.
+ * <p>
+ * The script traces the entries of all the <code>java.util</code> methods.
+ * <p>
+ * Usage: <code>TraceHandlersBenchmark [jar]</code>; the corpus defaults to
+ * the <code>java.util</code> classes of the JRE <code>rt.jar</code>
+ * @author Jaroslav Bachorik
+ */
+public class TraceHandlersBenchmark {
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) throws Exception {
+        String jar = args.length > 0 ? args[0] : System.getProperty("java.home") + File.separator + "lib" + File.separator + "rt.jar";
+        List<byte[]> corpus = loadCorpus(jar, args.length > 0 ? "" : "java/util/");
+        System.out.println("corpus: " + corpus.size() + " classes from " + jar);
+
+        byte[] trace = load(ClassLoader.getSystemResourceAsStream("traces/onmethod/ArgsDuration.class"));
+        ClassWriter w = InstrumentUtils.newClassWriter();
+        Verifier verifier = new Verifier(new Preprocessor(w));
+        InstrumentUtils.accept(new ClassReader(trace), verifier);
+        String className = verifier.getClassName();
+        byte[] code = w.toByteArray();
+        List<OnMethod> onMethods = verifier.getOnMethods();
+        for (OnMethod om : onMethods) {
+            om.setClazz("/java\\.util\\..*/");
+            om.setMethod("/.*/");
+            om.setType("");
+        }
+        MatchPlan plan = new MatchPlan(onMethods);
+        TraceHandlers handlers = new TraceHandlers(code);
+        System.out.println("script: " + code.length + " bytes");
+
+        // the first run is a warm-up
+        long[] perClass = new long[]{Long.MAX_VALUE, Long.MAX_VALUE}, shared = new long[]{Long.MAX_VALUE, Long.MAX_VALUE};
+        int cnt = 0;
+        for (int r = 0; r <= RUNS; r++) {
+            cnt = run(corpus, className, code, null, plan, r > 0 ? perClass : null);
+            cnt = run(corpus, className, null, handlers, plan, r > 0 ? shared : null);
+        }
+        System.out.println("mode\tus/class\tKB/class");
+        System.out.println("parsed per class\t" + String.format("%.2f\t%.2f", perClass[0] / 1000d / cnt, perClass[1] / 1024d / cnt));
+        System.out.println("shared handlers\t" + String.format("%.2f\t%.2f", shared[0] / 1000d / cnt, shared[1] / 1024d / cnt));
+    }
+
+    private static int run(List<byte[]> corpus, String className, byte[] code, TraceHandlers handlers, MatchPlan plan, long[] result) {
+        com.sun.management.ThreadMXBean tmx = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        long alloc = tmx.getThreadAllocatedBytes(tid);
+        long start = System.nanoTime();
+        int cnt = 0;
+        for (byte[] target : corpus) {
+            try {
+                ClassWriter writer = InstrumentUtils.newClassWriter(target);
+                Instrumentor i = handlers != null ? new Instrumentor(null, className, handlers, plan, writer)
+                                                  : new Instrumentor(null, className, code, plan, writer);
+                InstrumentUtils.accept(new ClassReader(target), i);
+                writer.toByteArray();
+                cnt++;
+            } catch (Throwable t) {
+                // skip the class
+            }
+        }
+        if (result != null) {
+            result[0] = Math.min(result[0], System.nanoTime() - start);
+            result[1] = Math.min(result[1], tmx.getThreadAllocatedBytes(tid) - alloc);
+        }
+        return cnt;
+    }
+
+    private static List<byte[]> loadCorpus(String jar, String prefix) throws IOException {
+        List<byte[]> corpus = new ArrayList<byte[]>();
+        JarFile jf = new JarFile(jar);
+        try {
+            Enumeration<JarEntry> entries = jf.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry e = entries.nextElement();
+                if (e.getName().startsWith(prefix) && e.getName().endsWith(".class")) {
+                    corpus.add(load(jf.getInputStream(e)));
+                }
+            }
+        } finally {
+            jf.close();
+        }
+        return corpus;
+    }
+
+    private static byte[] load(InputStream is) throws IOException {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) > 0) {
+                bos.write(buffer, 0, read);
+            }
+            return bos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.instr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import net.java.btrace.org.objectweb.asm.ClassReader;
+import net.java.btrace.org.objectweb.asm.ClassWriter;
+import net.java.btrace.org.objectweb.asm.Opcodes;
+import net.java.btrace.support.InstrumentorTestBase;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class TraceHandlersTest extends InstrumentorTestBase {
+    @Test
+    public void replayEqualsCopy() throws Exception {
+        System.out.println("replayEqualsCopy");
+        Trace btrace = loadTrace("onmethod/ArgsDuration");
+        byte[] target = loadTargetClass("OnMethodTest");
+
+        ClassWriter writer = InstrumentUtils.newClassWriter();
+        InstrumentUtils.accept(new ClassReader(target), new MethodCopier(new ClassReader(btrace.content), writer, handlerInfos(btrace), true));
+        byte[] copied = writer.toByteArray();
+
+        writer = InstrumentUtils.newClassWriter();
+        InstrumentUtils.accept(new ClassReader(target), new MethodCopier(new TraceHandlers(btrace.content), writer, handlerInfos(btrace), true));
+        byte[] replayed = writer.toByteArray();
+        assertEquals(asmify(copied), asmify(replayed));
+        assertTrue(Arrays.equals(copied, replayed));
+    }
+
+    @Test
+    public void sharedHandlers() throws Exception {
+        System.out.println("sharedHandlers");
+        Trace btrace = loadTrace("onmethod/ArgsDuration");
+        originalBC = loadTargetClass("OnMethodTest");
+        transform("onmethod/ArgsDuration");
+        String expected = asmify(transformedBC);
+
+        TraceHandlers handlers = new TraceHandlers(btrace.content);
+        MatchPlan plan = new MatchPlan(btrace.onMethods);
+        // the same handlers are replayed into each instrumented class
+        for (int i = 0; i < 3; i++) {
+            InstrumentorChain chain = new InstrumentorChain(null, originalBC);
+            chain.add(btrace.className, handlers, plan);
+            assertEquals(expected, asmify(chain.instrument()));
+        }
+    }
+
+    private static List<MethodCopier.MethodInfo> handlerInfos(Trace btrace) {
+        List<MethodCopier.MethodInfo> mi = new ArrayList<MethodCopier.MethodInfo>();
+        for (OnMethod om : btrace.onMethods) {
+            mi.add(new MethodCopier.MethodInfo(om.getTargetName(), om.getTargetDescriptor(),
+                   "copied$" + om.getTargetName(), Opcodes.ACC_STATIC | Opcodes.ACC_PRIVATE));
+        }
+        return mi;
+    }
+}
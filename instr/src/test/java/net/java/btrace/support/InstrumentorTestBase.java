@@ -29,6 +29,7 @@ import net.java.btrace.org.objectweb.asm.ClassReader;
 import net.java.btrace.org.objectweb.asm.ClassWriter;
 import net.java.btrace.instr.InstrumentUtils;
 import net.java.btrace.instr.Instrumentor;
+import net.java.btrace.instr.InstrumentorChain;
 import net.java.btrace.instr.OnMethod;
 import net.java.btrace.instr.Preprocessor;
 import net.java.btrace.instr.Verifier;
@@ -47,9 +48,9 @@ import org.objectweb.asm.util.TraceClassVisitor;
  */
 abstract public class InstrumentorTestBase {
     protected static class Trace {
-        final byte[] content;
-        final List<OnMethod> onMethods;
-        final String className;
+        final public byte[] content;
+        final public List<OnMethod> onMethods;
+        final public String className;
 
         public Trace(byte[] content, List<OnMethod> onMethods, String className) {
             this.content = content;
@@ -90,6 +91,16 @@ abstract public class InstrumentorTestBase {
         System.err.println("==== " + traceName);
     }
 
+    protected InstrumentorChain transformChained(String ... traceNames) throws IOException {
+        InstrumentorChain chain = new InstrumentorChain(null, originalBC);
+        for (String traceName : traceNames) {
+            Trace btrace = loadTrace(traceName);
+            chain.add(btrace.className, btrace.content, btrace.onMethods);
+        }
+        transformedBC = chain.instrument();
+        return chain;
+    }
+
     protected String asmify(byte[] bytecode) {
         StringWriter sw = new StringWriter();
         TraceClassVisitor acv = new TraceClassVisitor(new PrintWriter(sw));
@@ -109,4 +109,6 @@ public class OnMethodTest {
             System.err.println("ho hey");
         }
     }
+
+    public void floats(float a, double b) {}
 }
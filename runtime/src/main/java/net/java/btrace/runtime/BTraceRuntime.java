@@ -324,8 +324,8 @@ public final class BTraceRuntime {
         this.instrumentation = inst;
         this.repository = extRepository;
         this.channel = commChannel;
-        runtimes.put(runtimeName, this);
         this.shutdown = shutdown;
+        runtimes.put(runtimeName, this);
     }
 
     public static String getClassName() {
@@ -390,7 +390,14 @@ public final class BTraceRuntime {
      * just at the end of it's class initializer.
      */
     public static void start() {
-        BTraceRuntime current = getCurrent();
+        start(getCurrent());
+    }
+
+    /**
+     * Same as {@linkplain #start()} but using the runtime already known
+     * to the caller instead of looking it up
+     */
+    public static void start(BTraceRuntime current) {
         if (current != null) {
             current.startImpl();
         }
@@ -625,7 +632,14 @@ public final class BTraceRuntime {
      * Handles exception from BTrace probe actions.
      */
     public static void handleException(Throwable th) {
-        BTraceRuntime current = getCurrent();
+        handleException(th, getCurrent());
+    }
+
+    /**
+     * Same as {@linkplain #handleException(java.lang.Throwable)} but using
+     * the runtime already known to the caller instead of looking it up
+     */
+    public static void handleException(Throwable th, BTraceRuntime current) {
         if (current != null) {
             current.handleExceptionImpl(th);
         } else {
@@ -683,6 +697,10 @@ public final class BTraceRuntime {
     /**
      * Get the current thread BTraceRuntime instance
      * if there is one.
+     * <p>
+     * This is the runtime the preprocessed handler passed to
+     * {@linkplain #enter(net.java.btrace.runtime.BTraceRuntime)} from
+     * its BTrace class; threads outside of any handler have none.
      */
     public static BTraceRuntime getCurrent() {
         BTraceRuntime current = (BTraceRuntime) map.get();
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.runtime;
+
+import java.util.regex.Pattern;
+
+/**
+ * Support for the probe point conditions which can not be
+ * evaluated by a few inlined instructions.
+ * <p>
+ * The thread name patterns are compiled once, when the BTrace class
+ * is verified, and referenced by their slot id from the instrumented code.
+ *
+ * @author Jaroslav Bachorik
+ */
+public final class ProbeConditions {
+    private static volatile Pattern[] patterns = new Pattern[0];
+
+    private ProbeConditions() {
+    }
+
+    /**
+     * Registers a thread name pattern
+     * @param regex The regular expression
+     * @return The slot id to be passed to {@linkplain #threadNameMatches(int)}
+     * @throws java.util.regex.PatternSyntaxException if the expression is not valid
+     */
+    public static synchronized int newPattern(String regex) {
+        Pattern p = Pattern.compile(regex);
+        Pattern[] newPatterns = new Pattern[patterns.length + 1];
+        System.arraycopy(patterns, 0, newPatterns, 0, patterns.length);
+        newPatterns[patterns.length] = p;
+        patterns = newPatterns;
+        return patterns.length - 1;
+    }
+
+    /**
+     * @param id The pattern slot id
+     * @return <b>true</b> if the current thread name matches the pattern
+     */
+    public static boolean threadNameMatches(int id) {
+        return patterns[id].matcher(Thread.currentThread().getName()).matches();
+    }
+}
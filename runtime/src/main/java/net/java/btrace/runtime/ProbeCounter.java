@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.runtime;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter incremented directly by the counted probe points.
+ * <p>
+ * The increments are spread over several cells selected by the thread id.
+ * The cells are padded to separate cache lines so the threads counting
+ * concurrently do not contend on a single memory location. The counter value
+ * is the sum of all the cells.
+ *
+ * @author Jaroslav Bachorik
+ */
+public final class ProbeCounter {
+    // the number of longs per cell; keeps the neighbouring cells on separate cache lines
+    private static final int PAD = 8;
+    private static final int CELLS;
+
+    static {
+        int max = Math.min(Runtime.getRuntime().availableProcessors() * 2, 64);
+        int cells = 1;
+        while (cells < max) {
+            cells <<= 1;
+        }
+        CELLS = cells;
+    }
+
+    private final AtomicLongArray cells = new AtomicLongArray(CELLS * PAD);
+
+    /**
+     * Adds one to the counter
+     */
+    public void increment() {
+        cells.getAndIncrement(((int)Thread.currentThread().getId() & (CELLS - 1)) * PAD);
+    }
+
+    /**
+     * @return The current counter value
+     */
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < CELLS; i++) {
+            sum += cells.get(i * PAD);
+        }
+        return sum;
+    }
+
+    /**
+     * Resets the counter to the given value.
+     * The increments made concurrently with the reset may or may not be counted.
+     * @param value The new counter value
+     */
+    public void set(long value) {
+        for (int i = 1; i < CELLS; i++) {
+            cells.set(i * PAD, 0);
+        }
+        cells.set(0, value);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.runtime;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per-thread sampling state of the sampled probe points.
+ * <p>
+ * The instrumented code calls {@linkplain #hit(int, int)} or {@linkplain #random(int)}
+ * before collecting the probe arguments and skips the probe point when the
+ * invocation is not sampled. Each sampled probe gets its own slot in the
+ * thread's counter array while the probabilistic sampling shares one generator
+ * per thread. The state is touched only by its owner thread
+ * so no synchronization is needed on the hot path.
+ *
+ * @author Jaroslav Bachorik
+ */
+public final class ProbeSampler {
+    private static final AtomicInteger lastId = new AtomicInteger();
+    private static final ThreadLocal<ProbeSampler> samplers = new ThreadLocal<ProbeSampler>() {
+        @Override
+        protected ProbeSampler initialValue() {
+            return new ProbeSampler();
+        }
+    };
+
+    private int[] counters = new int[8];
+    private long seed;
+
+    private ProbeSampler() {
+        seed = System.nanoTime() ^ (Thread.currentThread().getId() * 0x9E3779B97F4A7C15L);
+        if (seed == 0) {
+            seed = 0x9E3779B97F4A7C15L;
+        }
+    }
+
+    /**
+     * Allocates the sampling state slot for a new probe point
+     * @return The slot id to be passed to {@linkplain #hit(int, int)}
+     */
+    public static int newSampler() {
+        return lastId.getAndIncrement();
+    }
+
+    /**
+     * Counter based sampling
+     * @param id The sampling state slot id
+     * @param mean The number of invocations per one sampled
+     * @return <b>true</b> for every mean-th invocation in the current thread
+     */
+    public static boolean hit(int id, int mean) {
+        return samplers.get().count(id, mean);
+    }
+
+    /**
+     * Probabilistic sampling
+     * @param mean The average number of invocations per one sampled
+     * @return <b>true</b> with the probability of 1/mean
+     */
+    public static boolean random(int mean) {
+        return samplers.get().nextInt(mean) == 0;
+    }
+
+    private boolean count(int id, int mean) {
+        if (id >= counters.length) {
+            int[] newCounters = new int[Math.max(id + 1, counters.length * 2)];
+            System.arraycopy(counters, 0, newCounters, 0, counters.length);
+            counters = newCounters;
+        }
+        int cnt = counters[id] + 1;
+        if (cnt >= mean) {
+            counters[id] = 0;
+            return true;
+        }
+        counters[id] = cnt;
+        return false;
+    }
+
+    private int nextInt(int bound) {
+        return (int)((next() >>> 33) % bound);
+    }
+
+    // xorshift64
+    private long next() {
+        long x = seed;
+        x ^= x << 13;
+        x ^= x >>> 7;
+        x ^= x << 17;
+        seed = x;
+        return x;
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.runtime;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Invocation statistics of one BTrace handler.
+ * <p>
+ * The preprocessed handler calls {@linkplain #enter(ProbeStats)} right after
+ * entering the runtime and {@linkplain #leave(ProbeStats)} on its way out.
+ * The arrivals are counted for every invocation while the handler cost is
+ * measured for every {@value #TIMING_INTERVAL}th handled invocation only
+ * to keep the clock reads off the common path. The handler may be sampled
+ * down by setting its {@linkplain #setSamplingMean(int) sampling mean}.
+ * <p>
+ * The counters are kept per thread and written by their owner thread only;
+ * {@linkplain #snapshot()} sums them up without stopping the writers so its
+ * result is approximate.
+ * <p>
+ * The counting probe points increment their {@linkplain ProbeCounter} without
+ * calling the handler; such handlers have no statistics.
+ *
+ * @author Jaroslav Bachorik
+ */
+public final class ProbeStats {
+    /**
+     * One out of this many handled invocations is timed
+     */
+    public static final int TIMING_INTERVAL = 8;
+
+    /**
+     * Cumulative counts of a handler's invocations
+     */
+    public static final class Snapshot {
+        /**
+         * The number of the handler invocations
+         */
+        final public long calls;
+        /**
+         * The number of the invocations passing the sampling
+         */
+        final public long handled;
+        /**
+         * The number of the timed invocations
+         */
+        final public long timed;
+        /**
+         * The time spent in the timed invocations, in nanoseconds
+         */
+        final public long nanos;
+
+        Snapshot(long calls, long handled, long timed, long nanos) {
+            this.calls = calls;
+            this.handled = handled;
+            this.timed = timed;
+            this.nanos = nanos;
+        }
+
+        /**
+         * @return The estimated time spent in all the handled invocations, in nanoseconds
+         */
+        public long estimatedNanos() {
+            return timed > 0 ? (long)((double)nanos * handled / timed) : 0L;
+        }
+    }
+
+    private static final class Cell {
+        final Thread owner;
+        long calls, handled, timed, nanos;
+        long start;
+        boolean timing;
+
+        Cell(Thread owner) {
+            this.owner = owner;
+        }
+    }
+
+    final private String name;
+    final private Queue<Cell> cells = new ConcurrentLinkedQueue<Cell>();
+    final private ThreadLocal<Cell> localCell = new ThreadLocal<Cell>() {
+        @Override
+        protected Cell initialValue() {
+            Cell c = new Cell(Thread.currentThread());
+            cells.add(c);
+            return c;
+        }
+    };
+    private volatile int samplingMean = 1;
+    // the counts of the threads already gone
+    private long deadCalls, deadHandled, deadTimed, deadNanos;
+
+    public ProbeStats(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return The name of the handler
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The number of invocations per one handled
+     */
+    public int getSamplingMean() {
+        return samplingMean;
+    }
+
+    /**
+     * Makes the handler process only every mean-th invocation in each thread
+     * @param mean The number of invocations per one handled; 1 handles all of them
+     */
+    public void setSamplingMean(int mean) {
+        samplingMean = Math.max(1, mean);
+    }
+
+    /**
+     * Called by the handler prolog
+     * @param s The handler statistics; may be <b>null</b>
+     * @return <b>true</b> if the handler should proceed
+     */
+    public static boolean enter(ProbeStats s) {
+        if (s == null) {
+            return true;
+        }
+        Cell c = s.localCell.get();
+        long cnt = c.calls++;
+        int mean = s.samplingMean;
+        if (mean > 1 && cnt % mean != 0) {
+            c.timing = false;
+            return false;
+        }
+        if ((c.handled++ % TIMING_INTERVAL) == 0) {
+            c.timing = true;
+            c.start = System.nanoTime();
+        } else {
+            c.timing = false;
+        }
+        return true;
+    }
+
+    /**
+     * Called by the handler epilog
+     * @param s The handler statistics; may be <b>null</b>
+     */
+    public static void leave(ProbeStats s) {
+        if (s == null) {
+            return;
+        }
+        Cell c = s.localCell.get();
+        if (c.timing) {
+            c.nanos += System.nanoTime() - c.start;
+            c.timed++;
+            c.timing = false;
+        }
+    }
+
+    /**
+     * Sums the counts of all the threads; the counts of the terminated
+     * threads are retained and their per-thread state is released
+     * @return The cumulative counts since the handler was loaded
+     */
+    public synchronized Snapshot snapshot() {
+        long calls = 0, handled = 0, timed = 0, nanos = 0;
+        for (Iterator<Cell> iter = cells.iterator(); iter.hasNext();) {
+            Cell c = iter.next();
+            if (!c.owner.isAlive()) {
+                iter.remove();
+                deadCalls += c.calls;
+                deadHandled += c.handled;
+                deadTimed += c.timed;
+                deadNanos += c.nanos;
+            } else {
+                calls += c.calls;
+                handled += c.handled;
+                timed += c.timed;
+                nanos += c.nanos;
+            }
+        }
+        return new Snapshot(calls + deadCalls, handled + deadHandled,
+                            timed + deadTimed, nanos + deadNanos);
+    }
+
+    @Override
+    public String toString() {
+        return "ProbeStats{" + "name=" + name + ", samplingMean=" + samplingMean + '}';
+    }
+}
@@ -41,159 +41,52 @@
 
 package net.java.btrace.runtime;
 
-import java.io.IOException;
-import java.lang.ref.WeakReference;
-
 /**
- * Optimised, low-contention, thread-value map
+ * Lock-free, per-thread value map used to track the BTrace reentrancy state.
+ * <p>
+ * Each thread owns a single mutable slot which is created on the first
+ * {@linkplain #enter(java.lang.Object)} call and reused afterwards; the slot
+ * is only ever touched by its owner thread so no synchronization is needed
+ * on the hot path. Slots of dead threads are reclaimed together with their
+ * threads.
  * @author Jaroslav Bachorik <jaroslav.bachorik@sun.com>
  */
 final class ThreadEnteredMap {
-    final private static int SECTIONS = 13;
-    final private static int BUCKETS = 27;
-    final private static int DEFAULT_BUCKET_SIZE = 4;
-
-    final private Object[][][] map = new Object[SECTIONS][BUCKETS][];
-    final private int[][] mapPtr = new int[SECTIONS][BUCKETS];
-
-    private Object nullValue;
-
-    public ThreadEnteredMap(Object nullValue) {
-        this.nullValue = nullValue;
-    }
+    private static final class Slot {
+        private Object value;
 
-    public static void main(String[] args) throws IOException {
-        ThreadEnteredMap instance = new ThreadEnteredMap("null");
-        long cnt = 0;
-        long start = System.nanoTime();
-        for(int i=0;i<4000000;i++) {
-            cnt += i;
+        Slot(Object value) {
+            this.value = value;
         }
-        long dur = System.nanoTime() - start;
-        System.err.println("#" + cnt + " in " + dur + "ns");
-        System.err.println(dur / 4000000);
+    }
 
-        for(int i=0;i<400000;i++) {
-            instance.enter("in");
-            instance.exit();
+    final private Object nullValue;
+    final private ThreadLocal<Slot> slots = new ThreadLocal<Slot>() {
+        @Override
+        protected Slot initialValue() {
+            return new Slot(nullValue);
         }
+    };
 
-        final ThreadEnteredMap tem = new ThreadEnteredMap("null");
-        cnt = 0;
-        System.err.println("Ready?");
-        System.in.read();
-        Thread[] thrd = new Thread[200];
-        for(int i=0;i<4;i++) {
-            final int idx = i;
-            thrd[i] = new Thread(new Runnable() {
-
-                public void run() {
-                    long cnt = 0;
-                    long start = System.nanoTime();
-                    for(int i=0;i<4000000;i++) {
-                        tem.enter("in");
-
-                        cnt += i;
-                        tem.exit();
-                    }
-                    long dur = System.nanoTime() - start;
-                    System.out.println("Thread #" + idx);
-                    System.err.println("#" + cnt + " in " + dur + "ns");
-                    System.err.println(dur / 4000000);
-                }
-            }, "Thread#" + i);
-        }
-        for(int i=0;i<4;i++) {
-            thrd[i].start();
-        }
-        
+    public ThreadEnteredMap(Object nullValue) {
+        this.nullValue = nullValue;
     }
 
     public Object get() {
-        Thread thrd = Thread.currentThread();
-        long thrdId = thrd.getId();
-        int sectionId = (int)(((thrdId << 1) - (thrdId << 8)) & (SECTIONS - 1));
-        Object[][] section = map[sectionId];
-        int[] sectionPtr = mapPtr[sectionId];
-        int bucketId = (int)(int)(((thrdId << 1) - (thrdId << 8)) & (BUCKETS - 1));
-        synchronized(section) {
-            Object[] bucket = section[bucketId];
-            if (bucket != null && bucket.length > 0) {
-                int ptr = sectionPtr[bucketId];
-                for(int i=0;i<ptr;i+=2) {
-                    Thread bThread = ((WeakReference<Thread>)bucket[i]).get();
-                    if (bThread == thrd) {
-                        return bucket[i+1] == nullValue ? null : bucket[i+1];
-                    }
-                }
-            }
-            return null;
-        }
+        Object value = slots.get().value;
+        return value == nullValue ? null : value;
     }
 
     public boolean enter(Object rt) {
-        Thread thrd = Thread.currentThread();
-        long thrdId = thrd.getId();
-        int sectionId = (int)(((thrdId << 1) - (thrdId << 8)) & (SECTIONS - 1));
-        Object[][] section = map[sectionId];
-        int[] sectionPtr = mapPtr[sectionId];
-        int bucketId = (int)(int)(((thrdId << 1) - (thrdId << 8)) & (BUCKETS - 1));
-        synchronized(section) {
-            Object[] bucket = section[bucketId];
-            int ptr = sectionPtr[bucketId];
-            if (bucket != null && bucket.length > 0) {
-                for(int i=0;i<ptr;i+=2) {
-                    Thread bThread = ((WeakReference<Thread>)bucket[i]).get();
-                    if (bThread == null) {
-                        // the previous thread with the same ID has already been GCd
-                        bucket[i] = new WeakReference<Thread>(thrd);
-                        bucket[i+1] = rt;
-                        return true;
-                    } else if (bThread == thrd) {
-                        if (bucket[i+1] == nullValue) {
-                            bucket[i+1] = rt;
-                            return true;
-                        }
-                        return false;
-                    }
-                }
-            }
-            if (bucket == null || bucket.length == 0) {
-                bucket = new Object[DEFAULT_BUCKET_SIZE * 2];
-                section[bucketId] = bucket;
-            } else {
-                if (ptr >= bucket.length) {
-                    Object[] newBucket = new Object[bucket.length * 2];
-                    System.arraycopy(bucket, 0, newBucket, 0, bucket.length);
-                    bucket = newBucket;
-                    section[bucketId] = bucket;
-                }
-            }
-            bucket[ptr++] = new WeakReference<Thread>(thrd);
-            bucket[ptr++] = rt;
-            mapPtr[sectionId][bucketId] = ptr;
+        Slot slot = slots.get();
+        if (slot.value == nullValue) {
+            slot.value = rt;
             return true;
         }
+        return false;
     }
 
     public void exit() {
-        Thread thrd = Thread.currentThread();
-        long thrdId = thrd.getId();
-        int sectionId = (int)(((thrdId << 1) - (thrdId << 8)) & (SECTIONS - 1));
-        Object[][] section = map[sectionId];
-        int[] sectionPtr = mapPtr[sectionId];
-        int bucketId = (int)(int)(((thrdId << 1) - (thrdId << 8)) & (BUCKETS - 1));
-        synchronized(section) {
-            Object[] bucket = section[bucketId];
-            if (bucket != null && bucket.length > 0) {
-                int ptr = sectionPtr[bucketId];
-                for(int i=0;i<ptr;i+=2) {
-                    Thread bThread = ((WeakReference<Thread>)bucket[i]).get();
-                    if (bThread == thrd) {
-                        bucket[i+1] = nullValue;
-                    }
-                }
-            }
-        }
+        slots.get().value = nullValue;
     }
 }
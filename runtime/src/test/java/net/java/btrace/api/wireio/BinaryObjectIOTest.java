@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.wireio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class BinaryObjectIOTest {
+    private BinaryObjectOutput out;
+    private BinaryObjectInput in;
+
+    @Before
+    public void setUp() {
+        out = new BinaryObjectOutput();
+        in = new BinaryObjectInput(getClass().getClassLoader());
+    }
+
+    private void flip() throws IOException {
+        byte[] data = toBytes();
+        in.fill(data, 0, data.length);
+    }
+
+    private byte[] toBytes() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        out.writeTo(bos);
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void testPrimitives() throws Exception {
+        System.out.println("primitives");
+        int[] ints = new int[]{0, 1, -1, 63, -64, 64, 127, 128, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        long[] longs = new long[]{0L, -1L, 1L << 40, Long.MAX_VALUE, Long.MIN_VALUE};
+        for (int i : ints) {
+            out.writeInt(i);
+        }
+        for (long l : longs) {
+            out.writeLong(l);
+        }
+        out.writeShort(Short.MIN_VALUE);
+        out.writeChar('\uffff');
+        out.writeByte(-5);
+        out.writeBoolean(true);
+        out.writeFloat(1.5f);
+        out.writeDouble(-Math.PI);
+        flip();
+        for (int i : ints) {
+            assertEquals(i, in.readInt());
+        }
+        for (long l : longs) {
+            assertEquals(l, in.readLong());
+        }
+        assertEquals(Short.MIN_VALUE, in.readShort());
+        assertEquals('\uffff', in.readChar());
+        assertEquals(-5, in.readByte());
+        assertTrue(in.readBoolean());
+        assertEquals(1.5f, in.readFloat(), 0f);
+        assertEquals(-Math.PI, in.readDouble(), 0d);
+        assertEquals(0, in.available());
+    }
+
+    @Test
+    public void testSmallValuesAreCompact() throws Exception {
+        System.out.println("smallValuesAreCompact");
+        out.writeInt(-1);
+        out.writeInt(63);
+        out.writeLong(0L);
+        assertEquals(3, out.size());
+    }
+
+    @Test
+    public void testStrings() throws Exception {
+        System.out.println("strings");
+        out.writeUTF("");
+        out.writeUTF("ascii only");
+        out.writeUTF("p\u0159\u00edli\u0161 \u017elu\u0165ou\u010dk\u00fd k\u016f\u0148 \ud83d\ude00");
+        flip();
+        assertEquals("", in.readUTF());
+        assertEquals("ascii only", in.readUTF());
+        assertEquals("p\u0159\u00edli\u0161 \u017elu\u0165ou\u010dk\u00fd k\u016f\u0148 \ud83d\ude00", in.readUTF());
+    }
+
+    @Test
+    public void testTypedCells() throws Exception {
+        System.out.println("typedCells");
+        Object[] values = new Object[]{null, "str", 42, 42L, 4.2d, 4.2f, (short)4, (byte)2, Boolean.TRUE, 'c'};
+        for (Object v : values) {
+            out.writeObject(v);
+        }
+        // tag + zig-zag varint
+        int size = out.size();
+        out.writeObject(Integer.valueOf(1000));
+        assertEquals(3, out.size() - size);
+        flip();
+        for (Object v : values) {
+            assertEquals(v, in.readObject());
+        }
+        assertEquals(1000, in.readObject());
+    }
+
+    @Test
+    public void testSerializedFallback() throws Exception {
+        System.out.println("serializedFallback");
+        out.writeObject(new IllegalStateException("failure"));
+        out.writeInt(7);
+        flip();
+        Object o = in.readObject();
+        assertTrue(o instanceof IllegalStateException);
+        assertEquals("failure", ((Throwable)o).getMessage());
+        assertEquals(7, in.readInt());
+    }
+
+    @Test(expected = EOFException.class)
+    public void testTruncated() throws Exception {
+        System.out.println("truncated");
+        out.writeUTF("truncated string");
+        byte[] data = toBytes();
+        in.fill(data, 0, data.length - 1);
+        in.readUTF();
+    }
+
+    @Test
+    public void testDictionary() throws Exception {
+        System.out.println("dictionary");
+        StringDictionary dict = new StringDictionary();
+        out.setDictionary(dict);
+        in.setDictionary(new StringDictionary());
+        out.writeUTF("java.lang.String");
+        int size = out.size();
+        out.writeUTF("java.lang.String");
+        assertEquals(1, out.size() - size);
+        out.writeUTF("ab");
+        out.writeObject("java.lang.String");
+        flip();
+        assertEquals("java.lang.String", in.readUTF());
+        assertEquals("java.lang.String", in.readUTF());
+        assertEquals("ab", in.readUTF());
+        assertEquals("java.lang.String", in.readObject());
+    }
+
+    @Test
+    public void testDictionaryRollback() throws Exception {
+        System.out.println("dictionaryRollback");
+        StringDictionary dict = new StringDictionary(2);
+        out.setDictionary(dict);
+        out.resetFrame();
+        out.writeUTF("first string");
+        out.writeFrameTo(new ByteArrayOutputStream());
+        out.resetFrame();
+        // evicts nothing yet; then reclaims the slot of the first string
+        out.writeUTF("second string");
+        out.writeUTF("third string");
+        assertEquals(-1, dict.indexOf("first string"));
+        out.abortFrame();
+        assertEquals(0, dict.indexOf("first string"));
+        assertEquals(-1, dict.indexOf("second string"));
+        assertEquals(-1, dict.indexOf("third string"));
+        assertEquals(0, dict.getEvictions());
+        // an uncommitted frame is rolled back by the next one
+        out.resetFrame();
+        out.writeUTF("fourth string");
+        out.resetFrame();
+        assertEquals(-1, dict.indexOf("fourth string"));
+    }
+
+    @Test
+    public void testDictionaryEviction() throws Exception {
+        System.out.println("dictionaryEviction");
+        StringDictionary dict = new StringDictionary(4);
+        out.setDictionary(dict);
+        in.setDictionary(new StringDictionary(4));
+        String[] strs = new String[100];
+        for (int i = 0; i < strs.length; i++) {
+            // a hot string interleaved with cold ones
+            strs[i] = i % 2 == 0 ? "hot string" : "cold string #" + (i % 13);
+            out.writeUTF(strs[i]);
+        }
+        assertTrue(dict.getEvictions() > 0);
+        // the hot string keeps its slot
+        assertTrue(dict.indexOf("hot string") > -1);
+        flip();
+        for (String str : strs) {
+            assertEquals(str, in.readUTF());
+        }
+    }
+}
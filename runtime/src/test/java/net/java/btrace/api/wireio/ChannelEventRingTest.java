@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.wireio;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import net.java.btrace.wireio.commands.MessageCommand;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class ChannelEventRingTest {
+    private CountingChannel channel;
+
+    @Before
+    public void setUp() {
+        channel = new CountingChannel(true);
+    }
+
+    @After
+    public void tearDown() {
+        channel.close();
+        channel = null;
+    }
+
+    @Test
+    public void testRingDisabledByDefault() {
+        System.out.println("ringDisabledByDefault");
+        assertEquals(0, channel.getEventRingSize());
+        channel.setEventRingSize(-5);
+        assertEquals(0, channel.getEventRingSize());
+    }
+
+    @Test
+    public void testOrderPreserved() throws Exception {
+        System.out.println("orderPreserved");
+        channel.setEventRingSize(1000);
+        for (int i = 0; i < 1000; i++) {
+            send("msg" + i);
+        }
+        channel.close();
+
+        List<AbstractCommand> written = channel.getRecorded();
+        assertEquals(1000, written.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("msg" + i, ((MessageCommand)written.get(i)).getMessage());
+        }
+        assertTrue(channel.getEventRingOverflows().isEmpty());
+    }
+
+    @Test
+    public void testRingWakesIdleWriter() throws Exception {
+        System.out.println("ringWakesIdleWriter");
+        // the writer is already waiting for work when the rings are switched on
+        Thread.sleep(50);
+        channel.setEventRingSize(16);
+        for (int i = 0; i < 3; i++) {
+            send("msg" + i);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (channel.getWritten() < i + 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(i + 1, channel.getWritten());
+            // let the writer go idle again
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    public void testOverflowCounted() throws Exception {
+        System.out.println("overflowCounted");
+        final CountingChannel blocked = new CountingChannel(false) {
+            @Override
+            public void writeCommand(AbstractCommand cmd) throws IOException {
+                synchronized(this) {
+                    super.writeCommand(cmd);
+                }
+            }
+        };
+        blocked.setEventRingSize(4);
+        try {
+            // stall the writer so that the ring can not be drained
+            synchronized(blocked) {
+                Thread t = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            for (int i = 0; i < 100; i++) {
+                                blocked.sendCommand(MessageCommand.class);
+                            }
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }, "overflowing");
+                t.start();
+                t.join();
+            }
+            Map<String, Long> overflows = blocked.getEventRingOverflows();
+            assertEquals(1, overflows.size());
+            long dropped = overflows.get("overflowing");
+            assertTrue(dropped > 0);
+            blocked.close();
+            assertEquals(100, blocked.getWritten() + dropped);
+            // the counts survive the producer thread
+            assertEquals(Long.valueOf(dropped), blocked.getEventRingOverflows().get("overflowing"));
+        } finally {
+            blocked.close();
+        }
+    }
+
+    @Test
+    public void testPerThreadRings() throws Exception {
+        System.out.println("perThreadRings");
+        final int threads = 4;
+        final int msgs = 500;
+        channel.setEventRingSize(1024);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            final String prefix = "t" + i + ":";
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < msgs; j++) {
+                            send(prefix + j);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        done.await();
+        channel.close();
+
+        List<AbstractCommand> written = channel.getRecorded();
+        assertEquals(threads * msgs, written.size());
+        // each thread's commands are written in the order they were sent
+        int[] next = new int[threads];
+        for (AbstractCommand cmd : written) {
+            String msg = ((MessageCommand)cmd).getMessage();
+            int thread = Integer.parseInt(msg.substring(1, msg.indexOf(':')));
+            int seq = Integer.parseInt(msg.substring(msg.indexOf(':') + 1));
+            assertEquals(next[thread]++, seq);
+        }
+    }
+
+    private void send(final String msg) throws Exception {
+        channel.sendCommand(MessageCommand.class, new AbstractCommand.Initializer<MessageCommand>() {
+            public void init(MessageCommand cmd) {
+                cmd.setMessage(msg);
+            }
+        });
+    }
+}
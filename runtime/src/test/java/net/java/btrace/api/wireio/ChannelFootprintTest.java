@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.wireio;
+
+import java.util.ArrayList;
+import java.util.List;
+import net.java.btrace.wireio.commands.MessageCommand;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the command queues of the channels allocate their storage
+ * only as needed and reuse it while the queue depth stays low.
+ * @author Jaroslav Bachorik
+ */
+public class ChannelFootprintTest {
+    private static final int SESSIONS = 10;
+    private static final int CAPACITY = 1280000;
+
+    @Test
+    public void testIdleSessionsFootprint() throws Exception {
+        System.out.println("idleSessionsFootprint");
+        List<Channel> channels = new ArrayList<Channel>();
+        try {
+            for (int i = 0; i < SESSIONS; i++) {
+                channels.add(new CountingChannel(false, CAPACITY));
+            }
+            // a pre-allocated queue would hold CAPACITY slots per session
+            for (Channel ch : channels) {
+                assertEquals(0, ch.getQueueSegmentCount());
+            }
+        } finally {
+            for (Channel ch : channels) {
+                ch.close();
+            }
+        }
+    }
+
+    @Test
+    public void testLowDepthTraffic() throws Exception {
+        System.out.println("lowDepthTraffic");
+        CountingChannel channel = new CountingChannel(false, CAPACITY);
+        try {
+            for (int i = 0; i < 10000; i++) {
+                channel.sendCommand(MessageCommand.class);
+                // keep the queue depth low - wait for the writer to catch up
+                while (channel.getWritten() < i + 1) {
+                    Thread.yield();
+                }
+            }
+            // the queue keeps reusing its first segment
+            assertEquals(1, channel.getQueueSegmentCount());
+        } finally {
+            channel.close();
+        }
+    }
+}
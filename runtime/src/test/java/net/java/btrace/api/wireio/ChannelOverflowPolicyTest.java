@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.wireio;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import net.java.btrace.wireio.commands.MessageCommand;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class ChannelOverflowPolicyTest {
+    private static final int CAPACITY = 4;
+
+    private CountDownLatch writerEntered;
+    private CountDownLatch writerReleased;
+    private CountingChannel channel;
+
+    @Before
+    public void setUp() throws Exception {
+        writerEntered = new CountDownLatch(1);
+        writerReleased = new CountDownLatch(1);
+        channel = new CountingChannel(true, CAPACITY) {
+            @Override
+            public void writeCommand(AbstractCommand cmd) throws IOException {
+                writerEntered.countDown();
+                try {
+                    writerReleased.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.writeCommand(cmd);
+            }
+        };
+        // make the writer hold the first command so that the queue stays full
+        send("first");
+        writerEntered.await();
+    }
+
+    @After
+    public void tearDown() {
+        writerReleased.countDown();
+        channel.close();
+        channel = null;
+    }
+
+    @Test
+    public void testParse() {
+        System.out.println("parse");
+        assertEquals(OverflowPolicy.BLOCK, OverflowPolicy.parse(null));
+        assertEquals(OverflowPolicy.BLOCK, OverflowPolicy.parse("block"));
+        assertEquals(OverflowPolicy.DROP_NEWEST, OverflowPolicy.parse("dropNewest"));
+        assertEquals(OverflowPolicy.DROP_OLDEST, OverflowPolicy.parse("dropOldest"));
+        OverflowPolicy sample = OverflowPolicy.parse("sample:10");
+        assertEquals(OverflowPolicy.Kind.SAMPLE, sample.getKind());
+        assertEquals(10, sample.getRate());
+        assertEquals(sample, OverflowPolicy.parse(sample.toString()));
+        try {
+            OverflowPolicy.parse("sample:x");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testDropNewest() throws Exception {
+        System.out.println("dropNewest");
+        channel.setOverflowPolicy(OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 10; i++) {
+            send("msg" + i);
+        }
+        assertEquals(10 - CAPACITY, channel.getDroppedCommands());
+        awaitWritten(5);
+        assertEquals(messages("first", "msg0", "msg1", "msg2", "msg3"), written());
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        System.out.println("dropOldest");
+        channel.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 10; i++) {
+            send("msg" + i);
+        }
+        assertEquals(10 - CAPACITY, channel.getDroppedCommands());
+        awaitWritten(5);
+        assertEquals(messages("first", "msg6", "msg7", "msg8", "msg9"), written());
+    }
+
+    @Test
+    public void testSample() throws Exception {
+        System.out.println("sample");
+        channel.setOverflowPolicy(OverflowPolicy.sample(3));
+        for (int i = 0; i < CAPACITY; i++) {
+            send("msg" + i);
+        }
+        // the first two overflowing commands are dropped, the third one
+        // replaces the oldest queued command - without blocking the sender
+        send("dropped1");
+        send("dropped2");
+        send("sampled");
+        assertEquals(3, channel.getDroppedCommands());
+        awaitWritten(5);
+        assertEquals(3, channel.getDroppedCommands());
+        assertEquals(messages("first", "msg1", "msg2", "msg3", "sampled"), written());
+    }
+
+    private void awaitWritten(int cnt) throws InterruptedException {
+        writerReleased.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (channel.getWritten() < cnt && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    private void send(final String msg) throws IOException {
+        channel.sendCommand(MessageCommand.class, new AbstractCommand.Initializer<MessageCommand>() {
+            public void init(MessageCommand cmd) {
+                cmd.setMessage(msg);
+            }
+        });
+    }
+
+    private List<String> written() {
+        List<String> rslt = new ArrayList<String>();
+        for (AbstractCommand cmd : channel.getRecorded()) {
+            rslt.add(((MessageCommand)cmd).getMessage());
+        }
+        return rslt;
+    }
+
+    private static List<String> messages(String ... msgs) {
+        List<String> rslt = new ArrayList<String>();
+        for (String msg : msgs) {
+            rslt.add(msg);
+        }
+        return rslt;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.wireio;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+import net.java.btrace.spi.wireio.CommandImpl;
+import net.java.btrace.wireio.commands.MessageCommand;
+
+/**
+ * Measures the cost of creating a command - the time and the allocated bytes per
+ * command - for the reflective instantiation (as used before the creators were
+ * generated), the generated creator and the generated creator with recycling.
+ * Also compares restoring a received command with the type looked up by a boxed id
+ * in a hash map and created reflectively with the array dispatch table and the generated creator.
+ * <p>
+ * Usage: <code>CommandFactoryBenchmark [commands]</code>
+ * </p>
+ * @author Jaroslav Bachorik
+ */
+public class CommandFactoryBenchmark {
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws Exception {
+        final int commands = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+
+        final CommandFactory.Creator reflective = CommandCreators.reflective(MessageCommand.class);
+        final Field implFld = AbstractCommand.class.getDeclaredField("impl");
+        implFld.setAccessible(true);
+        final StreamChannel ch = StreamChannel.writer(new ByteArrayOutputStream(), Version.PROTOCOL_V3);
+        final CommandFactory cf = ch.getCommandFactory();
+        final int type = cf.createCommand(MessageCommand.class).getType();
+        final Map<Integer, Object> byId = new HashMap<Integer, Object>();
+        for (int i = 0; i < cf.listSupportedCommands().size(); i++) {
+            byId.put(i, CommandCreators.reflective(cf.listSupportedCommands().get(i)));
+        }
+
+        Runnable[] cases = new Runnable[] {
+            new Runnable() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < commands; i++) {
+                            AbstractCommand cmd = reflective.create(type, i, -1);
+                            implFld.set(cmd, CommandImpl.NULL);
+                            sink = cmd;
+                        }
+                    } catch (IllegalAccessException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+
+                public String toString() {
+                    return "create (reflection)";
+                }
+            },
+            new Runnable() {
+                public void run() {
+                    cf.setRecycling(false);
+                    for (int i = 0; i < commands; i++) {
+                        sink = cf.createCommand(MessageCommand.class);
+                    }
+                }
+
+                public String toString() {
+                    return "create (generated)";
+                }
+            },
+            new Runnable() {
+                public void run() {
+                    cf.setRecycling(true);
+                    for (int i = 0; i < commands; i++) {
+                        MessageCommand mc = cf.createCommand(MessageCommand.class);
+                        sink = mc;
+                        cf.recycle(mc);
+                    }
+                    cf.setRecycling(false);
+                }
+
+                public String toString() {
+                    return "create (generated, recycled)";
+                }
+            },
+            new Runnable() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < commands; i++) {
+                            AbstractCommand cmd = ((CommandFactory.Creator)byId.get(type)).create(type, i, -1);
+                            implFld.set(cmd, CommandImpl.NULL);
+                            sink = cmd;
+                        }
+                    } catch (IllegalAccessException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+
+                public String toString() {
+                    return "restore (HashMap<Integer>, reflection)";
+                }
+            },
+            new Runnable() {
+                public void run() {
+                    for (int i = 0; i < commands; i++) {
+                        sink = cf.restoreCommand(type, i, -1);
+                    }
+                }
+
+                public String toString() {
+                    return "restore (array table, generated)";
+                }
+            }
+        };
+
+        // warm-up
+        for (int i = 0; i < 3; i++) {
+            for (Runnable r : cases) {
+                r.run();
+            }
+        }
+        System.out.println("case\tns/cmd\tbytes/cmd");
+        for (Runnable r : cases) {
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            r.run();
+            long time = System.nanoTime() - start;
+            bytes = allocatedBytes() - bytes;
+            System.out.println(r + "\t" + String.format("%.1f", (double)time / commands) + "\t" + String.format("%.1f", (double)bytes / commands));
+        }
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
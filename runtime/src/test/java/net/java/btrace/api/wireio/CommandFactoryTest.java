@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.wireio;
+
+import net.java.btrace.wireio.commands.ErrorCommand;
+import net.java.btrace.wireio.commands.ExitCommand;
+import net.java.btrace.wireio.commands.MessageCommand;
+import net.java.btrace.wireio.commands.NumberMapDataCommand;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class CommandFactoryTest {
+    private static final Class[] COMMANDS = new Class[]{MessageCommand.class, NumberMapDataCommand.class, ErrorCommand.class, ExitCommand.class};
+    private CommandFactory factory;
+
+    @Before
+    public void setUp() {
+        factory = CommandFactory.getInstance(COMMANDS, CommandFactoryTest.class.getClassLoader(), Command.Target.SERVER);
+    }
+
+    @Test
+    public void testGeneratedCreator() throws Exception {
+        System.out.println("generatedCreator");
+        CommandFactory.Creator c = CommandCreators.forClass(MessageCommand.class);
+        assertFalse(c.getClass().isAnonymousClass()); // not the reflective fallback
+        AbstractCommand cmd = c.create(3, 4, 5);
+        assertTrue(cmd instanceof MessageCommand);
+        assertEquals(3, cmd.getType());
+        assertEquals(4, cmd.getRx());
+        assertEquals(5, cmd.getTx());
+        // shared by all the factories
+        assertSame(c, CommandCreators.forClass(MessageCommand.class));
+    }
+
+    @Test
+    public void testRestoreCommand() {
+        System.out.println("restoreCommand");
+        for (int i = 0; i < COMMANDS.length; i++) {
+            AbstractCommand cmd = factory.restoreCommand(i, 10, 20);
+            assertEquals(COMMANDS[i], cmd.getClass());
+            assertEquals(i, cmd.getType());
+            assertEquals(10, cmd.getRx());
+            assertEquals(20, cmd.getTx());
+        }
+        assertNull(factory.restoreCommand(-1, 0, 0));
+        assertNull(factory.restoreCommand(COMMANDS.length + 100, 0, 0));
+    }
+
+    @Test
+    public void testAddMapper() {
+        System.out.println("addMapper");
+        CommandFactory cf = CommandFactory.getInstance(new Class[]{MessageCommand.class}, CommandFactoryTest.class.getClassLoader(), Command.Target.SERVER);
+        cf.addMapper(new Class[]{ExitCommand.class});
+        ExitCommand created = cf.createCommand(ExitCommand.class);
+        assertNotNull(created);
+        // the restored command must be of the same type as the created one
+        assertEquals(ExitCommand.class, cf.restoreCommand(created.getType(), 0, -1).getClass());
+    }
+
+    @Test
+    public void testRecycling() {
+        System.out.println("recycling");
+        MessageCommand mc = factory.createCommand(MessageCommand.class);
+        mc.setMessage("hello");
+        mc.setTime(10);
+        factory.recycle(mc);
+        // recycling is off by default
+        assertNotSame(mc, factory.createCommand(MessageCommand.class));
+
+        factory.setRecycling(true);
+        factory.recycle(mc);
+        MessageCommand reused = factory.createCommand(MessageCommand.class);
+        assertSame(mc, reused);
+        assertNull(reused.getMessage());
+        assertEquals(0, reused.getTime());
+        assertEquals(-1, reused.getTx());
+        assertNotSame(mc, factory.createCommand(MessageCommand.class));
+    }
+
+    @Test
+    public void testNotRecyclable() {
+        System.out.println("notRecyclable");
+        factory.setRecycling(true);
+        ErrorCommand ec = factory.createCommand(ErrorCommand.class);
+        factory.recycle(ec);
+        assertNotSame(ec, factory.createCommand(ErrorCommand.class));
+        // responses are carrying the TX of the command they respond to
+        MessageCommand response = (MessageCommand)factory.restoreCommand(0, 1, 2);
+        factory.recycle(response);
+        assertNotSame(response, factory.createCommand(MessageCommand.class));
+    }
+
+    @Test
+    public void testRecyclingChannel() throws Exception {
+        System.out.println("recyclingChannel");
+        StreamChannel ch = StreamChannel.writer(new java.io.ByteArrayOutputStream(), Version.PROTOCOL_V3);
+        ch.setCommandRecycling(true);
+        MessageCommand mc = ch.prepareCommand(MessageCommand.class, null);
+        mc.setMessage("written");
+        ch.writeCommand(mc);
+        assertSame(mc, ch.prepareCommand(MessageCommand.class, null));
+    }
+}
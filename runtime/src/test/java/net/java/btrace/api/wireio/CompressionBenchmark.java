@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.wireio;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import net.java.btrace.wireio.commands.MessageCommand;
+
+/**
+ * Measures the bandwidth and the CPU time the frame compression needs
+ * at several event rates.
+ * <p>
+ * The channel flushes its output once per the linger time so the number
+ * of frames compressed together in one block depends on the event rate.
+ * The rate is simulated by flushing the channel after the corresponding number of events.
+ * </p>
+ * Usage: <code>CompressionBenchmark [events] [flushLinger]</code>
+ * @author Jaroslav Bachorik
+ */
+public class CompressionBenchmark {
+    private static final ThreadMXBean TMX = ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        int events = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        long flushLinger = args.length > 1 ? Long.parseLong(args[1]) : 2;
+
+        CommandFactory cf = StreamChannel.writer(new ByteArrayOutputStream(), Version.PROTOCOL_V1).getCommandFactory();
+        List<AbstractCommand> cmds = new ArrayList<AbstractCommand>();
+        for (int i = 0; i < events; i++) {
+            MessageCommand mc = cf.createCommand(MessageCommand.class);
+            mc.setMessage("entered java.util.HashMap#get(" + (i % 1000) + ") took " + (i * 7 % 10000) + "ns");
+            mc.setTime(System.currentTimeMillis());
+            cmds.add(mc);
+        }
+
+        int[] rates = new int[]{1000, 10000, 100000, 1000000};
+        // warm-up
+        for (int rate : rates) {
+            run(cmds, rate, flushLinger, false);
+            run(cmds, rate, flushLinger, true);
+        }
+
+        System.out.println("events/s\tcompressed\tbytes/s\tagent CPU ms/s\tclient CPU ms/s");
+        for (int rate : rates) {
+            for (boolean compressed : new boolean[]{false, true}) {
+                long[] r = run(cmds, rate, flushLinger, compressed);
+                System.out.println(rate + "\t" + compressed + "\t" + r[0] * rate / events +
+                                   "\t" + String.format("%.1f", (double)r[1] * rate / events / 1000000) +
+                                   "\t" + String.format("%.1f", (double)r[2] * rate / events / 1000000));
+            }
+        }
+    }
+
+    private static long[] run(List<AbstractCommand> cmds, int rate, long flushLinger, boolean compressed) throws Exception {
+        int batch = (int)Math.max(1, rate * flushLinger / 1000);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        StreamChannel writer = StreamChannel.writer(bos, Version.PROTOCOL, compressed);
+        int header = bos.size();
+
+        long start = TMX.getCurrentThreadCpuTime();
+        int cnt = 0;
+        for (AbstractCommand cmd : cmds) {
+            writer.writeCommand(cmd);
+            if (++cnt % batch == 0) {
+                writer.flush();
+            }
+        }
+        writer.flush();
+        long encoded = TMX.getCurrentThreadCpuTime() - start;
+
+        StreamChannel reader = StreamChannel.reader(new ByteArrayInputStream(bos.toByteArray()), Version.PROTOCOL, compressed);
+        start = TMX.getCurrentThreadCpuTime();
+        for (int i = 0; i < cmds.size(); i++) {
+            reader.readCommand();
+        }
+        long decoded = TMX.getCurrentThreadCpuTime() - start;
+        return new long[]{bos.size() - header, encoded, decoded};
+    }
+}
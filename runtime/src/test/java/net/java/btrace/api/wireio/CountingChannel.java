@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.wireio;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import net.java.btrace.wireio.commands.MessageCommand;
+
+/**
+ * A {@linkplain Channel} swallowing all the written commands.
+ * Only counts them or, optionally, records them.
+ * @author Jaroslav Bachorik
+ */
+class CountingChannel extends Channel {
+    final private CommandFactory factory = CommandFactory.getInstance(new Class[]{MessageCommand.class}, getMyLoader(), Command.Target.SERVER);
+    final private AtomicLong written = new AtomicLong(0);
+    final private List<AbstractCommand> recorded;
+
+    CountingChannel(boolean record) {
+        this(record, 1280000);
+    }
+
+    CountingChannel(boolean record, int queueCapacity) {
+        super(true, queueCapacity);
+        recorded = record ? new CopyOnWriteArrayList<AbstractCommand>() : null;
+        init();
+    }
+
+    @Override
+    protected CommandFactory getCommandFactory() {
+        return factory;
+    }
+
+    @Override
+    public AbstractCommand readCommand() throws IOException, ClassNotFoundException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void writeCommand(AbstractCommand cmd) throws IOException {
+        if (recorded != null) {
+            recorded.add(cmd);
+        }
+        written.incrementAndGet();
+    }
+
+    @Override
+    protected void doClose() {
+    }
+
+    long getWritten() {
+        return written.get();
+    }
+
+    List<AbstractCommand> getRecorded() {
+        return recorded;
+    }
+}
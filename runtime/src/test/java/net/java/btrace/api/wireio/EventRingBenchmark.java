@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.wireio;
+
+import java.util.concurrent.CountDownLatch;
+import net.java.btrace.wireio.commands.MessageCommand;
+
+/**
+ * Producer throughput comparison of the shared command queue and the per-thread
+ * event rings of {@linkplain Channel}.
+ * <p>
+ * Usage: <code>EventRingBenchmark [commandsPerProducer] [ringSize]</code>;
+ * runs with 1, 8 and 32 producer threads. The written commands are just counted
+ * so the numbers reflect the handoff cost only.
+ * @author Jaroslav Bachorik
+ */
+public class EventRingBenchmark {
+    private static final int[] PRODUCERS = new int[]{1, 8, 32};
+
+    public static void main(String[] args) throws Exception {
+        final int commands = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        final int ringSize = args.length > 1 ? Integer.parseInt(args[1]) : 8192;
+
+        // warm-up run, results discarded
+        run(0, 8, commands / 10);
+        run(ringSize, 8, commands / 10);
+
+        System.out.println("producers\tmode\tsent/s\twritten/s\tdropped");
+        for (int producers : PRODUCERS) {
+            run(0, producers, commands);
+            run(ringSize, producers, commands);
+        }
+    }
+
+    private static void run(int ringSize, int producers, final int commands) throws Exception {
+        final CountingChannel channel = new CountingChannel(false);
+        channel.setEventRingSize(ringSize);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(producers);
+        for (int i = 0; i < producers; i++) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < commands; j++) {
+                            channel.sendCommand(MessageCommand.class);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "Producer#" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        long startTs = System.nanoTime();
+        start.countDown();
+        done.await();
+        long sentDur = System.nanoTime() - startTs;
+
+        long total = (long)producers * commands;
+        long dropped = 0;
+        while (channel.getWritten() + dropped < total) {
+            Thread.sleep(1);
+            dropped = 0;
+            for (Long cnt : channel.getEventRingOverflows().values()) {
+                dropped += cnt;
+            }
+        }
+        long writtenDur = System.nanoTime() - startTs;
+        channel.close();
+
+        System.out.println(producers + "\t" + (ringSize > 0 ? "ring(" + ringSize + ")" : "queue") + "\t" +
+                           (total * 1000000000L / sentDur) + "\t" +
+                           (channel.getWritten() * 1000000000L / writtenDur) + "\t" + dropped);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.wireio;
+
+import java.io.BufferedOutputStream;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+import net.java.btrace.wireio.commands.MessageCommand;
+
+/**
+ * Measures the throughput of {@linkplain MessageCommand}s sent over a loopback
+ * socket by a {@linkplain SocketChannel}.
+ * <p>
+ * Compares the former setup (unbuffered output, flush after each command)
+ * with the batched one (buffered output flushed after the linger time or
+ * when the buffer is full).
+ * </p>
+ * Usage: <code>LoopbackFlushBenchmark [commands] [flushSize] [flushLinger]</code>
+ * @author Jaroslav Bachorik
+ */
+public class LoopbackFlushBenchmark {
+    private static class LoopbackChannel extends SocketChannel {
+        LoopbackChannel(ObjectInput oi, ObjectOutput oo) {
+            super(oi, oo, null);
+            setCommandFactory(CommandFactory.getInstance(new Class[]{MessageCommand.class}, getMyLoader(), Command.Target.SERVER));
+            init();
+        }
+
+        @Override
+        protected boolean handshake() {
+            return true;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int commands = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        int flushSize = args.length > 1 ? Integer.parseInt(args[1]) : SocketChannel.DEFAULT_FLUSH_SIZE;
+        long flushLinger = args.length > 2 ? Long.parseLong(args[2]) : 2;
+
+        // warm-up runs, results discarded
+        run(commands / 10, 0, -1);
+        run(commands / 10, flushSize, flushLinger);
+
+        System.out.println("mode\tcommands/s");
+        System.out.println("flush per command\t" + run(commands, 0, -1));
+        System.out.println("batched (" + flushSize + "B/" + flushLinger + "ms)\t" + run(commands, flushSize, flushLinger));
+    }
+
+    private static long run(final int commands, int flushSize, long flushLinger) throws Exception {
+        ServerSocket ss = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        Socket client = new Socket(ss.getInetAddress(), ss.getLocalPort());
+        Socket server = ss.accept();
+        ss.close();
+
+        OutputStream os = server.getOutputStream();
+        ObjectOutput oos = new ObjectOutputStream(flushSize > 0 ? new BufferedOutputStream(os, flushSize) : os);
+        oos.flush();
+        ObjectOutput clientOos = new ObjectOutputStream(client.getOutputStream());
+        clientOos.flush();
+
+        final LoopbackChannel sender = new LoopbackChannel(new ObjectInputStream(server.getInputStream()), oos);
+        final LoopbackChannel receiver = new LoopbackChannel(new ObjectInputStream(client.getInputStream()), clientOos);
+        sender.setFlushLinger(flushLinger);
+
+        final AtomicLong received = new AtomicLong();
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (received.get() < commands) {
+                        receiver.readCommand();
+                        received.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "Loopback Reader");
+        reader.setDaemon(true);
+
+        long start = System.nanoTime();
+        reader.start();
+        for (int i = 0; i < commands; i++) {
+            final int seq = i;
+            sender.sendCommand(MessageCommand.class, new AbstractCommand.Initializer<MessageCommand>() {
+                public void init(MessageCommand cmd) {
+                    cmd.setMessage("message #" + seq);
+                }
+            });
+        }
+        reader.join();
+        long dur = System.nanoTime() - start;
+
+        sender.close();
+        receiver.close();
+        client.close();
+        server.close();
+        return commands * 1000000000L / dur;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.wireio;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicReference;
+import net.java.btrace.wireio.commands.MessageCommand;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class MappedRingTest {
+    private MappedRing producer;
+    private MappedRing consumer;
+
+    @Before
+    public void setUp() throws Exception {
+        producer = MappedRing.create(1024);
+        consumer = MappedRing.open(producer.getPath());
+    }
+
+    @After
+    public void tearDown() {
+        consumer.close();
+        producer.close();
+        producer.unlink();
+    }
+
+    @Test
+    public void testHeader() {
+        System.out.println("header");
+        assertTrue(producer.isProducer());
+        assertFalse(consumer.isProducer());
+        assertEquals(1024, consumer.getCapacity());
+    }
+
+    @Test
+    public void testOwnDirectory() {
+        System.out.println("ownDirectory");
+        File dir = new File(producer.getPath()).getParentFile();
+        // the ring file is the only content of a fresh directory
+        assertArrayEquals(new String[]{"ring"}, dir.list());
+        producer.unlink();
+        assertFalse(dir.exists());
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidFile() throws Exception {
+        System.out.println("invalidFile");
+        File f = File.createTempFile("btrace-", ".ring");
+        f.deleteOnExit();
+        MappedRing.open(f.getAbsolutePath());
+    }
+
+    @Test
+    public void testWrapAround() throws Exception {
+        System.out.println("wrapAround");
+        final int total = 100000;
+        final OutputStream os = producer.getOutputStream();
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    byte[] chunk = new byte[77];
+                    for (int i = 0; i < total; ) {
+                        int len = Math.min(chunk.length, total - i);
+                        for (int j = 0; j < len; j++) {
+                            chunk[j] = (byte)(i + j);
+                        }
+                        os.write(chunk, 0, len);
+                        os.flush();
+                        i += len;
+                    }
+                    os.close();
+                } catch (Throwable t) {
+                    error.set(t);
+                }
+            }
+        });
+        writer.start();
+
+        InputStream is = consumer.getInputStream();
+        byte[] buf = new byte[100];
+        int read = 0;
+        int len;
+        while ((len = is.read(buf, 0, buf.length)) > -1) {
+            for (int j = 0; j < len; j++) {
+                assertEquals((byte)(read + j), buf[j]);
+            }
+            read += len;
+        }
+        writer.join();
+        assertNull(error.get());
+        assertEquals(total, read);
+    }
+
+    @Test
+    public void testUnpublishedDataNotVisible() throws Exception {
+        System.out.println("unpublishedDataNotVisible");
+        OutputStream os = producer.getOutputStream();
+        InputStream is = consumer.getInputStream();
+        os.write(new byte[]{1, 2, 3});
+        assertEquals(0, is.available());
+        os.flush();
+        assertEquals(3, is.available());
+    }
+
+    @Test(expected = IOException.class)
+    public void testConsumerClosed() throws Exception {
+        System.out.println("consumerClosed");
+        OutputStream os = producer.getOutputStream();
+        consumer.close();
+        // more than the capacity; the producer would wait forever for free space
+        os.write(new byte[2048]);
+    }
+
+    @Test
+    public void testChannelOverRing() throws Exception {
+        System.out.println("channelOverRing");
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        StreamChannel writer = StreamChannel.writer(header, Version.PROTOCOL);
+        writer.attachRing(producer);
+        StreamChannel reader = StreamChannel.reader(new ByteArrayInputStream(header.toByteArray()), Version.PROTOCOL);
+        reader.attachRing(consumer);
+        assertTrue(reader.isSharedMemory());
+        int headerSize = header.size();
+
+        MessageCommand mc = writer.getCommandFactory().createCommand(MessageCommand.class);
+        mc.setMessage("over the ring");
+        writer.writeCommand(mc);
+        writer.flush();
+        assertEquals("over the ring", ((MessageCommand)reader.readCommand()).getMessage());
+        // nothing went to the socket stream
+        assertEquals(headerSize, header.size());
+
+        writer.close();
+        try {
+            reader.readCommand();
+            fail();
+        } catch (EOFException e) {
+            // expected
+        }
+    }
+}
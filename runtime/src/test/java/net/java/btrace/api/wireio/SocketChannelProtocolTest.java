@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.wireio;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import net.java.btrace.wireio.commands.ErrorCommand;
+import net.java.btrace.wireio.commands.MessageCommand;
+import net.java.btrace.wireio.commands.NumberMapDataCommand;
+import net.java.btrace.wireio.commands.RetransformationStartNotification;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class SocketChannelProtocolTest {
+    @Test
+    public void testRoundTripV1() throws Exception {
+        System.out.println("roundTripV1");
+        roundTrip(Version.PROTOCOL_V1);
+    }
+
+    @Test
+    public void testRoundTripV2() throws Exception {
+        System.out.println("roundTripV2");
+        roundTrip(Version.PROTOCOL_V2);
+    }
+
+    @Test
+    public void testRoundTripV3() throws Exception {
+        System.out.println("roundTripV3");
+        roundTrip(Version.PROTOCOL_V3);
+    }
+
+    @Test
+    public void testRoundTripCompressed() throws Exception {
+        System.out.println("roundTripCompressed");
+        roundTrip(Version.PROTOCOL_V2, true);
+        roundTrip(Version.PROTOCOL_V3, true);
+    }
+
+    @Test
+    public void testCompressedIsSmaller() throws Exception {
+        System.out.println("compressedIsSmaller");
+        StreamChannel factory = StreamChannel.writer(new ByteArrayOutputStream(), Version.PROTOCOL_V1);
+        List<AbstractCommand> messages = new ArrayList<AbstractCommand>();
+        for (int i = 0; i < 1000; i++) {
+            MessageCommand mc = factory.getCommandFactory().createCommand(MessageCommand.class);
+            mc.setMessage("entered method #" + i);
+            messages.add(mc);
+        }
+        int plain = encode(messages, Version.PROTOCOL, false).length;
+        int compressed = encode(messages, Version.PROTOCOL, true).length;
+        assertTrue("plain = " + plain + ", compressed = " + compressed, plain > 2 * compressed);
+    }
+
+    @Test
+    public void testV2IsCompact() throws Exception {
+        System.out.println("v2IsCompact");
+        List<AbstractCommand> numbers = new ArrayList<AbstractCommand>();
+        List<AbstractCommand> messages = new ArrayList<AbstractCommand>();
+        StreamChannel factory = StreamChannel.writer(new ByteArrayOutputStream(), Version.PROTOCOL_V1);
+        for (int i = 0; i < 1000; i++) {
+            NumberMapDataCommand nmdc = factory.getCommandFactory().createCommand(NumberMapDataCommand.class);
+            nmdc.setName("numbers");
+            Map<String, Number> map = new HashMap<String, Number>();
+            for (int j = 0; j < 10; j++) {
+                map.put("key" + j, Long.valueOf(i * 10 + j));
+            }
+            nmdc.setPayload(map);
+            numbers.add(nmdc);
+            MessageCommand mc = factory.getCommandFactory().createCommand(MessageCommand.class);
+            mc.setMessage("message #" + i);
+            messages.add(mc);
+        }
+        int v1 = encode(numbers, Version.PROTOCOL_V1).length;
+        int v2 = encode(numbers, Version.PROTOCOL_V2).length;
+        assertTrue("v1 = " + v1 + ", v2 = " + v2, v1 >= 2 * v2);
+
+        v1 = encode(messages, Version.PROTOCOL_V1).length;
+        v2 = encode(messages, Version.PROTOCOL_V2).length;
+        assertTrue("v1 = " + v1 + ", v2 = " + v2, v1 > v2);
+    }
+
+    @Test
+    public void testV3IsCompact() throws Exception {
+        System.out.println("v3IsCompact");
+        StreamChannel factory = StreamChannel.writer(new ByteArrayOutputStream(), Version.PROTOCOL_V1);
+        List<AbstractCommand> numbers = new ArrayList<AbstractCommand>();
+        List<AbstractCommand> messages = new ArrayList<AbstractCommand>();
+        for (int i = 0; i < 1000; i++) {
+            NumberMapDataCommand nmdc = factory.getCommandFactory().createCommand(NumberMapDataCommand.class);
+            nmdc.setName("numbers");
+            Map<String, Number> map = new HashMap<String, Number>();
+            for (int j = 0; j < 10; j++) {
+                map.put("java.lang.String#method" + j, Long.valueOf(i * 10 + j));
+            }
+            nmdc.setPayload(map);
+            numbers.add(nmdc);
+            MessageCommand mc = factory.getCommandFactory().createCommand(MessageCommand.class);
+            mc.setMessage("entered java.lang.String#method" + (i % 50));
+            messages.add(mc);
+        }
+        int v1 = encode(numbers, Version.PROTOCOL_V1).length;
+        int v3 = encode(numbers, Version.PROTOCOL_V3).length;
+        assertTrue("v1 = " + v1 + ", v3 = " + v3, v1 >= 3 * v3);
+
+        v1 = encode(messages, Version.PROTOCOL_V1).length;
+        v3 = encode(messages, Version.PROTOCOL_V3).length;
+        assertTrue("v1 = " + v1 + ", v3 = " + v3, v1 >= 3 * v3);
+    }
+
+    @Test
+    public void testUnknownCommandSkipped() throws Exception {
+        System.out.println("unknownCommandSkipped");
+        StreamChannel reader = StreamChannel.reader(new ByteArrayInputStream(withUnknownFrame(Version.PROTOCOL_V2)), Version.PROTOCOL_V2);
+        assertEquals("after unknown", ((MessageCommand)reader.readCommand()).getMessage());
+    }
+
+    @Test
+    public void testUnknownCommandRejectedWithDictionary() throws Exception {
+        System.out.println("unknownCommandRejectedWithDictionary");
+        StreamChannel reader = StreamChannel.reader(new ByteArrayInputStream(withUnknownFrame(Version.PROTOCOL_V3)), Version.PROTOCOL_V3);
+        // the skipped frame could have defined strings; the following frames can not be trusted
+        assertSame(AbstractCommand.NULL, reader.readCommand());
+        assertTrue(reader.isClosed.get());
+    }
+
+    @Test
+    public void testFailedWriteRollsBackDictionary() throws Exception {
+        System.out.println("failedWriteRollsBackDictionary");
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        StreamChannel writer = StreamChannel.writer(bos, Version.PROTOCOL_V3);
+        final String msg = "a string worth caching";
+        MessageCommand mc = writer.getCommandFactory().createCommand(MessageCommand.class);
+        // fails after having put the message into the dictionary
+        AbstractCommand failing = new AbstractCommand(mc.getType(), -1, -1) {
+            @Override
+            public void write(ObjectOutput out) throws IOException {
+                out.writeLong(0);
+                out.writeUTF(msg);
+                throw new IllegalStateException("failing write");
+            }
+
+            @Override
+            public void read(ObjectInput in) throws ClassNotFoundException, IOException {
+                throw new UnsupportedOperationException();
+            }
+        };
+        try {
+            writer.writeCommand(failing);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        mc.setMessage(msg);
+        writer.writeCommand(mc);
+        writer.flush();
+
+        StreamChannel reader = StreamChannel.reader(new ByteArrayInputStream(bos.toByteArray()), Version.PROTOCOL_V3);
+        assertEquals(msg, ((MessageCommand)reader.readCommand()).getMessage());
+    }
+
+    @Test
+    public void testRetransformationProgress() throws Exception {
+        System.out.println("retransformationProgress");
+        RetransformationStartNotification rsn = retransformationProgress(Version.PROTOCOL_V4);
+        assertEquals(10, rsn.getNumClasses());
+        assertEquals(20, rsn.getRetransformedClasses());
+        assertEquals(35, rsn.getTotalClasses());
+        // a v3 peer does not know about the progress
+        rsn = retransformationProgress(Version.PROTOCOL_V3);
+        assertEquals(10, rsn.getNumClasses());
+        assertEquals(0, rsn.getRetransformedClasses());
+        assertEquals(10, rsn.getTotalClasses());
+        assertEquals(10, retransformationProgress(Version.PROTOCOL_V1).getTotalClasses());
+    }
+
+    private static RetransformationStartNotification retransformationProgress(int protocol) throws Exception {
+        StreamChannel factory = StreamChannel.writer(new ByteArrayOutputStream(), protocol);
+        RetransformationStartNotification rsn = factory.getCommandFactory().createCommand(RetransformationStartNotification.class);
+        rsn.setNumClasses(10);
+        rsn.setRetransformedClasses(20);
+        rsn.setTotalClasses(35);
+        byte[] data = encode(Collections.<AbstractCommand>singletonList(rsn), protocol);
+        return (RetransformationStartNotification)StreamChannel.reader(new ByteArrayInputStream(data), protocol).readCommand();
+    }
+
+    /**
+     * A stream of a frame of an unknown command type followed by a message
+     */
+    private static byte[] withUnknownFrame(int protocol) throws Exception {
+        StreamChannel factory = StreamChannel.writer(new ByteArrayOutputStream(), protocol);
+        MessageCommand mc = factory.getCommandFactory().createCommand(MessageCommand.class);
+        mc.setMessage("after unknown");
+        byte[] prefix = encode(new ArrayList<AbstractCommand>(), protocol);
+        byte[] frames = encode(Collections.<AbstractCommand>singletonList(mc), protocol);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bos.write(prefix);
+        // length 3; varint header of type 99 without rx and tx; 1 byte body
+        bos.write(new byte[]{0x03, (byte)0x8c, 0x03, 0x00});
+        bos.write(frames, prefix.length, frames.length - prefix.length);
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void testFallbackToV1WithoutRawStreams() throws Exception {
+        System.out.println("fallbackToV1WithoutRawStreams");
+        StreamChannel ch = StreamChannel.writer(new ByteArrayOutputStream(), 0);
+        assertEquals(Version.PROTOCOL_V1, ch.getProtocol());
+        ch = StreamChannel.writer(new ByteArrayOutputStream(), Version.PROTOCOL_V2);
+        assertEquals(Version.PROTOCOL_V2, ch.getProtocol());
+        ch = StreamChannel.writer(new ByteArrayOutputStream(), Version.PROTOCOL + 1);
+        assertEquals(Version.PROTOCOL, ch.getProtocol());
+    }
+
+    private void roundTrip(int protocol) throws Exception {
+        roundTrip(protocol, false);
+    }
+
+    private void roundTrip(int protocol, boolean compressed) throws Exception {
+        StreamChannel factory = StreamChannel.writer(new ByteArrayOutputStream(), protocol);
+        List<AbstractCommand> cmds = new ArrayList<AbstractCommand>();
+
+        MessageCommand mc = factory.getCommandFactory().createCommand(MessageCommand.class);
+        mc.setMessage("hello \u017elu\u0165ou\u010dk\u00fd");
+        mc.setTime(System.currentTimeMillis());
+        cmds.add(mc);
+
+        Map<String, Number> map = new HashMap<String, Number>();
+        map.put("int", 1);
+        map.put("long", Long.MIN_VALUE);
+        map.put("double", 0.5d);
+        cmds.add(factory.getCommandFactory().createResponse((Map<String, ? extends Number>)map, NumberMapDataCommand.class, 5));
+
+        ErrorCommand ec = factory.getCommandFactory().createCommand(ErrorCommand.class);
+        ec.setCause(new IllegalStateException("failure"));
+        cmds.add(ec);
+
+        StreamChannel reader = StreamChannel.reader(new ByteArrayInputStream(encode(cmds, protocol, compressed)), protocol, compressed);
+        assertEquals(compressed, reader.isCompressed());
+
+        MessageCommand mc1 = (MessageCommand)reader.readCommand();
+        assertEquals(mc.getRx(), mc1.getRx());
+        assertEquals(-1, mc1.getTx());
+        assertEquals(mc.getMessage(), mc1.getMessage());
+        assertEquals(mc.getTime(), mc1.getTime());
+
+        NumberMapDataCommand nmdc = (NumberMapDataCommand)reader.readCommand();
+        assertEquals(5, nmdc.getTx());
+        assertEquals(map, nmdc.getPayload());
+
+        ErrorCommand ec1 = (ErrorCommand)reader.readCommand();
+        assertTrue(ec1.getCause() instanceof IllegalStateException);
+        assertEquals("failure", ec1.getCause().getMessage());
+    }
+
+    static byte[] encode(List<AbstractCommand> cmds, int protocol) throws Exception {
+        return encode(cmds, protocol, false);
+    }
+
+    static byte[] encode(List<AbstractCommand> cmds, int protocol, boolean compressed) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        StreamChannel writer = StreamChannel.writer(bos, protocol, compressed);
+        for (AbstractCommand cmd : cmds) {
+            writer.writeCommand(cmd);
+        }
+        writer.flush();
+        return bos.toByteArray();
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.wireio;
+
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.java.btrace.wireio.commands.MessageCommand;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class SocketMultiplexerTest {
+    private SocketMultiplexer mux;
+    private Thread ioThread;
+    private final BlockingQueue<SocketMultiplexer.Connection> accepted = new LinkedBlockingQueue<SocketMultiplexer.Connection>();
+    private volatile boolean keepRunning = true;
+
+    @Before
+    public void setUp() throws Exception {
+        mux = SocketMultiplexer.open(0, new SocketMultiplexer.Handler() {
+            @Override
+            public void accepted(SocketMultiplexer.Connection c) {
+                accepted.add(c);
+            }
+
+            @Override
+            public boolean idle() {
+                return keepRunning;
+            }
+        });
+        ioThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mux.run();
+            }
+        }, "Test I/O");
+        ioThread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mux.stop();
+        ioThread.join(5000);
+    }
+
+    @Test
+    public void testAccept() throws Exception {
+        System.out.println("accept");
+        Socket s = new Socket("localhost", mux.getPort());
+        try {
+            // must not depend on the idle period
+            SocketMultiplexer.Connection c = accepted.poll(SocketMultiplexer.IDLE_PERIOD / 2, TimeUnit.MILLISECONDS);
+            assertNotNull(c);
+            assertTrue(c.getInetAddress().isLoopbackAddress());
+            assertEquals(1, mux.getConnectionCount());
+        } finally {
+            s.close();
+        }
+    }
+
+    @Test
+    public void testReadWrite() throws Exception {
+        System.out.println("readWrite");
+        Socket s = new Socket("localhost", mux.getPort());
+        SocketMultiplexer.Connection c = accepted.poll(5, TimeUnit.SECONDS);
+        final CountDownLatch dataArrived = new CountDownLatch(1);
+        c.setReadListener(new Runnable() {
+            @Override
+            public void run() {
+                dataArrived.countDown();
+            }
+        });
+        assertFalse(c.isReadable());
+
+        byte[] data = new byte[200000]; // more than fits in the socket buffers
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte)i;
+        }
+        OutputStream sos = s.getOutputStream();
+        sos.write(data, 0, 10);
+        sos.flush();
+        assertTrue(dataArrived.await(5, TimeUnit.SECONDS));
+        assertTrue(c.isReadable());
+
+        // echo the data back
+        OutputStream cos = c.getOutputStream();
+        InputStream cis = c.getInputStream();
+        byte[] buf = new byte[10];
+        readFully(cis, buf);
+        cos.write(buf);
+        cos.flush();
+        InputStream sis = s.getInputStream();
+        readFully(sis, buf);
+        for (int i = 0; i < buf.length; i++) {
+            assertEquals(data[i], buf[i]);
+        }
+
+        cos.write(data);
+        cos.flush();
+        byte[] received = new byte[data.length];
+        readFully(sis, received);
+        for (int i = 0; i < data.length; i++) {
+            assertEquals(data[i], received[i]);
+        }
+
+        // the peer closing the connection is reported as EOF
+        s.close();
+        long deadline = System.currentTimeMillis() + 5000;
+        int r;
+        while ((r = cis.read()) != -1 && System.currentTimeMillis() < deadline);
+        assertEquals(-1, r);
+    }
+
+    @Test
+    public void testManyChannels() throws Exception {
+        System.out.println("manyChannels");
+        final int clients = 32;
+        final int messages = 500;
+        List<Socket> sockets = new ArrayList<Socket>();
+        for (int i = 0; i < clients; i++) {
+            sockets.add(new Socket("localhost", mux.getPort()));
+        }
+        final AtomicInteger received = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+        List<Thread> readers = new ArrayList<Thread>();
+        for (final Socket s : sockets) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        StreamChannel ch = StreamChannel.reader(s.getInputStream(), Version.PROTOCOL_V3);
+                        int expected = 0;
+                        while (true) {
+                            AbstractCommand cmd;
+                            try {
+                                cmd = ch.readCommand();
+                            } catch (EOFException e) {
+                                break;
+                            }
+                            if (!("msg" + expected++).equals(((MessageCommand)cmd).getMessage())) {
+                                errors.incrementAndGet();
+                            }
+                            received.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        errors.incrementAndGet();
+                    }
+                }
+            });
+            t.start();
+            readers.add(t);
+        }
+
+        List<StreamChannel> channels = new ArrayList<StreamChannel>();
+        for (int i = 0; i < clients; i++) {
+            SocketMultiplexer.Connection c = accepted.poll(5, TimeUnit.SECONDS);
+            assertNotNull(c);
+            channels.add(StreamChannel.multiplexed(c, Version.PROTOCOL_V3));
+        }
+        for (int i = 0; i < messages; i++) {
+            for (StreamChannel ch : channels) {
+                final String msg = "msg" + i;
+                ch.sendCommand(MessageCommand.class, new AbstractCommand.Initializer<MessageCommand>() {
+                    @Override
+                    public void init(MessageCommand cmd) {
+                        cmd.setMessage(msg);
+                    }
+                });
+            }
+        }
+        // the multiplexer is writing the commands instead of the per-channel delayed writers
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            assertFalse(t.getName().startsWith("BTrace Delayed Writer"));
+        }
+        for (StreamChannel ch : channels) {
+            ch.close();
+        }
+        for (Thread t : readers) {
+            t.join(10000);
+        }
+        assertEquals(0, errors.get());
+        assertEquals(clients * messages, received.get());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mux.getConnectionCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, mux.getConnectionCount());
+    }
+
+    @Test
+    public void testCloseWithBacklog() throws Exception {
+        System.out.println("closeWithBacklog");
+        final int messages = 20000;
+        final Socket s = new Socket("localhost", mux.getPort());
+        final AtomicInteger received = new AtomicInteger();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    StreamChannel ch = StreamChannel.reader(s.getInputStream(), Version.PROTOCOL_V3);
+                    while (true) {
+                        try {
+                            ch.readCommand();
+                        } catch (EOFException e) {
+                            break;
+                        }
+                        received.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        reader.start();
+
+        SocketMultiplexer.Connection c = accepted.poll(5, TimeUnit.SECONDS);
+        assertNotNull(c);
+        final StreamChannel ch = StreamChannel.multiplexed(c, Version.PROTOCOL_V3);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            sb.append('x');
+        }
+        final String payload = sb.toString();
+        for (int i = 0; i < messages; i++) {
+            final String msg = payload + i;
+            ch.sendCommand(MessageCommand.class, new AbstractCommand.Initializer<MessageCommand>() {
+                @Override
+                public void init(MessageCommand cmd) {
+                    cmd.setMessage(msg);
+                }
+            });
+        }
+        // the backlog is way above the output high water; the I/O thread must keep sending it while closing
+        Thread closer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ch.close();
+            }
+        });
+        closer.start();
+        closer.join(10000);
+        assertFalse(closer.isAlive());
+        reader.join(10000);
+        assertEquals(messages, received.get());
+    }
+
+    @Test
+    public void testIdle() throws Exception {
+        System.out.println("idle");
+        keepRunning = false;
+        ioThread.join(SocketMultiplexer.IDLE_PERIOD * 3);
+        assertFalse(ioThread.isAlive());
+    }
+
+    private static void readFully(InputStream is, byte[] buf) throws Exception {
+        int off = 0;
+        while (off < buf.length) {
+            int r = is.read(buf, off, buf.length - off);
+            if (r < 0) throw new EOFException();
+            off += r;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.wireio;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import net.java.btrace.wireio.commands.ErrorCommand;
+import net.java.btrace.wireio.commands.MessageCommand;
+import net.java.btrace.wireio.commands.NumberMapDataCommand;
+import net.java.btrace.wireio.commands.RetransformationStartNotification;
+
+/**
+ * A {@linkplain SocketChannel} over in-memory streams using the given wire protocol
+ * @author Jaroslav Bachorik
+ */
+class StreamChannel extends SocketChannel {
+    private static final Class[] COMMANDS = new Class[]{MessageCommand.class, NumberMapDataCommand.class, ErrorCommand.class, RetransformationStartNotification.class};
+
+    private StreamChannel(ObjectInputStream ois, ObjectOutputStream oos, InputStream is, OutputStream os, int protocol, boolean compressed) {
+        super(ois, oos, is, os, null);
+        setCommandFactory(CommandFactory.getInstance(COMMANDS, getMyLoader(), Command.Target.SERVER));
+        setProtocol(protocol, compressed);
+    }
+
+    /**
+     * Creates a write-only channel
+     */
+    static StreamChannel writer(OutputStream os, int protocol) throws IOException {
+        return writer(os, protocol, false);
+    }
+
+    static StreamChannel writer(OutputStream os, int protocol, boolean compressed) throws IOException {
+        ObjectOutputStream oos = new ObjectOutputStream(os);
+        oos.flush();
+        return new StreamChannel(new ObjectInputStream(new ByteArrayInputStream(emptyStream())), oos, new ByteArrayInputStream(new byte[0]), os, protocol, compressed);
+    }
+
+    /**
+     * Creates a read-only channel
+     */
+    static StreamChannel reader(InputStream is, int protocol) throws IOException {
+        return reader(is, protocol, false);
+    }
+
+    static StreamChannel reader(InputStream is, int protocol, boolean compressed) throws IOException {
+        return new StreamChannel(new ObjectInputStream(is), new ObjectOutputStream(new ByteArrayOutputStream()), is, new ByteArrayOutputStream(), protocol, compressed);
+    }
+
+    /**
+     * Creates a write-only channel whose commands are written by the multiplexer's I/O thread
+     */
+    static StreamChannel multiplexed(SocketMultiplexer.Connection c, int protocol) throws IOException {
+        StreamChannel ch = writer(c.getOutputStream(), protocol);
+        ch.setDelayedWrite(false);
+        ch.init();
+        c.attach(ch);
+        return ch;
+    }
+
+    private static byte[] emptyStream() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new ObjectOutputStream(bos).close();
+        return bos.toByteArray();
+    }
+
+    @Override
+    protected boolean handshake() {
+        return true;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.wireio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+import net.java.btrace.wireio.commands.MessageCommand;
+
+/**
+ * Compares the loopback socket and the shared memory ring as the transport
+ * for the framed {@linkplain MessageCommand}s - throughput and the CPU time
+ * spent by the sending thread.
+ * <p>
+ * Usage: <code>TransportBenchmark [commands] [batch]</code>; the channel is
+ * flushed after each <i>batch</i> commands
+ * </p>
+ * @author Jaroslav Bachorik
+ */
+public class TransportBenchmark {
+    private static final ThreadMXBean TMX = ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        int commands = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int batch = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+
+        // warm-up
+        socket(commands / 10, batch);
+        ring(commands / 10, batch);
+
+        System.out.println("transport\tcommands/s\tsender CPU ns/command");
+        long[] r = socket(commands, batch);
+        System.out.println("loopback socket\t" + r[0] + "\t" + r[1]);
+        r = ring(commands, batch);
+        System.out.println("shared memory\t" + r[0] + "\t" + r[1]);
+    }
+
+    private static long[] socket(int commands, int batch) throws Exception {
+        ServerSocket ss = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        Socket client = new Socket(ss.getInetAddress(), ss.getLocalPort());
+        Socket server = ss.accept();
+        ss.close();
+        try {
+            StreamChannel sender = StreamChannel.writer(new BufferedOutputStream(server.getOutputStream(), SocketChannel.DEFAULT_FLUSH_SIZE), Version.PROTOCOL);
+            StreamChannel receiver = StreamChannel.reader(new BufferedInputStream(client.getInputStream()), Version.PROTOCOL);
+            return run(sender, receiver, commands, batch);
+        } finally {
+            client.close();
+            server.close();
+        }
+    }
+
+    private static long[] ring(int commands, int batch) throws Exception {
+        MappedRing producer = MappedRing.create(MappedRing.DEFAULT_CAPACITY);
+        MappedRing consumer = MappedRing.open(producer.getPath());
+        producer.unlink();
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        StreamChannel sender = StreamChannel.writer(header, Version.PROTOCOL);
+        sender.attachRing(producer);
+        StreamChannel receiver = StreamChannel.reader(new ByteArrayInputStream(header.toByteArray()), Version.PROTOCOL);
+        receiver.attachRing(consumer);
+        try {
+            return run(sender, receiver, commands, batch);
+        } finally {
+            producer.close();
+            consumer.close();
+        }
+    }
+
+    private static long[] run(StreamChannel sender, final StreamChannel receiver, final int commands, int batch) throws Exception {
+        final AtomicLong received = new AtomicLong();
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (received.get() < commands) {
+                        receiver.readCommand();
+                        received.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "Transport Reader");
+        reader.setDaemon(true);
+
+        CommandFactory cf = sender.getCommandFactory();
+        long start = System.nanoTime();
+        long cpuStart = TMX.getCurrentThreadCpuTime();
+        reader.start();
+        for (int i = 0; i < commands; i++) {
+            MessageCommand mc = cf.createCommand(MessageCommand.class);
+            mc.setMessage("entered java.util.HashMap#get() #" + i);
+            sender.writeCommand(mc);
+            if (i % batch == 0) {
+                sender.flush();
+            }
+        }
+        sender.flush();
+        long cpu = TMX.getCurrentThreadCpuTime() - cpuStart;
+        reader.join();
+        long dur = System.nanoTime() - start;
+        return new long[]{commands * 1000000000L / dur, cpu / commands};
+    }
+}
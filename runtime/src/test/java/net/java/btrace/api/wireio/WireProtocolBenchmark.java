@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.wireio;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import net.java.btrace.wireio.commands.MessageCommand;
+import net.java.btrace.wireio.commands.NumberMapDataCommand;
+
+/**
+ * Compares the wire protocol v1 (java serialization) with the protocol v2
+ * (length prefixed frames with typed cells) and v3 (v2 with the string dictionary)
+ * - bytes per message and the time needed to encode and decode a message.
+ * <p>
+ * Usage: <code>WireProtocolBenchmark [commands]</code>
+ * </p>
+ * @author Jaroslav Bachorik
+ */
+public class WireProtocolBenchmark {
+    public static void main(String[] args) throws Exception {
+        int commands = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+        CommandFactory cf = StreamChannel.writer(new java.io.ByteArrayOutputStream(), Version.PROTOCOL_V1).getCommandFactory();
+        List<AbstractCommand> numbers = new ArrayList<AbstractCommand>();
+        List<AbstractCommand> messages = new ArrayList<AbstractCommand>();
+        List<AbstractCommand> entries = new ArrayList<AbstractCommand>();
+        for (int i = 0; i < commands; i++) {
+            NumberMapDataCommand nmdc = cf.createCommand(NumberMapDataCommand.class);
+            nmdc.setName("counters");
+            // fresh values for each command; the same instances would be back-referenced by the java serialization
+            Map<String, Number> map = new HashMap<String, Number>();
+            for (int j = 0; j < 10; j++) {
+                map.put("java.lang.String#method" + j, Long.valueOf(i * 10 + j));
+            }
+            nmdc.setPayload(map);
+            numbers.add(nmdc);
+            MessageCommand mc = cf.createCommand(MessageCommand.class);
+            mc.setMessage("entered method #" + i);
+            mc.setTime(System.currentTimeMillis());
+            messages.add(mc);
+            // method-entry tracing; a limited set of repeated class and method names
+            mc = cf.createCommand(MessageCommand.class);
+            mc.setMessage("entered java.util.HashMap#method" + (i % 1000));
+            entries.add(mc);
+        }
+
+        // warm-up
+        for (int i = 0; i < 3; i++) {
+            for (int protocol = Version.PROTOCOL_V1; protocol <= Version.PROTOCOL; protocol++) {
+                run(messages, protocol);
+                run(entries, protocol);
+                run(numbers, protocol);
+            }
+        }
+
+        System.out.println("stream\tprotocol\tbytes/msg\tencode ns/msg\tdecode ns/msg");
+        report("MessageCommand (unique)", messages);
+        report("MessageCommand (method entry)", entries);
+        report("NumberMapDataCommand", numbers);
+    }
+
+    private static void report(String name, List<AbstractCommand> cmds) throws Exception {
+        for (int protocol = Version.PROTOCOL_V1; protocol <= Version.PROTOCOL; protocol++) {
+            long[] r = run(cmds, protocol);
+            System.out.println(name + "\tv" + protocol + "\t" + r[0] / cmds.size() + "\t" + r[1] / cmds.size() + "\t" + r[2] / cmds.size());
+        }
+    }
+
+    private static long[] run(List<AbstractCommand> cmds, int protocol) throws Exception {
+        long start = System.nanoTime();
+        byte[] data = SocketChannelProtocolTest.encode(cmds, protocol);
+        long encoded = System.nanoTime() - start;
+
+        StreamChannel reader = StreamChannel.reader(new ByteArrayInputStream(data), protocol);
+        start = System.nanoTime();
+        for (int i = 0; i < cmds.size(); i++) {
+            reader.readCommand();
+        }
+        long decoded = System.nanoTime() - start;
+        return new long[]{data.length, encoded, decoded};
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.runtime;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.PatternSyntaxException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class ProbeConditionsTest {
+
+    @Test
+    public void testThreadNameMatches() throws Exception {
+        System.out.println("threadNameMatches");
+        final int id = ProbeConditions.newPattern("worker-\\d+");
+        final AtomicBoolean matched = new AtomicBoolean();
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                matched.set(ProbeConditions.threadNameMatches(id));
+            }
+        }, "worker-12");
+        t.start();
+        t.join();
+        assertTrue(matched.get());
+
+        t = new Thread(new Runnable() {
+            public void run() {
+                matched.set(ProbeConditions.threadNameMatches(id));
+            }
+        }, "worker-x");
+        t.start();
+        t.join();
+        assertFalse(matched.get());
+    }
+
+    @Test
+    public void testPatternIds() {
+        System.out.println("patternIds");
+        int id1 = ProbeConditions.newPattern(".*");
+        int id2 = ProbeConditions.newPattern("no such thread");
+        assertEquals(id1 + 1, id2);
+        assertTrue(ProbeConditions.threadNameMatches(id1));
+        assertFalse(ProbeConditions.threadNameMatches(id2));
+    }
+
+    @Test(expected=PatternSyntaxException.class)
+    public void testInvalidPattern() {
+        System.out.println("invalidPattern");
+        ProbeConditions.newPattern("(");
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.runtime;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Multi-threaded event throughput of a counted probe point compared to
+ * a probe point calling a counting handler.
+ * <p>
+ * The counted site checks the probe flag and increments a {@linkplain ProbeCounter}.
+ * The handler site calls a method doing what a preprocessed counting handler does -
+ * checks the probe flag, enters the runtime, updates its {@linkplain ProbeStats}
+ * and increments a plain static field.
+ * <p>
+ * Usage: <code>ProbeCounterBenchmark [maxThreads] [iterations]</code>;
+ * the thread count is doubled from 1 up to <b>maxThreads</b> (defaults to
+ * the number of available processors)
+ * @author Jaroslav Bachorik
+ */
+public class ProbeCounterBenchmark {
+    private static volatile boolean disabled = false;
+    private static final Object RUNTIME = new Object();
+    private static final ThreadEnteredMap MAP = new ThreadEnteredMap("null");
+    private static ProbeStats stats;
+    private static ProbeCounter counter;
+    private static long count;
+
+    private static abstract class Site {
+        abstract String name();
+        abstract void hit();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        final int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10000000;
+
+        System.out.println("threads\tsite\tns/event\tMevents/s");
+        for (int threads = 1; threads <= maxThreads; threads = nextThreadCount(threads, maxThreads)) {
+            // warm-up run, results discarded
+            run(newCounted(), threads, iterations / 10);
+            run(newHandler(), threads, iterations / 10);
+
+            report(newHandler(), threads, iterations);
+            report(newCounted(), threads, iterations);
+        }
+    }
+
+    private static int nextThreadCount(int threads, int maxThreads) {
+        if (threads == maxThreads) {
+            return maxThreads + 1;
+        }
+        return Math.min(threads * 2, maxThreads);
+    }
+
+    private static void report(Site site, int threads, int iterations) throws InterruptedException {
+        long dur = run(site, threads, iterations);
+        long events = (long)threads * iterations;
+        System.out.println(threads + "\t" + site.name() + "\t" + ((double)dur * threads / events) + "\t" + (events * 1000d / dur));
+    }
+
+    private static long run(final Site site, int threads, final int iterations) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < iterations; j++) {
+                            site.hit();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "Benchmark#" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        long startTs = System.nanoTime();
+        start.countDown();
+        done.await();
+        return System.nanoTime() - startTs;
+    }
+
+    private static Site newCounted() {
+        counter = new ProbeCounter();
+        return new Site() {
+            String name() { return "counted"; }
+            void hit() {
+                if (!disabled) {
+                    counter.increment();
+                }
+            }
+        };
+    }
+
+    private static Site newHandler() {
+        stats = new ProbeStats("handler");
+        count = 0;
+        return new Site() {
+            String name() { return "handler"; }
+            void hit() {
+                handler();
+            }
+        };
+    }
+
+    // the shape of a preprocessed counting handler
+    private static void handler() {
+        if (disabled) {
+            return;
+        }
+        if (!MAP.enter(RUNTIME)) {
+            return;
+        }
+        try {
+            if (!ProbeStats.enter(stats)) {
+                return;
+            }
+            count++;
+            ProbeStats.leave(stats);
+        } finally {
+            MAP.exit();
+        }
+    }
+}
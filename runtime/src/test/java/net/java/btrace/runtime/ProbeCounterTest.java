@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.runtime;
+
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class ProbeCounterTest {
+
+    @Test
+    public void testIncrement() {
+        System.out.println("increment");
+        ProbeCounter c = new ProbeCounter();
+        assertEquals(0, c.sum());
+        for (int i = 0; i < 10; i++) {
+            c.increment();
+        }
+        assertEquals(10, c.sum());
+    }
+
+    @Test
+    public void testConcurrentIncrement() throws Exception {
+        System.out.println("concurrentIncrement");
+        final ProbeCounter c = new ProbeCounter();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < 100000; j++) {
+                        c.increment();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(threads.length * 100000L, c.sum());
+    }
+
+    @Test
+    public void testSet() throws Exception {
+        System.out.println("set");
+        final ProbeCounter c = new ProbeCounter();
+        c.increment();
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                c.increment();
+            }
+        });
+        t.start();
+        t.join();
+        assertEquals(2, c.sum());
+        c.set(5);
+        assertEquals(5, c.sum());
+        c.increment();
+        assertEquals(6, c.sum());
+        c.set(0);
+        assertEquals(0, c.sum());
+    }
+}
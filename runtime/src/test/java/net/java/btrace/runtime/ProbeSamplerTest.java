@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.runtime;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class ProbeSamplerTest {
+
+    @Test
+    public void testHitEveryNth() {
+        System.out.println("hitEveryNth");
+        int id = ProbeSampler.newSampler();
+        for (int i = 1; i <= 100; i++) {
+            assertEquals(i % 10 == 0, ProbeSampler.hit(id, 10));
+        }
+    }
+
+    @Test
+    public void testHitIndependentSlots() {
+        System.out.println("hitIndependentSlots");
+        int id1 = ProbeSampler.newSampler();
+        int id2 = ProbeSampler.newSampler();
+        int hits1 = 0, hits2 = 0;
+        for (int i = 0; i < 100; i++) {
+            if (ProbeSampler.hit(id1, 4)) hits1++;
+            if (ProbeSampler.hit(id2, 25)) hits2++;
+        }
+        assertEquals(25, hits1);
+        assertEquals(4, hits2);
+    }
+
+    @Test
+    public void testHitPerThread() throws Exception {
+        System.out.println("hitPerThread");
+        final int id = ProbeSampler.newSampler();
+        final AtomicInteger hits = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        if (ProbeSampler.hit(id, 100)) {
+                            hits.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(threads.length * 10, hits.get());
+    }
+
+    @Test
+    public void testRandom() {
+        System.out.println("random");
+        int hits = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (ProbeSampler.random(10)) hits++;
+        }
+        // 10000 expected; the standard deviation is ~95
+        assertTrue("hits = " + hits, hits > 9000 && hits < 11000);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(ProbeSampler.random(1));
+        }
+    }
+}
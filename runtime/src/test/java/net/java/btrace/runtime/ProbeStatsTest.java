@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.runtime;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class ProbeStatsTest {
+
+    @Test
+    public void testCounts() {
+        System.out.println("counts");
+        ProbeStats s = new ProbeStats("handler");
+        for (int i = 0; i < 100; i++) {
+            assertTrue(ProbeStats.enter(s));
+            ProbeStats.leave(s);
+        }
+        ProbeStats.Snapshot snap = s.snapshot();
+        assertEquals(100, snap.calls);
+        assertEquals(100, snap.handled);
+        assertEquals((100 + ProbeStats.TIMING_INTERVAL - 1) / ProbeStats.TIMING_INTERVAL, snap.timed);
+        assertTrue(snap.nanos >= 0);
+    }
+
+    @Test
+    public void testSamplingMean() {
+        System.out.println("samplingMean");
+        ProbeStats s = new ProbeStats("handler");
+        s.setSamplingMean(10);
+        int handled = 0;
+        for (int i = 0; i < 100; i++) {
+            if (ProbeStats.enter(s)) {
+                handled++;
+            }
+            ProbeStats.leave(s);
+        }
+        assertEquals(10, handled);
+        ProbeStats.Snapshot snap = s.snapshot();
+        assertEquals(100, snap.calls);
+        assertEquals(10, snap.handled);
+        s.setSamplingMean(0);
+        assertEquals(1, s.getSamplingMean());
+    }
+
+    @Test
+    public void testNullStats() {
+        System.out.println("nullStats");
+        assertTrue(ProbeStats.enter(null));
+        ProbeStats.leave(null);
+    }
+
+    @Test
+    public void testTerminatedThreads() throws Exception {
+        System.out.println("terminatedThreads");
+        final ProbeStats s = new ProbeStats("handler");
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        ProbeStats.enter(s);
+                        ProbeStats.leave(s);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(threads.length * 1000, s.snapshot().calls);
+        // the counts of the gone threads are kept
+        assertEquals(threads.length * 1000, s.snapshot().calls);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.runtime;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Multi-threaded enter/get/exit throughput comparison of {@linkplain ThreadEnteredMap}
+ * and the original {@linkplain SynchronizedThreadEnteredMap}.
+ * <p>
+ * Usage: <code>ThreadEnteredMapBenchmark [maxThreads] [iterations]</code>;
+ * the thread count is doubled from 1 up to <b>maxThreads</b> (defaults to
+ * the number of available processors)
+ * @author Jaroslav Bachorik
+ */
+public class ThreadEnteredMapBenchmark {
+    private static abstract class MapAdapter {
+        abstract String name();
+        abstract boolean enter(Object val);
+        abstract Object get();
+        abstract void exit();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        final int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 4000000;
+
+        System.out.println("threads\timpl\tns/op\tops/s");
+        for (int threads = 1; threads <= maxThreads; threads = nextThreadCount(threads, maxThreads)) {
+            // warm-up run, results discarded
+            run(newLockFree(), threads, iterations / 10);
+            run(newSynchronized(), threads, iterations / 10);
+
+            report(newSynchronized(), threads, iterations);
+            report(newLockFree(), threads, iterations);
+        }
+    }
+
+    private static int nextThreadCount(int threads, int maxThreads) {
+        if (threads == maxThreads) {
+            return maxThreads + 1;
+        }
+        return Math.min(threads * 2, maxThreads);
+    }
+
+    private static void report(MapAdapter map, int threads, int iterations) throws InterruptedException {
+        long dur = run(map, threads, iterations);
+        long ops = (long)threads * iterations;
+        System.out.println(threads + "\t" + map.name() + "\t" + (dur * threads / ops) + "\t" + (ops * 1000000000L / dur));
+    }
+
+    private static long run(final MapAdapter map, int threads, final int iterations) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final Object val = new Object();
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < iterations; j++) {
+                            if (map.enter(val)) {
+                                if (map.get() != val) {
+                                    throw new IllegalStateException();
+                                }
+                                map.exit();
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "Benchmark#" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        long startTs = System.nanoTime();
+        start.countDown();
+        done.await();
+        return System.nanoTime() - startTs;
+    }
+
+    private static MapAdapter newLockFree() {
+        final ThreadEnteredMap map = new ThreadEnteredMap("null");
+        return new MapAdapter() {
+            String name() { return "lock-free"; }
+            boolean enter(Object val) { return map.enter(val); }
+            Object get() { return map.get(); }
+            void exit() { map.exit(); }
+        };
+    }
+
+    private static MapAdapter newSynchronized() {
+        final SynchronizedThreadEnteredMap map = new SynchronizedThreadEnteredMap("null");
+        return new MapAdapter() {
+            String name() { return "synchronized"; }
+            boolean enter(Object val) { return map.enter(val); }
+            Object get() { return map.get(); }
+            void exit() { map.exit(); }
+        };
+    }
+}
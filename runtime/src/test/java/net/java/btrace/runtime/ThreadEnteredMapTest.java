@@ -116,4 +116,31 @@ public class ThreadEnteredMapTest {
         latch.await();
         assertTrue(rslt.get());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testReenteredCurThrd() {
+        System.out.println("reenteredCurThrd");
+        Object myval = new Object();
+        assertTrue(map.enter(myval));
+        assertFalse(map.enter(new Object()));
+        assertEquals(myval, map.get());
+        map.exit();
+        assertTrue(map.enter(myval));
+    }
+
+    @Test
+    public void testOtherThrdNotEntered() throws InterruptedException {
+        System.out.println("otherThrdNotEntered");
+        assertTrue(map.enter(new Object()));
+
+        final AtomicBoolean rslt = new AtomicBoolean(false);
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                rslt.set(map.get() == null && map.enter(this));
+            }
+        });
+        t.start();
+        t.join();
+        assertTrue(rslt.get());
+    }
+}
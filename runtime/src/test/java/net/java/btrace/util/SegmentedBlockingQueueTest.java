@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class SegmentedBlockingQueueTest {
+    private SegmentedBlockingQueue<Integer> queue;
+
+    @Before
+    public void setUp() {
+        queue = new SegmentedBlockingQueue<Integer>(10, 4);
+    }
+
+    @Test
+    public void testLazyAllocation() {
+        System.out.println("lazyAllocation");
+        assertEquals(0, queue.getSegmentCount());
+        queue.offer(1);
+        assertEquals(1, queue.getSegmentCount());
+    }
+
+    @Test
+    public void testGrowAndRelease() throws Exception {
+        System.out.println("growAndRelease");
+        for (int i = 0; i < 10; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(10));
+        assertEquals(3, queue.getSegmentCount());
+        assertEquals(0, queue.remainingCapacity());
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(Integer.valueOf(i), queue.take());
+        }
+        // the drained segment is kept as the spare one
+        assertEquals(3, queue.getSegmentCount());
+        for (int i = 5; i < 10; i++) {
+            assertEquals(Integer.valueOf(i), queue.poll());
+        }
+        assertNull(queue.poll(1, TimeUnit.MILLISECONDS));
+        assertEquals(2, queue.getSegmentCount());
+
+        // refilled from the kept segments
+        for (int i = 0; i < 8; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertEquals(2, queue.getSegmentCount());
+    }
+
+    @Test
+    public void testPollIf() {
+        System.out.println("pollIf");
+        SegmentedBlockingQueue.Filter<Integer> even = new SegmentedBlockingQueue.Filter<Integer>() {
+            @Override
+            public boolean accept(Integer e) {
+                return e % 2 == 0;
+            }
+        };
+        assertNull(queue.pollIf(even));
+        queue.offer(2);
+        queue.offer(3);
+        queue.offer(2);
+        assertEquals(Integer.valueOf(2), queue.pollIf(even));
+        // only the head is ever taken
+        assertNull(queue.pollIf(even));
+        assertEquals(2, queue.size());
+        assertEquals(Integer.valueOf(3), queue.poll());
+        assertEquals(Integer.valueOf(2), queue.pollIf(even));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testLowDepthReuse() {
+        System.out.println("lowDepthReuse");
+        for (int i = 0; i < 1000; i++) {
+            queue.offer(i);
+            queue.offer(i);
+            assertEquals(Integer.valueOf(i), queue.poll());
+            assertEquals(Integer.valueOf(i), queue.poll());
+        }
+        assertEquals(1, queue.getSegmentCount());
+        queue.offer(1);
+        queue.clear();
+        assertEquals(0, queue.size());
+        assertEquals(1, queue.getSegmentCount());
+    }
+
+    @Test
+    public void testCapacityChange() {
+        System.out.println("capacityChange");
+        queue.setCapacity(2);
+        assertTrue(queue.offer(1));
+        assertTrue(queue.offer(2));
+        assertFalse(queue.offer(3));
+        queue.setCapacity(3);
+        assertTrue(queue.offer(3));
+        assertEquals(3, queue.size());
+    }
+
+    @Test
+    public void testRemove() {
+        System.out.println("remove");
+        for (int i = 0; i < 6; i++) {
+            queue.offer(i);
+        }
+        assertTrue(queue.remove(Integer.valueOf(0)));
+        assertTrue(queue.remove(Integer.valueOf(4)));
+        assertFalse(queue.remove(Integer.valueOf(42)));
+        List<Integer> rest = new ArrayList<Integer>();
+        assertEquals(4, queue.drainTo(rest));
+        assertEquals(4, rest.size());
+        assertEquals(Integer.valueOf(1), rest.get(0));
+        assertEquals(Integer.valueOf(5), rest.get(3));
+        assertEquals(2, queue.getSegmentCount());
+    }
+
+    @Test
+    public void testBlockingPut() throws Exception {
+        System.out.println("blockingPut");
+        for (int i = 0; i < 10; i++) {
+            queue.put(i);
+        }
+        assertFalse(queue.offer(10, 1, TimeUnit.MILLISECONDS));
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    queue.put(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        t.start();
+        assertEquals(Integer.valueOf(0), queue.take());
+        t.join();
+        assertEquals(10, queue.size());
+    }
+}
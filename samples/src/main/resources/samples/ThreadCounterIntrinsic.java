@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package samples;
+
+import net.java.btrace.annotations.OnMethod;
+import net.java.btrace.annotations.BTrace;
+import net.java.btrace.annotations.Counter;
+import net.java.btrace.annotations.OnTimer;
+import static net.java.btrace.ext.Printer.*;
+import static net.java.btrace.ext.Numbers.*;
+import static net.java.btrace.ext.collections.Collections.*;
+
+import java.util.Map;
+
+/**
+ * This sample counts the started and interrupted threads.
+ * The probe points increment the @Counter fields directly -
+ * the empty handlers are never called so counting costs
+ * only a single increment per Thread.start() or
+ * Thread.interrupt() call. The counters are printed
+ * and reset every 2 seconds.
+ */
+@BTrace public class ThreadCounterIntrinsic {
+    @Counter private static long started;
+    @Counter private static long interrupted;
+
+    private static Map<String, Long> counts = newHashMap();
+
+    @OnMethod(
+        clazz="java.lang.Thread",
+        method="start",
+        counter="started"
+    )
+    public static void onstart() {
+    }
+
+    @OnMethod(
+        clazz="java.lang.Thread",
+        method="interrupt",
+        counter="interrupted"
+    )
+    public static void oninterrupt() {
+    }
+
+    @OnTimer(2000)
+    public static void ontimer() {
+        put(counts, "started", box(started));
+        put(counts, "interrupted", box(interrupted));
+        printNumberMap("Threads", counts);
+        // assigning to a counter resets it
+        started = 0;
+        interrupted = 0;
+    }
+}